@@ -1,13 +1,19 @@
 package com.pugwoo.dbhelper;
 
+import java.util.Collection;
 import java.util.List;
 import java.util.Map;
 
 import org.springframework.jdbc.support.rowset.SqlRowSet;
 import org.springframework.transaction.annotation.Transactional;
 
+import com.pugwoo.dbhelper.enums.CountModeEnum;
+import com.pugwoo.dbhelper.enums.UpsertResultEnum;
 import com.pugwoo.dbhelper.exception.MustProvideconstructorException;
 import com.pugwoo.dbhelper.exception.NullKeyValueException;
+import com.pugwoo.dbhelper.model.CloseableIterator;
+import com.pugwoo.dbhelper.model.CursorPageData;
+import com.pugwoo.dbhelper.model.DataHandler;
 import com.pugwoo.dbhelper.model.PageData;
 
 /**
@@ -130,6 +136,20 @@ public interface DBHelper {
 	 */
 	<T> PageData<T> getPage(Class<T> clazz, int page, int pageSize,
 			String postSql, Object... args);
+	
+	/**
+	 * 查询列表，postSql可以带查询条件，按countMode计算总数<br>
+	 * 【会自动处理软删除记录】
+	 * @param clazz 【-支持@JoinTable-】
+	 * @param page 从1开始
+	 * @param pageSize
+	 * @param countMode EXACT精确计算；CACHED缓存总数，通过DBHelper修改表后失效；
+	 *        ESTIMATED用EXPLAIN或表统计信息估算，此时返回的PageData.approximate为true
+	 * @param postSql 包含where关键字起的后续SQL语句，不能包含limit子句
+	 * @return 返回的data不会是null
+	 */
+	<T> PageData<T> getPage(Class<T> clazz, int page, int pageSize, CountModeEnum countMode,
+			String postSql, Object... args);
 
 	/**
 	 * 计算总数<br>
@@ -149,6 +169,17 @@ public interface DBHelper {
 	 */
 	<T> int getCount(Class<T> clazz, String postSql, Object... args);
 	
+	/**
+	 * 按countMode计算总数，ESTIMATED时返回的是估算值<br>
+	 * 【会自动处理软删除记录】
+	 * @param clazz 【-支持@JoinTable-】
+	 * @param countMode
+	 * @param postSql
+	 * @param args
+	 * @return
+	 */
+	<T> int getCount(Class<T> clazz, CountModeEnum countMode, String postSql, Object... args);
+	
 	/**
 	 * 查询列表，没有查询条件；不查询总数<br>
 	 * 【会自动处理软删除记录】
@@ -171,6 +202,28 @@ public interface DBHelper {
 	<T> PageData<T> getPageWithoutCount(Class<T> clazz, int page, int pageSize,
 			String postSql, Object... args);
 	
+	/**
+	 * 游标分页查询第一页，按主键排序；不查询总数<br>
+	 * 【会自动处理软删除记录】
+	 * @param clazz 【-支持@JoinTable-】
+	 * @param pageSize
+	 * @return 返回的data不会是null
+	 */
+	<T> CursorPageData<T> getPageAfter(Class<T> clazz, int pageSize);
+	
+	/**
+	 * 游标分页查询，按postSql的order by列加上主键排序，查询上一页最后一条记录之后的数据；不查询总数。<br>
+	 * 不使用limit offset，翻到多深耗时都一样，适合于深度翻页和遍历。order by的列最好有索引。<br>
+	 * 【会自动处理软删除记录】
+	 * @param clazz 【-支持@JoinTable-】，join类的order by列要带上t1.或t2.
+	 * @param cursor 上一页返回的nextCursor，为null时查询第一页
+	 * @param pageSize
+	 * @param postSql 包含where关键字起的后续SQL语句，可以有order by列，不能包含group by、having和limit子句
+	 * @return 返回的data不会是null
+	 */
+	<T> CursorPageData<T> getPageAfter(Class<T> clazz, String cursor, int pageSize,
+			String postSql, Object... args);
+	
 	/**
 	 * 查询列表，查询所有记录，如果数据量大请慎用<br>
 	 * 【会自动处理软删除记录】
@@ -186,6 +239,104 @@ public interface DBHelper {
 	 * @return 返回不会是null
 	 */
 	<T> List<T> getAll(Class<T> clazz, String postSql, Object... args);
+	
+	/**
+	 * 流式查询，逐条读取记录，不把结果全部放到内存中，适合于导出等大数据量的遍历。<br>
+	 * 使用只向前、只读的ResultSet，每次读取streamFetchSize行；@RelatedColumn每streamWindowSize条批量查询一次。<br>
+	 * 返回的迭代器持有数据库连接，用完必须close；不使用整表缓存和查询缓存。<br>
+	 * 【注】MySQL默认的流式读取在关闭迭代器之前，同一个连接不能执行其它查询，
+	 * 所以在事务中时不要在遍历过程中使用同一个事务查询；事务中查询有@RelatedColumn的类时，
+	 * 改为每次读取streamWindowSize行，MySQL没有开启useCursorFetch时会把结果全部读到内存中。<br>
+	 * 【会自动处理软删除记录】
+	 * @param clazz 【-支持@JoinTable-】
+	 * @param postSql 包含where关键字起的后续SQL语句
+	 * @return 返回不会是null
+	 */
+	<T> CloseableIterator<T> stream(Class<T> clazz, String postSql, Object... args);
+	
+	/**
+	 * 流式查询，逐条交给handler处理，处理完或handler抛出异常时释放连接，详见stream方法。<br>
+	 * 【会自动处理软删除记录】
+	 * @param clazz 【-支持@JoinTable-】
+	 * @param handler 逐条处理记录
+	 * @param postSql 包含where关键字起的后续SQL语句
+	 * @return 处理的记录数
+	 */
+	<T> long forEach(Class<T> clazz, DataHandler<T> handler, String postSql, Object... args);
+	
+	/**
+	 * 查询列表，结果超过内存预算时不会OOM：用流式查询读取，内存中记录的字节数超过spillMemoryBytes之后，
+	 * 后面的记录按@Column编码写入临时文件，返回的列表访问时再从映射的文件中解码。
+	 * 记录数或字节数超过resultMaxRows、resultMaxBytes时抛出ResultTooLargeException。<br>
+	 * 【注】返回的列表是只读的，写入文件的记录每次get都是新的对象；列表实现了Closeable，可以提前释放临时文件。
+	 * join类和有@RelatedColumn的类不写入文件，只检查上限。<br>
+	 * 【会自动处理软删除记录】
+	 * @param clazz 【-支持@JoinTable-】
+	 * @param postSql 包含where关键字起的后续SQL语句
+	 * @return 返回不会是null
+	 */
+	<T> List<T> getAllWithSpill(Class<T> clazz, String postSql, Object... args);
+	
+	/**
+	 * 流水线方式的流式查询，适合于百万行以上的导出：调用线程只读取ResultSet，把列值复制到可重复使用的行缓冲中，
+	 * mapperThreads个线程并行地创建对象、每streamWindowSize条批量查询@RelatedColumn并调用handler，
+	 * 吞吐量不再受限于单个线程的映射速度。映射跟不上时读取线程等待，内存中最多有mapperThreads*2+1块数据。<br>
+	 * 【注】handler在映射线程中调用，需要是线程安全的，块之间的顺序不确定。
+	 * 在事务中时不使用映射线程，在调用线程中按顺序逐块处理，@RelatedColumn的查询也在事务中。<br>
+	 * 【会自动处理软删除记录】
+	 * @param clazz 【-支持@JoinTable-】
+	 * @param mapperThreads 映射线程数
+	 * @param handler 逐块处理记录，抛出异常时停止查询，异常原样抛给调用者
+	 * @param postSql 包含where关键字起的后续SQL语句
+	 * @return 处理的记录数
+	 */
+	<T> long forEachPipelined(Class<T> clazz, int mapperThreads, DataHandler<List<T>> handler,
+			String postSql, Object... args);
+	
+	/**
+	 * 按主键范围分块遍历整表，适合于批处理任务。详见带startAfterKey的scanInChunks方法。<br>
+	 * 【会自动处理软删除记录】
+	 * @param clazz 只有一个主键的类，不支持@JoinTable
+	 * @param chunkSize 每块的记录数
+	 * @param handler 逐块处理记录
+	 * @param postSql 只能有where条件，不能有order by、group by、having和limit子句
+	 * @return 最后处理的记录的主键，没有记录时返回null
+	 */
+	<T> Object scanInChunks(Class<T> clazz, int chunkSize, DataHandler<List<T>> handler,
+			String postSql, Object... args);
+	
+	/**
+	 * 按主键范围分块遍历整表，适合于批处理任务：每块是一次独立的查询where 主键>上一块最后的主键 order by 主键 limit chunkSize，
+	 * 不用limit offset，也不长时间持有连接和游标，内存中最多只有一块数据；不使用查询缓存。<br>
+	 * 把每块处理完后的主键保存下来作为检查点，中断后用它作为startAfterKey可以继续处理。<br>
+	 * 【注】不要在事务中调用，否则所有的块都在同一个长事务中。<br>
+	 * 【会自动处理软删除记录】
+	 * @param clazz 只有一个主键的类，不支持@JoinTable
+	 * @param startAfterKey 从这个主键之后开始，为null时从头开始
+	 * @param chunkSize 每块的记录数
+	 * @param handler 逐块处理记录，抛出异常时停止遍历，异常原样抛给调用者
+	 * @param postSql 只能有where条件，不能有order by、group by、having和limit子句
+	 * @return 最后处理的记录的主键，没有记录时返回startAfterKey
+	 */
+	<T> Object scanInChunks(Class<T> clazz, Object startAfterKey, int chunkSize,
+			DataHandler<List<T>> handler, String postSql, Object... args);
+	
+	/**
+	 * 多个连接并行分块遍历整表，适合于大表导出、数据回填等任务。<br>
+	 * 按min(主键)和max(主键)把主键均分成parallelism个区间，每个区间一个线程，用scanInChunks的方式分块扫描。
+	 * 主键不是整数、表为空或在事务中时，在调用线程中顺序扫描。<br>
+	 * 【会自动处理软删除记录】
+	 * @param clazz 只有一个主键的类，不支持@JoinTable
+	 * @param parallelism 并行的线程数和连接数，不要超过连接池的大小
+	 * @param chunkSize 每块的记录数
+	 * @param isOrdered 为true时在调用线程中按主键顺序调用handler，其它区间预先读取并等待；
+	 *        为false时在各个扫描线程中调用handler，handler需要是线程安全的
+	 * @param handler 逐块处理记录，抛出异常时停止所有区间的扫描，异常原样抛给调用者
+	 * @param postSql 只能有where条件，不能有order by、group by、having和limit子句
+	 * @return 处理的记录数
+	 */
+	<T> long scanInParallel(Class<T> clazz, int parallelism, int chunkSize, boolean isOrdered,
+			DataHandler<List<T>> handler, String postSql, Object... args);
 
 	/**
 	 * 查询一条记录，如果有多条，也只返回第一条。该方法适合于知道返回值只有一条记录的情况。<br>
@@ -218,7 +369,7 @@ public interface DBHelper {
 	
 	/**
 	 * 插入多条记录，返回数据库实际修改的条数。<br>
-	 * 实际上，这个是int insert(T t)的循环遍历而已。插入性能并不会因多条而提升。<br>
+	 * 类和插入的列相同的记录会拼成多行insert语句，按batchSize分批插入，自增id会被设置。list中可以有不同的类。<br>
 	 * 【注】只插入非null的值。该方法为一个事务，要么全部插入成功，要么全部插入失败。
 	 * @param list
 	 * @return
@@ -267,7 +418,8 @@ public interface DBHelper {
 	<T> int insertWithNullInOneSQL(List<T> list);
 	
 	/**
-	 * 如果t有主键，则更新值；否则插入记录。只有非null的值会更新或插入。
+	 * 如果t有主键，则更新值；否则插入记录。只有非null的值会更新或插入。<br>
+	 * 【注】带主键但数据库中不存在的记录不会被插入，这种情况请用upsert。
 	 * @param t
 	 * @return 返回数据库实际修改的条数
 	 */
@@ -281,7 +433,8 @@ public interface DBHelper {
 	<T> int insertOrUpdateWithNull(T t);
 	
 	/**
-	 * 如果t有主键，则更新值；否则插入记录。只有非null的值会更新或插入。
+	 * 如果t有主键，则更新值；否则插入记录。只有非null的值会更新或插入。<br>
+	 * 列表中连续的、同一个类的更新或插入合并成批量执行，段之间按列表的顺序执行。
 	 * @param list
 	 * @return 返回数据库实际修改的条数
 	 */
@@ -289,13 +442,51 @@ public interface DBHelper {
 	<T> int insertOrUpdate(List<T> list);
 	
 	/**
-	 * 如果t有主键，则更新值；否则插入记录。包括null的值会更新或插入。
+	 * 如果t有主键，则更新值；否则插入记录。包括null的值会更新或插入。<br>
+	 * 列表中连续的、同一个类的更新或插入合并成批量执行，段之间按列表的顺序执行。
 	 * @param list
 	 * @return 返回数据库实际修改的条数
 	 */
 	@Transactional
 	<T> int insertOrUpdateWithNull(List<T> list);
 	
+	/**
+	 * 使用mysql的insert ... on duplicate key update插入或更新一条记录，一次数据库交互完成。<br>
+	 * 和insertOrUpdate不同，是否存在由数据库的主键或唯一键判断，因此带key但记录不存在时也会插入。<br>
+	 * 只有非null的值会插入或更新；插入时自动设置的默认值(如createTime)不会覆盖已有记录；已被软删除的记录会恢复。<br>
+	 * 如果t的自增id为null，则自增id会被设置为插入或更新的那条记录的id。
+	 * @param t
+	 * @return 数据库返回的修改条数：1表示插入，2表示更新，0表示记录存在且没有变化；
+	 *         jdbc连接没有设置useAffectedRows=true时(MySQL驱动默认)，记录存在且没有变化也返回1
+	 */
+	<T> int upsert(T t);
+	
+	/**
+	 * 同upsert，只是包括null的值也会插入或更新。
+	 * @param t
+	 * @return 同upsert
+	 */
+	<T> int upsertWithNull(T t);
+	
+	/**
+	 * 批量insert ... on duplicate key update，相同列的行会放在同一个jdbc batch中，按batchSize分批执行。<br>
+	 * 只有非null的值会插入或更新。【注】批量方式不回设自增id。
+	 * @param list 元素必须是同一个类
+	 * @return 每个元素的执行结果，顺序同list中非null的元素；没有setUseAffectedRows(true)时，
+	 *         插入和没有变化的记录都是INSERTED_OR_UNCHANGED；
+	 *         如果jdbc驱动改写了batch(如rewriteBatchedStatements=true)，结果为UNKNOWN
+	 */
+	@Transactional
+	<T> List<UpsertResultEnum> upsert(List<T> list);
+	
+	/**
+	 * 同upsert(List)，只是包括null的值也会插入或更新。
+	 * @param list 元素必须是同一个类
+	 * @return 每个元素的执行结果，顺序同list中非null的元素
+	 */
+	@Transactional
+	<T> List<UpsertResultEnum> upsertWithNull(List<T> list);
+	
 	/**
 	 * 全量更新指定的列表，只处理非null字段。dbList表示原来的数据，必须都带上key。<br>
 	 * newList表示新的数据，可以带有key也可以没有。<br>
@@ -303,6 +494,7 @@ public interface DBHelper {
 	 * 对于dbList有的key且newList也有的key，将被更新。<br>
 	 * 对于dbList没有的key，但newList中有的key，将被更新。<br>
 	 * 对于dbList没有的key，但newList也没有key的对象，将被插入。<br>
+	 * 删除按batchSize个key一条sql批量执行，插入和更新也走批量的方式。<br>
 	 * @param dbList 可以是null，等同于空list
 	 * @param newList 不能是null，否则该方法什么都不执行
 	 * @return newList成功的值，不包括dbList中删除的
@@ -339,7 +531,8 @@ public interface DBHelper {
 	<T> int updateWithNull(T t, String postSql, Object... args) throws NullKeyValueException;
 	
 	/**
-	 * 更新单条数据库记录,必须带上object的key。【只更新非null字段】
+	 * 更新单条数据库记录,必须带上object的key。【只更新非null字段】<br>
+	 * 如果DO开启了@Table dirtyCheck，且对象是由DBHelper查询出来的，则只更新有变化的列，没有变化时不执行sql并返回0。
 	 * @param t
 	 * @return 返回数据库实际修改条数
 	 * @throws NullKeyValueException
@@ -368,9 +561,31 @@ public interface DBHelper {
 	 */
 	<T> int updateCustom(T t, String setSql, Object... args) throws NullKeyValueException;
 	
+	/**
+	 * 计数器累加，等价于update t set column=column+delta where key=?。<br>
+	 * 增量先在内存中按(表,主键,列)合并，最长incrementMaxStalenessMs毫秒后批量写入数据库，
+	 * 因此热点行的多次累加只会产生一次update。在事务中调用或incrementMaxStalenessMs小于等于0时直接执行update。<br>
+	 * 【注】缓存的增量在进程异常退出时会丢失；主键不存在或已软删除的记录，增量会被忽略。
+	 * @param clazz 只能有一个主键
+	 * @param keyValue 主键值
+	 * @param columnName 累加的数据库列名，不能是主键
+	 * @param delta 增量，可以是负数
+	 * @throws NullKeyValueException
+	 */
+	<T> void increment(Class<T> clazz, Object keyValue, String columnName, long delta)
+			throws NullKeyValueException;
+	
+	/**
+	 * 把increment缓存在内存中的增量同步写入数据库。每批在独立的事务中写入，不参与调用者的事务；
+	 * 失败的批次整批回滚，增量留在缓存中等下次写入
+	 * @return 数据库实际修改的行数
+	 */
+	int flushIncrement();
+	
 	/**
 	 * 更新数据库记录，更新包含null的字段，返回数据库实际修改条数。
-	 * 【注】批量更新的方法并不会比程序中循环调用int updateNotNull(T t)更快
+	 * 【注】生成的update语句相同的记录会放在同一个jdbc batch中，按batchSize分批执行；
+	 * jdbc驱动改写了batch(如rewriteBatchedStatements=true)时不返回每条的行数，每条按1计
 	 * @param list
 	 * @return
 	 * @throws NullKeyValueException
@@ -380,7 +595,8 @@ public interface DBHelper {
 	
 	/**
 	 * 更新数据库记录，返回数据库实际修改条数。
-	 * 【注】批量更新的方法并不会比程序中循环调用int update(T t)更快
+	 * 【注】生成的update语句相同的记录会放在同一个jdbc batch中，按batchSize分批执行；
+	 * jdbc驱动改写了batch(如rewriteBatchedStatements=true)时不返回每条的行数，每条按1计
 	 * 【只更新非null字段】
 	 * @param list
 	 * @return
@@ -410,6 +626,28 @@ public interface DBHelper {
 	<T> int deleteByKey(Class<T> clazz, Object keyValue) throws NullKeyValueException,
 	    MustProvideconstructorException;
 
+	/**
+	 * 按主键批量删除数据库记录，每batchSize个key拼成一条delete ... where key in (...)语句，
+	 * 多个主键时使用(key1,key2) in ((?,?),...)。<br>
+	 * 该操作【会】自动使用软删除进行删除
+	 * 
+	 * @param list 元素必须是同一个类，且必须带上全部主键值
+	 * @return 每个批次实际修改的条数
+	 * @throws NullKeyValueException
+	 */
+	<T> int[] deleteByKey(List<T> list) throws NullKeyValueException;
+	
+	/**
+	 * 按主键值批量删除数据库记录，每batchSize个key拼成一条sql。<br>
+	 * 该操作【会】自动使用软删除进行删除
+	 * 
+	 * @param clazz
+	 * @param keyValues 只有一个主键时，元素就是主键值；多个主键时，元素是按@Column顺序的Object[]或List
+	 * @return 每个批次实际修改的条数
+	 * @throws NullKeyValueException
+	 */
+	<T> int[] deleteByKeys(Class<T> clazz, Collection<?> keyValues) throws NullKeyValueException;
+	
 	/**
 	 * 自定义条件删除数据，该操作【会】自动使用软删除标记
 	 * @param clazz 必须有默认构造方法
@@ -0,0 +1,27 @@
+package com.pugwoo.dbhelper.annotation;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+import com.pugwoo.dbhelper.enums.MemoryIndexTypeEnum;
+
+/**
+ * 整表缓存(@Table cacheAll)的内存索引，注解在@Column字段上，没有开启cacheAll时不生效。<br>
+ * 从内存中查询时，where条件中有索引的列通过索引找到候选记录，不需要遍历整张表；
+ * @RelatedColumn关联的表开启了cacheAll且remoteColumn有索引时，关联查询完全在内存中完成。<br>
+ * 整数、布尔和日期类型的列以long为key保存，避免装箱；范围查询(&gt;、&gt;=、&lt;、&lt;=)只支持整数和日期类型的SORTED索引。
+ */
+@Target(ElementType.FIELD)
+@Retention(RetentionPolicy.RUNTIME)
+public @interface MemoryIndex {
+
+	/**
+	 * 索引类型，默认HASH
+	 * 
+	 * @return
+	 */
+	MemoryIndexTypeEnum value() default MemoryIndexTypeEnum.HASH;
+	
+}
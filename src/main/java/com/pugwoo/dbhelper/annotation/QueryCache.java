@@ -0,0 +1,34 @@
+package com.pugwoo.dbhelper.annotation;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * 开启查询结果缓存，可以注解在DO类或join VO类上。<br>
+ * 开启后，getAll/getOne/getPage/getCount的结果按(类, 最终sql, 参数)缓存。
+ * 每张表有一个版本号，通过DBHelper对该表的任何写操作都会使版本号加1，版本号变化后引用该表的缓存全部失效，
+ * join VO同时依赖左右两张表。<br>
+ * 在事务中的查询不使用缓存。不经过DBHelper的修改(如直接执行sql或其它应用修改数据库)不会使缓存失效，只能等过期，
+ * 所以只适合读多写少、且写操作都通过DBHelper的表。
+ */
+@Target(ElementType.TYPE)
+@Retention(RetentionPolicy.RUNTIME)
+public @interface QueryCache {
+
+	/**
+	 * 最多缓存的查询个数，超过时按W-TinyLFU淘汰
+	 *
+	 * @return
+	 */
+	int maxSize() default 1000;
+
+	/**
+	 * 缓存的过期秒数，小于等于0表示不过期
+	 *
+	 * @return
+	 */
+	int expireSeconds() default 60;
+
+}
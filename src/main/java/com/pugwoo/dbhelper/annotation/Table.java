@@ -20,4 +20,103 @@ public @interface Table {
 	 */
 	String value();
 	
+	/**
+	 * 是否开启脏字段检查。开启后，通过DBHelper查询出来的对象会记录下列值的快照，
+	 * 调用update时只更新和快照相比有变化的列，没有变化时不执行sql。<br>
+	 * 快照通过弱引用关联对象，对象被回收后快照也会被回收。
+	 * 
+	 * @return
+	 */
+	boolean dirtyCheck() default false;
+	
+	/**
+	 * 是否开启group commit。开启后，多个线程并发调用insert(t)/insertWithNull(t)插入该表时，
+	 * 会在groupCommitWindowMicros微秒内凑成一条多行insert语句执行，每个调用者仍各自拿到自增id和结果。<br>
+	 * 在事务中的插入不参与group commit。适合于日志、事件等高并发单条插入的表。
+	 * 
+	 * @return
+	 */
+	boolean groupCommit() default false;
+	
+	/**
+	 * 是否合并并发的getByKey。开启后，多个线程并发调用getByKey(Class, keyValue)查询该表时，
+	 * 会在batchGetByKeyWindowMicros微秒内合并成一条key in (?)查询，再把结果分发给各个调用者。<br>
+	 * 在事务中的查询不参与合并。只适用于只有一个主键的表。
+	 * 
+	 * @return
+	 */
+	boolean batchGetByKey() default false;
+	
+	/**
+	 * 是否开启延迟关联分页。开启后，getPage/getPageWithoutCount不是第一页时，先用postSql和limit offset,size
+	 * 只查询主键(通常可以只走覆盖索引)，再用getByKeyList查询完整的记录并按主键的顺序返回，
+	 * 避免MySQL为要丢弃的前offset条记录读取完整的行。适合于列多、行宽的表的深度分页。只适用于只有一个主键的表。
+	 * 
+	 * @return
+	 */
+	boolean deferredJoinPage() default false;
+	
+	/**
+	 * 实体缓存的最大条数，大于0时开启getByKey/getByKeyList的实体缓存(W-TinyLFU淘汰)。<br>
+	 * 通过DBHelper修改该表时会自动失效对应的缓存，delete(Class, postSql)会失效整张表的缓存；
+	 * 不经过DBHelper的修改(包括其它进程)在缓存过期前不可见。事务中的查询不使用缓存。只适用于只有一个主键的表。
+	 * 
+	 * @return
+	 */
+	int cacheMaxSize() default 0;
+	
+	/**
+	 * 实体缓存的过期秒数，小于等于0表示不过期
+	 * 
+	 * @return
+	 */
+	int cacheExpireSeconds() default 600;
+	
+	/**
+	 * 大于0时开启堆外实体缓存，值为最多占用的堆外内存MB数，此时cacheMaxSize不生效。<br>
+	 * 对象按@Column字段编码成二进制后存放在direct ByteBuffer中，命中时再解码，缓存的对象不占用堆内存，
+	 * 适合于大容量的缓存。空间不足时按segment淘汰最早写入的数据，最近被访问过的数据会保留下来。<br>
+	 * 只支持数值、布尔、String、BigDecimal、byte[]和Date类型的字段，有其它类型字段时使用堆内缓存。
+	 * 
+	 * @return
+	 */
+	int cacheOffHeapMB() default 0;
+	
+	/**
+	 * 不存在主键缓存的最大条数，大于0时开启。getByKey(Class, keyValue)查不到数据时记录下该主键，
+	 * 之后再查询该主键直接返回null，不查数据库，适合于有大量不存在id请求(如爬虫、失效链接)的表。<br>
+	 * 记录的是确切的主键值，不会把存在的数据判断为不存在。通过DBHelper插入该表时清空，
+	 * 不经过DBHelper的插入在过期前不可见。事务中的查询不使用缓存。只适用于只有一个主键的表。
+	 * 
+	 * @return
+	 */
+	int negativeCacheMaxSize() default 0;
+	
+	/**
+	 * 不存在主键缓存的过期秒数，小于等于0表示不过期
+	 * 
+	 * @return
+	 */
+	int negativeCacheExpireSeconds() default 60;
+	
+	/**
+	 * 是否把整张表的数据缓存在内存中，适合数据量小、读多写少的表(如字典表)。只适用于只有一个主键的表。<br>
+	 * 开启后，不在事务中的getByKey/getByKeyList，以及where条件只有"列=值"、"列 in (值)"或整数、日期列的范围比较
+	 * 且用AND连接的getAll/getOne/getPage/getCount直接从内存中查询，其它查询仍然查数据库。
+	 * 可以用@MemoryIndex给查询条件中的列建立内存索引。<br>
+	 * 有同时setTimeWhenInsert和setTimeWhenUpdate的字段和软删除字段的表增量刷新：只查询更新时间不早于上次最大更新时间的记录，
+	 * 已软删除的记录从内存中移除；其它表每次全量刷新。刷新时生成新的数据副本再整体替换，读取不会被阻塞。
+	 * 通过DBHelper修改该表后，下次查询前会先刷新。
+	 * 
+	 * @return
+	 */
+	boolean cacheAll() default false;
+	
+	/**
+	 * cacheAll的刷新间隔秒数
+	 * 
+	 * @return
+	 */
+	int cacheAllRefreshSeconds() default 10;
+	
 }
@@ -0,0 +1,128 @@
+package com.pugwoo.dbhelper.cache;
+
+import java.io.Serializable;
+
+/**
+ * 缓存的统计数据
+ */
+public class CacheStats implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	/**命中次数*/
+	private long hitCount;
+	
+	/**未命中次数*/
+	private long missCount;
+	
+	/**因容量不足被淘汰的条数*/
+	private long evictionCount;
+	
+	/**因数据修改被失效的次数*/
+	private long invalidationCount;
+	
+	/**当前缓存条数*/
+	private long size;
+	
+	/**已分配的堆外内存字节数，堆内缓存为0*/
+	private long allocatedBytes;
+	
+	/**堆外内存中有效数据占用的字节数，堆内缓存为0*/
+	private long usedBytes;
+
+	public CacheStats() {
+	}
+
+	public CacheStats(long hitCount, long missCount, long evictionCount,
+			long invalidationCount, long size) {
+		this.hitCount = hitCount;
+		this.missCount = missCount;
+		this.evictionCount = evictionCount;
+		this.invalidationCount = invalidationCount;
+		this.size = size;
+	}
+	
+	/**
+	 * 合并两份统计数据，用于同一张表有多个缓存的情况
+	 */
+	public CacheStats plus(CacheStats other) {
+		CacheStats stats = new CacheStats(hitCount + other.hitCount, missCount + other.missCount,
+				evictionCount + other.evictionCount,
+				invalidationCount + other.invalidationCount, size + other.size);
+		stats.setAllocatedBytes(allocatedBytes + other.allocatedBytes);
+		stats.setUsedBytes(usedBytes + other.usedBytes);
+		return stats;
+	}
+	
+	/**
+	 * 命中率，没有请求时返回1
+	 */
+	public double getHitRate() {
+		long requestCount = hitCount + missCount;
+		return requestCount == 0 ? 1.0 : (double) hitCount / requestCount;
+	}
+
+	public long getHitCount() {
+		return hitCount;
+	}
+
+	public void setHitCount(long hitCount) {
+		this.hitCount = hitCount;
+	}
+
+	public long getMissCount() {
+		return missCount;
+	}
+
+	public void setMissCount(long missCount) {
+		this.missCount = missCount;
+	}
+
+	public long getEvictionCount() {
+		return evictionCount;
+	}
+
+	public void setEvictionCount(long evictionCount) {
+		this.evictionCount = evictionCount;
+	}
+
+	public long getInvalidationCount() {
+		return invalidationCount;
+	}
+
+	public void setInvalidationCount(long invalidationCount) {
+		this.invalidationCount = invalidationCount;
+	}
+
+	public long getSize() {
+		return size;
+	}
+
+	public void setSize(long size) {
+		this.size = size;
+	}
+
+	public long getAllocatedBytes() {
+		return allocatedBytes;
+	}
+
+	public void setAllocatedBytes(long allocatedBytes) {
+		this.allocatedBytes = allocatedBytes;
+	}
+
+	public long getUsedBytes() {
+		return usedBytes;
+	}
+
+	public void setUsedBytes(long usedBytes) {
+		this.usedBytes = usedBytes;
+	}
+
+	@Override
+	public String toString() {
+		return "hit:" + hitCount + ",miss:" + missCount + ",eviction:" + evictionCount
+				+ ",invalidation:" + invalidationCount + ",size:" + size
+				+ ",allocatedBytes:" + allocatedBytes + ",usedBytes:" + usedBytes;
+	}
+
+}
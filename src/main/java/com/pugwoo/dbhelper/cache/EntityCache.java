@@ -0,0 +1,132 @@
+package com.pugwoo.dbhelper.cache;
+
+import java.util.Collection;
+
+import com.pugwoo.dbhelper.utils.DOInfoReader;
+import com.pugwoo.dbhelper.utils.TypeAutoCast;
+
+/**
+ * 一个DO类的实体缓存，key是主键值，value是只包含@Column字段的对象副本。<br>
+ * 读取时返回副本，调用者修改返回的对象不会影响缓存。存储在堆内(W-TinyLFU)或堆外(按segment淘汰)。
+ */
+public class EntityCache {
+
+	private final Class<?> clazz;
+	private final Class<?> keyType;
+	private final long ttlMs;
+	private final EntityStore store;
+	
+	/**每次失效加1，查询数据库期间有过失效的结果不放入缓存，避免把旧数据放进去*/
+	private long generation;
+	private long invalidationCount;
+
+	/**
+	 * 堆内缓存
+	 * @param maxSize 最大条数
+	 */
+	public EntityCache(Class<?> clazz, int maxSize, long ttlMs) {
+		this(clazz, new HeapEntityStore(maxSize), ttlMs);
+	}
+	
+	/**
+	 * 堆外缓存
+	 * @param maxBytes 最多占用的堆外内存字节数
+	 */
+	public EntityCache(Class<?> clazz, long maxBytes, long ttlMs) {
+		this(clazz, new OffHeapEntityStore(EntityCodec.create(clazz), maxBytes), ttlMs);
+	}
+	
+	private EntityCache(Class<?> clazz, EntityStore store, long ttlMs) {
+		this.clazz = clazz;
+		this.keyType = DOInfoReader.getOneKeyColumn(clazz).getType();
+		this.ttlMs = ttlMs;
+		this.store = store;
+	}
+	
+	/**
+	 * 类的所有@Column字段是否都能存放到堆外缓存
+	 */
+	public static boolean isOffHeapSupported(Class<?> clazz) {
+		return EntityCodec.create(clazz) != null;
+	}
+
+	/**
+	 * 把主键值转换成主键字段的类型，使Integer和Long等不同类型的主键值对应同一个缓存
+	 */
+	public Object normalizeKey(Object keyValue) {
+		return normalizeKey(keyValue, keyType);
+	}
+	
+	static Object normalizeKey(Object keyValue, Class<?> keyType) {
+		try {
+			Object key = TypeAutoCast.cast(keyValue, keyType);
+			return key == null ? keyValue : key;
+		} catch (RuntimeException e) {
+			return keyValue;
+		}
+	}
+
+	/**
+	 * @return 缓存对象的副本，不存在返回null
+	 */
+	@SuppressWarnings("unchecked")
+	public <T> T get(Object keyValue) {
+		return (T) store.get(normalizeKey(keyValue));
+	}
+
+	/**
+	 * 获得当前的失效版本，在查询数据库之前获取，放入缓存时传入
+	 */
+	public synchronized long getGeneration() {
+		return generation;
+	}
+
+	/**
+	 * 放入缓存，如果从generation获取之后发生过失效，则不放入
+	 * @param t 从数据库查出来的对象，会复制一份@Column字段放入缓存
+	 */
+	public void put(Object t, long generation) {
+		if(t == null) {
+			return;
+		}
+		Object keyValue = DOInfoReader.getValue(DOInfoReader.getOneKeyColumn(clazz), t);
+		if(keyValue == null) {
+			return;
+		}
+		synchronized (this) {
+			if(generation == this.generation) {
+				store.put(normalizeKey(keyValue), t, ttlMs);
+			}
+		}
+	}
+
+	public synchronized void invalidate(Collection<?> keyValues) {
+		if(keyValues.isEmpty()) {
+			return;
+		}
+		generation++;
+		for(Object keyValue : keyValues) {
+			if(keyValue != null) {
+				store.invalidate(normalizeKey(keyValue));
+				invalidationCount++;
+			}
+		}
+	}
+
+	public synchronized void invalidateAll() {
+		generation++;
+		invalidationCount += store.getStats().getSize();
+		store.invalidateAll();
+	}
+
+	public Class<?> getClazz() {
+		return clazz;
+	}
+
+	public synchronized CacheStats getStats() {
+		CacheStats stats = store.getStats();
+		stats.setInvalidationCount(invalidationCount);
+		return stats;
+	}
+
+}
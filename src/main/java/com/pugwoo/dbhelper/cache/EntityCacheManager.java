@@ -0,0 +1,122 @@
+package com.pugwoo.dbhelper.cache;
+
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.pugwoo.dbhelper.annotation.Table;
+import com.pugwoo.dbhelper.utils.DOInfoReader;
+
+/**
+ * 管理所有开启了实体缓存(@Table cacheMaxSize或cacheOffHeapMB大于0)的DO类的缓存。<br>
+ * 同一张表可以对应多个DO类，数据修改时按表名失效该表的所有缓存。
+ */
+public class EntityCacheManager {
+	
+	private static final Logger LOGGER = LoggerFactory.getLogger(EntityCacheManager.class);
+
+	/**不缓存的类用这个对象占位，避免重复判断*/
+	private static final Object NOT_CACHED = new Object();
+
+	private final ConcurrentMap<Class<?>, Object> caches = new ConcurrentHashMap<Class<?>, Object>();
+	private final ConcurrentMap<String, List<EntityCache>> tableCaches =
+			new ConcurrentHashMap<String, List<EntityCache>>();
+
+	/**
+	 * 获得类的实体缓存
+	 * @return 该类没有开启缓存、是join类或不是只有一个主键时返回null
+	 */
+	public EntityCache getCache(Class<?> clazz) {
+		Object cache = caches.get(clazz);
+		if(cache == null) {
+			cache = createCache(clazz);
+		}
+		return cache == NOT_CACHED ? null : (EntityCache) cache;
+	}
+
+	private synchronized Object createCache(Class<?> clazz) {
+		Object cache = caches.get(clazz);
+		if(cache != null) {
+			return cache;
+		}
+		
+		cache = NOT_CACHED;
+		if(DOInfoReader.getJoinTable(clazz) == null) {
+			Table table = DOInfoReader.getTable(clazz);
+			if((table.cacheMaxSize() > 0 || table.cacheOffHeapMB() > 0)
+					&& DOInfoReader.getKeyColumns(clazz).size() == 1) {
+				long ttlMs = table.cacheExpireSeconds() * 1000L;
+				EntityCache entityCache;
+				if(table.cacheOffHeapMB() > 0 && EntityCache.isOffHeapSupported(clazz)) {
+					entityCache = new EntityCache(clazz, table.cacheOffHeapMB() * 1024L * 1024L, ttlMs);
+				} else {
+					if(table.cacheOffHeapMB() > 0) {
+						LOGGER.warn("class {} has column types not supported by off-heap cache, use heap cache",
+								clazz.getName());
+					}
+					entityCache = new EntityCache(clazz,
+							table.cacheMaxSize() > 0 ? table.cacheMaxSize() : 10000, ttlMs);
+				}
+				List<EntityCache> list = tableCaches.get(table.value());
+				if(list == null) {
+					list = new CopyOnWriteArrayList<EntityCache>();
+					tableCaches.put(table.value(), list);
+				}
+				list.add(entityCache);
+				cache = entityCache;
+			}
+		}
+		caches.put(clazz, cache);
+		return cache;
+	}
+
+	/**
+	 * 该表是否有缓存
+	 */
+	public boolean hasCache(String tableName) {
+		return tableCaches.containsKey(tableName);
+	}
+
+	/**
+	 * 失效表的缓存
+	 * @param tableName 表名
+	 * @param keyValues 修改的主键值，为null时失效整张表
+	 */
+	public void invalidate(String tableName, Collection<?> keyValues) {
+		List<EntityCache> list = tableCaches.get(tableName);
+		if(list == null) {
+			return;
+		}
+		for(EntityCache cache : list) {
+			if(keyValues == null) {
+				cache.invalidateAll();
+			} else {
+				cache.invalidate(keyValues);
+			}
+		}
+	}
+
+	/**
+	 * 每张表的缓存统计，同一张表有多个DO类缓存时合并统计
+	 * @return key是表名
+	 */
+	public Map<String, CacheStats> getStats() {
+		Map<String, CacheStats> stats = new LinkedHashMap<String, CacheStats>();
+		for(Map.Entry<String, List<EntityCache>> entry : tableCaches.entrySet()) {
+			CacheStats tableStats = new CacheStats();
+			for(EntityCache cache : entry.getValue()) {
+				tableStats = tableStats.plus(cache.getStats());
+			}
+			stats.put(entry.getKey(), tableStats);
+		}
+		return stats;
+	}
+
+}
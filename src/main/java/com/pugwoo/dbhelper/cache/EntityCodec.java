@@ -0,0 +1,226 @@
+package com.pugwoo.dbhelper.cache;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.sql.Time;
+import java.sql.Timestamp;
+import java.util.Date;
+import java.util.List;
+
+import com.pugwoo.dbhelper.exception.MustProvideconstructorException;
+import com.pugwoo.dbhelper.utils.DOInfoReader;
+
+/**
+ * 按@Column字段生成的二进制编解码，只编码@Column字段。格式：<br>
+ * null位图(每个字段1bit) + 按字段顺序排列的非null值。
+ * 数值和布尔是定长的，Date是毫秒数+纳秒数，String、BigDecimal和byte[]是4字节长度+内容。
+ */
+class EntityCodec {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private static final int KIND_INT = 0;
+	private static final int KIND_LONG = 1;
+	private static final int KIND_SHORT = 2;
+	private static final int KIND_BYTE = 3;
+	private static final int KIND_BOOLEAN = 4;
+	private static final int KIND_FLOAT = 5;
+	private static final int KIND_DOUBLE = 6;
+	private static final int KIND_STRING = 7;
+	private static final int KIND_BIG_DECIMAL = 8;
+	private static final int KIND_BYTES = 9;
+	private static final int KIND_DATE = 10;
+
+	private final Class<?> clazz;
+	private final Field[] fields;
+	private final int[] kinds;
+	private final int bitmapBytes;
+
+	private EntityCodec(Class<?> clazz, Field[] fields, int[] kinds) {
+		this.clazz = clazz;
+		this.fields = fields;
+		this.kinds = kinds;
+		this.bitmapBytes = (fields.length + 7) / 8;
+	}
+
+	/**
+	 * 生成类的编解码
+	 * @return 有不支持的字段类型时返回null
+	 */
+	static EntityCodec create(Class<?> clazz) {
+		List<Field> columns = DOInfoReader.getColumns(clazz);
+		Field[] fields = new Field[columns.size()];
+		int[] kinds = new int[columns.size()];
+		for(int i = 0; i < fields.length; i++) {
+			Field field = columns.get(i);
+			int kind = getKind(field.getType());
+			if(kind < 0) {
+				return null;
+			}
+			field.setAccessible(true);
+			fields[i] = field;
+			kinds[i] = kind;
+		}
+		return new EntityCodec(clazz, fields, kinds);
+	}
+
+	private static int getKind(Class<?> type) {
+		if(type == Integer.class || type == int.class) {
+			return KIND_INT;
+		}
+		if(type == Long.class || type == long.class) {
+			return KIND_LONG;
+		}
+		if(type == Short.class || type == short.class) {
+			return KIND_SHORT;
+		}
+		if(type == Byte.class || type == byte.class) {
+			return KIND_BYTE;
+		}
+		if(type == Boolean.class || type == boolean.class) {
+			return KIND_BOOLEAN;
+		}
+		if(type == Float.class || type == float.class) {
+			return KIND_FLOAT;
+		}
+		if(type == Double.class || type == double.class) {
+			return KIND_DOUBLE;
+		}
+		if(type == String.class) {
+			return KIND_STRING;
+		}
+		if(type == BigDecimal.class) {
+			return KIND_BIG_DECIMAL;
+		}
+		if(type == byte[].class) {
+			return KIND_BYTES;
+		}
+		if(Date.class.isAssignableFrom(type)) {
+			return KIND_DATE;
+		}
+		return -1;
+	}
+
+	byte[] encode(Object t) {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+		DataOutputStream out = new DataOutputStream(bytes);
+		try {
+			Object[] values = new Object[fields.length];
+			byte[] bitmap = new byte[bitmapBytes];
+			for(int i = 0; i < fields.length; i++) {
+				values[i] = fields[i].get(t);
+				if(values[i] == null) {
+					bitmap[i >> 3] |= 1 << (i & 7);
+				}
+			}
+			out.write(bitmap);
+
+			for(int i = 0; i < fields.length; i++) {
+				Object value = values[i];
+				if(value == null) {
+					continue;
+				}
+				switch (kinds[i]) {
+				case KIND_INT: out.writeInt((Integer) value); break;
+				case KIND_LONG: out.writeLong((Long) value); break;
+				case KIND_SHORT: out.writeShort((Short) value); break;
+				case KIND_BYTE: out.writeByte((Byte) value); break;
+				case KIND_BOOLEAN: out.writeBoolean((Boolean) value); break;
+				case KIND_FLOAT: out.writeFloat((Float) value); break;
+				case KIND_DOUBLE: out.writeDouble((Double) value); break;
+				case KIND_STRING: writeBytes(out, ((String) value).getBytes(UTF8)); break;
+				case KIND_BIG_DECIMAL: writeBytes(out, value.toString().getBytes(UTF8)); break;
+				case KIND_BYTES: writeBytes(out, (byte[]) value); break;
+				case KIND_DATE:
+					out.writeLong(((Date) value).getTime());
+					out.writeInt(value instanceof Timestamp ? ((Timestamp) value).getNanos() : -1);
+					break;
+				default: break;
+				}
+			}
+			out.flush();
+		} catch (IllegalAccessException e) {
+			throw new IllegalStateException(e);
+		} catch (IOException e) { // ByteArrayOutputStream不会抛出
+			throw new IllegalStateException(e);
+		}
+		return bytes.toByteArray();
+	}
+
+	Object decode(byte[] data) throws MustProvideconstructorException {
+		Object t;
+		try {
+			t = clazz.newInstance();
+		} catch (InstantiationException e) {
+			throw new MustProvideconstructorException();
+		} catch (IllegalAccessException e) {
+			throw new MustProvideconstructorException();
+		}
+
+		ByteBuffer in = ByteBuffer.wrap(data);
+		byte[] bitmap = new byte[bitmapBytes];
+		in.get(bitmap);
+		try {
+			for(int i = 0; i < fields.length; i++) {
+				if((bitmap[i >> 3] & (1 << (i & 7))) != 0) {
+					continue;
+				}
+				Field field = fields[i];
+				switch (kinds[i]) {
+				case KIND_INT: field.set(t, in.getInt()); break;
+				case KIND_LONG: field.set(t, in.getLong()); break;
+				case KIND_SHORT: field.set(t, in.getShort()); break;
+				case KIND_BYTE: field.set(t, in.get()); break;
+				case KIND_BOOLEAN: field.set(t, in.get() != 0); break;
+				case KIND_FLOAT: field.set(t, in.getFloat()); break;
+				case KIND_DOUBLE: field.set(t, in.getDouble()); break;
+				case KIND_STRING: field.set(t, new String(readBytes(in), UTF8)); break;
+				case KIND_BIG_DECIMAL: field.set(t, new BigDecimal(new String(readBytes(in), UTF8))); break;
+				case KIND_BYTES: field.set(t, readBytes(in)); break;
+				case KIND_DATE: field.set(t, toDate(field.getType(), in.getLong(), in.getInt())); break;
+				default: break;
+				}
+			}
+		} catch (IllegalAccessException e) {
+			throw new IllegalStateException(e);
+		}
+		return t;
+	}
+
+	/**
+	 * 还原成和从数据库查询时相同的类型，java.util.Date字段从数据库查出来是Timestamp
+	 */
+	private static Date toDate(Class<?> type, long time, int nanos) {
+		if(type == java.sql.Date.class) {
+			return new java.sql.Date(time);
+		}
+		if(type == Time.class) {
+			return new Time(time);
+		}
+		if(nanos < 0 && type == Date.class) {
+			return new Date(time);
+		}
+		Timestamp timestamp = new Timestamp(time);
+		if(nanos >= 0) {
+			timestamp.setNanos(nanos);
+		}
+		return timestamp;
+	}
+
+	private static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	private static byte[] readBytes(ByteBuffer in) {
+		byte[] bytes = new byte[in.getInt()];
+		in.get(bytes);
+		return bytes;
+	}
+
+}
@@ -0,0 +1,28 @@
+package com.pugwoo.dbhelper.cache;
+
+/**
+ * 实体缓存的存储，存入和取出的都是调用者独占的对象，存储内部保存自己的副本
+ */
+interface EntityStore {
+
+	/**
+	 * @return 对象的副本，不存在或已过期返回null
+	 */
+	Object get(Object key);
+
+	/**
+	 * @param value 只会保存@Column字段
+	 * @param ttlMs 过期毫秒数，小于等于0表示不过期
+	 */
+	void put(Object key, Object value, long ttlMs);
+
+	void invalidate(Object key);
+
+	void invalidateAll();
+
+	/**
+	 * @return 当前的统计数据，invalidationCount由EntityCache统计
+	 */
+	CacheStats getStats();
+
+}
@@ -0,0 +1,86 @@
+package com.pugwoo.dbhelper.cache;
+
+/**
+ * TinyLFU使用的访问频率估计(count-min sketch)，每个计数器4bit，最大15。<br>
+ * 累计记录次数达到sampleSize时所有计数器减半，使频率随时间衰减。非线程安全。
+ */
+class FrequencySketch {
+
+	private static final long RESET_MASK = 0x7777777777777777L;
+	private static final int[] SEEDS = {0x97cb3127, 0x0ba7bd05, 0x2fd5ab09, 0x5e4f2b1b};
+
+	/**每个long有16个4bit计数器*/
+	private final long[] table;
+	private final int tableMask;
+	private final int sampleSize;
+	private int additions;
+
+	FrequencySketch(int maxSize) {
+		int size = 1;
+		while(size < Math.max(maxSize, 16) && size < (1 << 30)) {
+			size <<= 1;
+		}
+		table = new long[size];
+		tableMask = size - 1;
+		sampleSize = (int) Math.min(10L * Math.max(maxSize, 16), Integer.MAX_VALUE);
+	}
+
+	/**
+	 * 估计的访问次数，0-15
+	 */
+	int frequency(Object e) {
+		int hash = spread(e.hashCode());
+		int frequency = Integer.MAX_VALUE;
+		for(int i = 0; i < 4; i++) {
+			int index = indexOf(hash, i);
+			int offset = counterOffset(hash, i);
+			frequency = Math.min(frequency, (int) ((table[index] >>> offset) & 0xfL));
+		}
+		return frequency;
+	}
+
+	/**
+	 * 记录一次访问
+	 */
+	void increment(Object e) {
+		int hash = spread(e.hashCode());
+		boolean added = false;
+		for(int i = 0; i < 4; i++) {
+			int index = indexOf(hash, i);
+			int offset = counterOffset(hash, i);
+			long mask = 0xfL << offset;
+			if((table[index] & mask) != mask) {
+				table[index] += 1L << offset;
+				added = true;
+			}
+		}
+		if(added && ++additions >= sampleSize) {
+			reset();
+		}
+	}
+
+	private void reset() {
+		for(int i = 0; i < table.length; i++) {
+			table[i] = (table[i] >>> 1) & RESET_MASK;
+		}
+		additions >>>= 1;
+	}
+
+	private int indexOf(int hash, int i) {
+		int h = (hash + SEEDS[i]) * SEEDS[i];
+		h += h >>> 16;
+		return h & tableMask;
+	}
+
+	/**每个hash函数在long中选择一个计数器，4个hash函数各用一段，减少冲突*/
+	private int counterOffset(int hash, int i) {
+		return (((hash >>> (i << 3)) & 3) + (i << 2)) << 2;
+	}
+
+	private static int spread(int x) {
+		x = ((x >>> 16) ^ x) * 0x45d9f3b;
+		x = ((x >>> 16) ^ x) * 0x45d9f3b;
+		return (x >>> 16) ^ x;
+	}
+
+}
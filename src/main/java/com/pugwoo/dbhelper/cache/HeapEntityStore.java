@@ -0,0 +1,43 @@
+package com.pugwoo.dbhelper.cache;
+
+import com.pugwoo.dbhelper.utils.DOCopyUtils;
+
+/**
+ * 堆内存储，使用W-TinyLFU淘汰，按条数限制大小
+ */
+class HeapEntityStore implements EntityStore {
+
+	private final WTinyLfuCache<Object, Object> cache;
+
+	HeapEntityStore(int maxSize) {
+		this.cache = new WTinyLfuCache<Object, Object>(maxSize);
+	}
+
+	@Override
+	public Object get(Object key) {
+		Object value = cache.get(key);
+		return value == null ? null : DOCopyUtils.copyColumns(value);
+	}
+
+	@Override
+	public void put(Object key, Object value, long ttlMs) {
+		cache.put(key, DOCopyUtils.copyColumns(value), ttlMs);
+	}
+
+	@Override
+	public void invalidate(Object key) {
+		cache.invalidate(key);
+	}
+
+	@Override
+	public void invalidateAll() {
+		cache.invalidateAll();
+	}
+
+	@Override
+	public CacheStats getStats() {
+		return new CacheStats(cache.getHitCount(), cache.getMissCount(), cache.getEvictionCount(),
+				0, cache.size());
+	}
+
+}
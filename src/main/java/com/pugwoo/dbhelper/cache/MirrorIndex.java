@@ -0,0 +1,263 @@
+package com.pugwoo.dbhelper.cache;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.pugwoo.dbhelper.enums.MemoryIndexTypeEnum;
+import com.pugwoo.dbhelper.utils.DOInfoReader;
+
+/**
+ * 整表缓存的内存索引(@MemoryIndex)，随快照一起构建，构建后不再修改。<br>
+ * 索引的值是记录在快照中的下标，按升序排列；key是MirrorQuery.normalize之后的值，
+ * 整数、布尔和日期类型是long，用基本类型数组保存，不装箱。
+ */
+abstract class MirrorIndex {
+
+	protected static final int[] EMPTY = new int[0];
+
+	/**
+	 * 等值查询
+	 * @param key MirrorQuery.normalize之后的值
+	 * @return 记录下标，升序
+	 */
+	abstract int[] get(Object key);
+
+	/**
+	 * 范围查询，from和to为null表示不限制
+	 * @return 记录下标，升序；不支持范围查询时返回null
+	 */
+	int[] range(Long from, boolean isFromInclusive, Long to, boolean isToInclusive) {
+		return null;
+	}
+
+	/**
+	 * 构建索引
+	 * @param rows 快照中的记录
+	 */
+	static MirrorIndex build(Field field, MemoryIndexTypeEnum type, Object[] rows) {
+		if(!MirrorQuery.isLongType(field.getType())) {
+			return new ObjectHashIndex(field, rows);
+		}
+		long[] keys = new long[rows.length];
+		boolean[] isNull = new boolean[rows.length];
+		for(int i = 0; i < rows.length; i++) {
+			Object key = MirrorQuery.normalize(DOInfoReader.getValue(field, rows[i]), field.getType());
+			if(key == null) {
+				isNull[i] = true;
+			} else {
+				keys[i] = (Long) key;
+			}
+		}
+		return type == MemoryIndexTypeEnum.SORTED ? new LongSortedIndex(keys, isNull)
+				: new LongHashIndex(keys, isNull);
+	}
+
+	/**
+	 * long为key的hash索引，开放寻址
+	 */
+	private static class LongHashIndex extends MirrorIndex {
+		private final long[] slotKeys;
+		private final int[][] postings;
+		private final int mask;
+
+		private LongHashIndex(long[] keys, boolean[] isNull) {
+			int capacity = 2;
+			while(capacity < keys.length * 2) {
+				capacity <<= 1;
+			}
+			slotKeys = new long[capacity];
+			postings = new int[capacity][];
+			mask = capacity - 1;
+
+			// 第一遍确定每条记录的槽位并计数，第二遍按记录顺序填入，下标自然是升序的
+			int[] rowSlots = new int[keys.length];
+			int[] counts = new int[capacity];
+			boolean[] isUsed = new boolean[capacity];
+			for(int i = 0; i < keys.length; i++) {
+				if(isNull[i]) {
+					continue;
+				}
+				int slot = slotOf(keys[i]);
+				while(isUsed[slot] && slotKeys[slot] != keys[i]) {
+					slot = (slot + 1) & mask;
+				}
+				isUsed[slot] = true;
+				slotKeys[slot] = keys[i];
+				counts[slot]++;
+				rowSlots[i] = slot;
+			}
+			for(int slot = 0; slot < capacity; slot++) {
+				if(isUsed[slot]) {
+					postings[slot] = new int[counts[slot]];
+					counts[slot] = 0;
+				}
+			}
+			for(int i = 0; i < keys.length; i++) {
+				if(!isNull[i]) {
+					int slot = rowSlots[i];
+					postings[slot][counts[slot]++] = i;
+				}
+			}
+		}
+
+		@Override
+		int[] get(Object key) {
+			long k = (Long) key;
+			int slot = slotOf(k);
+			while(postings[slot] != null) {
+				if(slotKeys[slot] == k) {
+					return postings[slot];
+				}
+				slot = (slot + 1) & mask;
+			}
+			return EMPTY;
+		}
+
+		private int slotOf(long key) {
+			int h = (int) (key ^ (key >>> 32)) * 0x9E3779B9;
+			return (h ^ (h >>> 16)) & mask;
+		}
+	}
+
+	/**
+	 * long为key的有序索引，支持范围查询
+	 */
+	private static class LongSortedIndex extends MirrorIndex {
+		/**按key排序的记录下标，key相同的按下标排序*/
+		private final int[] rows;
+		private final long[] sortedKeys;
+
+		private LongSortedIndex(long[] keys, boolean[] isNull) {
+			int count = 0;
+			for(boolean b : isNull) {
+				if(!b) {
+					count++;
+				}
+			}
+			int[] order = new int[count];
+			int n = 0;
+			for(int i = 0; i < keys.length; i++) {
+				if(!isNull[i]) {
+					order[n++] = i;
+				}
+			}
+			mergeSort(order, new int[count], 0, count, keys);
+			rows = order;
+			sortedKeys = new long[count];
+			for(int i = 0; i < count; i++) {
+				sortedKeys[i] = keys[order[i]];
+			}
+		}
+
+		@Override
+		int[] get(Object key) {
+			long k = (Long) key;
+			return Arrays.copyOfRange(rows, lowerBound(k), upperBound(k));
+		}
+
+		@Override
+		int[] range(Long from, boolean isFromInclusive, Long to, boolean isToInclusive) {
+			int start = from == null ? 0 : (isFromInclusive ? lowerBound(from) : upperBound(from));
+			int end = to == null ? rows.length : (isToInclusive ? upperBound(to) : lowerBound(to));
+			if(start >= end) {
+				return EMPTY;
+			}
+			int[] result = Arrays.copyOfRange(rows, start, end);
+			Arrays.sort(result);
+			return result;
+		}
+
+		/**第一个大于等于key的位置*/
+		private int lowerBound(long key) {
+			int low = 0, high = sortedKeys.length;
+			while(low < high) {
+				int mid = (low + high) >>> 1;
+				if(sortedKeys[mid] < key) {
+					low = mid + 1;
+				} else {
+					high = mid;
+				}
+			}
+			return low;
+		}
+
+		/**第一个大于key的位置*/
+		private int upperBound(long key) {
+			int low = 0, high = sortedKeys.length;
+			while(low < high) {
+				int mid = (low + high) >>> 1;
+				if(sortedKeys[mid] <= key) {
+					low = mid + 1;
+				} else {
+					high = mid;
+				}
+			}
+			return low;
+		}
+
+		/**按keys[下标]稳定排序，不装箱*/
+		private static void mergeSort(int[] a, int[] tmp, int from, int to, long[] keys) {
+			if(to - from < 2) {
+				return;
+			}
+			int mid = (from + to) >>> 1;
+			mergeSort(a, tmp, from, mid, keys);
+			mergeSort(a, tmp, mid, to, keys);
+			if(keys[a[mid - 1]] <= keys[a[mid]]) {
+				return;
+			}
+			System.arraycopy(a, from, tmp, from, to - from);
+			int i = from, j = mid, k = from;
+			while(i < mid && j < to) {
+				a[k++] = keys[tmp[j]] < keys[tmp[i]] ? tmp[j++] : tmp[i++];
+			}
+			while(i < mid) {
+				a[k++] = tmp[i++];
+			}
+			while(j < to) {
+				a[k++] = tmp[j++];
+			}
+		}
+	}
+
+	/**
+	 * String等其它类型的hash索引
+	 */
+	private static class ObjectHashIndex extends MirrorIndex {
+		private final Map<Object, int[]> postings = new HashMap<Object, int[]>();
+
+		private ObjectHashIndex(Field field, Object[] rows) {
+			Map<Object, List<Integer>> lists = new HashMap<Object, List<Integer>>();
+			for(int i = 0; i < rows.length; i++) {
+				Object key = MirrorQuery.normalize(DOInfoReader.getValue(field, rows[i]), field.getType());
+				if(key == null) {
+					continue;
+				}
+				List<Integer> list = lists.get(key);
+				if(list == null) {
+					list = new ArrayList<Integer>();
+					lists.put(key, list);
+				}
+				list.add(i);
+			}
+			for(Map.Entry<Object, List<Integer>> entry : lists.entrySet()) {
+				int[] array = new int[entry.getValue().size()];
+				for(int i = 0; i < array.length; i++) {
+					array[i] = entry.getValue().get(i);
+				}
+				postings.put(entry.getKey(), array);
+			}
+		}
+
+		@Override
+		int[] get(Object key) {
+			int[] rows = postings.get(key);
+			return rows == null ? EMPTY : rows;
+		}
+	}
+
+}
@@ -0,0 +1,425 @@
+package com.pugwoo.dbhelper.cache;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Date;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+import com.pugwoo.dbhelper.annotation.Column;
+import com.pugwoo.dbhelper.utils.DOInfoReader;
+
+import net.sf.jsqlparser.JSQLParserException;
+import net.sf.jsqlparser.expression.BinaryExpression;
+import net.sf.jsqlparser.expression.Expression;
+import net.sf.jsqlparser.expression.JdbcParameter;
+import net.sf.jsqlparser.expression.LongValue;
+import net.sf.jsqlparser.expression.StringValue;
+import net.sf.jsqlparser.expression.operators.conditional.AndExpression;
+import net.sf.jsqlparser.expression.operators.relational.EqualsTo;
+import net.sf.jsqlparser.expression.operators.relational.ExpressionList;
+import net.sf.jsqlparser.expression.operators.relational.GreaterThan;
+import net.sf.jsqlparser.expression.operators.relational.GreaterThanEquals;
+import net.sf.jsqlparser.expression.operators.relational.InExpression;
+import net.sf.jsqlparser.expression.operators.relational.MinorThan;
+import net.sf.jsqlparser.expression.operators.relational.MinorThanEquals;
+import net.sf.jsqlparser.parser.CCJSqlParserUtil;
+import net.sf.jsqlparser.statement.Statement;
+import net.sf.jsqlparser.statement.select.PlainSelect;
+import net.sf.jsqlparser.statement.select.Select;
+
+/**
+ * 可以在内存中执行的查询条件：postSql为空，或者只有where子句，且where子句中的条件都用AND连接，
+ * 每个条件是"列=值"、"列 in (值)"或整数、日期列的"&gt;、&gt;=、&lt;、&lt;="，值是?或常量。<br>
+ * 只支持String、整数、布尔和日期类型的列。String按MySQL默认的排序规则忽略大小写比较。
+ */
+class MirrorQuery {
+
+	private static final String SELECT_SQL = "select * from dual "; // 辅助where sql解析用
+
+	private static final int OP_EQ = 0;
+	private static final int OP_IN = 1;
+	private static final int OP_GT = 2;
+	private static final int OP_GE = 3;
+	private static final int OP_LT = 4;
+	private static final int OP_LE = 5;
+
+	private static class Condition {
+		private Field field;
+		private int op;
+		/**值，每个元素是?(JdbcParameter)或常量；in有多个，其它只有一个*/
+		private List<Expression> items = new ArrayList<Expression>();
+	}
+
+	private final Condition[] conditions;
+	private final int argCount;
+
+	private MirrorQuery(Condition[] conditions, int argCount) {
+		this.conditions = conditions;
+		this.argCount = argCount;
+	}
+
+	/**
+	 * 解析postSql
+	 * @return 不能在内存中执行时返回null
+	 */
+	static MirrorQuery parse(Class<?> clazz, String postSql) {
+		if(postSql == null || postSql.trim().isEmpty()) {
+			return new MirrorQuery(new Condition[0], 0);
+		}
+
+		Statement statement;
+		try {
+			statement = CCJSqlParserUtil.parse(SELECT_SQL + postSql);
+		} catch (JSQLParserException e) {
+			return null;
+		}
+		if(!(statement instanceof Select) || !(((Select) statement).getSelectBody() instanceof PlainSelect)) {
+			return null;
+		}
+		PlainSelect select = (PlainSelect) ((Select) statement).getSelectBody();
+		if(select.getWhere() == null || select.getGroupByColumnReferences() != null
+				|| select.getOrderByElements() != null || select.getLimit() != null
+				|| select.getOffset() != null || select.getHaving() != null
+				|| select.getJoins() != null || select.isForUpdate()) {
+			return null;
+		}
+
+		List<Expression> expressions = new ArrayList<Expression>();
+		if(!flatten(select.getWhere(), expressions)) {
+			return null;
+		}
+
+		Condition[] conditions = new Condition[expressions.size()];
+		int argCount = 0;
+		for(int i = 0; i < expressions.size(); i++) {
+			conditions[i] = toCondition(clazz, expressions.get(i));
+			if(conditions[i] == null) {
+				return null;
+			}
+			for(Expression item : conditions[i].items) {
+				if(item instanceof JdbcParameter) {
+					argCount++;
+				}
+			}
+		}
+		return new MirrorQuery(conditions, argCount);
+	}
+
+	/**把AND连接的条件展开，有其它运算时返回false*/
+	private static boolean flatten(Expression expression, List<Expression> expressions) {
+		if(expression instanceof AndExpression) {
+			AndExpression and = (AndExpression) expression;
+			return !and.isNot() && flatten(and.getLeftExpression(), expressions)
+					&& flatten(and.getRightExpression(), expressions);
+		}
+		expressions.add(expression);
+		return true;
+	}
+
+	private static Condition toCondition(Class<?> clazz, Expression expression) {
+		Condition condition = new Condition();
+		Expression left;
+		if(expression instanceof InExpression) {
+			InExpression in = (InExpression) expression;
+			if(in.isNot() || !(in.getRightItemsList() instanceof ExpressionList)) {
+				return null;
+			}
+			condition.op = OP_IN;
+			left = in.getLeftExpression();
+			condition.items.addAll(((ExpressionList) in.getRightItemsList()).getExpressions());
+		} else if(expression instanceof BinaryExpression && !((BinaryExpression) expression).isNot()) {
+			if(expression instanceof EqualsTo) {
+				condition.op = OP_EQ;
+			} else if(expression instanceof GreaterThan) {
+				condition.op = OP_GT;
+			} else if(expression instanceof GreaterThanEquals) {
+				condition.op = OP_GE;
+			} else if(expression instanceof MinorThan) {
+				condition.op = OP_LT;
+			} else if(expression instanceof MinorThanEquals) {
+				condition.op = OP_LE;
+			} else {
+				return null;
+			}
+			left = ((BinaryExpression) expression).getLeftExpression();
+			condition.items.add(((BinaryExpression) expression).getRightExpression());
+		} else {
+			return null;
+		}
+
+		if(!(left instanceof net.sf.jsqlparser.schema.Column)) {
+			return null;
+		}
+		net.sf.jsqlparser.schema.Column column = (net.sf.jsqlparser.schema.Column) left;
+		if(column.getTable() != null && column.getTable().getName() != null) {
+			return null;
+		}
+		condition.field = getField(clazz, column.getColumnName());
+		if(condition.field == null || !isSupportedType(condition.field.getType())) {
+			return null;
+		}
+		if(condition.op >= OP_GT && !isRangeType(condition.field.getType())) {
+			return null;
+		}
+		for(Expression item : condition.items) {
+			if(!(item instanceof JdbcParameter) && !(item instanceof LongValue)
+					&& !(item instanceof StringValue)) {
+				return null;
+			}
+		}
+		return condition;
+	}
+
+	private static Field getField(Class<?> clazz, String columnName) {
+		if(columnName.startsWith("`") && columnName.endsWith("`") && columnName.length() > 2) {
+			columnName = columnName.substring(1, columnName.length() - 1);
+		}
+		for(Field field : DOInfoReader.getColumns(clazz)) {
+			if(field.getAnnotation(Column.class).value().equalsIgnoreCase(columnName)) {
+				return field;
+			}
+		}
+		return null;
+	}
+
+	private static boolean isSupportedType(Class<?> type) {
+		return type == String.class || isLongType(type);
+	}
+
+	/**以long保存和比较的类型：整数、布尔和日期*/
+	static boolean isLongType(Class<?> type) {
+		return isRangeType(type) || type == Boolean.class || type == boolean.class;
+	}
+
+	private static boolean isRangeType(Class<?> type) {
+		return isIntegerType(type) || Date.class.isAssignableFrom(type);
+	}
+
+	private static boolean isIntegerType(Class<?> type) {
+		return type == Long.class || type == long.class || type == Integer.class || type == int.class
+				|| type == Short.class || type == short.class || type == Byte.class || type == byte.class;
+	}
+
+	/**
+	 * 把值转换成用于比较和索引的形式：String转小写，整数、布尔和日期转成Long
+	 * @param type 列的类型
+	 * @return 不能转换(如String列传入数字、集合参数)时返回null
+	 */
+	static Object normalize(Object value, Class<?> type) {
+		if(value == null) {
+			return null;
+		}
+		if(type == String.class) {
+			return value instanceof String ? ((String) value).toLowerCase(Locale.ROOT) : null;
+		}
+		if(Date.class.isAssignableFrom(type)) {
+			return value instanceof Date ? ((Date) value).getTime() : null;
+		}
+		Long number = toLong(value, type == Boolean.class || type == boolean.class);
+		if(number == null) {
+			return null;
+		}
+		if(type == Boolean.class || type == boolean.class) {
+			return number != 0 ? 1L : 0L;
+		}
+		return number;
+	}
+
+	private static Long toLong(Object value, boolean isBoolean) {
+		if(value instanceof Long || value instanceof Integer || value instanceof Short
+				|| value instanceof Byte) {
+			return ((Number) value).longValue();
+		}
+		if(value instanceof Boolean) {
+			return ((Boolean) value) ? 1L : 0L;
+		}
+		if(value instanceof String) {
+			String str = ((String) value).trim();
+			try {
+				return Long.parseLong(str);
+			} catch (NumberFormatException e) {
+				if(isBoolean && (str.equalsIgnoreCase("true") || str.equalsIgnoreCase("false"))) {
+					return str.equalsIgnoreCase("true") ? 1L : 0L;
+				}
+				return null;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * 把值转换成列的类型，只支持整数、布尔和String类型的列
+	 * @return 不能转换时返回null
+	 */
+	static Object cast(Object value, Class<?> type) {
+		if(value == null || Date.class.isAssignableFrom(type) || !isSupportedType(type)) {
+			return null;
+		}
+		if(type == String.class) {
+			return value instanceof String ? value : null;
+		}
+		Object number = normalize(value, type);
+		if(number == null) {
+			return null;
+		}
+		long n = (Long) number;
+		if(type == Boolean.class || type == boolean.class) {
+			return n != 0;
+		}
+		if(type == Long.class || type == long.class) {
+			return n;
+		}
+		if(type == Integer.class || type == int.class) {
+			return (int) n;
+		}
+		if(type == Short.class || type == short.class) {
+			return (short) n;
+		}
+		return (byte) n;
+	}
+
+	/**
+	 * 绑定参数，得到每个条件要比较的值：in条件是Object[]，其它是单个值，都已经normalize
+	 * @return 参数个数不对或参数不能转换时返回null
+	 */
+	Object[] bind(Object[] args) {
+		int length = args == null ? 0 : args.length;
+		if(length != argCount) {
+			return null;
+		}
+		Object[] values = new Object[conditions.length];
+		int argIndex = 0;
+		for(int i = 0; i < conditions.length; i++) {
+			Condition condition = conditions[i];
+			Class<?> type = condition.field.getType();
+			List<Object> list = new ArrayList<Object>();
+			for(Expression item : condition.items) {
+				if(item instanceof JdbcParameter) {
+					Object arg = args[argIndex++];
+					if(condition.op == OP_IN && arg instanceof Collection) {
+						list.addAll((Collection<?>) arg);
+					} else if(condition.op == OP_IN && arg instanceof Object[]) {
+						list.addAll(Arrays.asList((Object[]) arg));
+					} else {
+						list.add(arg);
+					}
+				} else if(item instanceof LongValue) {
+					list.add(((LongValue) item).getValue());
+				} else {
+					list.add(((StringValue) item).getValue());
+				}
+			}
+
+			Set<Object> normalized = new LinkedHashSet<Object>();
+			for(Object value : list) {
+				if(value == null) {
+					continue; // 和sql一样，null不等于任何值
+				}
+				Object v = normalize(value, type);
+				if(v == null) {
+					return null;
+				}
+				normalized.add(v);
+			}
+			if(condition.op == OP_IN) {
+				values[i] = normalized.toArray();
+			} else {
+				if(normalized.size() != 1) {
+					return null;
+				}
+				values[i] = normalized.iterator().next();
+			}
+		}
+		return values;
+	}
+
+	/**
+	 * @param values bind返回的值
+	 */
+	boolean matches(Object row, Object[] values) {
+		for(int i = 0; i < conditions.length; i++) {
+			Condition condition = conditions[i];
+			Object value = normalize(DOInfoReader.getValue(condition.field, row), condition.field.getType());
+			if(value == null || !matches(condition.op, value, values[i])) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static boolean matches(int op, Object value, Object expected) {
+		switch (op) {
+		case OP_EQ: return value.equals(expected);
+		case OP_IN:
+			for(Object e : (Object[]) expected) {
+				if(value.equals(e)) {
+					return true;
+				}
+			}
+			return false;
+		case OP_GT: return (Long) value > (Long) expected;
+		case OP_GE: return (Long) value >= (Long) expected;
+		case OP_LT: return (Long) value < (Long) expected;
+		case OP_LE: return (Long) value <= (Long) expected;
+		default: return false;
+		}
+	}
+
+	/**
+	 * 通过索引找到候选记录，有多个条件可以用索引时选择候选记录最少的
+	 * @param indexes 快照的索引
+	 * @param values bind返回的值
+	 * @return 候选记录在快照中的下标，升序；没有可用的索引时返回null
+	 */
+	int[] candidates(Map<Field, MirrorIndex> indexes, Object[] values) {
+		int[] best = null;
+		for(int i = 0; i < conditions.length; i++) {
+			MirrorIndex index = indexes.get(conditions[i].field);
+			if(index == null) {
+				continue;
+			}
+			int[] rows = lookup(index, conditions[i].op, values[i]);
+			if(rows != null && (best == null || rows.length < best.length)) {
+				best = rows;
+			}
+		}
+		return best;
+	}
+
+	private static int[] lookup(MirrorIndex index, int op, Object value) {
+		switch (op) {
+		case OP_EQ: return index.get(value);
+		case OP_IN:
+			Object[] keys = (Object[]) value;
+			if(keys.length == 1) {
+				return index.get(keys[0]);
+			}
+			int[][] postings = new int[keys.length][];
+			int total = 0;
+			for(int i = 0; i < keys.length; i++) {
+				postings[i] = index.get(keys[i]);
+				total += postings[i].length;
+			}
+			int[] rows = new int[total];
+			int n = 0;
+			for(int[] p : postings) { // 不同key的记录不重复
+				System.arraycopy(p, 0, rows, n, p.length);
+				n += p.length;
+			}
+			Arrays.sort(rows);
+			return rows;
+		case OP_GT: return index.range((Long) value, false, null, false);
+		case OP_GE: return index.range((Long) value, true, null, false);
+		case OP_LT: return index.range(null, false, (Long) value, false);
+		case OP_LE: return index.range(null, false, (Long) value, true);
+		default: return null;
+		}
+	}
+
+}
@@ -0,0 +1,85 @@
+package com.pugwoo.dbhelper.cache;
+
+import java.util.Collection;
+
+import com.pugwoo.dbhelper.utils.DOInfoReader;
+
+/**
+ * 一个DO类的不存在主键缓存：记录getByKey查不到数据的主键值，再次查询时直接返回null。<br>
+ * 保存的是确切的主键值(W-TinyLFU淘汰)，不会把存在的数据判断为不存在；表有插入时整体清空。
+ */
+public class NegativeCache {
+
+	private final Class<?> clazz;
+	private final Class<?> keyType;
+	private final long ttlMs;
+	private final WTinyLfuCache<Object, Boolean> cache;
+	
+	/**每次失效加1，查询数据库期间有过失效的结果不放入缓存，避免记录下刚插入的主键*/
+	private long generation;
+	private long invalidationCount;
+
+	public NegativeCache(Class<?> clazz, int maxSize, long ttlMs) {
+		this.clazz = clazz;
+		this.keyType = DOInfoReader.getOneKeyColumn(clazz).getType();
+		this.ttlMs = ttlMs;
+		this.cache = new WTinyLfuCache<Object, Boolean>(maxSize);
+	}
+
+	/**
+	 * 主键是否已知不存在
+	 */
+	public boolean isAbsent(Object keyValue) {
+		return cache.get(EntityCache.normalizeKey(keyValue, keyType)) != null;
+	}
+
+	/**
+	 * 获得当前的失效版本，在查询数据库之前获取，记录不存在的主键时传入
+	 */
+	public synchronized long getGeneration() {
+		return generation;
+	}
+
+	/**
+	 * 记录不存在的主键，如果从generation获取之后发生过失效，则不记录
+	 */
+	public void putAbsent(Object keyValue, long generation) {
+		if(keyValue == null) {
+			return;
+		}
+		synchronized (this) {
+			if(generation == this.generation) {
+				cache.put(EntityCache.normalizeKey(keyValue, keyType), Boolean.TRUE, ttlMs);
+			}
+		}
+	}
+
+	public synchronized void invalidate(Collection<?> keyValues) {
+		generation++;
+		for(Object keyValue : keyValues) {
+			if(keyValue != null) {
+				cache.invalidate(EntityCache.normalizeKey(keyValue, keyType));
+				invalidationCount++;
+			}
+		}
+	}
+
+	public synchronized void invalidateAll() {
+		generation++;
+		invalidationCount += cache.size();
+		cache.invalidateAll();
+	}
+
+	public Class<?> getClazz() {
+		return clazz;
+	}
+
+	/**
+	 * 命中次数即少查询数据库的次数。记录的是确切的主键，没有误判
+	 */
+	public synchronized CacheStats getStats() {
+		return new CacheStats(cache.getHitCount(), cache.getMissCount(), cache.getEvictionCount(),
+				invalidationCount, cache.size());
+	}
+
+}
@@ -0,0 +1,217 @@
+package com.pugwoo.dbhelper.cache;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 堆外存储：对象用EntityCodec编码后顺序写入direct ByteBuffer分配的segment(slab)，堆上只保留key到地址的索引。<br>
+ * segment组成环形队列，写满后回收最早的segment：其中最近被访问过的数据复制到新segment继续保留(second chance)，
+ * 其它数据被淘汰。修改和删除只是从索引中移除，空间在segment回收时释放。<br>
+ * 每条数据的格式：4字节长度 + 8字节过期时间 + 1字节访问标记 + 编码后的内容。所有方法都是同步的，解码在锁外进行。
+ */
+class OffHeapEntityStore implements EntityStore {
+
+	private static final int HEADER_SIZE = 4 + 8 + 1;
+	private static final int ACCESSED_OFFSET = 4 + 8;
+	private static final int MIN_SEGMENT_SIZE = 64 * 1024;
+	private static final int MAX_SEGMENT_SIZE = 256 * 1024 * 1024;
+
+	private final EntityCodec codec;
+	private final int segmentSize;
+	private final ByteBuffer[] segments;
+	/**每个segment中写入过的key，回收segment时用于清理索引*/
+	private final List<List<Object>> segmentKeys;
+	/**key -> segment下标(高32位)和segment内偏移(低32位)*/
+	private final Map<Object, Long> index = new HashMap<Object, Long>();
+
+	/**当前写入的segment，-1表示还没有写入*/
+	private int head = -1;
+	private int headOffset;
+
+	private long allocatedBytes;
+	private long usedBytes;
+	private long hitCount;
+	private long missCount;
+	private long evictionCount;
+
+	/**
+	 * @param maxBytes 最多占用的堆外内存字节数，按segment分配
+	 */
+	OffHeapEntityStore(EntityCodec codec, long maxBytes) {
+		this.codec = codec;
+		long size = Math.max(MIN_SEGMENT_SIZE, Math.min(MAX_SEGMENT_SIZE, maxBytes / 16));
+		this.segmentSize = (int) size;
+		int segmentCount = (int) Math.max(2, maxBytes / size);
+		this.segments = new ByteBuffer[segmentCount];
+		this.segmentKeys = new ArrayList<List<Object>>(segmentCount);
+		for(int i = 0; i < segmentCount; i++) {
+			segmentKeys.add(new ArrayList<Object>());
+		}
+	}
+
+	@Override
+	public Object get(Object key) {
+		byte[] data;
+		synchronized (this) {
+			Long address = index.get(key);
+			if(address == null) {
+				missCount++;
+				return null;
+			}
+			ByteBuffer segment = segments[segmentOf(address)];
+			int offset = offsetOf(address);
+			long expireTime = segment.getLong(offset + 4);
+			if(expireTime != 0 && expireTime <= System.currentTimeMillis()) {
+				remove(key, address);
+				missCount++;
+				return null;
+			}
+			segment.put(offset + ACCESSED_OFFSET, (byte) 1);
+			data = read(segment, offset);
+			hitCount++;
+		}
+		return codec.decode(data);
+	}
+
+	@Override
+	public void put(Object key, Object value, long ttlMs) {
+		byte[] data = codec.encode(value);
+		long expireTime = ttlMs > 0 ? System.currentTimeMillis() + ttlMs : 0;
+		synchronized (this) {
+			Long old = index.get(key);
+			if(old != null) {
+				remove(key, old);
+			}
+			int size = HEADER_SIZE + data.length;
+			if(size > segmentSize) {
+				return; // 单条数据超过segment大小，不缓存
+			}
+			if(head < 0 || headOffset + size > segmentSize) {
+				roll(size);
+				if(headOffset + size > segmentSize) {
+					return; // 回收后保留的数据占满了segment，不缓存
+				}
+			}
+			append(key, data, expireTime);
+		}
+	}
+
+	@Override
+	public synchronized void invalidate(Object key) {
+		Long address = index.get(key);
+		if(address != null) {
+			remove(key, address);
+		}
+	}
+
+	@Override
+	public synchronized void invalidateAll() {
+		index.clear();
+		for(List<Object> keys : segmentKeys) {
+			keys.clear();
+		}
+		head = -1;
+		headOffset = 0;
+		usedBytes = 0;
+	}
+
+	@Override
+	public synchronized CacheStats getStats() {
+		CacheStats stats = new CacheStats(hitCount, missCount, evictionCount, 0, index.size());
+		stats.setAllocatedBytes(allocatedBytes);
+		stats.setUsedBytes(usedBytes);
+		return stats;
+	}
+
+	/**
+	 * 切换到下一个segment，没有分配的先分配，已经有数据的先回收
+	 * @param reserveBytes 切换后要写入的字节数，回收时为它留出空间
+	 */
+	private void roll(int reserveBytes) {
+		int next = (head + 1) % segments.length;
+		List<Object[]> survivors = new ArrayList<Object[]>();
+		if(segments[next] == null) {
+			segments[next] = ByteBuffer.allocateDirect(segmentSize);
+			allocatedBytes += segmentSize;
+		} else {
+			survivors = evictSegment(next, Math.min(segmentSize / 2, segmentSize - reserveBytes));
+		}
+		head = next;
+		headOffset = 0;
+		for(Object[] survivor : survivors) {
+			append(survivor[0], (byte[]) survivor[1], (Long) survivor[2]);
+		}
+	}
+
+	/**
+	 * 回收segment，最近访问过且未过期的数据返回给调用者重新写入
+	 * @param maxSurvivorBytes 最多保留的字节数
+	 * @return 每个元素是key、数据和过期时间
+	 */
+	private List<Object[]> evictSegment(int segmentIndex, int maxSurvivorBytes) {
+		List<Object[]> survivors = new ArrayList<Object[]>();
+		int survivorBytes = 0;
+		long now = System.currentTimeMillis();
+		ByteBuffer segment = segments[segmentIndex];
+		for(Object key : segmentKeys.get(segmentIndex)) {
+			Long address = index.get(key);
+			if(address == null || segmentOf(address) != segmentIndex) {
+				continue; // 已经被删除或重新写入到其它segment
+			}
+			int offset = offsetOf(address);
+			int length = segment.getInt(offset);
+			long expireTime = segment.getLong(offset + 4);
+			boolean isAccessed = segment.get(offset + ACCESSED_OFFSET) != 0;
+			boolean isExpired = expireTime != 0 && expireTime <= now;
+			if(isAccessed && !isExpired && survivorBytes + HEADER_SIZE + length <= maxSurvivorBytes) {
+				survivors.add(new Object[] {key, read(segment, offset), expireTime});
+				survivorBytes += HEADER_SIZE + length;
+			} else if(!isExpired) {
+				evictionCount++;
+			}
+			remove(key, address);
+		}
+		segmentKeys.get(segmentIndex).clear();
+		return survivors;
+	}
+
+	private void append(Object key, byte[] data, long expireTime) {
+		ByteBuffer segment = segments[head];
+		int offset = headOffset;
+		segment.putInt(offset, data.length);
+		segment.putLong(offset + 4, expireTime);
+		segment.put(offset + ACCESSED_OFFSET, (byte) 0);
+		ByteBuffer dup = segment.duplicate();
+		dup.position(offset + HEADER_SIZE);
+		dup.put(data);
+		headOffset += HEADER_SIZE + data.length;
+		usedBytes += HEADER_SIZE + data.length;
+		index.put(key, ((long) head << 32) | offset);
+		segmentKeys.get(head).add(key);
+	}
+
+	private void remove(Object key, long address) {
+		index.remove(key);
+		usedBytes -= HEADER_SIZE + segments[segmentOf(address)].getInt(offsetOf(address));
+	}
+
+	private static byte[] read(ByteBuffer segment, int offset) {
+		byte[] data = new byte[segment.getInt(offset)];
+		ByteBuffer dup = segment.duplicate();
+		dup.position(offset + HEADER_SIZE);
+		dup.get(data);
+		return data;
+	}
+
+	private static int segmentOf(long address) {
+		return (int) (address >>> 32);
+	}
+
+	private static int offsetOf(long address) {
+		return (int) address;
+	}
+
+}
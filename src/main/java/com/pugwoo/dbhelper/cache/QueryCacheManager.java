@@ -0,0 +1,155 @@
+package com.pugwoo.dbhelper.cache;
+
+import java.lang.reflect.Field;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.pugwoo.dbhelper.annotation.QueryCache;
+import com.pugwoo.dbhelper.utils.DOInfoReader;
+
+/**
+ * 管理所有注解了@QueryCache的类的查询结果缓存，以及每张表的版本号。<br>
+ * 表的版本号在通过DBHelper修改该表时加1，缓存记录依赖的表版本号变化后即失效，不需要逐条删除。
+ */
+public class QueryCacheManager {
+
+	/**不缓存的类用这个对象占位，避免重复判断*/
+	private static final Object NOT_CACHED = new Object();
+
+	/**CountModeEnum.CACHED的总数缓存最大条数*/
+	private static final int COUNT_CACHE_MAX_SIZE = 1000;
+
+	private final ConcurrentMap<Class<?>, Object> caches = new ConcurrentHashMap<Class<?>, Object>();
+	private final ConcurrentMap<Class<?>, QueryResultCache> countCaches =
+			new ConcurrentHashMap<Class<?>, QueryResultCache>();
+	private final ConcurrentMap<String, AtomicLong> tableVersions = new ConcurrentHashMap<String, AtomicLong>();
+	/**是否有类开启了查询缓存，没有时不需要维护事务结束后的版本号*/
+	private volatile boolean enabled;
+
+	/**
+	 * 获得类的查询缓存
+	 * @return 该类没有注解@QueryCache时返回null
+	 */
+	public QueryResultCache getCache(Class<?> clazz) {
+		Object cache = caches.get(clazz);
+		if(cache == null) {
+			cache = createCache(clazz);
+		}
+		return cache == NOT_CACHED ? null : (QueryResultCache) cache;
+	}
+
+	private synchronized Object createCache(Class<?> clazz) {
+		Object cache = caches.get(clazz);
+		if(cache != null) {
+			return cache;
+		}
+
+		cache = NOT_CACHED;
+		QueryCache queryCache = getQueryCache(clazz);
+		if(queryCache != null) {
+			cache = new QueryResultCache(this, clazz, getTables(clazz), queryCache.maxSize(),
+					queryCache.expireSeconds() * 1000L);
+			enabled = true;
+		}
+		caches.put(clazz, cache);
+		return cache;
+	}
+	
+	/**
+	 * 获得类的总数缓存，用于CountModeEnum.CACHED，不需要注解@QueryCache
+	 * @param ttlMs 只在第一次创建时生效
+	 */
+	public QueryResultCache getCountCache(Class<?> clazz, long ttlMs) {
+		QueryResultCache cache = countCaches.get(clazz);
+		if(cache == null) {
+			cache = createCountCache(clazz, ttlMs);
+		}
+		return cache;
+	}
+	
+	private synchronized QueryResultCache createCountCache(Class<?> clazz, long ttlMs) {
+		QueryResultCache cache = countCaches.get(clazz);
+		if(cache == null) {
+			cache = new QueryResultCache(this, clazz, getTables(clazz), COUNT_CACHE_MAX_SIZE, ttlMs);
+			countCaches.put(clazz, cache);
+			enabled = true;
+		}
+		return cache;
+	}
+	
+	/**类依赖的表，join VO是左右两张表*/
+	private static String[] getTables(Class<?> clazz) {
+		if(DOInfoReader.getJoinTable(clazz) != null) {
+			Field leftField = DOInfoReader.getJoinLeftTable(clazz);
+			Field rightField = DOInfoReader.getJoinRightTable(clazz);
+			return new String[] {DOInfoReader.getTable(leftField.getType()).value(),
+					DOInfoReader.getTable(rightField.getType()).value()};
+		}
+		return new String[] {DOInfoReader.getTable(clazz).value()};
+	}
+
+	private static QueryCache getQueryCache(Class<?> clazz) {
+		Class<?> curClass = clazz;
+		while (curClass != null) {
+			QueryCache queryCache = curClass.getAnnotation(QueryCache.class);
+			if(queryCache != null) {
+				return queryCache;
+			}
+			curClass = curClass.getSuperclass();
+		}
+		return null;
+	}
+
+	/**
+	 * 是否有类开启了查询缓存或总数缓存
+	 */
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * 表被修改，版本号加1
+	 */
+	public void tableChanged(String tableName) {
+		AtomicLong version = tableVersions.get(tableName);
+		if(version == null) {
+			version = new AtomicLong();
+			AtomicLong old = tableVersions.putIfAbsent(tableName, version);
+			if(old != null) {
+				version = old;
+			}
+		}
+		version.incrementAndGet();
+	}
+
+	long[] getVersions(String[] tables) {
+		long[] versions = new long[tables.length];
+		for(int i = 0; i < tables.length; i++) {
+			AtomicLong version = tableVersions.get(tables[i]);
+			versions[i] = version == null ? 0 : version.get();
+		}
+		return versions;
+	}
+
+	/**
+	 * 每个类的查询缓存统计
+	 * @return key是类名，总数缓存的key是类名加上#count
+	 */
+	public Map<String, CacheStats> getStats() {
+		Map<String, CacheStats> stats = new LinkedHashMap<String, CacheStats>();
+		for(Object cache : caches.values()) {
+			if(cache != NOT_CACHED) {
+				QueryResultCache queryResultCache = (QueryResultCache) cache;
+				stats.put(queryResultCache.getClazz().getName(), queryResultCache.getStats());
+			}
+		}
+		for(QueryResultCache countCache : countCaches.values()) {
+			stats.put(countCache.getClazz().getName() + "#count", countCache.getStats());
+		}
+		return stats;
+	}
+
+}
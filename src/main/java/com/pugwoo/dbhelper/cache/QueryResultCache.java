@@ -0,0 +1,140 @@
+package com.pugwoo.dbhelper.cache;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.pugwoo.dbhelper.exception.MustProvideconstructorException;
+import com.pugwoo.dbhelper.utils.DOCopyUtils;
+import com.pugwoo.dbhelper.utils.DOInfoReader;
+
+/**
+ * 一个DO类或join VO类的查询结果缓存，由QueryCacheManager创建。<br>
+ * 每条缓存记录放入时依赖的表的版本号，读取时版本号有变化则视为失效。
+ * 列表结果放入和读取时都复制一份，只复制@Column字段，@RelatedColumn由调用者重新查询。
+ */
+public class QueryResultCache {
+
+	private static class Entry {
+		private final Object value;
+		private final long[] versions;
+
+		private Entry(Object value, long[] versions) {
+			this.value = value;
+			this.versions = versions;
+		}
+	}
+
+	private final QueryCacheManager manager;
+	private final Class<?> clazz;
+	/**依赖的表，join VO是左右两张表*/
+	private final String[] tables;
+	private final long ttlMs;
+	private final WTinyLfuCache<Object, Entry> cache;
+
+	private Field leftJoinField;
+	private Field rightJoinField;
+
+	private final AtomicLong hitCount = new AtomicLong();
+	private final AtomicLong missCount = new AtomicLong();
+	/**因表版本号变化而失效的次数*/
+	private final AtomicLong invalidationCount = new AtomicLong();
+
+	QueryResultCache(QueryCacheManager manager, Class<?> clazz, String[] tables,
+			int maxSize, long ttlMs) {
+		this.manager = manager;
+		this.clazz = clazz;
+		this.tables = tables;
+		this.ttlMs = ttlMs;
+		this.cache = new WTinyLfuCache<Object, Entry>(maxSize);
+		if(DOInfoReader.getJoinTable(clazz) != null) {
+			leftJoinField = DOInfoReader.getJoinLeftTable(clazz);
+			rightJoinField = DOInfoReader.getJoinRightTable(clazz);
+		}
+	}
+
+	/**
+	 * 查询数据库之前获取依赖表的当前版本号，查询完成后和结果一起放入缓存
+	 */
+	public long[] getVersions() {
+		return manager.getVersions(tables);
+	}
+
+	/**
+	 * 获取缓存的查询结果
+	 * @return 没有缓存、已过期或依赖的表已修改时返回null；列表结果返回复制的对象
+	 */
+	public Object get(Object key) {
+		Entry entry = cache.get(key);
+		if(entry == null) {
+			missCount.incrementAndGet();
+			return null;
+		}
+		if(!Arrays.equals(entry.versions, getVersions())) {
+			cache.invalidate(key);
+			invalidationCount.incrementAndGet();
+			missCount.incrementAndGet();
+			return null;
+		}
+		hitCount.incrementAndGet();
+		return copy(entry.value);
+	}
+
+	/**
+	 * 放入查询结果，如果查询期间依赖的表被修改了则不放入
+	 * @param versions 查询数据库之前调用getVersions获得的版本号
+	 */
+	public void put(Object key, Object value, long[] versions) {
+		if(value == null || !Arrays.equals(versions, getVersions())) {
+			return;
+		}
+		cache.put(key, new Entry(copy(value), versions), ttlMs);
+	}
+
+	public Class<?> getClazz() {
+		return clazz;
+	}
+
+	public CacheStats getStats() {
+		return new CacheStats(hitCount.get(), missCount.get(), cache.getEvictionCount(),
+				invalidationCount.get(), cache.size());
+	}
+
+	/**列表复制每个元素，其它结果(如总数)是不可变的，直接返回*/
+	private Object copy(Object value) {
+		if(!(value instanceof List)) {
+			return value;
+		}
+		List<?> list = (List<?>) value;
+		List<Object> result = new ArrayList<Object>(list.size());
+		for(Object t : list) {
+			result.add(copyRow(t));
+		}
+		return result;
+	}
+
+	private Object copyRow(Object t) {
+		if(t == null) {
+			return null;
+		}
+		if(leftJoinField == null) {
+			return DOCopyUtils.copyColumns(t);
+		}
+		Object copy;
+		try {
+			copy = clazz.newInstance();
+		} catch (InstantiationException e) {
+			throw new MustProvideconstructorException();
+		} catch (IllegalAccessException e) {
+			throw new MustProvideconstructorException();
+		}
+		Object t1 = DOInfoReader.getValue(leftJoinField, t);
+		Object t2 = DOInfoReader.getValue(rightJoinField, t);
+		DOInfoReader.setValue(leftJoinField, copy, t1 == null ? null : DOCopyUtils.copyColumns(t1));
+		DOInfoReader.setValue(rightJoinField, copy, t2 == null ? null : DOCopyUtils.copyColumns(t2));
+		return copy;
+	}
+
+}
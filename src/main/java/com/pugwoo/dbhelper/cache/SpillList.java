@@ -0,0 +1,215 @@
+package com.pugwoo.dbhelper.cache;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.RandomAccess;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.pugwoo.dbhelper.exception.ResultTooLargeException;
+import com.pugwoo.dbhelper.utils.DOInfoReader;
+import com.pugwoo.dbhelper.utils.EntitySnapshot;
+
+/**
+ * 超过内存预算的查询结果：前面的记录放在内存中，超过预算之后的记录用EntityCodec编码后写入临时文件，
+ * 读完之后把临时文件映射到内存(mmap)，访问时再解码，由操作系统的page cache决定哪些数据在内存中。<br>
+ * 记录的大小按编码后的字节数计算，堆上对象实际占用的内存一般是它的几倍。<br>
+ * 列表是只读的，写入文件的记录每次get都解码出新的对象，对它的修改不会保留。
+ * close或列表被回收后释放映射，临时文件在映射之后即删除(不支持的系统在JVM退出时删除)。
+ */
+public class SpillList<T> extends AbstractList<T> implements RandomAccess, Closeable {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(SpillList.class);
+
+	/**每个映射的大小，单个MappedByteBuffer不能超过2G*/
+	private static final long SEGMENT_SIZE = 1L << 30;
+
+	private final List<T> memoryRows = new ArrayList<T>();
+	private final EntityCodec codec;
+
+	private File file;
+	private OutputStream out;
+	/**文件中第i条记录的起始位置，最后多一个文件的长度*/
+	private long[] offsets = new long[1024];
+	private int fileRows = 0;
+	private int maxRowBytes = 0;
+	private ByteBuffer[] segments;
+
+	private SpillList(EntityCodec codec) {
+		this.codec = codec;
+	}
+
+	/**
+	 * 读取iterator中的全部记录
+	 * @param memoryBytes 内存中记录的字节数上限，超过后写入临时文件；类不支持编码时全部放在内存中
+	 * @param maxRows 记录数上限，超过时抛出ResultTooLargeException，0表示不限制
+	 * @param maxBytes 字节数上限，超过时抛出ResultTooLargeException，0表示不限制；类不支持编码时不检查
+	 */
+	public static <T> List<T> collect(Class<T> clazz, Iterator<T> iterator,
+			long memoryBytes, long maxRows, long maxBytes) {
+		EntityCodec codec = null;
+		if(DOInfoReader.getJoinTable(clazz) == null) {
+			codec = EntityCodec.create(clazz);
+		}
+		// @RelatedColumn不是@Column字段，编码后会丢失，这样的类只统计字节数，不写文件
+		boolean isSpillable = codec != null && DOInfoReader.getRelatedColumns(clazz).isEmpty();
+
+		SpillList<T> list = new SpillList<T>(codec);
+		long bytes = 0;
+		try {
+			while(iterator.hasNext()) {
+				T t = iterator.next();
+				if(maxRows > 0 && list.size() >= maxRows) {
+					throw new ResultTooLargeException("result rows exceed " + maxRows);
+				}
+				byte[] data = t == null || codec == null ? null : codec.encode(t);
+				if(data != null) {
+					bytes += data.length;
+					if(maxBytes > 0 && bytes > maxBytes) {
+						throw new ResultTooLargeException("result bytes exceed " + maxBytes);
+					}
+				}
+				if(isSpillable && data != null && (list.fileRows > 0 || bytes > memoryBytes)) {
+					list.write(data);
+				} else if(list.fileRows == 0) {
+					list.memoryRows.add(t);
+				} else { // 写入文件后的null记录也写入文件，保持顺序
+					list.write(null);
+				}
+			}
+			list.finishWrite();
+		} catch (IOException e) {
+			list.close();
+			throw new IllegalStateException("write spill file fail", e);
+		} catch (RuntimeException e) {
+			list.close();
+			throw e;
+		}
+		return list;
+	}
+
+	/**
+	 * @param data 为null时表示null记录，长度为0
+	 */
+	private void write(byte[] data) throws IOException {
+		if(out == null) {
+			file = File.createTempFile("nimble-orm-spill", ".tmp");
+			file.deleteOnExit();
+			out = new BufferedOutputStream(new FileOutputStream(file), 64 * 1024);
+			LOGGER.info("result exceeds memory budget, spill to file:{}", file);
+		}
+		if(fileRows + 1 >= offsets.length) {
+			offsets = Arrays.copyOf(offsets, offsets.length * 2);
+		}
+		int length = data == null ? 0 : data.length;
+		if(data != null) {
+			out.write(data);
+		}
+		offsets[fileRows + 1] = offsets[fileRows] + length;
+		fileRows++;
+		maxRowBytes = Math.max(maxRowBytes, length);
+	}
+
+	/**
+	 * 映射临时文件，每个映射多覆盖一条最长的记录，从某个映射中开始的记录总能在这个映射中完整读出
+	 */
+	private void finishWrite() throws IOException {
+		if(out == null) {
+			return;
+		}
+		out.close();
+		out = null;
+
+		long fileSize = offsets[fileRows];
+		segments = new ByteBuffer[(int) ((fileSize + SEGMENT_SIZE - 1) / SEGMENT_SIZE)];
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			for(int i = 0; i < segments.length; i++) {
+				long start = i * SEGMENT_SIZE;
+				long size = Math.min(Math.min(SEGMENT_SIZE + maxRowBytes, fileSize - start), Integer.MAX_VALUE);
+				MappedByteBuffer segment = channel.map(FileChannel.MapMode.READ_ONLY, start, size);
+				segments[i] = segment;
+			}
+		} finally {
+			raf.close(); // 关闭文件后映射仍然有效
+		}
+		if(file.delete()) {
+			file = null;
+		}
+	}
+
+	@Override
+	public T get(int index) {
+		if(index < memoryRows.size()) {
+			return memoryRows.get(index);
+		}
+		int i = index - memoryRows.size();
+		if(i >= fileRows) {
+			throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size());
+		}
+		if(segments == null) {
+			throw new IllegalStateException("SpillList is closed");
+		}
+		long start = offsets[i];
+		int length = (int) (offsets[i + 1] - start);
+		if(length == 0) {
+			return null;
+		}
+		ByteBuffer segment = segments[(int) (start / SEGMENT_SIZE)].duplicate();
+		segment.position((int) (start % SEGMENT_SIZE));
+		byte[] data = new byte[length];
+		segment.get(data);
+
+		@SuppressWarnings("unchecked")
+		T t = (T) codec.decode(data);
+		EntitySnapshot.record(t);
+		return t;
+	}
+
+	@Override
+	public int size() {
+		return memoryRows.size() + fileRows;
+	}
+
+	/**
+	 * @return 写入临时文件的记录数
+	 */
+	public int getSpilledSize() {
+		return fileRows;
+	}
+
+	/**
+	 * 释放临时文件的映射，之后不能再访问写入文件的记录；映射的内存在buffer被回收时释放
+	 */
+	@Override
+	public void close() {
+		segments = null;
+		if(out != null) {
+			try {
+				out.close();
+			} catch (IOException e) {
+				LOGGER.error("close spill file fail:{}", file, e);
+			}
+			out = null;
+		}
+		if(file != null && file.delete()) {
+			file = null;
+		}
+	}
+
+}
@@ -0,0 +1,343 @@
+package com.pugwoo.dbhelper.cache;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.pugwoo.dbhelper.annotation.Column;
+import com.pugwoo.dbhelper.annotation.MemoryIndex;
+import com.pugwoo.dbhelper.sql.SQLUtils;
+import com.pugwoo.dbhelper.utils.DOCopyUtils;
+import com.pugwoo.dbhelper.utils.DOInfoReader;
+
+/**
+ * 一个DO类的整表内存镜像(@Table cacheAll)，由TableMirrorManager创建。<br>
+ * 数据保存在不可变的快照中，刷新时复制一份修改后整体替换(copy-on-write)，读取只读volatile引用，不会被阻塞。<br>
+ * 刷新是在查询时按需进行的：到了刷新时间由一个线程刷新，其它线程继续读旧快照；
+ * 表被DBHelper修改过时，查询前必须等待刷新完成，保证能读到自己的修改。<br>
+ * 注解了@MemoryIndex的列在每次生成快照时建立索引，查询条件用到索引列时只检查索引找到的记录。
+ */
+public class TableMirror {
+
+	/**
+	 * 从数据库加载数据，由DBHelper实现，sql不会自动加上软删除条件
+	 */
+	public interface Loader {
+		List<?> load(Class<?> clazz, String whereSql, Object... args);
+	}
+
+	/**增量刷新时往前多查的毫秒数，避免提交晚于更新时间的事务和多台机器的时钟误差导致漏掉数据*/
+	private static final long OVERLAP_MS = 60 * 1000;
+	/**增量刷新的表也定期全量刷新，物理删除等没有更新时间的修改最终也能同步*/
+	private static final long FULL_RELOAD_MS = 3600 * 1000;
+	/**最多缓存的postSql解析结果个数*/
+	private static final int MAX_QUERIES = 1000;
+	/**不能在内存中执行的postSql用这个对象占位*/
+	private static final Object NOT_SUPPORTED = new Object();
+
+	private static class Snapshot {
+		/**主键 -> 对象，对象不会再被修改，返回给调用者的是副本*/
+		private final Map<Object, Object> rows;
+		/**rows中的对象，索引中的下标指向这个数组*/
+		private final Object[] rowArray;
+		private final Map<Field, MirrorIndex> indexes;
+		/**已加载数据的最大更新时间，为null时下次全量刷新*/
+		private final Date watermark;
+		private final long fullLoadTime;
+		private final long nextRefreshTime;
+
+		private Snapshot(Map<Object, Object> rows, Object[] rowArray, Map<Field, MirrorIndex> indexes,
+				Date watermark, long fullLoadTime, long nextRefreshTime) {
+			this.rows = rows;
+			this.rowArray = rowArray;
+			this.indexes = indexes;
+			this.watermark = watermark;
+			this.fullLoadTime = fullLoadTime;
+			this.nextRefreshTime = nextRefreshTime;
+		}
+	}
+
+	private final Class<?> clazz;
+	private final Loader loader;
+	private final long refreshMs;
+	private final Field keyField;
+	private final Field softDeleteField;
+	private final Object notDeletedValue;
+	private final Field updateTimeField;
+	private final List<Field> indexFields;
+
+	private volatile Snapshot snapshot;
+	/**表被修改过，下次查询前需要刷新*/
+	private volatile boolean dirty;
+	private final ReentrantLock refreshLock = new ReentrantLock();
+	private final ConcurrentMap<String, Object> queries = new ConcurrentHashMap<String, Object>();
+
+	TableMirror(Class<?> clazz, Loader loader, long refreshMs) {
+		this.clazz = clazz;
+		this.loader = loader;
+		this.refreshMs = refreshMs;
+		this.keyField = DOInfoReader.getOneKeyColumn(clazz);
+		this.softDeleteField = DOInfoReader.getSoftDeleteColumn(clazz);
+		this.notDeletedValue = softDeleteField == null ? null : MirrorQuery.cast(
+				softDeleteField.getAnnotation(Column.class).softDelete()[0], softDeleteField.getType());
+		this.updateTimeField = getUpdateTimeField(clazz);
+		this.indexFields = new ArrayList<Field>();
+		for(Field field : DOInfoReader.getColumns(clazz)) {
+			if(field.getAnnotation(MemoryIndex.class) != null) {
+				indexFields.add(field);
+			}
+		}
+	}
+
+	/**
+	 * 增量刷新用的更新时间列，插入时也必须设置，否则新插入的记录更新时间为null，增量查询查不到
+	 */
+	private static Field getUpdateTimeField(Class<?> clazz) {
+		for(Field field : DOInfoReader.getColumns(clazz)) {
+			Column column = field.getAnnotation(Column.class);
+			if(column.setTimeWhenUpdate() && column.setTimeWhenInsert()
+					&& Date.class.isAssignableFrom(field.getType())) {
+				return field;
+			}
+		}
+		return null;
+	}
+
+	public Class<?> getClazz() {
+		return clazz;
+	}
+
+	/**
+	 * 表被修改，下次查询前刷新
+	 */
+	public void markDirty() {
+		dirty = true;
+	}
+
+	/**
+	 * 按主键查询
+	 * @return 对象副本，不存在返回null
+	 */
+	public Object get(Object keyValue) {
+		Object key = MirrorQuery.cast(keyValue, keyField.getType());
+		Object row = getSnapshot().rows.get(key == null ? keyValue : key);
+		return row == null ? null : DOCopyUtils.copyColumns(row);
+	}
+
+	/**
+	 * 在内存中执行查询
+	 * @param offset 从0开始，为null时不生效
+	 * @param limit 为null时不生效
+	 * @return 对象副本；postSql不能在内存中执行时返回null
+	 */
+	public List<Object> query(String postSql, Object[] args, Integer offset, Integer limit) {
+		MirrorQuery query = getQuery(postSql);
+		Object[] values = query == null ? null : query.bind(args);
+		if(values == null) {
+			return null;
+		}
+		Snapshot current = getSnapshot();
+		int[] candidates = query.candidates(current.indexes, values);
+		int total = candidates == null ? current.rowArray.length : candidates.length;
+		int skip = offset == null ? 0 : offset;
+		int max = limit == null ? Integer.MAX_VALUE : limit;
+		List<Object> result = new ArrayList<Object>();
+		for(int i = 0; i < total; i++) {
+			if(result.size() >= max) {
+				break;
+			}
+			Object row = current.rowArray[candidates == null ? i : candidates[i]];
+			if(query.matches(row, values)) {
+				if(skip > 0) {
+					skip--;
+				} else {
+					result.add(DOCopyUtils.copyColumns(row));
+				}
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * 在内存中计算总数
+	 * @return postSql不能在内存中执行时返回-1
+	 */
+	public int count(String postSql, Object[] args) {
+		MirrorQuery query = getQuery(postSql);
+		Object[] values = query == null ? null : query.bind(args);
+		if(values == null) {
+			return -1;
+		}
+		Snapshot current = getSnapshot();
+		int[] candidates = query.candidates(current.indexes, values);
+		int total = candidates == null ? current.rowArray.length : candidates.length;
+		int count = 0;
+		for(int i = 0; i < total; i++) {
+			Object row = current.rowArray[candidates == null ? i : candidates[i]];
+			if(query.matches(row, values)) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	private MirrorQuery getQuery(String postSql) {
+		String sql = postSql == null ? "" : postSql;
+		Object query = queries.get(sql);
+		if(query == null) {
+			query = MirrorQuery.parse(clazz, sql);
+			if(query == null) {
+				query = NOT_SUPPORTED;
+			}
+			if(queries.size() < MAX_QUERIES) {
+				queries.put(sql, query);
+			}
+		}
+		return query == NOT_SUPPORTED ? null : (MirrorQuery) query;
+	}
+
+	private Snapshot getSnapshot() {
+		Snapshot current = snapshot;
+		if(current != null && !dirty && System.currentTimeMillis() < current.nextRefreshTime) {
+			return current;
+		}
+		// 只是到了刷新时间，已经有线程在刷新时直接用旧数据
+		if(current != null && !dirty) {
+			if(!refreshLock.tryLock()) {
+				return current;
+			}
+		} else {
+			refreshLock.lock();
+		}
+		try {
+			current = snapshot;
+			if(current != null && !dirty && System.currentTimeMillis() < current.nextRefreshTime) {
+				return current;
+			}
+			dirty = false; // 刷新期间的修改会重新标记
+			try {
+				current = refresh(current);
+			} catch (RuntimeException e) {
+				dirty = true;
+				throw e;
+			}
+			snapshot = current;
+			return current;
+		} finally {
+			refreshLock.unlock();
+		}
+	}
+
+	private Snapshot refresh(Snapshot old) {
+		long now = System.currentTimeMillis();
+		boolean isIncremental = old != null && old.watermark != null
+				&& softDeleteField != null && updateTimeField != null
+				&& now < old.fullLoadTime + FULL_RELOAD_MS;
+		if(!isIncremental) {
+			List<?> list = loader.load(clazz, SQLUtils.autoSetSoftDeleted(null, clazz));
+			Map<Object, Object> rows = new LinkedHashMap<Object, Object>();
+			Date watermark = null;
+			for(Object row : list) {
+				rows.put(DOInfoReader.getValue(keyField, row), row);
+				watermark = max(watermark, row);
+			}
+			return newSnapshot(rows, watermark, now, now + refreshMs);
+		}
+
+		Column updateTimeColumn = updateTimeField.getAnnotation(Column.class);
+		List<?> list = loader.load(clazz, SQLUtils.getUpdatedSinceWhereSQL(updateTimeColumn),
+				new Date(old.watermark.getTime() - OVERLAP_MS));
+		Map<Object, Object> rows = old.rows;
+		Date watermark = old.watermark;
+		for(Object row : list) {
+			watermark = max(watermark, row);
+			Object key = DOInfoReader.getValue(keyField, row);
+			boolean isDeleted = isDeleted(row);
+			if(isDeleted ? !rows.containsKey(key) : isSameRow(rows.get(key), row)) {
+				continue; // 重叠时间内没有变化的记录，不需要复制快照
+			}
+			if(rows == old.rows) {
+				rows = new LinkedHashMap<Object, Object>(old.rows);
+			}
+			if(isDeleted) {
+				rows.remove(key);
+			} else {
+				rows.put(key, row);
+			}
+		}
+		if(rows == old.rows) { // 没有变化，沿用原来的索引
+			return new Snapshot(rows, old.rowArray, old.indexes, watermark, old.fullLoadTime,
+					now + refreshMs);
+		}
+		return newSnapshot(rows, watermark, old.fullLoadTime, now + refreshMs);
+	}
+
+	private Snapshot newSnapshot(Map<Object, Object> rows, Date watermark, long fullLoadTime,
+			long nextRefreshTime) {
+		Object[] rowArray = rows.values().toArray();
+		Map<Field, MirrorIndex> indexes = Collections.emptyMap();
+		if(!indexFields.isEmpty()) {
+			indexes = new HashMap<Field, MirrorIndex>();
+			for(Field field : indexFields) {
+				indexes.put(field, MirrorIndex.build(field,
+						field.getAnnotation(MemoryIndex.class).value(), rowArray));
+			}
+		}
+		return new Snapshot(rows, rowArray, indexes, watermark, fullLoadTime, nextRefreshTime);
+	}
+
+	private boolean isDeleted(Object row) {
+		Object value = DOInfoReader.getValue(softDeleteField, row);
+		if(value == null) {
+			return false;
+		}
+		if(notDeletedValue != null) {
+			return !notDeletedValue.equals(MirrorQuery.cast(value, softDeleteField.getType()));
+		}
+		return !value.toString().equals(softDeleteField.getAnnotation(Column.class).softDelete()[0]);
+	}
+
+	/**更新时间只精确到秒，需要比较所有字段才能确定记录没有变化*/
+	private boolean isSameRow(Object oldRow, Object row) {
+		if(oldRow == null) {
+			return false;
+		}
+		for(Field field : DOInfoReader.getColumns(clazz)) {
+			Object oldValue = DOInfoReader.getValue(field, oldRow);
+			Object value = DOInfoReader.getValue(field, row);
+			if(oldValue == null || value == null) {
+				if(oldValue != value) {
+					return false;
+				}
+			} else if(oldValue instanceof byte[] && value instanceof byte[]) {
+				if(!Arrays.equals((byte[]) oldValue, (byte[]) value)) {
+					return false;
+				}
+			} else if(!oldValue.equals(value)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private Date max(Date watermark, Object row) {
+		if(updateTimeField == null) {
+			return null;
+		}
+		Date updateTime = (Date) DOInfoReader.getValue(updateTimeField, row);
+		if(updateTime == null) {
+			return watermark;
+		}
+		return watermark == null || updateTime.after(watermark) ? updateTime : watermark;
+	}
+
+}
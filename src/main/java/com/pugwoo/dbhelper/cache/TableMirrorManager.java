@@ -0,0 +1,96 @@
+package com.pugwoo.dbhelper.cache;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.pugwoo.dbhelper.annotation.Table;
+import com.pugwoo.dbhelper.utils.DOInfoReader;
+
+/**
+ * 管理所有开启了整表缓存(@Table cacheAll)的DO类的内存镜像。<br>
+ * 同一张表可以对应多个DO类，数据修改时按表名标记该表的所有镜像需要刷新。
+ */
+public class TableMirrorManager {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(TableMirrorManager.class);
+
+	/**不缓存的类用这个对象占位，避免重复判断*/
+	private static final Object NOT_CACHED = new Object();
+
+	private final TableMirror.Loader loader;
+	private final ConcurrentMap<Class<?>, Object> mirrors = new ConcurrentHashMap<Class<?>, Object>();
+	private final ConcurrentMap<String, List<TableMirror>> tableMirrors =
+			new ConcurrentHashMap<String, List<TableMirror>>();
+
+	public TableMirrorManager(TableMirror.Loader loader) {
+		this.loader = loader;
+	}
+
+	/**
+	 * 获得类的内存镜像
+	 * @return 该类没有开启cacheAll、是join类或不是只有一个主键时返回null
+	 */
+	public TableMirror getMirror(Class<?> clazz) {
+		Object mirror = mirrors.get(clazz);
+		if(mirror == null) {
+			mirror = createMirror(clazz);
+		}
+		return mirror == NOT_CACHED ? null : (TableMirror) mirror;
+	}
+
+	private synchronized Object createMirror(Class<?> clazz) {
+		Object mirror = mirrors.get(clazz);
+		if(mirror != null) {
+			return mirror;
+		}
+
+		mirror = NOT_CACHED;
+		if(DOInfoReader.getJoinTable(clazz) == null) {
+			Table table = DOInfoReader.getTable(clazz);
+			if(table.cacheAll()) {
+				if(DOInfoReader.getKeyColumns(clazz).size() == 1) {
+					TableMirror tableMirror = new TableMirror(clazz, loader,
+							table.cacheAllRefreshSeconds() * 1000L);
+					List<TableMirror> list = tableMirrors.get(table.value());
+					if(list == null) {
+						list = new CopyOnWriteArrayList<TableMirror>();
+						tableMirrors.put(table.value(), list);
+					}
+					list.add(tableMirror);
+					mirror = tableMirror;
+				} else {
+					LOGGER.warn("class {} does not have only one key column, cacheAll is ignored",
+							clazz.getName());
+				}
+			}
+		}
+		mirrors.put(clazz, mirror);
+		return mirror;
+	}
+
+	/**
+	 * 该表是否有内存镜像
+	 */
+	public boolean hasMirror(String tableName) {
+		return tableMirrors.containsKey(tableName);
+	}
+
+	/**
+	 * 表被修改，该表的所有镜像在下次查询前刷新
+	 */
+	public void markDirty(String tableName) {
+		List<TableMirror> list = tableMirrors.get(tableName);
+		if(list == null) {
+			return;
+		}
+		for(TableMirror mirror : list) {
+			mirror.markDirty();
+		}
+	}
+
+}
@@ -0,0 +1,246 @@
+package com.pugwoo.dbhelper.cache;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * W-TinyLFU淘汰策略的有界缓存：<br>
+ * 1. 新数据先进入window LRU(约1%容量)，被挤出window后作为候选者进入主缓存；<br>
+ * 2. 主缓存是分段LRU：probation段和protected段(占主缓存80%)，probation中再次被访问的数据升入protected段；<br>
+ * 3. 主缓存已满时，候选者和probation段最久未访问的数据比较访问频率(FrequencySketch)，频率高的留下。<br>
+ * 这样偶发的一次性访问不会把热点数据挤出缓存。每个数据可以设置过期时间，读取时发现过期即删除。<br>
+ * 所有方法都是同步的。
+ */
+public class WTinyLfuCache<K, V> {
+
+	private static final int WINDOW = 0;
+	private static final int PROBATION = 1;
+	private static final int PROTECTED = 2;
+
+	private static class Node<K, V> {
+		private final K key;
+		private V value;
+		/**过期时间戳，0表示不过期*/
+		private long expireTime;
+		private int segment;
+
+		private Node(K key) {
+			this.key = key;
+		}
+	}
+
+	/**
+	 * 数据被移除时的回调，用于释放value占用的资源
+	 */
+	public interface RemovalListener<K, V> {
+		void onRemoval(K key, V value);
+	}
+
+	private final int maxSize;
+	private final int windowMaxSize;
+	private final int protectedMaxSize;
+
+	private final Map<K, Node<K, V>> data = new HashMap<K, Node<K, V>>();
+	/**三个段都按访问顺序排列，最久未访问的在最前面*/
+	private final LinkedHashMap<K, Node<K, V>> window = new LinkedHashMap<K, Node<K, V>>();
+	private final LinkedHashMap<K, Node<K, V>> probation = new LinkedHashMap<K, Node<K, V>>();
+	private final LinkedHashMap<K, Node<K, V>> protectedSegment = new LinkedHashMap<K, Node<K, V>>();
+	private final FrequencySketch sketch;
+	private RemovalListener<K, V> removalListener;
+
+	private long hitCount;
+	private long missCount;
+	private long evictionCount;
+
+	/**
+	 * @param maxSize 最大数据条数
+	 */
+	public WTinyLfuCache(int maxSize) {
+		this.maxSize = Math.max(maxSize, 1);
+		this.windowMaxSize = Math.max(1, this.maxSize / 100);
+		int mainMaxSize = this.maxSize - windowMaxSize;
+		this.protectedMaxSize = (int) (mainMaxSize * 0.8);
+		this.sketch = new FrequencySketch(this.maxSize);
+	}
+
+	public synchronized void setRemovalListener(RemovalListener<K, V> removalListener) {
+		this.removalListener = removalListener;
+	}
+
+	/**
+	 * 获取数据，并记录一次访问
+	 * @return 不存在或已过期返回null
+	 */
+	public synchronized V get(K key) {
+		sketch.increment(key);
+		Node<K, V> node = data.get(key);
+		if(node == null) {
+			missCount++;
+			return null;
+		}
+		if(node.expireTime != 0 && node.expireTime <= System.currentTimeMillis()) {
+			remove(node);
+			missCount++;
+			return null;
+		}
+		hitCount++;
+		onAccess(node);
+		return node.value;
+	}
+
+	/**
+	 * 放入数据
+	 * @param ttlMs 过期毫秒数，小于等于0表示不过期
+	 */
+	public synchronized void put(K key, V value, long ttlMs) {
+		long expireTime = ttlMs > 0 ? System.currentTimeMillis() + ttlMs : 0;
+		Node<K, V> node = data.get(key);
+		if(node != null) {
+			V old = node.value;
+			node.value = value;
+			node.expireTime = expireTime;
+			onAccess(node);
+			if(old != value) {
+				notifyRemoval(key, old);
+			}
+			return;
+		}
+
+		sketch.increment(key);
+		node = new Node<K, V>(key);
+		node.value = value;
+		node.expireTime = expireTime;
+		node.segment = WINDOW;
+		data.put(key, node);
+		window.put(key, node);
+
+		if(window.size() > windowMaxSize) {
+			Node<K, V> candidate = removeFirst(window);
+			admit(candidate);
+		}
+	}
+
+	/**
+	 * 删除数据
+	 */
+	public synchronized void invalidate(K key) {
+		Node<K, V> node = data.get(key);
+		if(node != null) {
+			remove(node);
+		}
+	}
+
+	/**
+	 * 删除全部数据
+	 */
+	public synchronized void invalidateAll() {
+		if(removalListener != null) {
+			for(Node<K, V> node : data.values()) {
+				removalListener.onRemoval(node.key, node.value);
+			}
+		}
+		data.clear();
+		window.clear();
+		probation.clear();
+		protectedSegment.clear();
+	}
+
+	public synchronized int size() {
+		return data.size();
+	}
+
+	public int getMaxSize() {
+		return maxSize;
+	}
+
+	public synchronized long getHitCount() {
+		return hitCount;
+	}
+
+	public synchronized long getMissCount() {
+		return missCount;
+	}
+
+	public synchronized long getEvictionCount() {
+		return evictionCount;
+	}
+
+	/**
+	 * window挤出的候选者进入主缓存，主缓存满时和probation段的淘汰者比较访问频率
+	 */
+	private void admit(Node<K, V> candidate) {
+		if(data.size() <= maxSize) {
+			candidate.segment = PROBATION;
+			probation.put(candidate.key, candidate);
+			return;
+		}
+
+		LinkedHashMap<K, Node<K, V>> victimSegment = probation.isEmpty() ? protectedSegment : probation;
+		Node<K, V> victim = victimSegment.isEmpty() ? null : victimSegment.values().iterator().next();
+		if(victim == null || sketch.frequency(candidate.key) > sketch.frequency(victim.key)) {
+			if(victim != null) {
+				evict(victim);
+			}
+			candidate.segment = PROBATION;
+			probation.put(candidate.key, candidate);
+		} else {
+			evict(candidate);
+		}
+	}
+
+	private void onAccess(Node<K, V> node) {
+		if(node.segment == WINDOW) {
+			moveToLast(window, node);
+		} else if(node.segment == PROBATION) {
+			probation.remove(node.key);
+			node.segment = PROTECTED;
+			protectedSegment.put(node.key, node);
+			while(protectedSegment.size() > protectedMaxSize && !protectedSegment.isEmpty()) {
+				Node<K, V> demoted = removeFirst(protectedSegment);
+				demoted.segment = PROBATION;
+				probation.put(demoted.key, demoted);
+			}
+		} else {
+			moveToLast(protectedSegment, node);
+		}
+	}
+
+	private void evict(Node<K, V> node) {
+		remove(node);
+		evictionCount++;
+	}
+
+	private void remove(Node<K, V> node) {
+		data.remove(node.key);
+		segmentOf(node).remove(node.key);
+		notifyRemoval(node.key, node.value);
+	}
+
+	private void notifyRemoval(K key, V value) {
+		if(removalListener != null) {
+			removalListener.onRemoval(key, value);
+		}
+	}
+
+	private LinkedHashMap<K, Node<K, V>> segmentOf(Node<K, V> node) {
+		if(node.segment == WINDOW) {
+			return window;
+		}
+		return node.segment == PROBATION ? probation : protectedSegment;
+	}
+
+	private static <K, V> void moveToLast(LinkedHashMap<K, Node<K, V>> segment, Node<K, V> node) {
+		segment.remove(node.key);
+		segment.put(node.key, node);
+	}
+
+	private static <K, V> Node<K, V> removeFirst(LinkedHashMap<K, Node<K, V>> segment) {
+		Iterator<Node<K, V>> it = segment.values().iterator();
+		Node<K, V> node = it.next();
+		it.remove();
+		return node;
+	}
+
+}
@@ -0,0 +1,46 @@
+package com.pugwoo.dbhelper.enums;
+
+/**
+ * getPage/getCount计算总数的方式
+ */
+public enum CountModeEnum {
+
+	EXACT("exact", "exact count(*)"),
+	CACHED("cached", "count(*) cached until the table is changed through DBHelper or the cache expires"),
+	ESTIMATED("estimated", "row estimate from EXPLAIN or table statistics, approximate");
+	
+	private String code;
+	
+	private String name;
+	
+	private CountModeEnum(String code, String name) {
+		this.code = code;
+		this.name = name;
+	}
+	
+	public static CountModeEnum getByCode(String code) {
+		for(CountModeEnum e : CountModeEnum.values()) {
+			if(code == e.getCode() || code != null && code.equals(e.getCode())) {
+				return e;
+			}
+		}
+		return null;
+	}
+
+	public String getCode() {
+		return code;
+	}
+	
+	public void setCode(String code) {
+		this.code = code;
+	}
+	
+	public String getName() {
+		return name;
+	}
+	
+	public void setName(String name) {
+		this.name = name;
+	}
+	
+}
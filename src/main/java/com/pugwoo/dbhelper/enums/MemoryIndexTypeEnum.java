@@ -0,0 +1,45 @@
+package com.pugwoo.dbhelper.enums;
+
+/**
+ * 整表缓存(@Table cacheAll)的内存索引类型
+ */
+public enum MemoryIndexTypeEnum {
+
+	HASH("hash", "hash index, for = and in queries"),
+	SORTED("sorted", "sorted index, for =, in and range queries");
+	
+	private String code;
+	
+	private String name;
+	
+	private MemoryIndexTypeEnum(String code, String name) {
+		this.code = code;
+		this.name = name;
+	}
+	
+	public static MemoryIndexTypeEnum getByCode(String code) {
+		for(MemoryIndexTypeEnum e : MemoryIndexTypeEnum.values()) {
+			if(code == e.getCode() || code != null && code.equals(e.getCode())) {
+				return e;
+			}
+		}
+		return null;
+	}
+
+	public String getCode() {
+		return code;
+	}
+	
+	public void setCode(String code) {
+		this.code = code;
+	}
+	
+	public String getName() {
+		return name;
+	}
+	
+	public void setName(String name) {
+		this.name = name;
+	}
+	
+}
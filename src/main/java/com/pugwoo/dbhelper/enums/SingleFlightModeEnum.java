@@ -0,0 +1,46 @@
+package com.pugwoo.dbhelper.enums;
+
+/**
+ * 相同查询并发执行时的合并方式
+ */
+public enum SingleFlightModeEnum {
+
+	DISABLED("disabled", "not coalesce identical queries"),
+	COPY("copy", "share the result of the in-flight query, each caller gets its own copy"),
+	SHARE("share", "share the result of the in-flight query, callers must treat it as read-only");
+	
+	private String code;
+	
+	private String name;
+	
+	private SingleFlightModeEnum(String code, String name) {
+		this.code = code;
+		this.name = name;
+	}
+	
+	public static SingleFlightModeEnum getByCode(String code) {
+		for(SingleFlightModeEnum e : SingleFlightModeEnum.values()) {
+			if(code == e.getCode() || code != null && code.equals(e.getCode())) {
+				return e;
+			}
+		}
+		return null;
+	}
+
+	public String getCode() {
+		return code;
+	}
+	
+	public void setCode(String code) {
+		this.code = code;
+	}
+	
+	public String getName() {
+		return name;
+	}
+	
+	public void setName(String name) {
+		this.name = name;
+	}
+	
+}
@@ -0,0 +1,60 @@
+package com.pugwoo.dbhelper.enums;
+
+/**
+ * insert ... on duplicate key update 每一行的执行结果，由数据库返回的修改行数解析得到
+ * @author pugwoo
+ */
+public enum UpsertResultEnum {
+
+	INSERTED(1, "inserted"),
+	UPDATED(2, "updated"),
+	UNCHANGED(0, "duplicate key but nothing changed"),
+	INSERTED_OR_UNCHANGED(3, "inserted, or duplicate key but nothing changed when jdbc returns found rows"),
+	UNKNOWN(-1, "unknown, e.g. batch is rewritten by jdbc driver");
+	
+	private int code;
+	
+	private String name;
+	
+	private UpsertResultEnum(int code, String name) {
+		this.code = code;
+		this.name = name;
+	}
+	
+	/**
+	 * 通过mysql返回的修改行数解析结果：1表示插入，2表示更新，0表示存在但值没有变化。<br>
+	 * 连接没有设置useAffectedRows=true时(MySQL驱动的默认值)，值没有变化的记录也返回1，和插入无法区分
+	 * @param affectedRows
+	 * @param useAffectedRows jdbc连接是否返回实际修改的行数
+	 * @return 不会返回null，无法识别的返回UNKNOWN
+	 */
+	public static UpsertResultEnum getByAffectedRows(int affectedRows, boolean useAffectedRows) {
+		if(affectedRows == 1) {
+			return useAffectedRows ? INSERTED : INSERTED_OR_UNCHANGED;
+		}
+		if(affectedRows == 2) {
+			return UPDATED;
+		}
+		if(affectedRows == 0 && useAffectedRows) {
+			return UNCHANGED;
+		}
+		return UNKNOWN;
+	}
+	
+	public int getCode() {
+		return code;
+	}
+	
+	public void setCode(int code) {
+		this.code = code;
+	}
+	
+	public String getName() {
+		return name;
+	}
+	
+	public void setName(String name) {
+		this.name = name;
+	}
+	
+}
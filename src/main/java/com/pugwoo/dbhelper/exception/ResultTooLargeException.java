@@ -0,0 +1,18 @@
+package com.pugwoo.dbhelper.exception;
+
+/**
+ * 查询结果的行数或字节数超过了上限
+ */
+public class ResultTooLargeException extends RuntimeException {
+
+	private static final long serialVersionUID = 1L;
+	
+	public ResultTooLargeException() {
+		
+	}
+	
+	public ResultTooLargeException(String errmsg) {
+		super(errmsg);
+	}
+
+}
@@ -0,0 +1,631 @@
+package com.pugwoo.dbhelper.impl;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.TransactionCallbackWithoutResult;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import com.pugwoo.dbhelper.DBHelper;
+import com.pugwoo.dbhelper.exception.NullKeyValueException;
+import com.pugwoo.dbhelper.utils.DOCopyUtils;
+import com.pugwoo.dbhelper.utils.DOInfoReader;
+
+/**
+ * 延迟合并写：insert/update先写入内存队列，同一主键的多次写合并为一次，
+ * 再按时间间隔或积压数量批量写入数据库。适合于最后访问时间、状态等高频更新但只关心最终值的场景。<br>
+ * <br>
+ * 1. 队列按主键hash分成多个stripe，每个stripe一把锁，减少并发写入的竞争。<br>
+ * 2. 同一主键的update默认合并非null字段(mergeNotNull=true)，否则只保留最后一次写入；
+ *    insert之后的update会合并到insert中。没有主键的insert不合并。<br>
+ * 3. 积压数达到flushThreshold时异步flush；达到maxPending时调用线程同步flush，以此反压。<br>
+ * 4. 每批在独立的事务中写入，失败时整批回滚再逐条重试，仍然失败的数据重新放回队列，最多重试maxRetries次。
+ *    事务管理器默认由SpringJdbcDBHelper的数据源创建，其它DBHelper实现需要setTransactionManager。<br>
+ * 5. 调用shutdown()或JVM退出时会反复flush直到队列为空，超过重试次数的数据记录日志后丢弃；
+ *    shutdown()之后的写入不再进入队列，直接同步写入数据库。<br>
+ * <br>
+ * 【注】写入是异步的，不参与调用者的事务，进程异常退出时未flush的数据会丢失；
+ * 提交给队列的对象会被复制，之后修改原对象不影响队列中的数据。
+ */
+public class WriteBehindDBHelper {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(WriteBehindDBHelper.class);
+
+	private DBHelper dbHelper;
+	private PlatformTransactionManager transactionManager;
+	/**每批写入的事务，为null时不能开启事务，依赖dbHelper自身的事务*/
+	private TransactionTemplate transactionTemplate;
+
+	/**stripe的个数*/
+	private int stripeCount = 16;
+	/**定时flush的间隔，毫秒*/
+	private long flushIntervalMs = 1000;
+	/**积压数达到该值时触发异步flush*/
+	private int flushThreshold = 1000;
+	/**积压数达到该值时，写入线程同步flush*/
+	private int maxPending = 100000;
+	/**同一主键的update是否合并非null字段，false时只保留最后一次写入*/
+	private boolean mergeNotNull = true;
+	/**写入失败的最大重试次数*/
+	private int maxRetries = 3;
+	/**是否注册JVM退出时flush的hook*/
+	private boolean registerShutdownHook = true;
+
+	private volatile Stripe[] stripes;
+	private volatile boolean isShutdown;
+	private ScheduledExecutorService scheduler;
+	private Thread shutdownHook;
+	private final ReentrantLock flushLock = new ReentrantLock();
+	private final AtomicBoolean isFlushScheduled = new AtomicBoolean(false);
+	private final AtomicInteger keylessStripeIndex = new AtomicInteger();
+
+	private final AtomicInteger pendingCount = new AtomicInteger();
+	private final AtomicLong submittedCount = new AtomicLong();
+	private final AtomicLong coalescedCount = new AtomicLong();
+	private final AtomicLong flushedCount = new AtomicLong();
+	private final AtomicLong failedCount = new AtomicLong();
+	private final AtomicLong droppedCount = new AtomicLong();
+	private volatile long lastFlushTime;
+	private volatile long lastFlushCostMs;
+
+	public WriteBehindDBHelper() {
+	}
+
+	public WriteBehindDBHelper(DBHelper dbHelper) {
+		this.dbHelper = dbHelper;
+	}
+
+	/**
+	 * 启动定时flush，第一次写入时也会自动调用
+	 */
+	public synchronized void start() {
+		if(stripes != null) {
+			return;
+		}
+		Stripe[] stripes = new Stripe[stripeCount];
+		for(int i = 0; i < stripeCount; i++) {
+			stripes[i] = new Stripe();
+		}
+
+		scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "nimble-orm-write-behind");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		scheduler.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				flushQuietly();
+			}
+		}, flushIntervalMs, flushIntervalMs, TimeUnit.MILLISECONDS);
+
+		if(registerShutdownHook) {
+			shutdownHook = new Thread("nimble-orm-write-behind-shutdown") {
+				@Override
+				public void run() {
+					flushAll();
+				}
+			};
+			Runtime.getRuntime().addShutdownHook(shutdownHook);
+		}
+
+		lastFlushTime = System.currentTimeMillis();
+		this.stripes = stripes;
+	}
+
+	/**
+	 * 停止定时flush，并把队列中的数据全部写入数据库；之后的写入直接同步写入数据库
+	 */
+	public synchronized void shutdown() {
+		isShutdown = true;
+		if(stripes == null) {
+			return;
+		}
+		scheduler.shutdown();
+		if(shutdownHook != null) {
+			try {
+				Runtime.getRuntime().removeShutdownHook(shutdownHook);
+			} catch (IllegalStateException e) { // JVM正在退出，hook会自己执行
+			}
+			shutdownHook = null;
+		}
+		flushAll();
+	}
+
+	/**
+	 * 延迟插入一条记录，只插入非null的值。带主键的记录会和之后同主键的update合并。
+	 * @param t
+	 */
+	public <T> void insert(T t) {
+		submit(t, true, false);
+	}
+
+	/**
+	 * 延迟更新一条记录，必须带上key。【只更新非null字段】
+	 * @param t
+	 * @throws NullKeyValueException
+	 */
+	public <T> void update(T t) throws NullKeyValueException {
+		submit(t, false, false);
+	}
+
+	/**
+	 * 延迟更新一条记录，必须带上key，包含更新null值的字段。合并时会完全覆盖之前未写入的update。
+	 * @param t
+	 * @throws NullKeyValueException
+	 */
+	public <T> void updateWithNull(T t) throws NullKeyValueException {
+		submit(t, false, true);
+	}
+
+	/**
+	 * 同步把当前队列中的数据写入数据库
+	 */
+	public void flush() {
+		if(stripes == null) {
+			return;
+		}
+		flushLock.lock();
+		try {
+			isFlushScheduled.set(false);
+			long start = System.currentTimeMillis();
+
+			List<PendingWrite> writes = new ArrayList<PendingWrite>();
+			for(Stripe stripe : stripes) {
+				stripe.drainTo(writes);
+			}
+			pendingCount.addAndGet(-writes.size());
+			if(!writes.isEmpty()) {
+				write(writes);
+			}
+
+			lastFlushTime = System.currentTimeMillis();
+			lastFlushCostMs = lastFlushTime - start;
+		} finally {
+			flushLock.unlock();
+		}
+	}
+
+	/**
+	 * 反复flush直到队列为空：写入失败的数据每次flush重试一次，超过maxRetries次时被丢弃，
+	 * 最后仍在队列中的(如并发写入的)记录日志后丢弃
+	 */
+	private void flushAll() {
+		for(int i = 0; i <= maxRetries && pendingCount.get() > 0; i++) {
+			flushQuietly();
+		}
+		flushLock.lock();
+		try {
+			List<PendingWrite> writes = new ArrayList<PendingWrite>();
+			for(Stripe stripe : stripes) {
+				stripe.drainTo(writes);
+			}
+			pendingCount.addAndGet(-writes.size());
+			for(PendingWrite write : writes) {
+				droppedCount.incrementAndGet();
+				LOGGER.error("write behind drop {} at shutdown", write.entity);
+			}
+		} finally {
+			flushLock.unlock();
+		}
+	}
+
+	private void flushQuietly() {
+		try {
+			flush();
+		} catch (Throwable e) {
+			LOGGER.error("write behind flush fail", e);
+		}
+	}
+
+	private <T> void submit(T t, boolean isInsert, boolean withNull) {
+		if(t == null) {
+			return;
+		}
+		List<Object> key = getKey(t);
+		if(key == null && !isInsert) {
+			throw new NullKeyValueException();
+		}
+		if(isShutdown) {
+			writeEntities(isInsert, withNull, Collections.<Object>singletonList(t));
+			return;
+		}
+		if(stripes == null) {
+			start();
+		}
+
+		PendingWrite write = new PendingWrite(DOCopyUtils.copyColumns(t), isInsert, withNull);
+		submittedCount.incrementAndGet();
+
+		Stripe stripe;
+		if(key == null) {
+			stripe = stripes[(keylessStripeIndex.getAndIncrement() & 0x7fffffff) % stripes.length];
+		} else {
+			stripe = stripes[(key.hashCode() & 0x7fffffff) % stripes.length];
+		}
+		if(stripe.add(key, write)) {
+			pendingCount.incrementAndGet();
+		} else {
+			coalescedCount.incrementAndGet();
+		}
+
+		int pending = pendingCount.get();
+		if(isShutdown) {
+			flush(); // 加入队列时并发地shutdown了，shutdown的flush可能已经结束，由调用线程写入
+		} else if(pending >= maxPending) {
+			flush(); // 反压：调用线程同步写入
+		} else if(pending >= flushThreshold && isFlushScheduled.compareAndSet(false, true)) {
+			try {
+				scheduler.execute(new Runnable() {
+					@Override
+					public void run() {
+						flushQuietly();
+					}
+				});
+			} catch (RejectedExecutionException e) { // 并发地shutdown了
+				flush();
+			}
+		}
+	}
+
+	/**
+	 * 按类和写入方式分组批量写入，批量失败时逐条写入，只把失败的放回队列
+	 */
+	private void write(List<PendingWrite> writes) {
+		Map<String, List<PendingWrite>> groups = new LinkedHashMap<String, List<PendingWrite>>();
+		for(PendingWrite write : writes) {
+			String groupKey = write.entity.getClass().getName() + ":" + write.isInsert + ":" + write.withNull;
+			List<PendingWrite> group = groups.get(groupKey);
+			if(group == null) {
+				group = new ArrayList<PendingWrite>();
+				groups.put(groupKey, group);
+			}
+			group.add(write);
+		}
+
+		for(List<PendingWrite> group : groups.values()) {
+			List<Object> entities = new ArrayList<Object>();
+			for(PendingWrite write : group) {
+				entities.add(write.entity);
+			}
+			PendingWrite first = group.get(0);
+			try {
+				writeEntities(first.isInsert, first.withNull, entities);
+				flushedCount.addAndGet(group.size());
+				continue;
+			} catch (RuntimeException e) {
+				if(group.size() == 1) {
+					LOGGER.error("write behind {} fail", first.entity, e);
+					failedCount.incrementAndGet();
+					requeue(group);
+					continue;
+				}
+				LOGGER.warn("write behind {} rows of {} fail, write one by one", group.size(),
+						first.entity.getClass().getName(), e);
+			}
+
+			List<PendingWrite> failed = new ArrayList<PendingWrite>();
+			for(PendingWrite write : group) {
+				try {
+					writeEntities(write.isInsert, write.withNull, Collections.singletonList(write.entity));
+					flushedCount.incrementAndGet();
+				} catch (RuntimeException e) {
+					LOGGER.error("write behind {} fail", write.entity, e);
+					failed.add(write);
+				}
+			}
+			failedCount.addAndGet(failed.size());
+			requeue(failed);
+		}
+	}
+
+	/**
+	 * 在独立的事务中写入，失败时已写入的也回滚，逐条重试时不会重复写入
+	 */
+	private void writeEntities(final boolean isInsert, final boolean withNull, final List<Object> entities) {
+		TransactionTemplate template = getTransactionTemplate();
+		if(template == null) {
+			doWriteEntities(isInsert, withNull, entities);
+			return;
+		}
+		template.execute(new TransactionCallbackWithoutResult() {
+			@Override
+			protected void doInTransactionWithoutResult(TransactionStatus status) {
+				doWriteEntities(isInsert, withNull, entities);
+			}
+		});
+	}
+
+	private void doWriteEntities(boolean isInsert, boolean withNull, List<Object> entities) {
+		if(isInsert) {
+			dbHelper.insert(entities);
+		} else if(withNull) {
+			dbHelper.updateWithNull(entities);
+		} else {
+			dbHelper.update(entities);
+		}
+	}
+
+	private synchronized TransactionTemplate getTransactionTemplate() {
+		if(transactionTemplate == null) {
+			PlatformTransactionManager manager = transactionManager;
+			if(manager == null && dbHelper instanceof SpringJdbcDBHelper
+					&& ((SpringJdbcDBHelper) dbHelper).getJdbcTemplate() != null) {
+				manager = new DataSourceTransactionManager(
+						((SpringJdbcDBHelper) dbHelper).getJdbcTemplate().getDataSource());
+			}
+			if(manager != null) {
+				transactionTemplate = new TransactionTemplate(manager);
+				transactionTemplate.setPropagationBehavior(TransactionDefinition.PROPAGATION_REQUIRES_NEW);
+			}
+		}
+		return transactionTemplate;
+	}
+
+	private void requeue(List<PendingWrite> writes) {
+		for(PendingWrite write : writes) {
+			if(++write.retries > maxRetries) {
+				droppedCount.incrementAndGet();
+				LOGGER.error("write behind drop {} after {} retries", write.entity, maxRetries);
+				continue;
+			}
+			List<Object> key = getKey(write.entity);
+			Stripe stripe = key == null ? stripes[0] : stripes[(key.hashCode() & 0x7fffffff) % stripes.length];
+			if(stripe.addOlder(key, write)) {
+				pendingCount.incrementAndGet();
+			}
+		}
+	}
+
+	/**
+	 * 合并两次写入，newer覆盖older
+	 */
+	private PendingWrite coalesce(PendingWrite older, PendingWrite newer) {
+		if(newer.isInsert) {
+			return newer;
+		}
+		if(newer.withNull || !mergeNotNull) {
+			if(older.isInsert) {
+				DOCopyUtils.copyColumns(newer.entity, older.entity, true);
+				return older;
+			}
+			return newer;
+		}
+		DOCopyUtils.copyColumns(newer.entity, older.entity, false);
+		return older;
+	}
+
+	/**
+	 * 获得合并用的key，包含类和主键值
+	 * @return 没有主键或主键值有null时返回null
+	 */
+	private List<Object> getKey(Object t) {
+		List<Field> keyFields = DOInfoReader.getKeyColumns(t.getClass());
+		List<Object> key = new ArrayList<Object>(keyFields.size() + 1);
+		key.add(t.getClass());
+		for(Field keyField : keyFields) {
+			Object value = DOInfoReader.getValue(keyField, t);
+			if(value == null) {
+				return null;
+			}
+			key.add(value);
+		}
+		return key;
+	}
+
+	private static class PendingWrite {
+		private Object entity;
+		private boolean isInsert;
+		private boolean withNull;
+		private int retries;
+
+		private PendingWrite(Object entity, boolean isInsert, boolean withNull) {
+			this.entity = entity;
+			this.isInsert = isInsert;
+			this.withNull = withNull;
+		}
+	}
+
+	private class Stripe {
+		private final ReentrantLock lock = new ReentrantLock();
+		private Map<List<Object>, PendingWrite> keyed = new LinkedHashMap<List<Object>, PendingWrite>();
+		private List<PendingWrite> keyless = new ArrayList<PendingWrite>();
+		/**队列中最早一条写入的时间，0表示队列为空*/
+		private long oldestTime;
+
+		/**
+		 * @return 新增返回true，合并返回false
+		 */
+		private boolean add(List<Object> key, PendingWrite write) {
+			lock.lock();
+			try {
+				if(oldestTime == 0) {
+					oldestTime = System.currentTimeMillis();
+				}
+				if(key == null) {
+					keyless.add(write);
+					return true;
+				}
+				PendingWrite older = keyed.get(key);
+				keyed.put(key, older == null ? write : coalesce(older, write));
+				return older == null;
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		/**
+		 * 放回写入失败的数据，队列中已有同key的更新写入时，以队列中的为准合并
+		 * @return 新增返回true，合并返回false
+		 */
+		private boolean addOlder(List<Object> key, PendingWrite write) {
+			lock.lock();
+			try {
+				if(oldestTime == 0) {
+					oldestTime = System.currentTimeMillis();
+				}
+				if(key == null) {
+					keyless.add(write);
+					return true;
+				}
+				PendingWrite newer = keyed.get(key);
+				keyed.put(key, newer == null ? write : coalesce(write, newer));
+				return newer == null;
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		private void drainTo(List<PendingWrite> writes) {
+			lock.lock();
+			try {
+				writes.addAll(keyed.values());
+				writes.addAll(keyless);
+				keyed = new LinkedHashMap<List<Object>, PendingWrite>();
+				keyless = new ArrayList<PendingWrite>();
+				oldestTime = 0;
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		private long getOldestTime() {
+			lock.lock();
+			try {
+				return oldestTime;
+			} finally {
+				lock.unlock();
+			}
+		}
+	}
+
+	// ======================= 监控指标 ========================
+
+	/**
+	 * 队列中等待写入的记录数(合并后)
+	 */
+	public int getPendingCount() {
+		return pendingCount.get();
+	}
+
+	/**
+	 * 队列中最早一条未写入数据已等待的毫秒数，即写入延迟；队列为空时返回0
+	 */
+	public long getLagMs() {
+		Stripe[] stripes = this.stripes;
+		if(stripes == null) {
+			return 0;
+		}
+		long oldest = 0;
+		for(Stripe stripe : stripes) {
+			long time = stripe.getOldestTime();
+			if(time != 0 && (oldest == 0 || time < oldest)) {
+				oldest = time;
+			}
+		}
+		return oldest == 0 ? 0 : System.currentTimeMillis() - oldest;
+	}
+
+	/**提交的写入次数*/
+	public long getSubmittedCount() {
+		return submittedCount.get();
+	}
+
+	/**被合并掉的写入次数*/
+	public long getCoalescedCount() {
+		return coalescedCount.get();
+	}
+
+	/**成功写入数据库的记录数*/
+	public long getFlushedCount() {
+		return flushedCount.get();
+	}
+
+	/**写入数据库失败的记录数(含重试)*/
+	public long getFailedCount() {
+		return failedCount.get();
+	}
+
+	/**超过重试次数被丢弃的记录数*/
+	public long getDroppedCount() {
+		return droppedCount.get();
+	}
+
+	public long getLastFlushTime() {
+		return lastFlushTime;
+	}
+
+	public long getLastFlushCostMs() {
+		return lastFlushCostMs;
+	}
+
+	// ======================= 配置 ========================
+
+	public void setDbHelper(DBHelper dbHelper) {
+		this.dbHelper = dbHelper;
+	}
+
+	/**
+	 * 设置每批写入使用的事务管理器，不设置时由SpringJdbcDBHelper的数据源创建
+	 */
+	public synchronized void setTransactionManager(PlatformTransactionManager transactionManager) {
+		this.transactionManager = transactionManager;
+		this.transactionTemplate = null;
+	}
+
+	public void setStripeCount(int stripeCount) {
+		if(stripeCount > 0) {
+			this.stripeCount = stripeCount;
+		}
+	}
+
+	public void setFlushIntervalMs(long flushIntervalMs) {
+		if(flushIntervalMs > 0) {
+			this.flushIntervalMs = flushIntervalMs;
+		}
+	}
+
+	public void setFlushThreshold(int flushThreshold) {
+		this.flushThreshold = flushThreshold;
+	}
+
+	public void setMaxPending(int maxPending) {
+		this.maxPending = maxPending;
+	}
+
+	public void setMergeNotNull(boolean mergeNotNull) {
+		this.mergeNotNull = mergeNotNull;
+	}
+
+	public void setMaxRetries(int maxRetries) {
+		this.maxRetries = maxRetries;
+	}
+
+	public void setRegisterShutdownHook(boolean registerShutdownHook) {
+		this.registerShutdownHook = registerShutdownHook;
+	}
+
+}
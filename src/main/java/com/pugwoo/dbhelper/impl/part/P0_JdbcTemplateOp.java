@@ -1,7 +1,13 @@
 package com.pugwoo.dbhelper.impl.part;
 
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -12,9 +18,24 @@ import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
 import org.springframework.jdbc.support.rowset.SqlRowSet;
 import org.springframework.transaction.interceptor.TransactionAspectSupport;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 
 import com.pugwoo.dbhelper.DBHelper;
+import com.pugwoo.dbhelper.cache.CacheStats;
+import com.pugwoo.dbhelper.cache.EntityCache;
+import com.pugwoo.dbhelper.cache.EntityCacheManager;
+import com.pugwoo.dbhelper.cache.NegativeCache;
+import com.pugwoo.dbhelper.cache.NegativeCacheManager;
+import com.pugwoo.dbhelper.cache.QueryCacheManager;
+import com.pugwoo.dbhelper.cache.QueryResultCache;
+import com.pugwoo.dbhelper.cache.TableMirror;
+import com.pugwoo.dbhelper.cache.TableMirrorManager;
+import com.pugwoo.dbhelper.enums.SingleFlightModeEnum;
 import com.pugwoo.dbhelper.impl.SpringJdbcDBHelper;
+import com.pugwoo.dbhelper.sql.SQLUtils;
+import com.pugwoo.dbhelper.utils.AnnotationSupportRowMapper;
+import com.pugwoo.dbhelper.utils.DOInfoReader;
 import com.pugwoo.dbhelper.utils.NamedParameterUtils;
 
 /**
@@ -28,9 +49,65 @@ public abstract class P0_JdbcTemplateOp implements DBHelper, ApplicationContextA
 	protected JdbcTemplate jdbcTemplate;
 	protected NamedParameterJdbcTemplate namedParameterJdbcTemplate;
 	protected long timeoutWarningValve = 1000;
+	/**批量操作时，每批次最多处理的行数*/
+	protected int batchSize = 1000;
+	/**jdbc连接是否返回实际修改的行数(MySQL连接串的useAffectedRows=true)，用于解析upsert的结果*/
+	protected boolean useAffectedRows = false;
+	/**increment累加的增量最长多久写入数据库，毫秒；小于等于0时不缓存，直接执行update*/
+	protected long incrementMaxStalenessMs = 1000;
+	/**group commit时等待其它插入的最长微秒数*/
+	protected long groupCommitWindowMicros = 500;
+	/**group commit时每条insert语句最多的行数*/
+	protected int groupCommitMaxRows = 100;
+	/**合并getByKey时等待其它查询的最长微秒数*/
+	protected long batchGetByKeyWindowMicros = 500;
+	/**合并getByKey时每次查询最多的key个数*/
+	protected int batchGetByKeyMaxKeys = 200;
+	/**相同查询并发执行时的合并方式，默认不合并*/
+	protected SingleFlightModeEnum singleFlightMode = SingleFlightModeEnum.DISABLED;
+	/**getPage是否用count(*) over()在查询数据的同一条sql中得到总数*/
+	protected boolean windowCount = false;
+	/**CountModeEnum.CACHED的总数缓存过期秒数*/
+	protected int cachedCountExpireSeconds = 60;
+	/**getPage并行查询总数的线程池，为null时顺序查询*/
+	protected ExecutorService pageCountExecutor;
+	/**stream和forEach每次从数据库读取的行数，默认是MySQL的逐行流式读取*/
+	protected int streamFetchSize = Integer.MIN_VALUE;
+	/**stream和forEach每次批量处理@RelatedColumn的记录数*/
+	protected int streamWindowSize = 1000;
+	/**getAllWithSpill内存中记录的字节数上限，超过后写入临时文件*/
+	protected long spillMemoryBytes = 64L * 1024 * 1024;
+	/**getAllWithSpill的记录数上限，0表示不限制*/
+	protected long resultMaxRows = 0;
+	/**getAllWithSpill的字节数上限，0表示不限制*/
+	protected long resultMaxBytes = 0;
 	
 	protected ApplicationContext applicationContext;
 	
+	/**实体缓存，@Table cacheMaxSize或cacheOffHeapMB大于0的类才会缓存*/
+	protected final EntityCacheManager entityCacheManager = new EntityCacheManager();
+	
+	/**不存在主键缓存，@Table negativeCacheMaxSize大于0的类才会缓存*/
+	protected final NegativeCacheManager negativeCacheManager = new NegativeCacheManager();
+	
+	/**查询结果缓存，注解了@QueryCache的类才会缓存*/
+	protected final QueryCacheManager queryCacheManager = new QueryCacheManager();
+	
+	/**整表缓存，@Table cacheAll的类才会缓存*/
+	protected final TableMirrorManager tableMirrorManager = new TableMirrorManager(new TableMirror.Loader() {
+		@Override
+		@SuppressWarnings({ "unchecked", "rawtypes" })
+		public List<?> load(Class<?> clazz, String whereSql, Object... args) {
+			String sql = SQLUtils.getSelectSQL(clazz) + whereSql;
+			log(sql);
+			long start = System.currentTimeMillis();
+			List<?> list = jdbcTemplate.query(sql, new AnnotationSupportRowMapper(clazz), args);
+			long cost = System.currentTimeMillis() - start;
+			logSlow(cost, sql, args);
+			return list;
+		}
+	});
+	
 	protected void log(StringBuilder sql) {
 		log(sql.toString());
 	}
@@ -59,6 +136,174 @@ public abstract class P0_JdbcTemplateOp implements DBHelper, ApplicationContextA
 		}
 	}
 	
+	/**
+	 * 数据修改后调用，失效相关的实体缓存和不存在主键缓存，使该表的查询缓存版本号加1，并标记整表缓存需要刷新。在事务中时，事务结束后会再失效一次，
+	 * 避免事务提交前其它线程把旧数据放入缓存。
+	 * @param clazz 修改的DO类
+	 * @param keyValues 修改的主键值，为null时表示整张表都可能被修改
+	 */
+	protected void notifyChanged(Class<?> clazz, Collection<?> keyValues) {
+		if(DOInfoReader.getJoinTable(clazz) != null) {
+			return;
+		}
+		final String tableName = DOInfoReader.getTable(clazz).value();
+		queryCacheManager.tableChanged(tableName);
+		final boolean hasEntityCache = entityCacheManager.hasCache(tableName);
+		final boolean hasNegativeCache = negativeCacheManager.hasCache(tableName);
+		final boolean hasMirror = tableMirrorManager.hasMirror(tableName);
+		if(!hasEntityCache && !hasNegativeCache && !hasMirror && !queryCacheManager.isEnabled()) {
+			return;
+		}
+		
+		if(hasEntityCache) {
+			entityCacheManager.invalidate(tableName, keyValues);
+		}
+		if(hasNegativeCache) {
+			negativeCacheManager.invalidate(tableName, keyValues);
+		}
+		if(hasMirror) {
+			tableMirrorManager.markDirty(tableName);
+		}
+		if(TransactionSynchronizationManager.isSynchronizationActive()) {
+			final List<Object> keys = keyValues == null ? null : new ArrayList<Object>(keyValues);
+			TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+				@Override
+				public void afterCompletion(int status) {
+					queryCacheManager.tableChanged(tableName);
+					if(hasEntityCache) {
+						entityCacheManager.invalidate(tableName, keys);
+					}
+					if(hasNegativeCache) {
+						negativeCacheManager.invalidate(tableName, keys);
+					}
+					if(hasMirror) {
+						tableMirrorManager.markDirty(tableName);
+					}
+				}
+			});
+		}
+	}
+	
+	/**
+	 * 插入数据后调用。插入不影响已缓存的实体，使该表的查询缓存和不存在主键缓存失效
+	 * @param clazz 插入的DO类
+	 */
+	protected void notifyInserted(Class<?> clazz) {
+		notifyChanged(clazz, Collections.emptyList());
+	}
+	
+	/**
+	 * 数据修改后调用，按对象的主键失效相关的缓存；主键值为null或多个主键时失效整张表
+	 * @param list 修改的DO对象，可以包含null
+	 */
+	protected void notifyChanged(Collection<?> list) {
+		Map<Class<?>, List<Object>> classToKeys = new LinkedHashMap<Class<?>, List<Object>>();
+		for(Object t : list) {
+			if(t == null) {
+				continue;
+			}
+			Class<?> clazz = t.getClass();
+			boolean isExist = classToKeys.containsKey(clazz);
+			List<Object> keys = classToKeys.get(clazz);
+			if(isExist && keys == null) {
+				continue; // 已经需要失效整张表
+			}
+			List<Field> keyFields = DOInfoReader.getKeyColumns(clazz);
+			Object keyValue = keyFields.size() == 1 ? DOInfoReader.getValue(keyFields.get(0), t) : null;
+			if(keyValue == null) {
+				classToKeys.put(clazz, null);
+				continue;
+			}
+			if(keys == null) {
+				keys = new ArrayList<Object>();
+				classToKeys.put(clazz, keys);
+			}
+			keys.add(keyValue);
+		}
+		for(Map.Entry<Class<?>, List<Object>> entry : classToKeys.entrySet()) {
+			notifyChanged(entry.getKey(), entry.getValue());
+		}
+	}
+	
+	/**
+	 * 获得类的实体缓存
+	 * @return 没有开启缓存或在事务中时返回null
+	 */
+	protected EntityCache getEntityCache(Class<?> clazz) {
+		if(TransactionSynchronizationManager.isActualTransactionActive()) {
+			return null;
+		}
+		return entityCacheManager.getCache(clazz);
+	}
+	
+	/**
+	 * 实体缓存的统计数据
+	 * @return key是表名
+	 */
+	public Map<String, CacheStats> getEntityCacheStats() {
+		return entityCacheManager.getStats();
+	}
+	
+	/**
+	 * 获得类的不存在主键缓存
+	 * @return 没有开启缓存或在事务中时返回null
+	 */
+	protected NegativeCache getNegativeCache(Class<?> clazz) {
+		if(TransactionSynchronizationManager.isActualTransactionActive()) {
+			return null;
+		}
+		return negativeCacheManager.getCache(clazz);
+	}
+	
+	/**
+	 * 不存在主键缓存的统计数据，命中次数即少查询数据库的次数
+	 * @return key是表名
+	 */
+	public Map<String, CacheStats> getNegativeCacheStats() {
+		return negativeCacheManager.getStats();
+	}
+	
+	/**
+	 * 获得类的查询缓存
+	 * @return 没有注解@QueryCache或在事务中时返回null
+	 */
+	protected QueryResultCache getQueryCache(Class<?> clazz) {
+		if(TransactionSynchronizationManager.isActualTransactionActive()) {
+			return null;
+		}
+		return queryCacheManager.getCache(clazz);
+	}
+	
+	/**
+	 * 获得类的总数缓存，用于CountModeEnum.CACHED
+	 * @return 在事务中时返回null
+	 */
+	protected QueryResultCache getCountCache(Class<?> clazz) {
+		if(TransactionSynchronizationManager.isActualTransactionActive()) {
+			return null;
+		}
+		return queryCacheManager.getCountCache(clazz, cachedCountExpireSeconds * 1000L);
+	}
+	
+	/**
+	 * 获得类的整表缓存
+	 * @return 没有开启cacheAll或在事务中时返回null
+	 */
+	protected TableMirror getTableMirror(Class<?> clazz) {
+		if(TransactionSynchronizationManager.isActualTransactionActive()) {
+			return null;
+		}
+		return tableMirrorManager.getMirror(clazz);
+	}
+	
+	/**
+	 * 查询缓存的统计数据
+	 * @return key是类名
+	 */
+	public Map<String, CacheStats> getQueryCacheStats() {
+		return queryCacheManager.getStats();
+	}
+	
 	@Override
 	public void rollback() {
 		TransactionAspectSupport.currentTransactionStatus().setRollbackOnly();
@@ -139,6 +384,27 @@ public abstract class P0_JdbcTemplateOp implements DBHelper, ApplicationContextA
 		return rows;
 	}
 	
+	/**
+	 * 使用jdbcTemplate批量执行同一条sql，按batchSize分批提交，不支持in (?)表达式
+	 * @param sql
+	 * @param batchArgs 每个元素对应一行的参数
+	 * @return 每一行对应的修改行数，顺序同batchArgs
+	 */
+	protected int[] jdbcBatchUpdate(String sql, List<Object[]> batchArgs) {
+		int[] rows = new int[batchArgs.size()];
+		for(int from = 0; from < batchArgs.size(); from += batchSize) {
+			int to = Math.min(from + batchSize, batchArgs.size());
+			List<Object[]> subArgs = batchArgs.subList(from, to);
+			log(sql);
+			long start = System.currentTimeMillis();
+			int[] subRows = jdbcTemplate.batchUpdate(sql, subArgs);
+			long cost = System.currentTimeMillis() - start;
+			logSlow(cost, sql, subArgs.size() + " rows");
+			System.arraycopy(subRows, 0, rows, from, subRows.length);
+		}
+		return rows;
+	}
+	
 	public void setJdbcTemplate(JdbcTemplate jdbcTemplate) {
 		this.jdbcTemplate = jdbcTemplate;
 	}
@@ -151,6 +417,202 @@ public abstract class P0_JdbcTemplateOp implements DBHelper, ApplicationContextA
 		timeoutWarningValve = timeMS;
 	}
 
+	public void setBatchSize(int batchSize) {
+		if(batchSize > 0) {
+			this.batchSize = batchSize;
+		}
+	}
+
+	public int getBatchSize() {
+		return batchSize;
+	}
+
+	/**
+	 * 设置jdbc连接是否返回实际修改的行数，需要和MySQL连接串的useAffectedRows一致。<br>
+	 * MySQL驱动默认返回匹配的行数(CLIENT_FOUND_ROWS)，这时upsert到值没有变化的已有记录也返回1，和插入无法区分
+	 */
+	public void setUseAffectedRows(boolean useAffectedRows) {
+		this.useAffectedRows = useAffectedRows;
+	}
+
+	public boolean isUseAffectedRows() {
+		return useAffectedRows;
+	}
+
+	/**
+	 * 设置increment增量在内存中最长停留的毫秒数，需要在第一次调用increment之前设置
+	 * @param incrementMaxStalenessMs 小于等于0时不缓存，每次increment直接执行update
+	 */
+	public void setIncrementMaxStalenessMs(long incrementMaxStalenessMs) {
+		this.incrementMaxStalenessMs = incrementMaxStalenessMs;
+	}
+
+	public long getIncrementMaxStalenessMs() {
+		return incrementMaxStalenessMs;
+	}
+
+	/**
+	 * 设置group commit(@Table groupCommit=true)等待其它插入的最长微秒数，需要在第一次插入之前设置
+	 */
+	public void setGroupCommitWindowMicros(long groupCommitWindowMicros) {
+		if(groupCommitWindowMicros >= 0) {
+			this.groupCommitWindowMicros = groupCommitWindowMicros;
+		}
+	}
+
+	public long getGroupCommitWindowMicros() {
+		return groupCommitWindowMicros;
+	}
+
+	/**
+	 * 设置group commit时每条insert语句最多的行数，需要在第一次插入之前设置
+	 */
+	public void setGroupCommitMaxRows(int groupCommitMaxRows) {
+		if(groupCommitMaxRows > 0) {
+			this.groupCommitMaxRows = groupCommitMaxRows;
+		}
+	}
+
+	public int getGroupCommitMaxRows() {
+		return groupCommitMaxRows;
+	}
+
+	/**
+	 * 设置合并getByKey(@Table batchGetByKey=true)等待其它查询的最长微秒数，需要在第一次查询之前设置
+	 */
+	public void setBatchGetByKeyWindowMicros(long batchGetByKeyWindowMicros) {
+		if(batchGetByKeyWindowMicros >= 0) {
+			this.batchGetByKeyWindowMicros = batchGetByKeyWindowMicros;
+		}
+	}
+
+	public long getBatchGetByKeyWindowMicros() {
+		return batchGetByKeyWindowMicros;
+	}
+
+	/**
+	 * 设置合并getByKey时每次查询最多的key个数，需要在第一次查询之前设置
+	 */
+	public void setBatchGetByKeyMaxKeys(int batchGetByKeyMaxKeys) {
+		if(batchGetByKeyMaxKeys > 0) {
+			this.batchGetByKeyMaxKeys = batchGetByKeyMaxKeys;
+		}
+	}
+
+	public int getBatchGetByKeyMaxKeys() {
+		return batchGetByKeyMaxKeys;
+	}
+
+	/**
+	 * 设置相同查询(sql和参数都相同)并发执行时的合并方式。开启后，查询执行期间到达的相同查询不再访问数据库，
+	 * 而是等待并使用该查询的结果，用于防止缓存失效时大量相同查询同时打到数据库。事务中的查询不合并。
+	 * @param singleFlightMode COPY每个调用者拿到各自复制的对象；SHARE调用者共享同一批对象，不能修改
+	 */
+	public void setSingleFlightMode(SingleFlightModeEnum singleFlightMode) {
+		this.singleFlightMode = singleFlightMode == null ? SingleFlightModeEnum.DISABLED : singleFlightMode;
+	}
+
+	public SingleFlightModeEnum getSingleFlightMode() {
+		return singleFlightMode;
+	}
+
+	/**
+	 * 设置getPage是否用count(*) over()窗口函数在查询数据的同一条sql中得到总数，省去一次count查询，
+	 * 需要数据库支持窗口函数(MySQL 8.0+)。页码超出范围没有数据时仍然单独查询总数。
+	 */
+	public void setWindowCount(boolean windowCount) {
+		this.windowCount = windowCount;
+	}
+
+	public boolean isWindowCount() {
+		return windowCount;
+	}
+
+	/**
+	 * 设置CountModeEnum.CACHED的总数缓存过期秒数，需要在第一次查询之前设置。
+	 * 通过DBHelper修改表时缓存的总数立即失效，过期时间用于限制不经过DBHelper的修改的影响
+	 */
+	public void setCachedCountExpireSeconds(int cachedCountExpireSeconds) {
+		if(cachedCountExpireSeconds > 0) {
+			this.cachedCountExpireSeconds = cachedCountExpireSeconds;
+		}
+	}
+
+	public int getCachedCountExpireSeconds() {
+		return cachedCountExpireSeconds;
+	}
+
+	/**
+	 * 设置后，不在事务中的getPage在该线程池中查询总数，同时在调用线程中查询数据，
+	 * 两个查询使用连接池中不同的连接，耗时从两者之和变为两者的最大值。
+	 * 线程池的线程数决定了并行查询总数的并发上限，其生命周期由调用者管理。
+	 */
+	public void setPageCountExecutor(ExecutorService pageCountExecutor) {
+		this.pageCountExecutor = pageCountExecutor;
+	}
+
+	public ExecutorService getPageCountExecutor() {
+		return pageCountExecutor;
+	}
+
+	/**
+	 * 设置stream和forEach每次从数据库读取的行数。默认Integer.MIN_VALUE是MySQL驱动的逐行流式读取；
+	 * 设置为正数时，MySQL需要在连接串中加上useCursorFetch=true才按fetchSize分批读取，其它数据库直接生效
+	 */
+	public void setStreamFetchSize(int streamFetchSize) {
+		this.streamFetchSize = streamFetchSize;
+	}
+
+	public int getStreamFetchSize() {
+		return streamFetchSize;
+	}
+
+	/**
+	 * 设置stream和forEach每次批量查询@RelatedColumn的记录数，内存中最多同时持有这么多条记录
+	 */
+	public void setStreamWindowSize(int streamWindowSize) {
+		if(streamWindowSize > 0) {
+			this.streamWindowSize = streamWindowSize;
+		}
+	}
+
+	public int getStreamWindowSize() {
+		return streamWindowSize;
+	}
+
+	/**
+	 * 设置getAllWithSpill内存中记录的字节数上限(按@Column编码后的字节数计算)，超过后的记录写入临时文件，默认64M
+	 */
+	public void setSpillMemoryBytes(long spillMemoryBytes) {
+		this.spillMemoryBytes = spillMemoryBytes;
+	}
+
+	public long getSpillMemoryBytes() {
+		return spillMemoryBytes;
+	}
+
+	/**
+	 * 设置getAllWithSpill的记录数上限，超过时抛出ResultTooLargeException，0表示不限制
+	 */
+	public void setResultMaxRows(long resultMaxRows) {
+		this.resultMaxRows = resultMaxRows;
+	}
+
+	public long getResultMaxRows() {
+		return resultMaxRows;
+	}
+
+	/**
+	 * 设置getAllWithSpill的字节数上限(包括写入临时文件的)，超过时抛出ResultTooLargeException，0表示不限制
+	 */
+	public void setResultMaxBytes(long resultMaxBytes) {
+		this.resultMaxBytes = resultMaxBytes;
+	}
+
+	public long getResultMaxBytes() {
+		return resultMaxBytes;
+	}
+
 	public JdbcTemplate getJdbcTemplate() {
 		return jdbcTemplate;
 	}
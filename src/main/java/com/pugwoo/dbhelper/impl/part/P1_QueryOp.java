@@ -1,28 +1,79 @@
 package com.pugwoo.dbhelper.impl.part;
 
 import java.lang.reflect.Field;
+import java.sql.ResultSet;
+import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
+import org.springframework.dao.DataAccessException;
 import org.springframework.dao.EmptyResultDataAccessException;
+import org.springframework.jdbc.core.PreparedStatementCreator;
+import org.springframework.jdbc.core.RowMapper;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 
 import com.pugwoo.dbhelper.annotation.IDBHelperDataService;
 import com.pugwoo.dbhelper.annotation.JoinTable;
 import com.pugwoo.dbhelper.annotation.RelatedColumn;
+import com.pugwoo.dbhelper.cache.EntityCache;
+import com.pugwoo.dbhelper.cache.NegativeCache;
+import com.pugwoo.dbhelper.cache.QueryResultCache;
+import com.pugwoo.dbhelper.cache.SpillList;
+import com.pugwoo.dbhelper.cache.TableMirror;
+import com.pugwoo.dbhelper.enums.CountModeEnum;
+import com.pugwoo.dbhelper.enums.SingleFlightModeEnum;
+import com.pugwoo.dbhelper.exception.InvalidParameterException;
 import com.pugwoo.dbhelper.exception.NotOnlyOneKeyColumnException;
 import com.pugwoo.dbhelper.exception.NullKeyValueException;
+import com.pugwoo.dbhelper.model.CloseableIterator;
+import com.pugwoo.dbhelper.model.CursorPageData;
+import com.pugwoo.dbhelper.model.DataHandler;
 import com.pugwoo.dbhelper.model.PageData;
+import com.pugwoo.dbhelper.sql.KeysetPagination;
 import com.pugwoo.dbhelper.sql.SQLAssert;
 import com.pugwoo.dbhelper.sql.SQLUtils;
 import com.pugwoo.dbhelper.utils.AnnotationSupportRowMapper;
+import com.pugwoo.dbhelper.utils.DOCopyUtils;
 import com.pugwoo.dbhelper.utils.DOInfoReader;
+import com.pugwoo.dbhelper.utils.EntitySnapshot;
+import com.pugwoo.dbhelper.utils.MicroBatcher;
 import com.pugwoo.dbhelper.utils.NamedParameterUtils;
+import com.pugwoo.dbhelper.utils.ResultSetIterator;
+import com.pugwoo.dbhelper.utils.RowPipeline;
+import com.pugwoo.dbhelper.utils.SingleFlight;
+import com.pugwoo.dbhelper.utils.TypeAutoCast;
 
 public abstract class P1_QueryOp extends P0_JdbcTemplateOp {
 	
+	/**合并getByKey的批量器，每个类一个*/
+	private final ConcurrentMap<Class<?>, MicroBatcher<Object, Object>> getByKeyBatchers =
+			new ConcurrentHashMap<Class<?>, MicroBatcher<Object, Object>>();
+	/**合并执行中的相同查询*/
+	private final SingleFlight<QueryKey, Object> singleFlight = new SingleFlight<QueryKey, Object>();
+	
 	@Override
 	@SuppressWarnings({ "unchecked", "rawtypes" })
 	public <T> boolean getByKey(T t) throws NullKeyValueException {
@@ -50,7 +101,7 @@ public abstract class P1_QueryOp extends P0_JdbcTemplateOp {
 	}
 	
 	@Override
-	@SuppressWarnings({ "unchecked", "rawtypes" })
+	@SuppressWarnings("unchecked")
 	public <T> T getByKey(Class<?> clazz, Object keyValue) throws NullKeyValueException,
 	    NotOnlyOneKeyColumnException {
 		
@@ -59,10 +110,74 @@ public abstract class P1_QueryOp extends P0_JdbcTemplateOp {
 		}
 		SQLAssert.onlyOneKeyColumn(clazz);
 		
-		StringBuilder sql = new StringBuilder();
+		TableMirror tableMirror = getTableMirror(clazz);
+		if(tableMirror != null) {
+			T t = (T) tableMirror.get(keyValue);
+			if(t != null) {
+				postHandleRelatedColumn(t);
+				EntitySnapshot.record(t);
+			}
+			return t;
+		}
+		
+		NegativeCache negativeCache = getNegativeCache(clazz);
+		if(negativeCache != null && negativeCache.isAbsent(keyValue)) {
+			return null;
+		}
+		long negativeGeneration = negativeCache == null ? 0 : negativeCache.getGeneration();
+		
+		EntityCache entityCache = getEntityCache(clazz);
+		T t;
+		if(entityCache == null) {
+			t = (T) loadByKey(clazz, keyValue);
+		} else {
+			t = entityCache.get(keyValue);
+			if(t != null) {
+				postHandleRelatedColumn(t);
+				EntitySnapshot.record(t);
+				return t;
+			}
+			long generation = entityCache.getGeneration();
+			t = (T) loadByKey(clazz, keyValue);
+			entityCache.put(t, generation);
+		}
+		
+		if(t == null && negativeCache != null) {
+			negativeCache.putAbsent(keyValue, negativeGeneration);
+		}
+		return t;
+	}
+	
+	/**
+	 * 从数据库查询，按配置合并并发的查询
+	 */
+	@SuppressWarnings("unchecked")
+	private <T> T loadByKey(final Class<?> clazz, final Object keyValue) {
+		if(DOInfoReader.getJoinTable(clazz) == null && DOInfoReader.getTable(clazz).batchGetByKey()
+				&& !TransactionSynchronizationManager.isActualTransactionActive()) {
+			return (T) batchGetByKey(clazz, keyValue);
+		}
+		
+		final StringBuilder sql = new StringBuilder();
 		sql.append(SQLUtils.getSelectSQL(clazz));
 		sql.append(SQLUtils.getKeysWhereSQL(clazz));
 		
+		if(isSingleFlight()) {
+			SingleFlight.Result<Object> result = singleFlight.execute(
+					new QueryKey(clazz, sql.toString(), new Object[] {keyValue}),
+					new SingleFlight.Loader<Object>() {
+				@Override
+				public Object load() {
+					return doGetByKey(clazz, sql, keyValue);
+				}
+			});
+			return (T) copyFlightObject(result.getValue());
+		}
+		return doGetByKey(clazz, sql, keyValue);
+	}
+	
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private <T> T doGetByKey(Class<?> clazz, StringBuilder sql, Object keyValue) {
 		try {
 			log(sql);
 			long start = System.currentTimeMillis();
@@ -80,13 +195,127 @@ public abstract class P1_QueryOp extends P0_JdbcTemplateOp {
 		}
 	}
 	
-	@SuppressWarnings({ "unchecked", "rawtypes" })
+	/**
+	 * 把并发的getByKey合并成getByKeyList查询
+	 */
+	private Object batchGetByKey(final Class<?> clazz, Object keyValue) {
+		MicroBatcher<Object, Object> batcher = getByKeyBatchers.get(clazz);
+		if(batcher == null) {
+			batcher = new MicroBatcher<Object, Object>(new MicroBatcher.BatchHandler<Object, Object>() {
+				@Override
+				public void handle(List<MicroBatcher.Call<Object, Object>> calls) {
+					Class<?> keyType = DOInfoReader.getOneKeyColumn(clazz).getType();
+					List<Object> keys = new ArrayList<Object>();
+					Set<Object> keySet = new HashSet<Object>();
+					for(MicroBatcher.Call<Object, Object> call : calls) {
+						Object key = castKey(call.getRequest(), keyType);
+						if(keySet.add(key)) {
+							keys.add(key);
+						}
+					}
+					
+					Map<Object, Object> result = doGetByKeyList(clazz, keys);
+					
+					// 同一个key有多个调用者时，每个调用者拿到各自的对象
+					Set<Object> dispatched = new HashSet<Object>();
+					for(MicroBatcher.Call<Object, Object> call : calls) {
+						Object key = castKey(call.getRequest(), keyType);
+						Object t = result.get(key);
+						if(t != null && !dispatched.add(key)) {
+							t = DOCopyUtils.copy(t);
+							EntitySnapshot.record(t);
+						}
+						call.setResult(t);
+					}
+				}
+			}, batchGetByKeyWindowMicros, batchGetByKeyMaxKeys);
+			MicroBatcher<Object, Object> old = getByKeyBatchers.putIfAbsent(clazz, batcher);
+			if(old != null) {
+				batcher = old;
+			}
+		}
+		return batcher.submit(keyValue);
+	}
+	
+	/**把key转换成主键字段的类型，使得Integer和Long等不同类型的key可以匹配上*/
+	private static Object castKey(Object key, Class<?> keyType) {
+		try {
+			Object casted = TypeAutoCast.cast(key, keyType);
+			return casted == null ? key : casted;
+		} catch (RuntimeException e) {
+			return key;
+		}
+	}
+	
 	@Override
+	@SuppressWarnings("unchecked")
 	public <T, K> Map<K, T> getByKeyList(Class<?> clazz, List<K> keyValues) {
 		if(keyValues == null || keyValues.isEmpty()) {
 			return new HashMap<K, T>();
 		}
 		
+		TableMirror tableMirror = getTableMirror(clazz);
+		if(tableMirror != null) {
+			Map<K, T> map = new LinkedHashMap<K, T>();
+			for(K key : keyValues) {
+				if(key == null || map.containsKey(key)) {
+					continue;
+				}
+				T t = (T) tableMirror.get(key);
+				if(t != null) {
+					map.put(key, t);
+					EntitySnapshot.record(t);
+				}
+			}
+			postHandleRelatedColumn(new ArrayList<T>(map.values()));
+			return map;
+		}
+		
+		EntityCache entityCache = getEntityCache(clazz);
+		if(entityCache == null) {
+			return doGetByKeyList(clazz, keyValues);
+		}
+		
+		// 只查询缓存中没有的
+		Map<K, T> hits = new HashMap<K, T>();
+		List<K> missKeys = new ArrayList<K>();
+		for(K key : keyValues) {
+			if(key == null || hits.containsKey(key)) {
+				continue;
+			}
+			T t = entityCache.get(key);
+			if(t == null) {
+				missKeys.add(key);
+			} else {
+				hits.put(key, t);
+				EntitySnapshot.record(t);
+			}
+		}
+		postHandleRelatedColumn(new ArrayList<T>(hits.values()));
+		
+		Map<K, T> misses = new HashMap<K, T>();
+		if(!missKeys.isEmpty()) {
+			long generation = entityCache.getGeneration();
+			misses = doGetByKeyList(clazz, missKeys);
+			for(T t : misses.values()) {
+				entityCache.put(t, generation);
+			}
+		}
+		
+		Map<K, T> map = new LinkedHashMap<K, T>();
+		for(K key : keyValues) {
+			if(key == null) {continue;}
+			T t = hits.containsKey(key) ? hits.get(key) : misses.get(key);
+			if(t != null) {
+				map.put(key, t);
+			}
+		}
+		return map;
+	}
+	
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private <T, K> Map<K, T> doGetByKeyList(Class<?> clazz, List<K> keyValues) {
+		
 		StringBuilder sql = new StringBuilder();
 		sql.append(SQLUtils.getSelectSQL(clazz));
 		sql.append(SQLUtils.getKeyInWhereSQL(clazz));
@@ -108,15 +337,19 @@ public abstract class P1_QueryOp extends P0_JdbcTemplateOp {
 		}
 		
 		Field keyField = DOInfoReader.getOneKeyColumn(clazz);
+		Map<Object, T> keyToObject = new HashMap<Object, T>();
+		for(T t : list) {
+			Object k = DOInfoReader.getValue(keyField, t);
+			if(k != null && !keyToObject.containsKey(k)) {
+				keyToObject.put(k, t);
+			}
+		}
 		Map<K, T> map = new LinkedHashMap<K, T>();
 		for(K key : keyValues) {
 			if(key == null) {continue;}
-			for(T t : list) {
-				Object k = DOInfoReader.getValue(keyField, t);
-				if(k != null && key.equals(k)) {
-					map.put(key, t);
-					break;
-				}
+			T t = keyToObject.get(key);
+			if(t != null) {
+				map.put(key, t);
 			}
 		}
 		return map;
@@ -125,16 +358,168 @@ public abstract class P1_QueryOp extends P0_JdbcTemplateOp {
     @Override
 	public <T> PageData<T> getPage(final Class<T> clazz, int page, int pageSize,
 			String postSql, Object... args) {
+		return getPage(clazz, page, pageSize, CountModeEnum.EXACT, postSql, args);
+	}
+    
+    @Override
+	public <T> PageData<T> getPage(Class<T> clazz, int page, int pageSize, CountModeEnum countMode,
+			String postSql, Object... args) {
 		int offset = (page - 1) * pageSize;
-		List<T> data = _getList(clazz, offset, pageSize, postSql, args);
-		// 性能优化，当page=1 且拿到的数据少于pageSize，则不需要查总数
-		int total;
-		if(page == 1 && data.size() < pageSize) {
-			total = data.size();
+		if(countMode == CountModeEnum.EXACT && isUseWindowCount(clazz, offset)) {
+			PageData<T> pageData = getPageWithWindowCount(clazz, offset, pageSize, postSql, args);
+			if(pageData != null) {
+				return pageData;
+			}
+		}
+		
+		Future<Integer> countFuture = submitCount(clazz, countMode, postSql, args);
+		List<T> data;
+		try {
+			data = _getList(clazz, offset, pageSize, postSql, args);
+		} catch (RuntimeException e) {
+			cancelCount(countFuture);
+			throw e;
+		} catch (Error e) {
+			cancelCount(countFuture);
+			throw e;
+		}
+		// 性能优化，拿到的数据少于pageSize时已经是最后一页，总数可以直接算出来，不需要查总数；
+		// 除第一页外，没有数据时不能确定总数
+		int total = -1;
+		boolean isApproximate = false;
+		if(data.size() < pageSize && (page == 1 || !data.isEmpty())) {
+			total = offset + data.size();
+			cancelCount(countFuture);
+		} else {
+			if(countFuture != null) {
+				total = getFutureCount(countFuture);
+			} else if(countMode == CountModeEnum.ESTIMATED) {
+				total = getEstimatedTotal(clazz, postSql, args);
+			}
+			isApproximate = countMode == CountModeEnum.ESTIMATED && total >= 0;
+		}
+		if(total < 0) {
+			total = countMode == CountModeEnum.CACHED ? getCachedTotal(clazz, postSql, args)
+					: getTotal(clazz, postSql, args);
+		}
+		PageData<T> pageData = new PageData<T>(total, data, pageSize);
+		pageData.setApproximate(isApproximate);
+		return pageData;
+	}
+	
+	/**
+	 * 在pageCountExecutor中查询总数，ESTIMATED不能估算时返回-1
+	 * @return 没有配置线程池、在事务中或有内存镜像时返回null，由调用者顺序查询
+	 */
+	private Future<Integer> submitCount(final Class<?> clazz, final CountModeEnum countMode,
+			final String postSql, final Object... args) {
+		ExecutorService executor = pageCountExecutor;
+		// 事务绑定在当前线程的连接上，其它线程看不到事务中未提交的修改；内存镜像的总数不需要查库
+		if(executor == null || TransactionSynchronizationManager.isActualTransactionActive()
+				|| getTableMirror(clazz) != null) {
+			return null;
+		}
+		try {
+			return executor.submit(new Callable<Integer>() {
+				@Override
+				public Integer call() {
+					if(countMode == CountModeEnum.ESTIMATED) {
+						return getEstimatedTotal(clazz, postSql, args);
+					}
+					return countMode == CountModeEnum.CACHED ? getCachedTotal(clazz, postSql, args)
+							: getTotal(clazz, postSql, args);
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			LOGGER.warn("pageCountExecutor rejected, count in current thread, class:{}", clazz);
+			return null;
+		}
+	}
+	
+	/**
+	 * 不再需要总数或查询数据失败时取消：还没开始的查询不再执行，已经开始的查询的结果被丢弃。
+	 * 不中断执行中的线程，避免中断标记影响连接池中的连接
+	 */
+	private static void cancelCount(Future<Integer> countFuture) {
+		if(countFuture != null) {
+			countFuture.cancel(false);
+		}
+	}
+	
+	private static int getFutureCount(Future<Integer> countFuture) {
+		boolean interrupted = false;
+		try {
+			while(true) {
+				try {
+					return countFuture.get();
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if(cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			if(cause instanceof Error) {
+				throw (Error) cause;
+			}
+			throw new RuntimeException(cause);
+		} finally {
+			if(interrupted) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+	
+	/**有内存镜像、查询缓存或延迟关联时，它们的代价更低，不用窗口函数*/
+	private boolean isUseWindowCount(Class<?> clazz, int offset) {
+		return windowCount && getTableMirror(clazz) == null && getQueryCache(clazz) == null
+				&& !isDeferredJoin(clazz, offset);
+	}
+	
+	/**
+	 * 用count(*) over()在查询数据的同一条sql中得到总数
+	 * @return 这一页没有数据时不能得到总数，返回null
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private <T> PageData<T> getPageWithWindowCount(Class<T> clazz, int offset, int pageSize,
+			String postSql, Object... args) {
+		StringBuilder sql = new StringBuilder();
+		sql.append(SQLUtils.getSelectWithWindowCountSQL(clazz));
+		sql.append(SQLUtils.autoSetSoftDeleted(postSql, clazz));
+		sql.append(SQLUtils.genLimitSQL(offset, pageSize));
+		
+		final RowMapper<T> rowMapper = new AnnotationSupportRowMapper(clazz);
+		final int[] total = new int[] {-1};
+		RowMapper<T> windowCountRowMapper = new RowMapper<T>() {
+			@Override
+			public T mapRow(ResultSet rs, int rowNum) throws SQLException {
+				if(rowNum == 0) {
+					total[0] = rs.getInt(SQLUtils.WINDOW_COUNT_COLUMN);
+				}
+				return rowMapper.mapRow(rs, rowNum);
+			}
+		};
+		
+		log(sql);
+		long start = System.currentTimeMillis();
+		List<T> list;
+		if(args == null || args.length == 0) {
+			list = namedParameterJdbcTemplate.query(sql.toString(),
+					windowCountRowMapper); // 因为有in (?)所以用namedParameterJdbcTemplate
 		} else {
-			total = getTotal(clazz, postSql, args);
+			list = namedParameterJdbcTemplate.query(
+					NamedParameterUtils.trans(sql.toString()),
+					NamedParameterUtils.transParam(args),
+					windowCountRowMapper); // 因为有in (?)所以用namedParameterJdbcTemplate
 		}
-		return new PageData<T>(total, data, pageSize);
+		
+		postHandleRelatedColumn(list);
+		
+		long cost = System.currentTimeMillis() - start;
+		logSlow(cost, sql, args);
+		return total[0] < 0 ? null : new PageData<T>(total[0], list, pageSize);
 	}
     
     @Override
@@ -151,6 +536,20 @@ public abstract class P1_QueryOp extends P0_JdbcTemplateOp {
 	public <T> int getCount(Class<T> clazz, String postSql, Object... args) {
 		return getTotal(clazz, postSql, args);
 	}
+	
+	@Override
+	public <T> int getCount(Class<T> clazz, CountModeEnum countMode, String postSql, Object... args) {
+		if(countMode == CountModeEnum.CACHED) {
+			return getCachedTotal(clazz, postSql, args);
+		}
+		if(countMode == CountModeEnum.ESTIMATED) {
+			int total = getEstimatedTotal(clazz, postSql, args);
+			if(total >= 0) {
+				return total;
+			}
+		}
+		return getTotal(clazz, postSql, args);
+	}
 	 
     @Override
     public <T> PageData<T> getPageWithoutCount(Class<T> clazz, int page, int pageSize,
@@ -165,6 +564,34 @@ public abstract class P1_QueryOp extends P0_JdbcTemplateOp {
 		return getPageWithoutCount(clazz, page, pageSize, null);
 	}
     
+    @Override
+    public <T> CursorPageData<T> getPageAfter(Class<T> clazz, int pageSize) {
+    	return getPageAfter(clazz, null, pageSize, null);
+    }
+    
+    @Override
+    public <T> CursorPageData<T> getPageAfter(Class<T> clazz, String cursor, int pageSize,
+    		String postSql, Object... args) {
+    	if(pageSize < 1) {
+    		throw new InvalidParameterException("pageSize must be greater than 0");
+    	}
+    	KeysetPagination pagination = new KeysetPagination(clazz, postSql);
+    	List<Object> params = new ArrayList<Object>(); // 游标条件的参数在原有参数之前
+    	String sql = pagination.getPostSql(cursor, params);
+    	if(args != null) {
+    		params.addAll(Arrays.asList(args));
+    	}
+    	
+    	// 多查一条，确定是否有下一页
+    	List<T> data = _getList(clazz, null, pageSize + 1, sql, params.toArray());
+    	String nextCursor = null;
+    	if(data.size() > pageSize) {
+    		data = new ArrayList<T>(data.subList(0, pageSize));
+    		nextCursor = pagination.getCursor(data.get(pageSize - 1));
+    	}
+    	return new CursorPageData<T>(data, pageSize, nextCursor);
+    }
+    
     @Override
 	public <T> List<T> getAll(final Class<T> clazz) {
 		return _getList(clazz, null, null, null);
@@ -187,6 +614,410 @@ public abstract class P1_QueryOp extends P0_JdbcTemplateOp {
     	return list == null || list.isEmpty() ? null : list.get(0);
     }
     
+	@Override
+	public <T> CloseableIterator<T> stream(Class<T> clazz, String postSql, Object... args) {
+		StringBuilder sql = new StringBuilder();
+		sql.append(SQLUtils.getSelectSQL(clazz));
+		sql.append(SQLUtils.autoSetSoftDeleted(postSql, clazz));
+		log(sql);
+		
+		PreparedStatementCreator psc = NamedParameterUtils.getPreparedStatementCreator(sql.toString(), args);
+		return new ResultSetIterator<T>(jdbcTemplate, psc, sql.toString(), getStreamFetchSize(clazz),
+				new AnnotationSupportRowMapper<T>(clazz), streamWindowSize) {
+			@Override
+			protected void handleWindow(List<T> window) {
+				postHandleRelatedColumn(window);
+			}
+		};
+	}
+	
+	/**
+	 * MySQL逐行流式读取时同一个连接不能执行其它查询，事务中@RelatedColumn的查询和流式读取用同一个连接，
+	 * 这时改为每次读取streamWindowSize行
+	 */
+	private int getStreamFetchSize(Class<?> clazz) {
+		if(streamFetchSize == Integer.MIN_VALUE && TransactionSynchronizationManager.isActualTransactionActive()
+				&& hasRelatedColumn(clazz)) {
+			return streamWindowSize;
+		}
+		return streamFetchSize;
+	}
+	
+	private static boolean hasRelatedColumn(Class<?> clazz) {
+		if(DOInfoReader.getJoinTable(clazz) != null) {
+			return hasRelatedColumn(DOInfoReader.getJoinLeftTable(clazz).getType())
+					|| hasRelatedColumn(DOInfoReader.getJoinRightTable(clazz).getType());
+		}
+		return !DOInfoReader.getRelatedColumns(clazz).isEmpty();
+	}
+	
+	@Override
+	public <T> long forEach(Class<T> clazz, DataHandler<T> handler, String postSql, Object... args) {
+		CloseableIterator<T> iterator = stream(clazz, postSql, args);
+		long count = 0;
+		try {
+			while(iterator.hasNext()) {
+				handler.handle(iterator.next());
+				count++;
+			}
+		} finally {
+			iterator.close();
+		}
+		return count;
+	}
+	
+	@Override
+	public <T> List<T> getAllWithSpill(Class<T> clazz, String postSql, Object... args) {
+		CloseableIterator<T> iterator = stream(clazz, postSql, args);
+		try {
+			return SpillList.collect(clazz, iterator, spillMemoryBytes, resultMaxRows, resultMaxBytes);
+		} finally {
+			iterator.close();
+		}
+	}
+	
+	@Override
+	public <T> long forEachPipelined(Class<T> clazz, int mapperThreads, final DataHandler<List<T>> handler,
+			String postSql, Object... args) {
+		if(mapperThreads <= 0) {
+			throw new InvalidParameterException("mapperThreads must be positive:" + mapperThreads);
+		}
+		// 事务绑定在当前线程的连接上，映射线程中的@RelatedColumn查询不在事务中，事务中在调用线程中逐块处理
+		if(TransactionSynchronizationManager.isActualTransactionActive()) {
+			return forEachChunk(clazz, handler, postSql, args);
+		}
+		StringBuilder sql = new StringBuilder();
+		sql.append(SQLUtils.getSelectSQL(clazz));
+		sql.append(SQLUtils.autoSetSoftDeleted(postSql, clazz));
+		log(sql);
+		
+		PreparedStatementCreator psc = NamedParameterUtils.getPreparedStatementCreator(sql.toString(), args);
+		return new RowPipeline<T>(new AnnotationSupportRowMapper<T>(clazz), streamWindowSize, mapperThreads) {
+			@Override
+			protected void handleChunk(List<T> chunk) {
+				postHandleRelatedColumn(chunk);
+				handler.handle(chunk);
+			}
+		}.run(jdbcTemplate, psc, streamFetchSize);
+	}
+	
+	private <T> long forEachChunk(Class<T> clazz, DataHandler<List<T>> handler, String postSql, Object... args) {
+		CloseableIterator<T> iterator = stream(clazz, postSql, args);
+		long count = 0;
+		try {
+			List<T> chunk = new ArrayList<T>();
+			while(iterator.hasNext()) {
+				chunk.add(iterator.next());
+				if(chunk.size() >= streamWindowSize) {
+					handler.handle(chunk);
+					count += chunk.size();
+					chunk = new ArrayList<T>();
+				}
+			}
+			if(!chunk.isEmpty()) {
+				handler.handle(chunk);
+				count += chunk.size();
+			}
+		} finally {
+			iterator.close();
+		}
+		return count;
+	}
+	
+	@Override
+	public <T> Object scanInChunks(Class<T> clazz, int chunkSize, DataHandler<List<T>> handler,
+			String postSql, Object... args) {
+		return scanInChunks(clazz, null, chunkSize, handler, postSql, args);
+	}
+	
+	@Override
+	public <T> Object scanInChunks(Class<T> clazz, Object startAfterKey, int chunkSize,
+			DataHandler<List<T>> handler, String postSql, Object... args) {
+		return scanKeyRange(clazz, startAfterKey, null, chunkSize, handler, postSql, args);
+	}
+	
+	@Override
+	public <T> long scanInParallel(Class<T> clazz, int parallelism, int chunkSize, boolean isOrdered,
+			DataHandler<List<T>> handler, String postSql, Object... args) {
+		if(parallelism <= 0) {
+			throw new InvalidParameterException("parallelism must be positive:" + parallelism);
+		}
+		Long[] bounds = null;
+		// 事务中的修改在其它连接中看不到，在事务中时顺序扫描
+		if(parallelism > 1 && !TransactionSynchronizationManager.isActualTransactionActive()) {
+			bounds = getKeyPartitionBounds(clazz, parallelism);
+		}
+		if(bounds == null) {
+			final AtomicLong count = new AtomicLong();
+			final DataHandler<List<T>> countHandler = handler;
+			scanKeyRange(clazz, null, null, chunkSize, new DataHandler<List<T>>() {
+				@Override
+				public void handle(List<T> data) {
+					countHandler.handle(data);
+					count.addAndGet(data.size());
+				}
+			}, postSql, args);
+			return count.get();
+		}
+		return new ParallelScan<T>(clazz, bounds, chunkSize, isOrdered, handler, postSql, args).run();
+	}
+	
+	/**
+	 * 把[min(主键), max(主键)]均分成不超过partitions个(bounds[i], bounds[i+1]]区间
+	 * @return 主键不是整数、表为空或主键范围超出long时返回null
+	 */
+	private Long[] getKeyPartitionBounds(Class<?> clazz, int partitions) {
+		Class<?> keyType = DOInfoReader.getOneKeyColumn(clazz).getType();
+		if(keyType != Long.class && keyType != long.class && keyType != Integer.class && keyType != int.class
+				&& keyType != Short.class && keyType != short.class && keyType != Byte.class && keyType != byte.class) {
+			return null;
+		}
+		String sql = SQLUtils.getKeyMinMaxSQL(clazz);
+		log(sql);
+		List<Long[]> rows = jdbcTemplate.query(sql, new RowMapper<Long[]>() {
+			@Override
+			public Long[] mapRow(ResultSet rs, int rowNum) throws SQLException {
+				Long min = rs.getLong(1);
+				return rs.wasNull() ? null : new Long[] {min, rs.getLong(2)};
+			}
+		});
+		if(rows.isEmpty() || rows.get(0) == null) {
+			return null;
+		}
+		return getKeyPartitionBounds(rows.get(0)[0], rows.get(0)[1], partitions);
+	}
+	
+	/**
+	 * 把[min, max]均分成不超过partitions个(bounds[i], bounds[i+1]]区间
+	 * @return min-1或max-(min-1)超出long时返回null，由调用者顺序扫描
+	 */
+	static Long[] getKeyPartitionBounds(long min, long max, int partitions) {
+		if(min == Long.MIN_VALUE) {
+			return null;
+		}
+		long from = min - 1;
+		if(max >= 0 && from < max - Long.MAX_VALUE) { // max - from > Long.MAX_VALUE
+			return null;
+		}
+		long span = max - from;
+		int n = (int) Math.min(partitions, span);
+		long step = span / n;
+		long remainder = span % n;
+		Long[] bounds = new Long[n + 1];
+		for(int i = 0; i <= n; i++) {
+			bounds[i] = from + step * i + Math.min(i, remainder);
+		}
+		return bounds;
+	}
+	
+	/**
+	 * 多个连接并行扫描各个主键区间，一次性使用。
+	 * 不要求顺序时在工作线程中直接调用handler；要求顺序时工作线程把块放到各区间的有界队列中，
+	 * 调用线程按区间顺序取出交给handler，队列满时工作线程等待，内存中最多有区间数*2块数据
+	 */
+	private class ParallelScan<T> {
+		
+		private static final int QUEUE_SIZE = 2;
+		private static final long POLL_MS = 100;
+		
+		private final Class<T> clazz;
+		private final Long[] bounds;
+		private final int chunkSize;
+		private final boolean isOrdered;
+		private final DataHandler<List<T>> handler;
+		private final String postSql;
+		private final Object[] args;
+		
+		private final List<T> end = new ArrayList<T>(); // 区间扫描完的标记
+		private final List<BlockingQueue<List<T>>> queues = new ArrayList<BlockingQueue<List<T>>>();
+		private final AtomicLong count = new AtomicLong();
+		private final AtomicBoolean isStopped = new AtomicBoolean(false);
+		private final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+		
+		private ParallelScan(Class<T> clazz, Long[] bounds, int chunkSize, boolean isOrdered,
+				DataHandler<List<T>> handler, String postSql, Object[] args) {
+			this.clazz = clazz;
+			this.bounds = bounds;
+			this.chunkSize = chunkSize;
+			this.isOrdered = isOrdered;
+			this.handler = handler;
+			this.postSql = postSql;
+			this.args = args;
+		}
+		
+		private long run() {
+			int partitions = bounds.length - 1;
+			ExecutorService executor = Executors.newFixedThreadPool(partitions, new ThreadFactory() {
+				private final AtomicInteger index = new AtomicInteger();
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "nimble-orm-scan-" + index.incrementAndGet());
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+			try {
+				for(int i = 0; i < partitions; i++) {
+					final int partition = i;
+					queues.add(isOrdered ? new ArrayBlockingQueue<List<T>>(QUEUE_SIZE) : null);
+					executor.execute(new Runnable() {
+						@Override
+						public void run() {
+							scanPartition(partition);
+						}
+					});
+				}
+				if(isOrdered) {
+					for(BlockingQueue<List<T>> queue : queues) {
+						drain(queue);
+					}
+				}
+			} catch (RuntimeException e) {
+				failure.compareAndSet(null, e);
+			} catch (Error e) {
+				failure.compareAndSet(null, e);
+			} finally {
+				if(failure.get() != null) {
+					isStopped.set(true);
+				}
+				executor.shutdown();
+				awaitTermination(executor); // 返回时不再有后台查询
+			}
+			
+			Throwable e = failure.get();
+			if(e instanceof RuntimeException) {
+				throw (RuntimeException) e;
+			}
+			if(e instanceof Error) {
+				throw (Error) e;
+			}
+			return count.get();
+		}
+		
+		private void scanPartition(int partition) {
+			final BlockingQueue<List<T>> queue = queues.get(partition);
+			try {
+				scanKeyRange(clazz, bounds[partition], bounds[partition + 1], chunkSize, new DataHandler<List<T>>() {
+					@Override
+					public void handle(List<T> data) {
+						if(isStopped.get()) {
+							throw new ScanStoppedException();
+						}
+						if(queue == null) {
+							handler.handle(data);
+							count.addAndGet(data.size());
+						} else {
+							put(queue, data);
+						}
+					}
+				}, postSql, args);
+				if(queue != null) {
+					put(queue, end);
+				}
+			} catch (ScanStoppedException e) { // 其它区间失败时停止
+			} catch (Throwable e) {
+				failure.compareAndSet(null, e);
+				isStopped.set(true);
+			}
+		}
+		
+		/**不中断工作线程，队列满时定时检查是否已经停止*/
+		private void put(BlockingQueue<List<T>> queue, List<T> data) {
+			try {
+				while(!queue.offer(data, POLL_MS, TimeUnit.MILLISECONDS)) {
+					if(isStopped.get()) {
+						throw new ScanStoppedException();
+					}
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new ScanStoppedException();
+			}
+		}
+		
+		private void drain(BlockingQueue<List<T>> queue) {
+			while(!isStopped.get()) { // 失败原因由工作线程记录
+				List<T> data;
+				try {
+					data = queue.poll(POLL_MS, TimeUnit.MILLISECONDS);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new RuntimeException(e);
+				}
+				if(data == end) {
+					return;
+				}
+				if(data != null) {
+					handler.handle(data);
+					count.addAndGet(data.size());
+				}
+			}
+		}
+		
+		private void awaitTermination(ExecutorService executor) {
+			boolean interrupted = false;
+			while(true) {
+				try {
+					if(executor.awaitTermination(POLL_MS, TimeUnit.MILLISECONDS)) {
+						break;
+					}
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+			if(interrupted) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+	
+	/**
+	 * 并行扫描停止时用于结束工作线程的扫描，不抛给调用者
+	 */
+	private static class ScanStoppedException extends RuntimeException {
+		private static final long serialVersionUID = 1L;
+	}
+	
+	/**
+	 * 按主键升序扫描(startAfterKey, endKey]范围内的记录，每块一次独立的查询，不使用查询缓存
+	 * @param startAfterKey 为null时从头开始
+	 * @param endKey 为null时不限制
+	 * @return 最后处理的主键，没有处理任何记录时返回startAfterKey
+	 */
+	private <T> Object scanKeyRange(Class<T> clazz, Object startAfterKey, Object endKey, int chunkSize,
+			DataHandler<List<T>> handler, String postSql, Object... args) {
+		if(chunkSize <= 0) {
+			throw new InvalidParameterException("chunkSize must be positive:" + chunkSize);
+		}
+		Field keyField = DOInfoReader.getOneKeyColumn(clazz);
+		String firstSql = SQLUtils.getKeyRangePostSQL(clazz, postSql, startAfterKey != null, endKey != null);
+		String nextSql = SQLUtils.getKeyRangePostSQL(clazz, postSql, true, endKey != null);
+		
+		Object lastKey = startAfterKey;
+		while(true) {
+			List<Object> params = new ArrayList<Object>();
+			if(lastKey != null) {
+				params.add(lastKey);
+			}
+			if(endKey != null) {
+				params.add(endKey);
+			}
+			if(args != null) {
+				params.addAll(Arrays.asList(args));
+			}
+			List<T> chunk = _getList(clazz, null, chunkSize, false, lastKey == null ? firstSql : nextSql,
+					params.toArray());
+			if(chunk.isEmpty()) {
+				return lastKey;
+			}
+			handler.handle(chunk);
+			lastKey = DOInfoReader.getValue(keyField, chunk.get(chunk.size() - 1));
+			if(chunk.size() < chunkSize) {
+				return lastKey;
+			}
+		}
+	}
+	
 	/**
 	 * 查询列表
 	 * 
@@ -197,15 +1028,123 @@ public abstract class P1_QueryOp extends P0_JdbcTemplateOp {
 	 * @param args 参数
 	 * @return
 	 */
-	@SuppressWarnings({ "unchecked", "rawtypes" })
-	private <T> List<T> _getList(Class<T> clazz, Integer offset, Integer limit,
-			String postSql, Object... args) {
+	private <T> List<T> _getList(final Class<T> clazz, Integer offset, Integer limit,
+			String postSql, final Object... args) {
+		return _getList(clazz, offset, limit, true, postSql, args);
+	}
+	
+	/**
+	 * @param useQueryCache 为false时不读也不写查询缓存，用于分块扫描等只读一次的大量数据
+	 */
+	@SuppressWarnings("unchecked")
+	private <T> List<T> _getList(final Class<T> clazz, Integer offset, Integer limit, boolean useQueryCache,
+			String postSql, final Object... args) {
 		
-		StringBuilder sql = new StringBuilder();
+		TableMirror tableMirror = getTableMirror(clazz);
+		if(tableMirror != null) {
+			List<T> list = (List<T>) tableMirror.query(postSql, args, offset, limit);
+			if(list != null) {
+				recordSnapshot(list);
+				postHandleRelatedColumn(list);
+				return list;
+			}
+		}
+		
+		final StringBuilder sql = new StringBuilder();
 		sql.append(SQLUtils.getSelectSQL(clazz));
 		sql.append(SQLUtils.autoSetSoftDeleted(postSql, clazz));
 		sql.append(SQLUtils.genLimitSQL(offset, limit));
 		
+		boolean isDeferredJoin = isDeferredJoin(clazz, offset);
+		QueryResultCache queryCache = useQueryCache ? getQueryCache(clazz) : null;
+		if(queryCache == null) {
+			return isDeferredJoin ? getListByDeferredJoin(clazz, offset, limit, postSql, args)
+					: loadList(clazz, sql, args);
+		}
+		
+		QueryKey key = new QueryKey(clazz, sql.toString(), copyArgs(args));
+		List<T> list = (List<T>) queryCache.get(key);
+		if(list != null) {
+			recordSnapshot(list);
+			postHandleRelatedColumn(list);
+			return list;
+		}
+		long[] versions = queryCache.getVersions();
+		list = isDeferredJoin ? getListByDeferredJoin(clazz, offset, limit, postSql, args)
+				: loadList(clazz, sql, args);
+		queryCache.put(key, list, versions);
+		return list;
+	}
+	
+	// ======================= 延迟关联分页 ========================
+	
+	/**第一页不需要丢弃记录，不使用延迟关联*/
+	private static boolean isDeferredJoin(Class<?> clazz, Integer offset) {
+		return offset != null && offset > 0 && DOInfoReader.getJoinTable(clazz) == null
+				&& DOInfoReader.getTable(clazz).deferredJoinPage()
+				&& DOInfoReader.getKeyColumns(clazz).size() == 1;
+	}
+	
+	/**
+	 * 先只查询这一页的主键，再按主键查询完整的记录，按主键的顺序返回
+	 */
+	private <T> List<T> getListByDeferredJoin(Class<T> clazz, Integer offset, Integer limit,
+			String postSql, Object... args) {
+		StringBuilder sql = new StringBuilder();
+		sql.append(SQLUtils.getSelectKeySQL(clazz));
+		sql.append(SQLUtils.autoSetSoftDeleted(postSql, clazz));
+		sql.append(SQLUtils.genLimitSQL(offset, limit));
+		
+		Class<?> keyType = DOInfoReader.getOneKeyColumn(clazz).getType();
+		log(sql);
+		long start = System.currentTimeMillis();
+		List<?> keys;
+		if(args == null || args.length == 0) {
+			keys = namedParameterJdbcTemplate.queryForList(sql.toString(),
+					new HashMap<String, Object>(), keyType);
+		} else {
+			keys = namedParameterJdbcTemplate.queryForList(
+					NamedParameterUtils.trans(sql.toString()),
+					NamedParameterUtils.transParam(args), keyType); // 因为有in (?)所以用namedParameterJdbcTemplate
+		}
+		long cost = System.currentTimeMillis() - start;
+		logSlow(cost, sql, args);
+		
+		List<T> list = new ArrayList<T>();
+		if(keys.isEmpty()) {
+			return list;
+		}
+		Map<Object, T> map = getByKeyList(clazz, new ArrayList<Object>(keys));
+		for(Object key : keys) {
+			T t = map.get(key);
+			if(t != null) { // 两次查询之间被删除的记录不再返回
+				list.add(t);
+			}
+		}
+		return list;
+	}
+	
+	/**
+	 * 从数据库查询列表，按配置合并并发的相同查询
+	 */
+	@SuppressWarnings("unchecked")
+	private <T> List<T> loadList(final Class<T> clazz, final StringBuilder sql, final Object... args) {
+		if(isSingleFlight()) {
+			SingleFlight.Result<Object> result = singleFlight.execute(
+					new QueryKey(clazz, sql.toString(), args),
+					new SingleFlight.Loader<Object>() {
+				@Override
+				public Object load() {
+					return doGetList(clazz, sql, args);
+				}
+			});
+			return copyFlightList((List<T>) result.getValue());
+		}
+		return doGetList(clazz, sql, args);
+	}
+	
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private <T> List<T> doGetList(Class<T> clazz, StringBuilder sql, Object... args) {
 		log(sql);
 		long start = System.currentTimeMillis();
 		List<T> list;
@@ -226,15 +1165,150 @@ public abstract class P1_QueryOp extends P0_JdbcTemplateOp {
 		return list;
 	}
 	
+	// ======================= 合并相同的查询 ========================
+	
+	private boolean isSingleFlight() {
+		return singleFlightMode != SingleFlightModeEnum.DISABLED
+				&& !TransactionSynchronizationManager.isActualTransactionActive();
+	}
+	
+	/**
+	 * 查询结果只作为复制的来源，执行查询的线程和共享结果的线程都拿到复制的对象，
+	 * 避免执行查询的线程修改对象时其它线程正在复制它；列表总是复制一份，调用者可以增删元素
+	 */
+	private <T> List<T> copyFlightList(List<T> list) {
+		if(list == null) {
+			return null;
+		}
+		List<T> result = new ArrayList<T>(list.size());
+		for(T t : list) {
+			result.add(copyFlightObject(t));
+		}
+		return result;
+	}
+	
+	private <T> T copyFlightObject(T t) {
+		if(t == null || singleFlightMode != SingleFlightModeEnum.COPY) {
+			return t;
+		}
+		T copy = DOCopyUtils.copy(t);
+		EntitySnapshot.record(copy);
+		return copy;
+	}
+	
+	/**
+	 * 相同查询被合并掉的次数
+	 */
+	public long getSingleFlightCoalescedCount() {
+		return singleFlight.getSharedCount();
+	}
+	
+	// ======================= 查询结果缓存 ========================
+	
+	/**缓存的key会长期保留，复制参数中的集合和数组，避免调用者之后修改参数影响key*/
+	private static Object[] copyArgs(Object[] args) {
+		if(args == null) {
+			return null;
+		}
+		Object[] copy = new Object[args.length];
+		for(int i = 0; i < args.length; i++) {
+			if(args[i] instanceof Collection) {
+				copy[i] = new ArrayList<Object>((Collection<?>) args[i]);
+			} else if(args[i] instanceof Object[]) {
+				copy[i] = copyArgs((Object[]) args[i]);
+			} else {
+				copy[i] = args[i];
+			}
+		}
+		return copy;
+	}
+	
+	/**从缓存拿到的对象同样记录脏字段检查的快照，join VO记录左右两个对象*/
+	private <T> void recordSnapshot(List<T> list) {
+		if(list.isEmpty()) {
+			return;
+		}
+		Class<?> clazz = list.get(0).getClass();
+		if(DOInfoReader.getJoinTable(clazz) == null) {
+			for(T t : list) {
+				EntitySnapshot.record(t);
+			}
+			return;
+		}
+		Field leftJoinField = DOInfoReader.getJoinLeftTable(clazz);
+		Field rightJoinField = DOInfoReader.getJoinRightTable(clazz);
+		for(T t : list) {
+			Object t1 = DOInfoReader.getValue(leftJoinField, t);
+			if(t1 != null) {
+				EntitySnapshot.record(t1);
+			}
+			Object t2 = DOInfoReader.getValue(rightJoinField, t);
+			if(t2 != null) {
+				EntitySnapshot.record(t2);
+			}
+		}
+	}
+	
+	/**
+	 * 查询的指纹：类、sql和参数都相同才是相同的查询
+	 */
+	private static class QueryKey {
+		private final Class<?> clazz;
+		private final String sql;
+		private final Object[] args;
+		private final int hashCode;
+		
+		private QueryKey(Class<?> clazz, String sql, Object[] args) {
+			this.clazz = clazz;
+			this.sql = sql;
+			this.args = args == null ? new Object[0] : args;
+			this.hashCode = (clazz.hashCode() * 31 + sql.hashCode()) * 31 + Arrays.deepHashCode(this.args);
+		}
+		
+		@Override
+		public int hashCode() {
+			return hashCode;
+		}
+		
+		@Override
+		public boolean equals(Object obj) {
+			if(!(obj instanceof QueryKey)) {
+				return false;
+			}
+			QueryKey other = (QueryKey) obj;
+			return hashCode == other.hashCode && clazz.equals(other.clazz)
+					&& sql.equals(other.sql) && Arrays.deepEquals(args, other.args);
+		}
+	}
+	
 	/**
 	 * 查询列表总数
 	 * @param clazz
 	 * @return
 	 */
 	private int getTotal(Class<?> clazz, String postSql, Object... args) {
+		TableMirror tableMirror = getTableMirror(clazz);
+		if(tableMirror != null) {
+			int total = tableMirror.count(postSql, args);
+			if(total >= 0) {
+				return total;
+			}
+		}
+		
 		StringBuilder sql = new StringBuilder();
-		sql.append(SQLUtils.getSelectCountSQL(clazz));
-		sql.append(SQLUtils.autoSetSoftDeleted(postSql, clazz));
+		sql.append(SQLUtils.getCountSQL(clazz, postSql));
+		
+		QueryResultCache queryCache = getQueryCache(clazz);
+		QueryKey key = null;
+		long[] versions = null;
+		if(queryCache != null) {
+			key = new QueryKey(clazz, sql.toString(), copyArgs(args));
+			Integer total = (Integer) queryCache.get(key);
+			if(total != null) {
+				return total;
+			}
+			versions = queryCache.getVersions();
+		}
 
 		log(sql);
 		long start = System.currentTimeMillis();
@@ -252,9 +1326,80 @@ public abstract class P1_QueryOp extends P0_JdbcTemplateOp {
 		
 		long cost = System.currentTimeMillis() - start;
 		logSlow(cost, sql, args);
+		if(queryCache != null) {
+			queryCache.put(key, rows, versions);
+		}
+		return rows;
+	}
+	
+	/**
+	 * 查询列表总数，缓存到表被修改或过期
+	 */
+	private int getCachedTotal(Class<?> clazz, String postSql, Object... args) {
+		QueryResultCache countCache = getTableMirror(clazz) == null ? getCountCache(clazz) : null;
+		if(countCache == null) {
+			return getTotal(clazz, postSql, args);
+		}
+		QueryKey key = new QueryKey(clazz, SQLUtils.getCountSQL(clazz, postSql), copyArgs(args));
+		Integer total = (Integer) countCache.get(key);
+		if(total != null) {
+			return total;
+		}
+		long[] versions = countCache.getVersions();
+		int rows = getTotal(clazz, postSql, args);
+		countCache.put(key, rows, versions);
 		return rows;
 	}
 	
+	/**
+	 * 估算列表总数：没有查询条件、没有软删除列的非join类用表的统计信息，否则用EXPLAIN估算的行数
+	 * @return 不能估算(有内存镜像、有group by、数据库不支持)时返回-1
+	 */
+	private int getEstimatedTotal(Class<?> clazz, String postSql, Object... args) {
+		if(getTableMirror(clazz) != null || SQLUtils.isGroupBy(postSql)) {
+			return -1; // 内存镜像的总数是精确的，分组的个数不能从扫描行数估算
+		}
+		try {
+			// 软删除的表会自动加上软删除条件，表的统计信息包含了已删除的记录，只能用EXPLAIN
+			if(DOInfoReader.getJoinTable(clazz) == null && DOInfoReader.getSoftDeleteColumn(clazz) == null
+					&& SQLUtils.isWithoutCondition(postSql)) {
+				String sql = SQLUtils.getTableRowsEstimateSQL();
+				String tableName = DOInfoReader.getTable(clazz).value();
+				log(sql);
+				List<Long> rows = jdbcTemplate.queryForList(sql, Long.class, tableName);
+				return rows.isEmpty() || rows.get(0) == null ? -1 : (int) Math.min(rows.get(0), Integer.MAX_VALUE);
+			}
+			
+			String sql = "EXPLAIN " + SQLUtils.getCountSQL(clazz, postSql);
+			log(sql);
+			List<Map<String, Object>> plan;
+			if(args == null || args.length == 0) {
+				plan = namedParameterJdbcTemplate.queryForList(sql, new HashMap<String, Object>());
+			} else {
+				plan = namedParameterJdbcTemplate.queryForList(NamedParameterUtils.trans(sql),
+						NamedParameterUtils.transParam(args)); // 因为有in (?)所以用namedParameterJdbcTemplate
+			}
+			// 嵌套循环join的结果行数约等于每张表的rows*filtered%的乘积
+			double estimate = -1;
+			for(Map<String, Object> row : plan) {
+				Object rows = row.get("rows");
+				if(!(rows instanceof Number)) {
+					continue;
+				}
+				double tableRows = ((Number) rows).doubleValue();
+				Object filtered = row.get("filtered");
+				if(filtered instanceof Number) {
+					tableRows = tableRows * ((Number) filtered).doubleValue() / 100;
+				}
+				estimate = estimate < 0 ? tableRows : estimate * tableRows;
+			}
+			return estimate < 0 ? -1 : (int) Math.min(Math.round(estimate), Integer.MAX_VALUE);
+		} catch (DataAccessException e) {
+			LOGGER.warn("estimate count fail, use exact count, class:{}, postSql:{}", clazz, postSql, e);
+			return -1;
+		}
+	}
+	
 	// ======================= 处理 RelatedColumn数据 ========================
 	
 	/**单个关联*/
@@ -361,28 +1506,29 @@ public abstract class P1_QueryOp extends P0_JdbcTemplateOp {
 						"where " + column.remoteColumn() + " in (?)", values);
 			}
 			
-			if(field.getType() == List.class) {
-				for(T t : tList) {
-					List<Object> value = new ArrayList<Object>();
-					for(Object obj : relateValues) {
-						Object o1 = DOInfoReader.getValue(relateField, t);
-						Object o2 = DOInfoReader.getValue(remoteField, obj);
-						if(o1 != null && o2 != null && o1.equals(o2)) {
-							value.add(obj);
-						}
-					}
-					DOInfoReader.setValue(field, t, value);
+			// 按关联值分组后再匹配，避免逐个对比
+			Map<Object, List<Object>> remoteMap = new HashMap<Object, List<Object>>();
+			for(Object obj : relateValues) {
+				Object o2 = DOInfoReader.getValue(remoteField, obj);
+				if(o2 == null) {
+					continue;
 				}
-			} else {
-				for(T t : tList) {
-					for(Object obj : relateValues) {
-						Object o1 = DOInfoReader.getValue(relateField, t);
-						Object o2 = DOInfoReader.getValue(remoteField, obj);
-						if(o1 != null && o2 != null && o1.equals(o2)) {
-							DOInfoReader.setValue(field, t, obj);
-							break;
-						}
-					}
+				List<Object> list = remoteMap.get(o2);
+				if(list == null) {
+					list = new ArrayList<Object>();
+					remoteMap.put(o2, list);
+				}
+				list.add(obj);
+			}
+			
+			for(T t : tList) {
+				Object o1 = DOInfoReader.getValue(relateField, t);
+				List<Object> matched = o1 == null ? null : remoteMap.get(o1);
+				if(field.getType() == List.class) {
+					DOInfoReader.setValue(field, t,
+							matched == null ? new ArrayList<Object>() : new ArrayList<Object>(matched));
+				} else if(matched != null) {
+					DOInfoReader.setValue(field, t, matched.get(0));
 				}
 			}
 		}
@@ -1,18 +1,39 @@
 package com.pugwoo.dbhelper.impl.part;
 
 import java.lang.reflect.Field;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
+import org.springframework.dao.DataAccessException;
+import org.springframework.jdbc.core.PreparedStatementCallback;
+import org.springframework.jdbc.core.PreparedStatementCreator;
+import org.springframework.jdbc.core.SqlTypeValue;
+import org.springframework.jdbc.core.StatementCreatorUtils;
+import org.springframework.jdbc.support.JdbcUtils;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 
 import com.pugwoo.dbhelper.sql.SQLAssert;
 import com.pugwoo.dbhelper.sql.SQLUtils;
 import com.pugwoo.dbhelper.utils.DOInfoReader;
+import com.pugwoo.dbhelper.utils.MicroBatcher;
 import com.pugwoo.dbhelper.utils.PreHandleObject;
 
 public abstract class P2_InsertOp extends P1_QueryOp {
+	
+	/**group commit的批量器，key为自增id是否回设和插入sql，插入的列相同的才能合并*/
+	private final ConcurrentMap<String, MicroBatcher<Object, Integer>> groupCommitBatchers =
+			new ConcurrentHashMap<String, MicroBatcher<Object, Integer>>();
 
 	@Override
 	public <T> int insert(T t) {
@@ -24,11 +45,16 @@ public abstract class P2_InsertOp extends P1_QueryOp {
 		if(list == null || list.isEmpty()) {
 			return 0;
 		}
-		int sum = 0;
+		List<Object> notNullList = new ArrayList<Object>();
 		for(Object obj : list) {
-			sum += insert(obj, false);
+			if(obj != null) {
+				notNullList.add(obj);
+			}
 		}
-		return sum;
+		if(notNullList.isEmpty()) {
+			return 0;
+		}
+		return insertBatch(notNullList, false);
 	}
 	
 	@Override
@@ -42,6 +68,11 @@ public abstract class P2_InsertOp extends P1_QueryOp {
 		List<Object> values = new ArrayList<Object>();
 		String sql = SQLUtils.getInsertSQL(t, values, isWithNullValue);
 		
+		if(DOInfoReader.getTable(t.getClass()).groupCommit()
+				&& !TransactionSynchronizationManager.isActualTransactionActive()) {
+			return groupCommitInsert(t, isWithNullValue, sql);
+		}
+		
 		log(sql);
 		long start = System.currentTimeMillis();
 		int rows = jdbcTemplate.update(sql.toString(), values.toArray()); // 此处可以用jdbcTemplate，因为没有in (?)表达式
@@ -51,11 +82,75 @@ public abstract class P2_InsertOp extends P1_QueryOp {
 					Long.class);
 			DOInfoReader.setValue(autoIncrementField, t, id);
 		}
+		if(rows > 0) {
+			notifyInserted(t.getClass());
+		}
 		long cost = System.currentTimeMillis() - start;
 		logSlow(cost, sql, values);
 		return rows;
 	}
 	
+	/**
+	 * 通过group commit插入，插入的列相同的并发请求合并成一条多行insert语句
+	 * @param sql 该对象单独插入时的sql，用于区分插入的列
+	 */
+	private <T> int groupCommitInsert(T t, final boolean isWithNullValue, String sql) {
+		final Field autoIncrementField = DOInfoReader.getAutoIncrementField(t.getClass());
+		final boolean isSetAutoIncrementId = autoIncrementField != null
+				&& DOInfoReader.getValue(autoIncrementField, t) == null;
+		String groupKey = isSetAutoIncrementId + ":" + sql;
+		
+		MicroBatcher<Object, Integer> batcher = groupCommitBatchers.get(groupKey);
+		if(batcher == null) {
+			batcher = new MicroBatcher<Object, Integer>(
+					new MicroBatcher.BatchHandler<Object, Integer>() {
+				@Override
+				public void handle(List<MicroBatcher.Call<Object, Integer>> calls) {
+					List<Object> list = new ArrayList<Object>();
+					for(MicroBatcher.Call<Object, Integer> call : calls) {
+						list.add(call.getRequest());
+					}
+					try {
+						int rows = insertInOneSQL(list, isWithNullValue,
+								isSetAutoIncrementId ? autoIncrementField : null);
+						if(rows != calls.size()) {
+							LOGGER.warn("group commit insert {} rows but {} rows affected", calls.size(), rows);
+						}
+						// 一条多行insert语句是原子的，执行成功时每个调用者的记录都插入了一条
+						for(MicroBatcher.Call<Object, Integer> call : calls) {
+							call.setResult(1);
+						}
+						return;
+					} catch (RuntimeException e) {
+						if(calls.size() == 1) {
+							throw e;
+						}
+						LOGGER.warn("group commit insert {} rows fail, insert one by one", calls.size(), e);
+					}
+					// 批量失败时逐条插入，只有出错的那条返回异常
+					for(MicroBatcher.Call<Object, Integer> call : calls) {
+						try {
+							call.setResult(insertInOneSQL(Collections.singletonList(call.getRequest()),
+									isWithNullValue, isSetAutoIncrementId ? autoIncrementField : null));
+						} catch (RuntimeException e) {
+							call.setException(e);
+						}
+					}
+				}
+			}, groupCommitWindowMicros, groupCommitMaxRows);
+			MicroBatcher<Object, Integer> old = groupCommitBatchers.putIfAbsent(groupKey, batcher);
+			if(old != null) {
+				batcher = old;
+			}
+		}
+		
+		Integer rows = batcher.submit(t);
+		if(rows != null && rows > 0) {
+			notifyInserted(t.getClass());
+		}
+		return rows == null ? 0 : rows;
+	}
+	
 	@Override
 	public <T> int insertWhereNotExist(T t, String whereSql, Object... args) {
 		return insertWhereNotExist(t, false, whereSql, args);
@@ -91,11 +186,103 @@ public abstract class P2_InsertOp extends P1_QueryOp {
 					Long.class);
 			DOInfoReader.setValue(autoIncrementField, t, id);
 		}
+		if(rows > 0) {
+			notifyInserted(t.getClass());
+		}
 		long cost = System.currentTimeMillis() - start;
 		logSlow(cost, sql, values);
 		return rows;
 	}
 		
+	/**
+	 * 批量插入，类和插入的列相同的元素拼成多行insert语句，按batchSize分批执行，并回设自增id。
+	 * @param list 元素不能为null，可以是不同的类
+	 * @param isWithNullValue 标记是否将null字段放到insert语句中
+	 * @return 数据库实际修改的条数
+	 */
+	protected <T> int insertBatch(List<T> list, boolean isWithNullValue) {
+		// 类和插入的列相同，且自增id都需要回设或都不需要回设的，才能放在同一条sql中
+		Map<String, List<T>> groups = new LinkedHashMap<String, List<T>>();
+		for(T t : list) {
+			PreHandleObject.preHandleInsert(t);
+			Field autoIncrementField = DOInfoReader.getAutoIncrementField(t.getClass());
+			boolean isSetAutoIncrementId = autoIncrementField != null
+					&& DOInfoReader.getValue(autoIncrementField, t) == null;
+			String groupKey = t.getClass().getName() + ":" + isSetAutoIncrementId + ":"
+					+ SQLUtils.getInsertSQL(t, new ArrayList<Object>(), isWithNullValue);
+			List<T> group = groups.get(groupKey);
+			if(group == null) {
+				group = new ArrayList<T>();
+				groups.put(groupKey, group);
+			}
+			group.add(t);
+		}
+		
+		int rows = 0;
+		for(List<T> group : groups.values()) {
+			Class<?> clazz = group.get(0).getClass();
+			Field autoIncrementField = DOInfoReader.getAutoIncrementField(clazz);
+			boolean isSetAutoIncrementId = autoIncrementField != null
+					&& DOInfoReader.getValue(autoIncrementField, group.get(0)) == null;
+			int groupRows = 0;
+			for(int from = 0; from < group.size(); from += batchSize) {
+				List<T> subList = group.subList(from, Math.min(from + batchSize, group.size()));
+				groupRows += insertInOneSQL(subList, isWithNullValue,
+						isSetAutoIncrementId ? autoIncrementField : null);
+			}
+			if(groupRows > 0) {
+				notifyInserted(clazz);
+			}
+			rows += groupRows;
+		}
+		return rows;
+	}
+	
+	/**
+	 * 拼成一条多行insert语句插入，要求list中插入的列相同
+	 * @param autoIncrementField 不为null时，通过jdbc的generatedKeys按顺序回设自增id
+	 */
+	private <T> int insertInOneSQL(final List<T> list, boolean isWithNullValue,
+			final Field autoIncrementField) {
+		final List<Object> values = new ArrayList<Object>();
+		final String sql = SQLUtils.getInsertSQLOfSameColumns(list, values, isWithNullValue);
+		
+		log(sql);
+		long start = System.currentTimeMillis();
+		int rows = jdbcTemplate.execute(new PreparedStatementCreator() {
+			@Override
+			public PreparedStatement createPreparedStatement(Connection con) throws SQLException {
+				return autoIncrementField == null ? con.prepareStatement(sql)
+						: con.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS);
+			}
+		}, new PreparedStatementCallback<Integer>() {
+			@Override
+			public Integer doInPreparedStatement(PreparedStatement ps)
+					throws SQLException, DataAccessException {
+				for(int i = 0; i < values.size(); i++) {
+					StatementCreatorUtils.setParameterValue(ps, i + 1,
+							SqlTypeValue.TYPE_UNKNOWN, values.get(i));
+				}
+				int rows = ps.executeUpdate();
+				if(autoIncrementField != null) {
+					ResultSet rs = ps.getGeneratedKeys();
+					try {
+						int index = 0;
+						while(rs.next() && index < list.size()) {
+							DOInfoReader.setValue(autoIncrementField, list.get(index++), rs.getLong(1));
+						}
+					} finally {
+						JdbcUtils.closeResultSet(rs);
+					}
+				}
+				return rows;
+			}
+		});
+		long cost = System.currentTimeMillis() - start;
+		logSlow(cost, sql, values);
+		return rows;
+	}
+	
 	@Override
 	public <T> int insertWithNullInOneSQL(List<T> list) {
 		if(list == null || list.isEmpty()) {
@@ -112,7 +299,11 @@ public abstract class P2_InsertOp extends P1_QueryOp {
 		List<Object> values = new ArrayList<Object>();
 		String sql = SQLUtils.getInsertSQLWithNull(list, values);
 				
-		return jdbcExecuteUpdate(sql.toString(), values.toArray());
+		int rows = jdbcExecuteUpdate(sql.toString(), values.toArray());
+		if(rows > 0) {
+			notifyInserted(list.get(0).getClass());
+		}
+		return rows;
 	}
 	
 }
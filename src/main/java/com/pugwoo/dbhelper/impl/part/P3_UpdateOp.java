@@ -1,17 +1,49 @@
 package com.pugwoo.dbhelper.impl.part;
 
+import java.lang.reflect.Field;
+import java.sql.Statement;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.TransactionStatus;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionCallback;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionTemplate;
 
+import com.pugwoo.dbhelper.annotation.Column;
+import com.pugwoo.dbhelper.exception.InvalidParameterException;
 import com.pugwoo.dbhelper.exception.NullKeyValueException;
+import com.pugwoo.dbhelper.sql.SQLAssert;
 import com.pugwoo.dbhelper.sql.SQLUtils;
 import com.pugwoo.dbhelper.utils.DOInfoReader;
+import com.pugwoo.dbhelper.utils.EntitySnapshot;
+import com.pugwoo.dbhelper.utils.IncrementBuffer;
 import com.pugwoo.dbhelper.utils.PreHandleObject;
 
-public abstract class P3_UpdateOp extends P2_InsertOp {
+public abstract class P3_UpdateOp extends P2_InsertOp implements DisposableBean {
+	
+	/**increment的增量缓存*/
+	private final IncrementBuffer incrementBuffer = new IncrementBuffer();
+	private volatile ScheduledExecutorService incrementScheduler;
+	/**destroy之后increment直接写数据库，不再缓存*/
+	private volatile boolean incrementDestroyed;
+	/**destroy时写入缓存的最多次数，仍失败的增量记录日志后丢弃*/
+	private static final int DESTROY_FLUSH_TIMES = 3;
+	/**flushIncrement每批在独立的事务中执行*/
+	private TransactionTemplate incrementTransactionTemplate;
 
 	@Override
 	public <T> int update(T t) throws NullKeyValueException {
@@ -35,27 +67,60 @@ public abstract class P3_UpdateOp extends P2_InsertOp {
 	
 	@Override @Transactional
 	public <T> int updateWithNull(List<T> list) throws NullKeyValueException {
-		if(list == null || list.isEmpty()) {
-			return 0;
-		}
-		int rows = 0;
-		for(T t : list) {
-			if(t != null) {
-				rows += updateWithNull(t);
-			}
-		}
-		return rows;
+		return updateBatch(list, true);
 	}
 	
 	@Override @Transactional
 	public <T> int update(List<T> list) throws NullKeyValueException {
+		return updateBatch(list, false);
+	}
+	
+	/**
+	 * 批量更新，生成的update语句相同的元素放在同一个jdbc batch中，按batchSize分批执行
+	 * @param list 可以包含null元素，会被忽略
+	 * @param withNull
+	 * @return 数据库实际修改的条数，驱动不返回行数的语句(SUCCESS_NO_INFO)按1条计
+	 */
+	protected <T> int updateBatch(List<T> list, boolean withNull) throws NullKeyValueException {
 		if(list == null || list.isEmpty()) {
 			return 0;
 		}
-		int rows = 0;
+		
+		Map<String, List<Object[]>> sqlToArgs = new LinkedHashMap<String, List<Object[]>>();
+		Map<String, List<T>> sqlToObjects = new LinkedHashMap<String, List<T>>();
 		for(T t : list) {
-			if(t != null) {
-				rows += update(t);
+			if(t == null) {
+				continue;
+			}
+			List<Object> values = new ArrayList<Object>();
+			String sql = getUpdateSQL(t, withNull, null, values);
+			if(sql == null) {
+				continue;
+			}
+			List<Object[]> args = sqlToArgs.get(sql);
+			if(args == null) {
+				args = new ArrayList<Object[]>();
+				sqlToArgs.put(sql, args);
+				sqlToObjects.put(sql, new ArrayList<T>());
+			}
+			args.add(values.toArray());
+			sqlToObjects.get(sql).add(t);
+		}
+		
+		int rows = 0;
+		for(Map.Entry<String, List<Object[]>> entry : sqlToArgs.entrySet()) {
+			int[] batchRows = jdbcBatchUpdate(entry.getKey(), entry.getValue());
+			notifyChanged(sqlToObjects.get(entry.getKey()));
+			List<T> objects = sqlToObjects.get(entry.getKey());
+			for(int i = 0; i < batchRows.length; i++) {
+				if(batchRows[i] > 0) {
+					rows += batchRows[i];
+				} else if(batchRows[i] == Statement.SUCCESS_NO_INFO) {
+					rows++; // 驱动改写了batch(如rewriteBatchedStatements=true)时不返回行数，按1条计
+				}
+				if(batchRows[i] != 0) {
+					refreshSnapshot(objects.get(i));
+				}
 			}
 		}
 		return rows;
@@ -64,19 +129,66 @@ public abstract class P3_UpdateOp extends P2_InsertOp {
 	private <T> int _update(T t, boolean withNull, String postSql, Object... args) 
 			throws NullKeyValueException {
 		
-		if(DOInfoReader.getNotKeyColumns(t.getClass()).isEmpty()) {
+		List<Object> values = new ArrayList<Object>();
+		String sql = getUpdateSQL(t, withNull, postSql, values);
+		if(sql == null) {
 			return 0; // not need to update
 		}
+		if(args != null) {
+			values.addAll(Arrays.asList(args));
+		}
+		
+		int rows = jdbcExecuteUpdate(sql, values.toArray());
+		notifyChanged(Collections.singletonList(t));
+		if(rows > 0) {
+			refreshSnapshot(t);
+		}
+		return rows;
+	}
+	
+	/**
+	 * 预处理对象并生成update语句。如果对象有dirtyCheck快照，则只更新有变化的列。
+	 * @return 返回null表示不需要更新
+	 */
+	private <T> String getUpdateSQL(T t, boolean withNull, String postSql, List<Object> values) {
+		List<Field> notKeyFields = DOInfoReader.getNotKeyColumns(t.getClass());
+		if(notKeyFields.isEmpty()) {
+			return null; // not need to update
+		}
 		
 		PreHandleObject.preHandleUpdate(t);
 		
-		List<Object> values = new ArrayList<Object>();
-		String sql = SQLUtils.getUpdateSQL(t, values, withNull, postSql);
-		if(args != null) {
-			values.addAll(Arrays.asList(args));
+		EntitySnapshot snapshot = EntitySnapshot.get(t);
+		if(snapshot == null) {
+			return SQLUtils.getUpdateSQL(t, values, withNull, postSql);
+		}
+		
+		List<Field> changedFields = snapshot.getChangedFields(t);
+		if(changedFields.isEmpty()) {
+			// 带postSql的CAS更新需要数据库返回是否命中，所以不能跳过
+			if(postSql == null || postSql.trim().isEmpty()) {
+				return null;
+			}
+			return SQLUtils.getUpdateSQL(t, values, withNull, postSql);
 		}
 		
-		return jdbcExecuteUpdate(sql, values.toArray());
+		// 有变化的列，加上更新时自动设置时间的列
+		List<Field> updateFields = new ArrayList<Field>();
+		for(Field field : notKeyFields) {
+			Column column = field.getAnnotation(Column.class);
+			if(changedFields.contains(field) || column.setTimeWhenUpdate()
+					&& Date.class.isAssignableFrom(field.getType())) {
+				updateFields.add(field);
+			}
+		}
+		return SQLUtils.getUpdateSQL(t, values, withNull, postSql, updateFields);
+	}
+	
+	/**更新成功后，把快照刷新为当前值*/
+	private <T> void refreshSnapshot(T t) {
+		if(t != null && EntitySnapshot.get(t) != null) {
+			EntitySnapshot.record(t);
+		}
 	}
 	
 	@Override
@@ -92,7 +204,192 @@ public abstract class P3_UpdateOp extends P2_InsertOp {
 		
 		String sql = SQLUtils.getCustomUpdateSQL(t, values, setSql);
 		
-		return jdbcExecuteUpdate(sql, values.toArray()); // 不会有in(?)表达式
+		int rows = jdbcExecuteUpdate(sql, values.toArray()); // 不会有in(?)表达式
+		notifyChanged(Collections.singletonList(t)); // where条件只有主键，只需要失效该主键
+		return rows;
+	}
+	
+	@Override
+	public <T> void increment(Class<T> clazz, Object keyValue, String columnName, long delta)
+			throws NullKeyValueException {
+		if(keyValue == null) {
+			throw new NullKeyValueException();
+		}
+		SQLAssert.onlyOneKeyColumn(clazz);
+		Column column = getIncrementColumn(clazz, columnName);
+		if(delta == 0) {
+			return;
+		}
+		
+		// 事务中直接执行，保证和事务一起提交或回滚
+		if(incrementMaxStalenessMs <= 0 || incrementDestroyed
+				|| TransactionSynchronizationManager.isActualTransactionActive()) {
+			List<Object> values = new ArrayList<Object>();
+			String sql = SQLUtils.getIncrementSQL(clazz, column, delta, keyValue, values);
+			jdbcExecuteUpdate(sql, values.toArray());
+			notifyChanged(clazz, Collections.singletonList(keyValue));
+			return;
+		}
+		
+		if(incrementScheduler == null) {
+			startIncrementScheduler();
+		}
+		incrementBuffer.add(clazz, column.value(), keyValue, delta);
+		if(incrementDestroyed) { // 和destroy并发时，destroy可能已经写完缓存
+			flushIncrement();
+		}
+	}
+	
+	@Override
+	public int flushIncrement() {
+		synchronized (incrementBuffer) {
+			List<IncrementBuffer.Entry> entries = incrementBuffer.drain();
+			if(entries.isEmpty()) {
+				return 0;
+			}
+			if(incrementTransactionTemplate == null) {
+				incrementTransactionTemplate = new TransactionTemplate(
+						new DataSourceTransactionManager(jdbcTemplate.getDataSource()));
+				incrementTransactionTemplate.setPropagationBehavior(TransactionDefinition.PROPAGATION_REQUIRES_NEW);
+			}
+			
+			Map<String, List<IncrementBuffer.Entry>> sqlToEntries =
+					new LinkedHashMap<String, List<IncrementBuffer.Entry>>();
+			Map<String, List<Object[]>> sqlToArgs = new LinkedHashMap<String, List<Object[]>>();
+			for(IncrementBuffer.Entry entry : entries) {
+				IncrementBuffer.Key key = entry.getKey();
+				Column column = getIncrementColumn(key.getClazz(), key.getColumnName());
+				List<Object> values = new ArrayList<Object>();
+				String sql = SQLUtils.getIncrementSQL(key.getClazz(), column, entry.getDelta(),
+						key.getKeyValue(), values);
+				List<Object[]> args = sqlToArgs.get(sql);
+				if(args == null) {
+					args = new ArrayList<Object[]>();
+					sqlToArgs.put(sql, args);
+					sqlToEntries.put(sql, new ArrayList<IncrementBuffer.Entry>());
+				}
+				args.add(values.toArray());
+				sqlToEntries.get(sql).add(entry);
+			}
+			
+			int rows = 0;
+			RuntimeException exception = null;
+			for(Map.Entry<String, List<Object[]>> e : sqlToArgs.entrySet()) {
+				final String sql = e.getKey();
+				List<Object[]> args = e.getValue();
+				List<IncrementBuffer.Entry> sqlEntries = sqlToEntries.get(sql);
+				// 每批在一个事务中提交，失败时整批回滚，把增量放回缓存下次再写，不会重复累加
+				for(int from = 0; from < args.size(); from += batchSize) {
+					final List<Object[]> batchArgs = args.subList(from, Math.min(from + batchSize, args.size()));
+					int to = from + batchArgs.size();
+					try {
+						int[] batchRows = incrementTransactionTemplate.execute(new TransactionCallback<int[]>() {
+							@Override
+							public int[] doInTransaction(TransactionStatus status) {
+								return jdbcBatchUpdate(sql, batchArgs);
+							}
+						});
+						for(int r : batchRows) {
+							if(r > 0) {
+								rows += r;
+							}
+						}
+						for(IncrementBuffer.Entry entry : sqlEntries.subList(from, to)) {
+							notifyChanged(entry.getKey().getClazz(),
+									Collections.singletonList(entry.getKey().getKeyValue()));
+						}
+					} catch (RuntimeException ex) {
+						LOGGER.error("flush increment fail, sql:{}", sql, ex);
+						for(IncrementBuffer.Entry entry : sqlEntries.subList(from, to)) {
+							IncrementBuffer.Key key = entry.getKey();
+							incrementBuffer.add(key.getClazz(), key.getColumnName(),
+									key.getKeyValue(), entry.getDelta());
+						}
+						exception = ex;
+					}
+				}
+			}
+			if(exception != null) {
+				throw exception;
+			}
+			return rows;
+		}
+	}
+	
+	/**
+	 * 停止定时写入，并把缓存中的increment增量写入数据库。由spring在容器关闭时调用。<br>
+	 * 写入失败的会重试，仍然失败的增量记录日志后丢弃；之后的increment直接写数据库。
+	 */
+	@Override
+	public void destroy() {
+		synchronized (incrementBuffer) {
+			incrementDestroyed = true;
+			if(incrementScheduler != null) {
+				incrementScheduler.shutdown();
+				incrementScheduler = null;
+			}
+			for(int i = 0; i < DESTROY_FLUSH_TIMES; i++) {
+				try {
+					flushIncrement();
+					return;
+				} catch (RuntimeException e) { // 已记录日志，失败的增量放回了缓存
+				}
+			}
+			for(IncrementBuffer.Entry entry : incrementBuffer.drain()) {
+				IncrementBuffer.Key key = entry.getKey();
+				LOGGER.error("drop increment at destroy, class:{}, column:{}, key:{}, delta:{}",
+						key.getClazz().getName(), key.getColumnName(), key.getKeyValue(), entry.getDelta());
+			}
+		}
+	}
+	
+	private void startIncrementScheduler() {
+		synchronized (incrementBuffer) {
+			if(incrementScheduler != null || incrementDestroyed) {
+				return;
+			}
+			ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(
+					new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "nimble-orm-increment-flush");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+			scheduler.scheduleWithFixedDelay(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						flushIncrement();
+					} catch (Throwable e) { // 已记录日志，增量留在缓存中等下次写入
+					}
+				}
+			}, incrementMaxStalenessMs, incrementMaxStalenessMs, TimeUnit.MILLISECONDS);
+			incrementScheduler = scheduler;
+		}
+	}
+	
+	private Column getIncrementColumn(Class<?> clazz, String columnName) {
+		if(columnName != null) {
+			for(Field field : DOInfoReader.getNotKeyColumns(clazz)) {
+				Column column = field.getAnnotation(Column.class);
+				if(column.value().equalsIgnoreCase(columnName)) {
+					if(!isNumericType(field.getType())) {
+						throw new InvalidParameterException("column " + columnName + " of class "
+								+ clazz.getName() + " is not numeric, can not increment");
+					}
+					return column;
+				}
+			}
+		}
+		throw new InvalidParameterException("class " + clazz.getName()
+				+ " has no not-key column " + columnName);
+	}
+	
+	private static boolean isNumericType(Class<?> type) {
+		return Number.class.isAssignableFrom(type) || type == int.class || type == long.class
+				|| type == short.class || type == byte.class || type == double.class || type == float.class;
 	}
 	
 }
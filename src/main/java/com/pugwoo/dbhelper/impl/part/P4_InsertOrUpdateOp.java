@@ -1,11 +1,23 @@
 package com.pugwoo.dbhelper.impl.part;
 
 import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import org.springframework.transaction.annotation.Transactional;
 
+import com.pugwoo.dbhelper.annotation.Column;
+import com.pugwoo.dbhelper.enums.UpsertResultEnum;
+import com.pugwoo.dbhelper.sql.SQLAssert;
+import com.pugwoo.dbhelper.sql.SQLUtils;
 import com.pugwoo.dbhelper.utils.DOInfoReader;
+import com.pugwoo.dbhelper.utils.PreHandleObject;
 
 public abstract class P4_InsertOrUpdateOp extends P3_UpdateOp {
 
@@ -37,30 +49,197 @@ public abstract class P4_InsertOrUpdateOp extends P3_UpdateOp {
 	
 	@Override @Transactional
 	public <T> int insertOrUpdate(List<T> list) {
+		return insertOrUpdateBatch(list, false);
+	}
+	
+	@Override @Transactional
+	public <T> int insertOrUpdateWithNull(List<T> list) {
+		return insertOrUpdateBatch(list, true);
+	}
+	
+	/**
+	 * 有主键的元素批量更新，没有主键的元素批量插入。
+	 * 按列表顺序把连续的、同一个类的更新或插入作为一段批量执行，段之间保持列表的顺序
+	 */
+	private <T> int insertOrUpdateBatch(List<T> list, boolean withNull) {
 		if(list == null || list.isEmpty()) {
 			return 0;
 		}
 		int rows = 0;
+		List<T> run = new ArrayList<T>();
+		boolean isRunUpdate = false;
 		for(T t : list) {
-			if(t != null) {
-				rows += insertOrUpdate(t);
+			if(t == null) {
+				continue;
+			}
+			boolean isUpdate = isWithKey(t, DOInfoReader.getColumns(t.getClass()));
+			if(!run.isEmpty() && (isUpdate != isRunUpdate || t.getClass() != run.get(0).getClass())) {
+				rows += isRunUpdate ? updateBatch(run, withNull) : insertBatch(run, withNull);
+				run = new ArrayList<T>();
 			}
+			isRunUpdate = isUpdate;
+			run.add(t);
+		}
+		if(!run.isEmpty()) {
+			rows += isRunUpdate ? updateBatch(run, withNull) : insertBatch(run, withNull);
 		}
 		return rows;
 	}
 	
+	@Override
+	public <T> int upsert(T t) {
+		return upsert(t, false);
+	}
+	
+	@Override
+	public <T> int upsertWithNull(T t) {
+		return upsert(t, true);
+	}
+	
 	@Override @Transactional
-	public <T> int insertOrUpdateWithNull(List<T> list) {
-		if(list == null || list.isEmpty()) {
+	public <T> List<UpsertResultEnum> upsert(List<T> list) {
+		return upsert(list, false);
+	}
+	
+	@Override @Transactional
+	public <T> List<UpsertResultEnum> upsertWithNull(List<T> list) {
+		return upsert(list, true);
+	}
+	
+	private <T> int upsert(T t, boolean withNull) {
+		if(t == null) {
 			return 0;
 		}
-		int rows = 0;
+		
+		List<Object> values = new ArrayList<Object>();
+		String sql = getUpsertSQL(t, values, withNull);
+		
+		log(sql);
+		long start = System.currentTimeMillis();
+		int rows = jdbcTemplate.update(sql, values.toArray()); // 此处可以用jdbcTemplate，因为没有in (?)表达式
+		if(rows > 1) { // 更新了已有记录，没有主键时是按唯一索引更新的，失效整张表
+			notifyChanged(Collections.singletonList(t));
+		} else if(rows == 1) { // 没有设置useAffectedRows时也可能是值没有变化的已有记录
+			notifyInserted(t.getClass());
+		}
+		// 插入和更新已有记录时LAST_INSERT_ID()都是该记录的id，见getInsertOnDuplicateKeyUpdateSQL
+		Field autoIncrementField = DOInfoReader.getAutoIncrementField(t.getClass());
+		if(autoIncrementField != null && DOInfoReader.getValue(autoIncrementField, t) == null) {
+			Long id = jdbcTemplate.queryForObject("SELECT LAST_INSERT_ID()",
+					Long.class);
+			DOInfoReader.setValue(autoIncrementField, t, id);
+		}
+		long cost = System.currentTimeMillis() - start;
+		logSlow(cost, sql, values);
+		return rows;
+	}
+	
+	private <T> List<UpsertResultEnum> upsert(List<T> list, boolean withNull) {
+		List<UpsertResultEnum> result = new ArrayList<UpsertResultEnum>();
+		if(list == null || list.isEmpty()) {
+			return result;
+		}
+		List<T> notNullList = new ArrayList<T>();
 		for(T t : list) {
 			if(t != null) {
-				rows += insertOrUpdateWithNull(t);
+				notNullList.add(t);
 			}
 		}
-		return rows;
+		if(notNullList.isEmpty()) {
+			return result;
+		}
+		SQLAssert.allSameClass(notNullList);
+		
+		// 相同sql的行放在同一个jdbc batch中执行，sql由每行要插入和更新的列决定
+		Map<String, List<Integer>> sqlToIndexes = new LinkedHashMap<String, List<Integer>>();
+		List<Object[]> args = new ArrayList<Object[]>();
+		for(int i = 0; i < notNullList.size(); i++) {
+			List<Object> values = new ArrayList<Object>();
+			String sql = getUpsertSQL(notNullList.get(i), values, withNull);
+			args.add(values.toArray());
+			List<Integer> indexes = sqlToIndexes.get(sql);
+			if(indexes == null) {
+				indexes = new ArrayList<Integer>();
+				sqlToIndexes.put(sql, indexes);
+			}
+			indexes.add(i);
+		}
+		
+		UpsertResultEnum[] results = new UpsertResultEnum[notNullList.size()];
+		for(Map.Entry<String, List<Integer>> entry : sqlToIndexes.entrySet()) {
+			List<Object[]> batchArgs = new ArrayList<Object[]>();
+			for(Integer index : entry.getValue()) {
+				batchArgs.add(args.get(index));
+			}
+			int[] rows = jdbcBatchUpdate(entry.getKey(), batchArgs);
+			for(int i = 0; i < rows.length; i++) {
+				results[entry.getValue().get(i)] = UpsertResultEnum.getByAffectedRows(rows[i], useAffectedRows);
+			}
+		}
+		
+		List<T> updatedList = new ArrayList<T>();
+		boolean isInserted = false;
+		for(int i = 0; i < results.length; i++) {
+			if(results[i] == UpsertResultEnum.UPDATED || results[i] == UpsertResultEnum.UNKNOWN) {
+				updatedList.add(notNullList.get(i));
+			} else if(results[i] == UpsertResultEnum.INSERTED
+					|| results[i] == UpsertResultEnum.INSERTED_OR_UNCHANGED) {
+				isInserted = true;
+			}
+		}
+		if(!updatedList.isEmpty()) {
+			notifyChanged(updatedList);
+		}
+		if(isInserted) {
+			notifyInserted(notNullList.get(0).getClass());
+		}
+		
+		for(UpsertResultEnum e : results) {
+			result.add(e);
+		}
+		return result;
+	}
+	
+	/**
+	 * 生成单个对象的insert ... on duplicate key update语句。<br>
+	 * 由preHandleInsert补上的默认值(如createTime、insertDefault)只在插入时生效，不会覆盖已有记录；
+	 * setTimeWhenUpdate的字段在更新时总是更新；软删除列总是更新，已被软删除的记录会恢复。
+	 */
+	private <T> String getUpsertSQL(T t, List<Object> values, boolean withNull) {
+		List<Field> fields = DOInfoReader.getColumns(t.getClass());
+		Field softDeleteField = DOInfoReader.getSoftDeleteColumn(t.getClass());
+		
+		Set<Field> nullFields = new HashSet<Field>();
+		for(Field field : fields) {
+			if(DOInfoReader.getValue(field, t) == null) {
+				nullFields.add(field);
+			}
+		}
+		PreHandleObject.preHandleInsert(t);
+		PreHandleObject.preHandleUpdate(t);
+		
+		List<Field> insertFields = new ArrayList<Field>();
+		List<Field> updateFields = new ArrayList<Field>();
+		for(Field field : fields) {
+			Object value = DOInfoReader.getValue(field, t);
+			if(!withNull && value == null) {
+				continue;
+			}
+			insertFields.add(field);
+			
+			Column column = field.getAnnotation(Column.class);
+			if(column.isKey()) {
+				continue;
+			}
+			boolean isSetTimeWhenUpdate = column.setTimeWhenUpdate()
+					&& Date.class.isAssignableFrom(field.getType());
+			boolean isFilledWhenInsert = nullFields.contains(field) && value != null;
+			if(isSetTimeWhenUpdate || field.equals(softDeleteField) || !isFilledWhenInsert) {
+				updateFields.add(field);
+			}
+		}
+		
+		return SQLUtils.getInsertOnDuplicateKeyUpdateSQL(t, values, insertFields, updateFields);
 	}
 	
 	@Override @Transactional
@@ -77,28 +256,31 @@ public abstract class P4_InsertOrUpdateOp extends P3_UpdateOp {
 		if(newList == null) {
 			return 0;
 		}
-		if((dbList == null || dbList != null && dbList.isEmpty()) && newList.isEmpty()) {
+		if((dbList == null || dbList.isEmpty()) && newList.isEmpty()) {
 			return 0; // 不需要处理了
 		}
 		
-		List<Field> fields = DOInfoReader.getColumns(
-				dbList != null && !dbList.isEmpty() ? dbList.get(0).getClass()
-						: newList.get(0).getClass());
-		
-		// 1. dbList中有key的，但是newList中没有的，删除掉
-		for(T t1 : dbList) {
-			if(isWithKey(t1, fields)) {
-				boolean isNewExists = false;
-				for(T t2 : newList) {
-					if(isKeyEquals(t1, t2, fields)) {
-						isNewExists = true;
-						break;
-					}
+		// 1. dbList中有key的，但是newList中没有的，删除掉。key用hash比较，只需要遍历一次
+		if(dbList != null && !dbList.isEmpty()) {
+			List<Field> keyFields = DOInfoReader.getKeyColumns(dbList.get(0).getClass());
+			Set<List<Object>> newKeys = new HashSet<List<Object>>();
+			for(T t2 : newList) {
+				List<Object> key = getKeyValues(t2, keyFields);
+				if(key != null) {
+					newKeys.add(key);
 				}
-				if(!isNewExists) {
-					deleteByKey(t1);
+			}
+			
+			List<T> deleteList = new ArrayList<T>();
+			for(T t1 : dbList) {
+				List<Object> key = getKeyValues(t1, keyFields);
+				if(key != null && !newKeys.contains(key)) {
+					deleteList.add(t1);
 				}
 			}
+			if(!deleteList.isEmpty()) {
+				deleteByKey(deleteList);
+			}
 		}
 		
 		// 2. insert or update new list
@@ -106,28 +288,22 @@ public abstract class P4_InsertOrUpdateOp extends P3_UpdateOp {
 	}
 	
 	/**
-	 * 判断两个对象的key是否相等,只有都存在所有的key，且key（如多个，则每个）都相等，才返回true
-	 * @param t1
-	 * @param t2
-	 * @param fields
-	 * @return
+	 * 获得对象的主键值，用于hash比较
+	 * @return 只要有一个主键值是null，就返回null
 	 */
-	private <T> boolean isKeyEquals(T t1, T t2, List<Field> fields) {
-		if(t1 == null || t2 == null || fields == null) {
-			 return false;
-		}
-		List<Field> keyFields = DOInfoReader.getKeyColumns(t1.getClass());
-		if(keyFields == null || keyFields.isEmpty()) {
-			return false;
+	protected <T> List<Object> getKeyValues(T t, List<Field> keyFields) {
+		if(t == null) {
+			return null;
 		}
+		List<Object> keyValues = new ArrayList<Object>(keyFields.size());
 		for(Field keyField : keyFields) {
-			Object key1 = DOInfoReader.getValue(keyField, t1);
-			Object key2 = DOInfoReader.getValue(keyField, t2);
-			if(key1 == null || key2 == null || !key1.equals(key2)) {
-				return false;
+			Object value = DOInfoReader.getValue(keyField, t);
+			if(value == null) {
+				return null;
 			}
+			keyValues.add(value);
 		}
-		return true;
+		return keyValues;
 	}
 	
 	/**判断对象是否有主键值，必须全部有才返回true*/
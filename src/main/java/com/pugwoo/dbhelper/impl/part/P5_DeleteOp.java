@@ -2,12 +2,15 @@ package com.pugwoo.dbhelper.impl.part;
 
 import java.lang.reflect.Field;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
 
 import com.pugwoo.dbhelper.annotation.Column;
 import com.pugwoo.dbhelper.exception.InvalidParameterException;
 import com.pugwoo.dbhelper.exception.MustProvideconstructorException;
 import com.pugwoo.dbhelper.exception.NullKeyValueException;
+import com.pugwoo.dbhelper.sql.SQLAssert;
 import com.pugwoo.dbhelper.sql.SQLUtils;
 import com.pugwoo.dbhelper.utils.DOInfoReader;
 
@@ -27,7 +30,9 @@ public abstract class P5_DeleteOp extends P4_InsertOrUpdateOp {
 			sql = SQLUtils.getSoftDeleteSQL(t, softDeleteColumn, values);
 		}
 
-		return jdbcExecuteUpdate(sql, values.toArray());
+		int rows = jdbcExecuteUpdate(sql, values.toArray());
+		notifyChanged(Collections.singletonList(t));
+		return rows;
 	}
 		
 	@Override
@@ -50,6 +55,100 @@ public abstract class P5_DeleteOp extends P4_InsertOrUpdateOp {
 		}
 	}
 	
+	@Override
+	public <T> int[] deleteByKey(List<T> list) throws NullKeyValueException {
+		if(list == null || list.isEmpty()) {
+			return new int[0];
+		}
+		List<T> notNullList = new ArrayList<T>();
+		for(T t : list) {
+			if(t != null) {
+				notNullList.add(t);
+			}
+		}
+		if(notNullList.isEmpty()) {
+			return new int[0];
+		}
+		SQLAssert.allSameClass(notNullList);
+		
+		Class<?> clazz = notNullList.get(0).getClass();
+		List<Field> keyFields = DOInfoReader.getKeyColumns(clazz);
+		List<Object[]> keyValues = new ArrayList<Object[]>();
+		for(T t : notNullList) {
+			List<Object> keys = getKeyValues(t, keyFields);
+			if(keys == null) {
+				throw new NullKeyValueException();
+			}
+			keyValues.add(keys.toArray());
+		}
+		return deleteByKeysInBatch(clazz, keyValues);
+	}
+	
+	@Override
+	public <T> int[] deleteByKeys(Class<T> clazz, Collection<?> keyValues)
+			throws NullKeyValueException {
+		if(keyValues == null || keyValues.isEmpty()) {
+			return new int[0];
+		}
+		
+		int keySize = DOInfoReader.getKeyColumns(clazz).size();
+		List<Object[]> keys = new ArrayList<Object[]>();
+		for(Object keyValue : keyValues) {
+			Object[] key;
+			if(keySize == 1) {
+				key = new Object[] {keyValue};
+			} else if(keyValue instanceof Object[]) {
+				key = (Object[]) keyValue;
+			} else if(keyValue instanceof List) {
+				key = ((List<?>) keyValue).toArray();
+			} else {
+				throw new InvalidParameterException("class " + clazz.getName() + " has "
+						+ keySize + " key columns, each key value must be Object[] or List");
+			}
+			if(key.length != keySize) {
+				throw new InvalidParameterException("key value size must be " + keySize
+						+ ", actually " + key.length);
+			}
+			for(Object k : key) {
+				if(k == null) {
+					throw new NullKeyValueException();
+				}
+			}
+			keys.add(key);
+		}
+		
+		return deleteByKeysInBatch(clazz, keys);
+	}
+	
+	/**
+	 * 按主键批量删除，每batchSize个key一条sql，自动处理软删除
+	 * @return 每个批次的修改条数
+	 */
+	private int[] deleteByKeysInBatch(Class<?> clazz, List<Object[]> keyValues) {
+		boolean isSoftDelete = DOInfoReader.getSoftDeleteColumn(clazz) != null;
+		
+		int[] rows = new int[(keyValues.size() + batchSize - 1) / batchSize];
+		for(int from = 0, i = 0; from < keyValues.size(); from += batchSize, i++) {
+			List<Object[]> subKeyValues = keyValues.subList(from,
+					Math.min(from + batchSize, keyValues.size()));
+			List<Object> values = new ArrayList<Object>();
+			String sql = isSoftDelete ? SQLUtils.getSoftDeleteByKeysSQL(clazz, subKeyValues, values)
+					: SQLUtils.getDeleteByKeysSQL(clazz, subKeyValues, values);
+			rows[i] = jdbcExecuteUpdate(sql, values.toArray());
+		}
+		
+		List<Object> keys = new ArrayList<Object>();
+		for(Object[] key : keyValues) {
+			if(key.length != 1) {
+				keys = null; // 多个主键的表不缓存，失效整张表
+				break;
+			}
+			keys.add(key[0]);
+		}
+		notifyChanged(clazz, keys);
+		return rows;
+	}
+	
 	@Override
 	public <T> int delete(Class<T> clazz, String postSql, Object... args) {
 		if(postSql == null || postSql.trim().isEmpty()) { // warning: very dangerous
@@ -66,7 +165,9 @@ public abstract class P5_DeleteOp extends P4_InsertOrUpdateOp {
 			sql = SQLUtils.getCustomSoftDeleteSQL(clazz, postSql);
 		}
 
-		return namedJdbcExecuteUpdate(sql, args);
+		int rows = namedJdbcExecuteUpdate(sql, args);
+		notifyChanged(clazz, null); // 不知道删除了哪些记录，失效整张表
+		return rows;
 	}
 	
 }
@@ -0,0 +1,18 @@
+package com.pugwoo.dbhelper.model;
+
+import java.io.Closeable;
+import java.util.Iterator;
+
+/**
+ * 需要关闭的迭代器，持有数据库连接，用完后必须调用close，建议放在finally中。<br>
+ * 迭代到最后一条记录之后会自动关闭。
+ */
+public interface CloseableIterator<T> extends Iterator<T>, Closeable {
+
+	/**
+	 * 关闭迭代器，释放数据库连接，可以重复调用
+	 */
+	@Override
+	void close();
+	
+}
@@ -0,0 +1,69 @@
+package com.pugwoo.dbhelper.model;
+
+import java.io.Serializable;
+import java.util.List;
+
+/**
+ * 游标分页(getPageAfter)的一页数据和下一页的游标
+ */
+public class CursorPageData<T> implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * 每页个数
+	 */
+	private int pageSize;
+
+	/**
+	 * 数据
+	 */
+	private List<T> data;
+
+	/**
+	 * 查询下一页用的游标，没有下一页时为null
+	 */
+	private String nextCursor;
+
+	public CursorPageData() {
+	}
+
+	public CursorPageData(List<T> data, int pageSize, String nextCursor) {
+		this.data = data;
+		this.pageSize = pageSize;
+		this.nextCursor = nextCursor;
+	}
+
+	/**
+	 * 是否还有下一页
+	 * @return
+	 */
+	public boolean isHasNext() {
+		return nextCursor != null;
+	}
+
+	public int getPageSize() {
+		return pageSize;
+	}
+
+	public void setPageSize(int pageSize) {
+		this.pageSize = pageSize;
+	}
+
+	public List<T> getData() {
+		return data;
+	}
+
+	public void setData(List<T> data) {
+		this.data = data;
+	}
+
+	public String getNextCursor() {
+		return nextCursor;
+	}
+
+	public void setNextCursor(String nextCursor) {
+		this.nextCursor = nextCursor;
+	}
+
+}
@@ -0,0 +1,13 @@
+package com.pugwoo.dbhelper.model;
+
+/**
+ * 逐条或逐批处理查询结果的回调
+ */
+public interface DataHandler<T> {
+
+	/**
+	 * 处理一条或一批数据，抛出异常时停止查询，异常原样抛给调用者
+	 */
+	void handle(T data);
+	
+}
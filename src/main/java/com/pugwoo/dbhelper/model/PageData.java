@@ -25,6 +25,11 @@ public class PageData<T> implements Serializable {
 	 */
 	private List<T> data;
 
+	/**
+	 * 总数是否是估算的(CountModeEnum.ESTIMATED)
+	 */
+	private boolean approximate;
+
 	public PageData() {
 	}
 
@@ -68,4 +73,12 @@ public class PageData<T> implements Serializable {
 		this.data = data;
 	}
 
+	public boolean isApproximate() {
+		return approximate;
+	}
+
+	public void setApproximate(boolean approximate) {
+		this.approximate = approximate;
+	}
+
 }
@@ -0,0 +1,313 @@
+package com.pugwoo.dbhelper.sql;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.pugwoo.dbhelper.annotation.Column;
+import com.pugwoo.dbhelper.exception.BadSQLSyntaxException;
+import com.pugwoo.dbhelper.exception.InvalidParameterException;
+import com.pugwoo.dbhelper.utils.DOInfoReader;
+import com.pugwoo.dbhelper.utils.TypeAutoCast;
+
+import net.sf.jsqlparser.JSQLParserException;
+import net.sf.jsqlparser.parser.CCJSqlParserUtil;
+import net.sf.jsqlparser.statement.Statement;
+import net.sf.jsqlparser.statement.select.OrderByElement;
+import net.sf.jsqlparser.statement.select.PlainSelect;
+import net.sf.jsqlparser.statement.select.Select;
+
+/**
+ * 游标分页(keyset分页)：按postSql的order by列加上主键排序，下一页的条件是"排序值大于上一页最后一条记录的排序值"，
+ * 不需要limit offset扫描并丢弃前面的记录，翻到多深都是一样的耗时。<br>
+ * 游标是上一页最后一条记录的排序值编码成的十六进制字符串，调用者不需要关心其内容。
+ */
+public class KeysetPagination {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(KeysetPagination.class);
+
+	private static final String SELECT_SQL = "select * from dual "; // 辅助postSql解析用
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+	private static class SortColumn {
+		/**排序列在sql中的写法*/
+		private String sql;
+		/**join类中列所在的左表或右表字段，非join类为null*/
+		private Field tableField;
+		private Field field;
+		private boolean isAsc;
+
+		private Object getValue(Object row) {
+			Object obj = tableField == null ? row : DOInfoReader.getValue(tableField, row);
+			return obj == null ? null : DOInfoReader.getValue(field, obj);
+		}
+	}
+
+	private final List<SortColumn> sortColumns = new ArrayList<SortColumn>();
+	/**去掉了order by的postSql*/
+	private final String whereSql;
+	private final String orderBySql;
+	/**排序方式的签名，游标中带上，避免把一个查询的游标用于另一个查询*/
+	private final int signature;
+
+	/**
+	 * @param postSql 包含where关键字起的后续SQL语句，可以有order by，不能有group by、having和limit
+	 */
+	public KeysetPagination(Class<?> clazz, String postSql) {
+		boolean isJoin = DOInfoReader.getJoinTable(clazz) != null;
+		List<OrderByElement> orderBy = null;
+		if(postSql == null || postSql.trim().isEmpty()) {
+			whereSql = "";
+		} else {
+			PlainSelect select = parse(postSql);
+			if(select.getGroupByColumnReferences() != null || select.getHaving() != null
+					|| select.getLimit() != null || select.getOffset() != null) {
+				throw new InvalidParameterException(
+						"postSql of getPageAfter cannot contain group by, having or limit:" + postSql);
+			}
+			orderBy = select.getOrderByElements();
+			whereSql = select.getWhere() == null ? "" : "WHERE " + select.getWhere();
+		}
+
+		if(orderBy != null) {
+			for(OrderByElement element : orderBy) {
+				sortColumns.add(toSortColumn(clazz, isJoin, element));
+			}
+		}
+		// 加上主键使排序唯一，join类加上两个表的主键
+		if(isJoin) {
+			addKeyColumns(DOInfoReader.getJoinLeftTable(clazz), "t1.");
+			addKeyColumns(DOInfoReader.getJoinRightTable(clazz), "t2.");
+		} else {
+			for(Field keyField : DOInfoReader.getKeyColumns(clazz)) {
+				addSortColumn(null, keyField, "`" + keyField.getAnnotation(Column.class).value() + "`");
+			}
+		}
+
+		StringBuilder sb = new StringBuilder(" ORDER BY ");
+		StringBuilder sign = new StringBuilder(clazz.getName());
+		for(int i = 0; i < sortColumns.size(); i++) {
+			SortColumn column = sortColumns.get(i);
+			if(i > 0) {
+				sb.append(",");
+			}
+			sb.append(column.sql).append(column.isAsc ? "" : " DESC");
+			sign.append(",").append(column.sql).append(column.isAsc);
+		}
+		orderBySql = sb.toString();
+		signature = sign.toString().hashCode();
+	}
+
+	private static PlainSelect parse(String postSql) {
+		try {
+			Statement statement = CCJSqlParserUtil.parse(SELECT_SQL + postSql);
+			return (PlainSelect) ((Select) statement).getSelectBody();
+		} catch (JSQLParserException e) {
+			LOGGER.error("Bad sql syntax,postSql:{}", postSql, e);
+			throw new BadSQLSyntaxException();
+		}
+	}
+
+	private SortColumn toSortColumn(Class<?> clazz, boolean isJoin, OrderByElement element) {
+		if(!(element.getExpression() instanceof net.sf.jsqlparser.schema.Column)) {
+			throw new InvalidParameterException("order by of getPageAfter only supports columns:" + element);
+		}
+		net.sf.jsqlparser.schema.Column column = (net.sf.jsqlparser.schema.Column) element.getExpression();
+		String tableName = column.getTable() == null ? null : column.getTable().getName();
+		Field tableField = null;
+		Class<?> columnClass = clazz;
+		if(isJoin) {
+			if("t1".equalsIgnoreCase(tableName)) {
+				tableField = DOInfoReader.getJoinLeftTable(clazz);
+			} else if("t2".equalsIgnoreCase(tableName)) {
+				tableField = DOInfoReader.getJoinRightTable(clazz);
+			} else {
+				throw new InvalidParameterException(
+						"order by column of join class must start with t1. or t2.:" + column);
+			}
+			columnClass = tableField.getType();
+		}
+		Field field = DOInfoReader.getFieldByDBField(columnClass, unquote(column.getColumnName()));
+		if(field == null) {
+			throw new InvalidParameterException("cannot find order by column:" + column);
+		}
+		if(field.getType().isArray()) {
+			throw new InvalidParameterException("order by column type is not supported:" + column);
+		}
+		SortColumn sortColumn = new SortColumn();
+		sortColumn.sql = column.toString();
+		sortColumn.tableField = tableField;
+		sortColumn.field = field;
+		sortColumn.isAsc = element.isAsc();
+		return sortColumn;
+	}
+
+	private void addKeyColumns(Field tableField, String prefix) {
+		if(tableField == null) {
+			return;
+		}
+		for(Field keyField : DOInfoReader.getKeyColumns(tableField.getType())) {
+			addSortColumn(tableField, keyField,
+					prefix + "`" + keyField.getAnnotation(Column.class).value() + "`");
+		}
+	}
+
+	private void addSortColumn(Field tableField, Field field, String sql) {
+		for(SortColumn column : sortColumns) {
+			if(column.tableField == tableField && column.field.equals(field)) {
+				return; // order by中已经有了
+			}
+		}
+		SortColumn sortColumn = new SortColumn();
+		sortColumn.sql = sql;
+		sortColumn.tableField = tableField;
+		sortColumn.field = field;
+		sortColumn.isAsc = true;
+		sortColumns.add(sortColumn);
+	}
+
+	private static String unquote(String columnName) {
+		if(columnName.startsWith("`") && columnName.endsWith("`") && columnName.length() > 2) {
+			return columnName.substring(1, columnName.length() - 1);
+		}
+		return columnName;
+	}
+
+	/**
+	 * 获得查询游标之后一页的postSql，不带limit
+	 * @param cursor 上一页返回的游标，为null或空字符串时查询第一页
+	 * @param params 返回游标条件的参数，它们在postSql中位于原有的参数之前
+	 */
+	public String getPostSql(String cursor, List<Object> params) {
+		if(cursor == null || cursor.trim().isEmpty()) {
+			return whereSql + orderBySql;
+		}
+		Object[] values = decode(cursor.trim());
+		String seek = getSeekExpression(values, 0, params);
+		try {
+			return SQLUtils.insertWhereAndExpression(whereSql, seek) + orderBySql;
+		} catch (JSQLParserException e) {
+			LOGGER.error("Bad sql syntax,whereSql:{},seekExpression:{}", whereSql, seek, e);
+			throw new BadSQLSyntaxException();
+		}
+	}
+
+	/**
+	 * 第i列及之后的列排在游标之后的条件：(ci在游标之后) OR (ci等于游标 AND 第i+1列及之后的列排在游标之后)。<br>
+	 * MySQL中null升序时排在最前，降序时排在最后。
+	 */
+	private String getSeekExpression(Object[] values, int i, List<Object> params) {
+		SortColumn column = sortColumns.get(i);
+		Object value = values[i];
+		String after;
+		if(value == null) {
+			after = column.isAsc ? column.sql + " IS NOT NULL" : "1=0";
+		} else {
+			after = column.isAsc ? column.sql + ">?" : "(" + column.sql + "<? OR " + column.sql + " IS NULL)";
+			params.add(value);
+		}
+		if(i == sortColumns.size() - 1) {
+			return after;
+		}
+		String equal;
+		if(value == null) {
+			equal = column.sql + " IS NULL";
+		} else {
+			equal = column.sql + "=?";
+			params.add(value);
+		}
+		return "(" + after + " OR (" + equal + " AND " + getSeekExpression(values, i + 1, params) + "))";
+	}
+
+	/**
+	 * 以row为上一页的最后一条记录，生成游标
+	 */
+	public String getCursor(Object row) {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		try {
+			out.writeInt(signature);
+			for(SortColumn column : sortColumns) {
+				Object value = column.getValue(row);
+				out.writeBoolean(value != null);
+				if(value instanceof Date) {
+					out.writeLong(((Date) value).getTime());
+				} else if(value != null) {
+					byte[] str = value.toString().getBytes(UTF8);
+					out.writeInt(str.length);
+					out.write(str);
+				}
+			}
+		} catch (IOException e) { // 写内存不会出现
+			throw new RuntimeException(e);
+		}
+
+		byte[] data = bytes.toByteArray();
+		char[] hex = new char[data.length * 2];
+		for(int i = 0; i < data.length; i++) {
+			hex[i * 2] = HEX[(data[i] >> 4) & 0xF];
+			hex[i * 2 + 1] = HEX[data[i] & 0xF];
+		}
+		return new String(hex);
+	}
+
+	private Object[] decode(String cursor) {
+		if(cursor.length() % 2 != 0) {
+			throw new InvalidParameterException("invalid cursor:" + cursor);
+		}
+		byte[] data = new byte[cursor.length() / 2];
+		for(int i = 0; i < data.length; i++) {
+			int high = Character.digit(cursor.charAt(i * 2), 16);
+			int low = Character.digit(cursor.charAt(i * 2 + 1), 16);
+			if(high < 0 || low < 0) {
+				throw new InvalidParameterException("invalid cursor:" + cursor);
+			}
+			data[i] = (byte) ((high << 4) | low);
+		}
+
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+		try {
+			if(in.readInt() != signature) {
+				throw new InvalidParameterException("cursor does not belong to this query:" + cursor);
+			}
+			Object[] values = new Object[sortColumns.size()];
+			for(int i = 0; i < values.length; i++) {
+				if(!in.readBoolean()) {
+					continue;
+				}
+				Class<?> type = sortColumns.get(i).field.getType();
+				if(Date.class.isAssignableFrom(type)) {
+					values[i] = new Date(in.readLong());
+				} else {
+					int length = in.readInt();
+					if(length < 0 || length > in.available()) {
+						throw new InvalidParameterException("invalid cursor:" + cursor);
+					}
+					byte[] str = new byte[length];
+					in.readFully(str);
+					values[i] = TypeAutoCast.cast(new String(str, UTF8), type);
+				}
+			}
+			if(in.available() > 0) {
+				throw new InvalidParameterException("invalid cursor:" + cursor);
+			}
+			return values;
+		} catch (IOException e) {
+			throw new InvalidParameterException("invalid cursor:" + cursor);
+		} catch (NumberFormatException e) {
+			throw new InvalidParameterException("invalid cursor:" + cursor);
+		}
+	}
+
+}
@@ -14,6 +14,7 @@ import com.pugwoo.dbhelper.annotation.JoinTable;
 import com.pugwoo.dbhelper.annotation.Table;
 import com.pugwoo.dbhelper.enums.JoinTypeEnum;
 import com.pugwoo.dbhelper.exception.BadSQLSyntaxException;
+import com.pugwoo.dbhelper.exception.InvalidParameterException;
 import com.pugwoo.dbhelper.exception.NoKeyColumnAnnotationException;
 import com.pugwoo.dbhelper.exception.NullKeyValueException;
 import com.pugwoo.dbhelper.exception.OnConditionIsNeedException;
@@ -35,6 +36,9 @@ import net.sf.jsqlparser.statement.select.Select;
 public class SQLUtils {
 	
 	private static final Logger LOGGER = LoggerFactory.getLogger(SQLUtils.class);
+	
+	/**getSelectWithWindowCountSQL中总数的列名*/
+	public static final String WINDOW_COUNT_COLUMN = "nimble_window_count";
 
 	/**
 	 * select 字段 from t_table, 不包含where子句及以后的语句
@@ -112,6 +116,179 @@ public class SQLUtils {
 		return sql.toString();
 	}
 	
+	/**
+	 * 获得查询总数的sql，会自动处理软删除条件。<br>
+	 * 去掉顶层的order by和limit子句(不含?参数时)，排序对总数没有影响；有group by时用子查询计算分组的个数。
+	 * postSql不能解析时按原样拼接。
+	 * @param clazz
+	 * @param postSql
+	 * @return
+	 */
+	public static String getCountSQL(Class<?> clazz, String postSql) {
+		String whereSql = autoSetSoftDeleted(postSql, clazz);
+		
+		String selectSql = "SELECT * FROM dual"; // 辅助postSql解析用，和jsqlparser输出的格式一致
+		PlainSelect plainSelect;
+		try {
+			Statement statement = CCJSqlParserUtil.parse(selectSql + whereSql);
+			if(!(statement instanceof Select)
+					|| !(((Select) statement).getSelectBody() instanceof PlainSelect)) {
+				return getSelectCountSQL(clazz) + whereSql;
+			}
+			plainSelect = (PlainSelect) ((Select) statement).getSelectBody();
+		} catch (JSQLParserException e) {
+			return getSelectCountSQL(clazz) + whereSql;
+		}
+		
+		boolean isChanged = false;
+		if(plainSelect.getOrderByElements() != null
+				&& !plainSelect.getOrderByElements().toString().contains("?")) {
+			plainSelect.setOrderByElements(null);
+			isChanged = true;
+		}
+		if(plainSelect.getLimit() != null && !plainSelect.getLimit().toString().contains("?")
+				&& (plainSelect.getOffset() == null || !plainSelect.getOffset().toString().contains("?"))) {
+			plainSelect.setLimit(null);
+			plainSelect.setOffset(null);
+			isChanged = true;
+		}
+		boolean isGroupBy = plainSelect.getGroupByColumnReferences() != null;
+		String countWhereSql = isChanged ? plainSelect.toString().substring(selectSql.length()) : whereSql;
+		
+		if(isGroupBy) {
+			String fromSql = getSelectCountSQL(clazz).substring("SELECT count(*)".length());
+			return "SELECT count(*) FROM (SELECT 1" + fromSql + countWhereSql + ") t_count";
+		}
+		return getSelectCountSQL(clazz) + countWhereSql;
+	}
+	
+	/**
+	 * postSql是否没有查询条件：为空，或者没有where、group by和having子句
+	 * @param postSql
+	 * @return postSql不能解析时返回false
+	 */
+	public static boolean isWithoutCondition(String postSql) {
+		if(postSql == null || postSql.trim().isEmpty()) {
+			return true;
+		}
+		PlainSelect plainSelect = parsePostSql(postSql);
+		return plainSelect != null && plainSelect.getWhere() == null
+				&& plainSelect.getGroupByColumnReferences() == null && plainSelect.getHaving() == null;
+	}
+	
+	/**
+	 * postSql是否有group by子句
+	 * @param postSql
+	 * @return postSql不能解析时返回false
+	 */
+	public static boolean isGroupBy(String postSql) {
+		if(postSql == null || postSql.trim().isEmpty()) {
+			return false;
+		}
+		PlainSelect plainSelect = parsePostSql(postSql);
+		return plainSelect != null && plainSelect.getGroupByColumnReferences() != null;
+	}
+	
+	/**
+	 * @return 不能解析时返回null
+	 */
+	private static PlainSelect parsePostSql(String postSql) {
+		try {
+			Statement statement = CCJSqlParserUtil.parse("select * from dual " + postSql);
+			if(statement instanceof Select
+					&& ((Select) statement).getSelectBody() instanceof PlainSelect) {
+				return (PlainSelect) ((Select) statement).getSelectBody();
+			}
+		} catch (JSQLParserException e) {
+			// 不能解析的由调用者按原来的方式处理
+		}
+		return null;
+	}
+	
+	/**
+	 * 查询表的估算行数(InnoDB的统计信息)，参数是表名
+	 * @return
+	 */
+	public static String getTableRowsEstimateSQL() {
+		return "SELECT TABLE_ROWS FROM information_schema.TABLES WHERE TABLE_SCHEMA=DATABASE() AND TABLE_NAME=?";
+	}
+	
+	/**
+	 * select count(*) over(), 字段 from t_table, 不包含where子句及以后的语句。
+	 * 总数列名是WINDOW_COUNT_COLUMN，需要数据库支持窗口函数(MySQL 8.0+)
+	 * @param clazz
+	 * @return
+	 */
+	public static String getSelectWithWindowCountSQL(Class<?> clazz) {
+		return "SELECT COUNT(*) OVER() AS " + WINDOW_COUNT_COLUMN + ","
+				+ getSelectSQL(clazz).substring("SELECT ".length());
+	}
+	
+	/**
+	 * select 主键 from t_table, 不包含where子句及以后的语句
+	 * @param clazz 只有一个主键的非join类
+	 * @return
+	 */
+	public static String getSelectKeySQL(Class<?> clazz) {
+		Field keyField = DOInfoReader.getOneKeyColumn(clazz);
+		return "SELECT " + getColumnName(keyField.getAnnotation(Column.class))
+				+ " FROM " + getTableName(DOInfoReader.getTable(clazz));
+	}
+	
+	/**
+	 * select min(主键), max(主键) from t_table，不带条件，可以直接从主键索引得到
+	 * @param clazz 只有一个主键的非join类
+	 * @return
+	 */
+	public static String getKeyMinMaxSQL(Class<?> clazz) {
+		String keyColumn = getColumnName(DOInfoReader.getOneKeyColumn(clazz).getAnnotation(Column.class));
+		return "SELECT MIN(" + keyColumn + "),MAX(" + keyColumn + ") FROM "
+				+ getTableName(DOInfoReader.getTable(clazz));
+	}
+	
+	/**
+	 * 按主键范围扫描的postSql：在where条件前加上主键范围条件，按主键升序排序，不含limit。<br>
+	 * 参数顺序是下界、上界、postSql原有的参数。
+	 * @param clazz 只有一个主键的非join类
+	 * @param postSql 只能有where条件，不能有order by、group by、having和limit子句
+	 * @param hasLowerBound 是否有下界条件：主键>?
+	 * @param hasUpperBound 是否有上界条件：主键<=?
+	 * @return 不会自动处理软删除条件
+	 */
+	public static String getKeyRangePostSQL(Class<?> clazz, String postSql,
+			boolean hasLowerBound, boolean hasUpperBound) {
+		String keyColumn = getColumnName(DOInfoReader.getOneKeyColumn(clazz).getAnnotation(Column.class));
+		String whereSql = "";
+		if(postSql != null && !postSql.trim().isEmpty()) {
+			PlainSelect plainSelect = parsePostSql(postSql);
+			if(plainSelect == null) {
+				LOGGER.error("Bad sql syntax,postSql:{}", postSql);
+				throw new BadSQLSyntaxException();
+			}
+			if(plainSelect.getOrderByElements() != null || plainSelect.getGroupByColumnReferences() != null
+					|| plainSelect.getHaving() != null || plainSelect.getLimit() != null
+					|| plainSelect.getOffset() != null) {
+				throw new InvalidParameterException(
+						"postSql of key range scan can only contain where condition:" + postSql);
+			}
+			whereSql = plainSelect.getWhere() == null ? "" : "WHERE " + plainSelect.getWhere();
+		}
+		
+		StringBuilder range = new StringBuilder();
+		if(hasLowerBound) {
+			range.append(keyColumn).append(">?");
+		}
+		if(hasUpperBound) {
+			range.append(hasLowerBound ? " AND " : "").append(keyColumn).append("<=?");
+		}
+		try {
+			return insertWhereAndExpression(whereSql, range.toString()) + " ORDER BY " + keyColumn;
+		} catch (JSQLParserException e) {
+			LOGGER.error("Bad sql syntax,whereSql:{},rangeExpression:{}", whereSql, range, e);
+			throw new BadSQLSyntaxException();
+		}
+	}
+	
 	/**
 	 * 获得主键where子句，包含where关键字。会自动处理软删除条件
 	 * 
@@ -190,14 +367,22 @@ public class SQLUtils {
 		return _getInsertSQL(tList, values, true);
 	}
 	
+	/**
+	 * 生成多行insert语句，将值放到values中。
+	 * @param tList 要插入的元素值，【要求】当isWithNullValue为false时，每个元素值为null的列必须相同
+	 * @param values 必须
+	 * @param isWithNullValue 标记是否将null字段放到insert语句中
+	 * @return
+	 */
+	public static <T> String getInsertSQLOfSameColumns(List<T> tList, List<Object> values,
+			boolean isWithNullValue) {
+		return _getInsertSQL(tList, values, isWithNullValue);
+	}
+	
 	private static <T> String _getInsertSQL(List<T> tList, List<Object> values,
 			boolean isWithNullValue) {
 		StringBuilder sql = new StringBuilder("INSERT INTO ");
 		
-		if(tList.size() > 1) {
-			isWithNullValue = true; // 对于多个值的，只能含null值一起插入
-		}
-		
 		Table table = DOInfoReader.getTable(tList.get(0).getClass());
 		List<Field> fields = DOInfoReader.getColumns(tList.get(0).getClass());
 		
@@ -248,6 +433,55 @@ public class SQLUtils {
 		return sql.toString();
 	}
 	
+	/**
+	 * 生成insert ... on duplicate key update语句，将插入的值放到values中。
+	 * @param t
+	 * @param values 必须
+	 * @param insertFields 要插入的列
+	 * @param updateFields 当主键或唯一键冲突时要更新的列，更新值为VALUES(列)；为空时只做主键的空更新。
+	 *        有自增列时总是加上id=LAST_INSERT_ID(id)，使LAST_INSERT_ID()返回被更新记录的id
+	 * @return
+	 */
+	public static <T> String getInsertOnDuplicateKeyUpdateSQL(T t, List<Object> values,
+			List<Field> insertFields, List<Field> updateFields) {
+		StringBuilder sql = new StringBuilder("INSERT INTO ");
+		
+		Table table = DOInfoReader.getTable(t.getClass());
+		
+		sql.append(getTableName(table)).append(" (");
+		List<Object> _values = new ArrayList<Object>();
+		sql.append(joinAndGetValue(insertFields, ",", _values, t, true));
+		sql.append(") VALUES (").append(join("?", _values.size(), ",")).append(")");
+		values.addAll(_values);
+		
+		sql.append(" ON DUPLICATE KEY UPDATE ");
+		List<String> sets = new ArrayList<String>();
+		if(updateFields != null) {
+			for(Field field : updateFields) {
+				String columnName = getColumnName(field.getAnnotation(Column.class));
+				sets.add(columnName + "=VALUES(" + columnName + ")");
+			}
+		}
+		// 更新已有记录时LAST_INSERT_ID()也返回该记录的自增id
+		Field autoIncrementField = DOInfoReader.getAutoIncrementField(t.getClass());
+		if(autoIncrementField != null) {
+			String columnName = getColumnName(autoIncrementField.getAnnotation(Column.class));
+			sets.add(columnName + "=LAST_INSERT_ID(" + columnName + ")");
+		} else if(sets.isEmpty()) {
+			String keyColumn = getColumnName(DOInfoReader.getKeyColumns(t.getClass())
+					.get(0).getAnnotation(Column.class));
+			sets.add(keyColumn + "=" + keyColumn);
+		}
+		for(int i = 0; i < sets.size(); i++) {
+			sql.append(sets.get(i));
+			if(i < sets.size() - 1) {
+				sql.append(",");
+			}
+		}
+		
+		return sql.toString();
+	}
+	
 	/**
 	 * 生成update语句
 	 * @param t
@@ -258,6 +492,21 @@ public class SQLUtils {
 	 */
 	public static <T> String getUpdateSQL(T t, List<Object> values,
 			boolean withNull, String postSql) {
+		return getUpdateSQL(t, values, withNull, postSql,
+				DOInfoReader.getNotKeyColumns(t.getClass()));
+	}
+	
+	/**
+	 * 生成只更新指定列的update语句
+	 * @param t
+	 * @param values
+	 * @param withNull
+	 * @param postSql
+	 * @param updateFields 要更新的非key列
+	 * @return 返回值为null表示不需要更新操作
+	 */
+	public static <T> String getUpdateSQL(T t, List<Object> values,
+			boolean withNull, String postSql, List<Field> updateFields) {
 		
 		StringBuilder sql = new StringBuilder();
 		sql.append("UPDATE ");
@@ -265,12 +514,10 @@ public class SQLUtils {
 		Table table = DOInfoReader.getTable(t.getClass());
 		List<Field> keyFields = DOInfoReader.getKeyColumns(t.getClass());
 		
-		List<Field> notKeyFields = DOInfoReader.getNotKeyColumns(t.getClass());
-		
 		sql.append(getTableName(table)).append(" SET ");
 		
 		List<Object> setValues = new ArrayList<Object>();
-		String setSql = joinSetAndGetValue(notKeyFields, setValues, t, withNull);
+		String setSql = joinSetAndGetValue(updateFields, setValues, t, withNull);
 		if(setValues.isEmpty()) {
 			return null; // all field is empty, not need to update
 		}
@@ -346,6 +593,40 @@ public class SQLUtils {
 		return sql.toString();
 	}
 	
+	/**
+	 * 获得计数器累加的SQL：UPDATE t SET c=c+? WHERE key=?，会同时设置setTimeWhenUpdate的字段
+	 * @param clazz 只能有一个主键
+	 * @param column 累加的列
+	 * @param delta 增量
+	 * @param keyValue 主键值
+	 * @param values 返回sql的参数
+	 * @return
+	 */
+	public static String getIncrementSQL(Class<?> clazz, Column column, long delta,
+			Object keyValue, List<Object> values) {
+		Table table = DOInfoReader.getTable(clazz);
+		List<Field> fields = DOInfoReader.getColumns(clazz);
+
+		StringBuilder sql = new StringBuilder();
+		sql.append("UPDATE ").append(getTableName(table)).append(" SET ");
+		sql.append(getColumnName(column)).append("=").append(getColumnName(column)).append("+?");
+		values.add(delta);
+
+		// 加上更新时间
+		for(Field field : fields) {
+			Column c = field.getAnnotation(Column.class);
+			if(c.setTimeWhenUpdate() && Date.class.isAssignableFrom(field.getType())) {
+				sql.append(",").append(getColumnName(c)).append("=?");
+				values.add(new Date());
+			}
+		}
+
+		sql.append(getKeysWhereSQL(clazz));
+		values.add(keyValue);
+
+		return sql.toString();
+	}
+
 	/**
 	 * 获得软删除SQL
 	 * @param t
@@ -435,6 +716,101 @@ public class SQLUtils {
 		return sql.toString();
 	}
 	
+	/**
+	 * 获得按多个主键批量硬删除的SQL，主键条件为key in (...)，多个主键时为(key1,key2) in ((?,?),...)
+	 * @param clazz
+	 * @param keyValues 每个元素是一行的主键值，顺序同DOInfoReader.getKeyColumns
+	 * @param values 返回sql的参数
+	 * @return
+	 */
+	public static String getDeleteByKeysSQL(Class<?> clazz, List<Object[]> keyValues,
+			List<Object> values) {
+		Table table = DOInfoReader.getTable(clazz);
+		
+		StringBuilder sql = new StringBuilder();
+		sql.append("DELETE FROM ").append(getTableName(table));
+		sql.append(getKeysInWhereSQL(clazz, keyValues, values));
+		
+		return sql.toString();
+	}
+	
+	/**
+	 * 获得按多个主键批量软删除的SQL，会同时设置setTimeWhenUpdate的字段
+	 * @param clazz 必须有软删除字段
+	 * @param keyValues 每个元素是一行的主键值，顺序同DOInfoReader.getKeyColumns
+	 * @param values 返回sql的参数
+	 * @return
+	 */
+	public static String getSoftDeleteByKeysSQL(Class<?> clazz, List<Object[]> keyValues,
+			List<Object> values) {
+		Table table = DOInfoReader.getTable(clazz);
+		List<Field> fields = DOInfoReader.getColumns(clazz);
+		Column softDeleteColumn = DOInfoReader.getSoftDeleteColumn(clazz)
+				.getAnnotation(Column.class);
+		
+		StringBuilder sql = new StringBuilder();
+		sql.append("UPDATE ").append(getTableName(table));
+		sql.append(" SET ").append(getColumnName(softDeleteColumn));
+		sql.append("=").append(softDeleteColumn.softDelete()[1]);
+		
+		// 加上更新时间
+		for(Field field : fields) {
+			Column column = field.getAnnotation(Column.class);
+			if(column.setTimeWhenUpdate() && Date.class.isAssignableFrom(field.getType())) {
+				sql.append(",").append(getColumnName(column)).append("=?");
+				values.add(new Date());
+			}
+		}
+		
+		sql.append(getKeysInWhereSQL(clazz, keyValues, values));
+		
+		return sql.toString();
+	}
+	
+	/**
+	 * 拼凑主键in的where子句，包含where关键字，带上软删除条件。
+	 * 这里不经过sql解析，因为行值表达式(a,b) in ((?,?))不一定能被解析。
+	 * @return 前面带空格
+	 */
+	private static String getKeysInWhereSQL(Class<?> clazz, List<Object[]> keyValues,
+			List<Object> values) {
+		List<Field> keyFields = DOInfoReader.getKeyColumns(clazz);
+		
+		StringBuilder where = new StringBuilder(" WHERE ");
+		Field softDelete = DOInfoReader.getSoftDeleteColumn(clazz);
+		if(softDelete != null) {
+			Column softDeleteColumn = softDelete.getAnnotation(Column.class);
+			where.append(getColumnName(softDeleteColumn)).append("=")
+			     .append(softDeleteColumn.softDelete()[0]).append(" AND ");
+		}
+		
+		String dotSql;
+		if(keyFields.size() == 1) {
+			where.append(getColumnName(keyFields.get(0).getAnnotation(Column.class)));
+			dotSql = "?";
+		} else {
+			where.append("(").append(join(keyFields, ",")).append(")");
+			dotSql = "(" + join("?", keyFields.size(), ",") + ")";
+		}
+		where.append(" IN (");
+		for(int i = 0; i < keyValues.size(); i++) {
+			Object[] keys = keyValues.get(i);
+			for(Object key : keys) {
+				if(key == null) {
+					throw new NullKeyValueException();
+				}
+				values.add(key);
+			}
+			where.append(dotSql);
+			if(i < keyValues.size() - 1) {
+				where.append(",");
+			}
+		}
+		where.append(")");
+		
+		return where.toString();
+	}
+	
 	/**
 	 * 往where sql里面插入AND关系的表达式。
 	 * 
@@ -476,6 +852,15 @@ public class SQLUtils {
 		return plainSelect.toString().substring(selectSql.length());
 	}
 	
+	/**
+	 * 获得按更新时间增量查询的where子句，不加软删除条件，以便查到被软删除的记录。前面有空格。
+	 * @param updateTimeColumn setTimeWhenUpdate的字段
+	 * @return 参数是更新时间的起始值
+	 */
+	public static String getUpdatedSinceWhereSQL(Column updateTimeColumn) {
+		return " WHERE " + getColumnName(updateTimeColumn) + ">=?";
+	}
+	
 	/**
 	 * 自动为【最后】where sql字句加上软删除查询字段
 	 * @param whereSql 如果有where条件的，【必须】带上where关键字；如果是group by或空的字符串或null都可以
@@ -3,6 +3,7 @@ package com.pugwoo.dbhelper.utils;
 import java.lang.reflect.Field;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.ArrayList;
 import java.util.List;
 
 import org.slf4j.Logger;
@@ -29,6 +30,14 @@ public class AnnotationSupportRowMapper<T> implements RowMapper<T> {
 	private boolean isJoinVO = false;
 	private Field leftJoinField;
 	private Field rightJoinField;
+	
+	/**非join类的列，join类的左表的列*/
+	private List<Field> fieldsT1;
+	/**join类的右表的列*/
+	private List<Field> fieldsT2;
+	/**readRow读取的列名和类型，join类先左表后右表*/
+	private String[] columnLabels;
+	private Class<?>[] columnTypes;
 
 	public AnnotationSupportRowMapper(Class<T> clazz) {
 		handleClazz(clazz);
@@ -47,11 +56,62 @@ public class AnnotationSupportRowMapper<T> implements RowMapper<T> {
 			isJoinVO = true;
 			leftJoinField = DOInfoReader.getJoinLeftTable(clazz);
 			rightJoinField = DOInfoReader.getJoinRightTable(clazz);
+			fieldsT1 = DOInfoReader.getColumns(leftJoinField.getType());
+			fieldsT2 = DOInfoReader.getColumns(rightJoinField.getType());
+		} else {
+			fieldsT1 = DOInfoReader.getColumns(clazz);
+			fieldsT2 = new ArrayList<Field>();
+		}
+		
+		columnLabels = new String[fieldsT1.size() + fieldsT2.size()];
+		columnTypes = new Class<?>[columnLabels.length];
+		int i = 0;
+		for(Field field : fieldsT1) {
+			String column = field.getAnnotation(Column.class).value();
+			columnLabels[i] = isJoinVO ? "t1." + column : column;
+			columnTypes[i++] = field.getType();
+		}
+		for(Field field : fieldsT2) {
+			columnLabels[i] = "t2." + field.getAnnotation(Column.class).value();
+			columnTypes[i++] = field.getType();
+		}
+	}
+	
+	/**
+	 * @return readRow读取的列数
+	 */
+	public int getColumnCount() {
+		return columnLabels.length;
+	}
+	
+	/**
+	 * 把ResultSet当前行的列值按字段类型读到values中，不创建对象。
+	 * 和mapRow(Object[])分开，读取和创建对象可以在不同的线程中进行
+	 * @param values 长度为getColumnCount()，可以重复使用
+	 */
+	public void readRow(ResultSet rs, Object[] values) throws SQLException {
+		for(int i = 0; i < columnLabels.length; i++) {
+			values[i] = TypeAutoCast.cast(rs, columnLabels[i], columnTypes[i]);
 		}
 	}
 
 	@Override
 	public T mapRow(ResultSet rs, int index) throws SQLException {
+		Object[] values = new Object[columnLabels.length];
+		try {
+			readRow(rs, values);
+		} catch (Exception e) {
+			LOGGER.error("mapRow exception", e);
+			return null;
+		}
+		return mapRow(values);
+	}
+	
+	/**
+	 * 用readRow读出的列值创建对象，不访问ResultSet，可以在多个线程中同时调用
+	 * @return 失败时返回null
+	 */
+	public T mapRow(Object[] values) {
 		try {
 			T obj = isUseGivenObj ? t : clazz.newInstance();
 			
@@ -61,13 +121,10 @@ public class AnnotationSupportRowMapper<T> implements RowMapper<T> {
 				
 				// 如果关联对象的所有字段都是null值，那么该对象设置为null值
 				
+				int i = 0;
 				boolean isT1AllNull = true;
-				List<Field> fieldsT1 = DOInfoReader.getColumns(leftJoinField.getType());
 				for (Field field : fieldsT1) {
-					Column column = field.getAnnotation(Column.class);
-					Object value = TypeAutoCast.cast(
-							TypeAutoCast.cast(rs, "t1." + column.value(), field.getType()), 
-							field.getType());
+					Object value = TypeAutoCast.cast(values[i++], field.getType());
 					if(value != null) {
 						isT1AllNull = false;
 					}
@@ -75,12 +132,8 @@ public class AnnotationSupportRowMapper<T> implements RowMapper<T> {
 				}
 				
 				boolean isT2AllNull = true;
-				List<Field> fieldsT2 = DOInfoReader.getColumns(rightJoinField.getType());
 				for (Field field : fieldsT2) {
-					Column column = field.getAnnotation(Column.class);
-					Object value = TypeAutoCast.cast(
-							TypeAutoCast.cast(rs, "t2." + column.value(), field.getType()), 
-							field.getType());
+					Object value = TypeAutoCast.cast(values[i++], field.getType());
 					if(value != null) {
 						isT2AllNull = false;
 					}
@@ -89,16 +142,20 @@ public class AnnotationSupportRowMapper<T> implements RowMapper<T> {
 				
 				DOInfoReader.setValue(leftJoinField, obj, isT1AllNull ? null : t1);
 				DOInfoReader.setValue(rightJoinField, obj, isT2AllNull ? null : t2);
+				if(!isT1AllNull) {
+					EntitySnapshot.record(t1);
+				}
+				if(!isT2AllNull) {
+					EntitySnapshot.record(t2);
+				}
 				
 			} else {
-				List<Field> fields = DOInfoReader.getColumns(clazz);
-				for (Field field : fields) {
-					Column column = field.getAnnotation(Column.class);
-					Object value = TypeAutoCast.cast(
-							TypeAutoCast.cast(rs, column.value(), field.getType()), 
-							field.getType());
+				int i = 0;
+				for (Field field : fieldsT1) {
+					Object value = TypeAutoCast.cast(values[i++], field.getType());
 					DOInfoReader.setValue(field, obj, value);
 				}
+				EntitySnapshot.record(obj);
 			}
 			
 			return obj;
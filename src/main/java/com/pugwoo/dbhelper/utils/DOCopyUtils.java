@@ -0,0 +1,92 @@
+package com.pugwoo.dbhelper.utils;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.pugwoo.dbhelper.exception.MustProvideconstructorException;
+
+/**
+ * DO对象复制工具，用于缓存、合并写等需要和调用者隔离对象的场景
+ */
+public class DOCopyUtils {
+	
+	private static final Logger LOGGER = LoggerFactory.getLogger(DOCopyUtils.class);
+	
+	/**
+	 * 复制对象，只复制@Column注解的字段
+	 * @param t
+	 * @return t为null时返回null
+	 * @throws MustProvideconstructorException 没有默认构造方法时抛出
+	 */
+	@SuppressWarnings("unchecked")
+	public static <T> T copyColumns(T t) throws MustProvideconstructorException {
+		if(t == null) {
+			return null;
+		}
+		T copy = (T) newInstance(t.getClass());
+		copyColumns(t, copy, true);
+		return copy;
+	}
+	
+	/**
+	 * 浅复制对象，复制包括父类在内的所有非static字段，包括@RelatedColumn等非@Column字段
+	 * @param t
+	 * @return t为null时返回null
+	 * @throws MustProvideconstructorException 没有默认构造方法时抛出
+	 */
+	@SuppressWarnings("unchecked")
+	public static <T> T copy(T t) throws MustProvideconstructorException {
+		if(t == null) {
+			return null;
+		}
+		T copy = (T) newInstance(t.getClass());
+		for(Class<?> clazz = t.getClass(); clazz != null && clazz != Object.class;
+				clazz = clazz.getSuperclass()) {
+			for(Field field : clazz.getDeclaredFields()) {
+				if(Modifier.isStatic(field.getModifiers())) {
+					continue;
+				}
+				field.setAccessible(true);
+				try {
+					field.set(copy, field.get(t));
+				} catch (Exception e) {
+					LOGGER.error("copy field {} fail", field, e);
+				}
+			}
+		}
+		return copy;
+	}
+	
+	/**
+	 * 把from的@Column字段的值复制到to中，from和to必须是同一个类
+	 * @param from
+	 * @param to
+	 * @param withNull 为false时from中为null的字段不复制
+	 */
+	public static void copyColumns(Object from, Object to, boolean withNull) {
+		for(Field field : DOInfoReader.getColumns(from.getClass())) {
+			field.setAccessible(true);
+			try {
+				Object value = field.get(from);
+				if(withNull || value != null) {
+					field.set(to, value);
+				}
+			} catch (Exception e) {
+				LOGGER.error("copy field {} fail", field, e);
+			}
+		}
+	}
+	
+	private static Object newInstance(Class<?> clazz) throws MustProvideconstructorException {
+		try {
+			return clazz.newInstance();
+		} catch (InstantiationException e) {
+			throw new MustProvideconstructorException();
+		} catch (IllegalAccessException e) {
+			throw new MustProvideconstructorException();
+		}
+	}
+}
@@ -0,0 +1,285 @@
+package com.pugwoo.dbhelper.utils;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.pugwoo.dbhelper.annotation.Column;
+import com.pugwoo.dbhelper.annotation.Table;
+
+/**
+ * 对象列值的快照，用于update时只更新有变化的列(@Table dirtyCheck = true)。<br>
+ * 数值、布尔、字符和Date类型的列存成long，避免装箱；其它类型存对象引用，byte[]会复制一份。<br>
+ * 快照按对象的identity通过弱引用关联，对象被回收后快照随之清理；快照总数不超过maxSnapshotCount。
+ */
+public class EntitySnapshot {
+	
+	private static final int KIND_LONG = 0;
+	private static final int KIND_BOOLEAN = 1;
+	private static final int KIND_CHAR = 2;
+	private static final int KIND_DOUBLE = 3;
+	private static final int KIND_DATE = 4;
+	private static final int KIND_BYTES = 5;
+	private static final int KIND_OBJECT = 6;
+	
+	/**缓存每个类的快照布局*/
+	private static Map<Class<?>, Layout> class2Layout = new ConcurrentHashMap<Class<?>, Layout>();
+	
+	private static final ReferenceQueue<Object> queue = new ReferenceQueue<Object>();
+	private static final Map<IdentityWeakReference, EntitySnapshot> snapshots =
+			new ConcurrentHashMap<IdentityWeakReference, EntitySnapshot>();
+	
+	private static volatile int maxSnapshotCount = 1000000;
+	
+	private final Layout layout;
+	private final long[] primitives;
+	private final Object[] objects;
+	private final long[] nullBits;
+	
+	private EntitySnapshot(Layout layout, Object t) {
+		this.layout = layout;
+		this.primitives = new long[layout.primitiveCount];
+		this.objects = layout.objectCount == 0 ? null : new Object[layout.objectCount];
+		this.nullBits = new long[(layout.fields.size() + 63) / 64];
+		
+		for(int i = 0; i < layout.fields.size(); i++) {
+			Object value = DOInfoReader.getValue(layout.fields.get(i), t);
+			if(value == null) {
+				nullBits[i >> 6] |= 1L << (i & 63);
+				continue;
+			}
+			int kind = layout.kinds[i];
+			if(kind == KIND_BYTES) {
+				objects[layout.slots[i]] = ((byte[]) value).clone();
+			} else if(kind == KIND_OBJECT) {
+				objects[layout.slots[i]] = value;
+			} else {
+				primitives[layout.slots[i]] = toLong(kind, value);
+			}
+		}
+	}
+	
+	/**
+	 * 记录对象当前的列值快照，对象所属的类必须开启了@Table dirtyCheck，否则不记录
+	 * @param t
+	 */
+	public static void record(Object t) {
+		if(t == null || !isDirtyCheck(t.getClass())) {
+			return;
+		}
+		expungeStaleEntries();
+		IdentityWeakReference key = new IdentityWeakReference(t, queue);
+		if(snapshots.size() >= maxSnapshotCount && !snapshots.containsKey(key)) {
+			return; // 超过上限不再记录，update时退化为全量更新
+		}
+		snapshots.put(key, new EntitySnapshot(getLayout(t.getClass()), t));
+	}
+	
+	/**
+	 * 获得对象的快照
+	 * @param t
+	 * @return 没有快照时返回null
+	 */
+	public static EntitySnapshot get(Object t) {
+		if(t == null) {
+			return null;
+		}
+		return snapshots.get(new IdentityWeakReference(t, null));
+	}
+	
+	/**
+	 * 删除对象的快照
+	 * @param t
+	 */
+	public static void remove(Object t) {
+		if(t != null) {
+			snapshots.remove(new IdentityWeakReference(t, null));
+		}
+	}
+	
+	/**
+	 * 当前快照的个数
+	 */
+	public static int getSnapshotCount() {
+		expungeStaleEntries();
+		return snapshots.size();
+	}
+	
+	/**
+	 * 设置快照个数上限，超过后新查询的对象不再记录快照
+	 */
+	public static void setMaxSnapshotCount(int maxSnapshotCount) {
+		EntitySnapshot.maxSnapshotCount = maxSnapshotCount;
+	}
+	
+	/**
+	 * 该类是否开启了dirtyCheck
+	 */
+	public static boolean isDirtyCheck(Class<?> clazz) {
+		return getLayout(clazz).isDirtyCheck;
+	}
+	
+	/**
+	 * 获得和快照相比值有变化的列，顺序同DOInfoReader.getColumns
+	 * @param t 必须是记录快照时的对象
+	 * @return 不会返回null
+	 */
+	public List<Field> getChangedFields(Object t) {
+		List<Field> changed = new ArrayList<Field>();
+		for(int i = 0; i < layout.fields.size(); i++) {
+			Field field = layout.fields.get(i);
+			Object value = DOInfoReader.getValue(field, t);
+			boolean isNullBefore = (nullBits[i >> 6] & (1L << (i & 63))) != 0;
+			if(value == null || isNullBefore) {
+				if(value != null || !isNullBefore) {
+					changed.add(field);
+				}
+				continue;
+			}
+			
+			int kind = layout.kinds[i];
+			boolean isEquals;
+			if(kind == KIND_BYTES) {
+				isEquals = value instanceof byte[]
+						&& Arrays.equals((byte[]) value, (byte[]) objects[layout.slots[i]]);
+			} else if(kind == KIND_OBJECT) {
+				isEquals = value.equals(objects[layout.slots[i]]);
+			} else {
+				isEquals = toLong(kind, value) == primitives[layout.slots[i]];
+			}
+			if(!isEquals) {
+				changed.add(field);
+			}
+		}
+		return changed;
+	}
+	
+	private static long toLong(int kind, Object value) {
+		switch (kind) {
+		case KIND_BOOLEAN:
+			return ((Boolean) value) ? 1L : 0L;
+		case KIND_CHAR:
+			return ((Character) value).charValue();
+		case KIND_DOUBLE:
+			return Double.doubleToLongBits(((Number) value).doubleValue());
+		case KIND_DATE:
+			return ((Date) value).getTime();
+		default:
+			return ((Number) value).longValue();
+		}
+	}
+	
+	private static void expungeStaleEntries() {
+		Object ref;
+		while((ref = queue.poll()) != null) {
+			snapshots.remove(ref);
+		}
+	}
+	
+	private static Layout getLayout(Class<?> clazz) {
+		Layout layout = class2Layout.get(clazz);
+		if(layout == null) {
+			layout = new Layout(clazz);
+			class2Layout.put(clazz, layout);
+		}
+		return layout;
+	}
+	
+	/**
+	 * 类的快照布局：每个列的存储类型，以及在long数组或对象数组中的下标
+	 */
+	private static class Layout {
+		private boolean isDirtyCheck;
+		private List<Field> fields;
+		private int[] kinds;
+		private int[] slots;
+		private int primitiveCount;
+		private int objectCount;
+		
+		private Layout(Class<?> clazz) {
+			Table table = DOInfoReader.getTable(clazz);
+			isDirtyCheck = table.dirtyCheck();
+			
+			// 主键和更新时自动设置时间的列不参与比较
+			fields = new ArrayList<Field>();
+			for(Field field : DOInfoReader.getNotKeyColumns(clazz)) {
+				Column column = field.getAnnotation(Column.class);
+				if(column.setTimeWhenUpdate() && Date.class.isAssignableFrom(field.getType())) {
+					continue;
+				}
+				fields.add(field);
+			}
+			
+			kinds = new int[fields.size()];
+			slots = new int[fields.size()];
+			for(int i = 0; i < fields.size(); i++) {
+				kinds[i] = getKind(fields.get(i).getType());
+				if(kinds[i] == KIND_BYTES || kinds[i] == KIND_OBJECT) {
+					slots[i] = objectCount++;
+				} else {
+					slots[i] = primitiveCount++;
+				}
+			}
+		}
+		
+		private static int getKind(Class<?> type) {
+			if(type == Long.class || type == long.class || type == Integer.class || type == int.class
+					|| type == Short.class || type == short.class
+					|| type == Byte.class || type == byte.class) {
+				return KIND_LONG;
+			}
+			if(type == Boolean.class || type == boolean.class) {
+				return KIND_BOOLEAN;
+			}
+			if(type == Character.class || type == char.class) {
+				return KIND_CHAR;
+			}
+			if(type == Double.class || type == double.class
+					|| type == Float.class || type == float.class) {
+				return KIND_DOUBLE;
+			}
+			if(Date.class.isAssignableFrom(type)) {
+				return KIND_DATE;
+			}
+			if(type == byte[].class) {
+				return KIND_BYTES;
+			}
+			return KIND_OBJECT;
+		}
+	}
+	
+	/**
+	 * 按对象identity比较的弱引用，避免DO重写equals/hashCode带来的影响
+	 */
+	private static class IdentityWeakReference extends WeakReference<Object> {
+		private final int hash;
+		
+		private IdentityWeakReference(Object referent, ReferenceQueue<Object> queue) {
+			super(referent, queue);
+			this.hash = System.identityHashCode(referent);
+		}
+		
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+		
+		@Override
+		public boolean equals(Object obj) {
+			if(this == obj) {
+				return true;
+			}
+			if(!(obj instanceof IdentityWeakReference)) {
+				return false;
+			}
+			Object referent = get();
+			return referent != null && referent == ((IdentityWeakReference) obj).get();
+		}
+	}
+}
@@ -0,0 +1,191 @@
+package com.pugwoo.dbhelper.utils;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 计数器增量的内存累加器，按(类, 列, 主键)聚合。<br>
+ * 每个计数器是一组按线程分散的cell，避免热点计数器上的CAS竞争；drain时逐个cell取走并清零，
+ * 因此并发的累加不会丢失也不会重复。连续两次drain都为0的计数器会被移除。
+ */
+public class IncrementBuffer {
+
+	private static final int CELL_COUNT;
+	static {
+		int count = 1;
+		int cpus = Runtime.getRuntime().availableProcessors();
+		while(count < cpus && count < 64) {
+			count <<= 1;
+		}
+		CELL_COUNT = count;
+	}
+
+	private final ConcurrentMap<Key, Counter> counters = new ConcurrentHashMap<Key, Counter>();
+
+	/**
+	 * 累加增量
+	 * @param clazz
+	 * @param columnName 数据库列名
+	 * @param keyValue 主键值
+	 * @param delta
+	 */
+	public void add(Class<?> clazz, String columnName, Object keyValue, long delta) {
+		if(delta == 0) {
+			return;
+		}
+		Key key = new Key(clazz, columnName, keyValue);
+		while(true) {
+			Counter counter = counters.get(key);
+			if(counter == null) {
+				counter = new Counter();
+				Counter old = counters.putIfAbsent(key, counter);
+				if(old != null) {
+					counter = old;
+				}
+			}
+			counter.add(delta);
+			if(!counter.retired) {
+				return;
+			}
+			// 计数器已被移除，取回尚未被drain的部分重新累加到新的计数器
+			delta = counter.sumThenReset();
+			if(delta == 0) {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * 取走所有计数器的增量
+	 * @return 增量不为0的计数器
+	 */
+	public List<Entry> drain() {
+		List<Entry> entries = new ArrayList<Entry>();
+		Iterator<Map.Entry<Key, Counter>> it = counters.entrySet().iterator();
+		while(it.hasNext()) {
+			Map.Entry<Key, Counter> e = it.next();
+			Counter counter = e.getValue();
+			long delta = counter.sumThenReset();
+			if(delta == 0) {
+				if(counter.idle) {
+					counter.retired = true;
+					counters.remove(e.getKey(), counter);
+					delta = counter.sumThenReset(); // 取走标记retired之前并发加入的增量
+				} else {
+					counter.idle = true;
+				}
+			} else {
+				counter.idle = false;
+			}
+			if(delta != 0) {
+				entries.add(new Entry(e.getKey(), delta));
+			}
+		}
+		return entries;
+	}
+
+	/**
+	 * 是否没有待写入的增量
+	 */
+	public boolean isEmpty() {
+		for(Counter counter : counters.values()) {
+			if(counter.sum() != 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static class Counter {
+		private final AtomicLongArray cells = new AtomicLongArray(CELL_COUNT);
+		private volatile boolean retired;
+		/**只由drain线程读写*/
+		private boolean idle;
+
+		private void add(long delta) {
+			int h = (int) Thread.currentThread().getId();
+			h ^= (h >>> 16);
+			cells.addAndGet(h & (CELL_COUNT - 1), delta);
+		}
+
+		private long sumThenReset() {
+			long sum = 0;
+			for(int i = 0; i < CELL_COUNT; i++) {
+				if(cells.get(i) != 0) {
+					sum += cells.getAndSet(i, 0);
+				}
+			}
+			return sum;
+		}
+
+		private long sum() {
+			long sum = 0;
+			for(int i = 0; i < CELL_COUNT; i++) {
+				sum += cells.get(i);
+			}
+			return sum;
+		}
+	}
+
+	public static class Key {
+		private final Class<?> clazz;
+		private final String columnName;
+		private final Object keyValue;
+
+		private Key(Class<?> clazz, String columnName, Object keyValue) {
+			this.clazz = clazz;
+			this.columnName = columnName;
+			this.keyValue = keyValue;
+		}
+
+		public Class<?> getClazz() {
+			return clazz;
+		}
+
+		public String getColumnName() {
+			return columnName;
+		}
+
+		public Object getKeyValue() {
+			return keyValue;
+		}
+
+		@Override
+		public int hashCode() {
+			return (clazz.hashCode() * 31 + columnName.hashCode()) * 31 + keyValue.hashCode();
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if(!(obj instanceof Key)) {
+				return false;
+			}
+			Key other = (Key) obj;
+			return clazz.equals(other.clazz) && columnName.equals(other.columnName)
+					&& keyValue.equals(other.keyValue);
+		}
+	}
+
+	public static class Entry {
+		private final Key key;
+		private final long delta;
+
+		private Entry(Key key, long delta) {
+			this.key = key;
+			this.delta = delta;
+		}
+
+		public Key getKey() {
+			return key;
+		}
+
+		public long getDelta() {
+			return delta;
+		}
+	}
+}
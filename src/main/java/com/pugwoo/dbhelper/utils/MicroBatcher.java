@@ -0,0 +1,161 @@
+package com.pugwoo.dbhelper.utils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 把多个线程并发提交的单个请求合并成批量请求执行(group commit)。<br>
+ * 不使用额外线程：第一个抢到leader的调用线程等待最多window时间或凑够maxBatchSize个请求，
+ * 然后替所有等待中的请求执行一次批量操作，其它线程等待自己的请求完成。
+ *
+ * @param <T> 请求
+ * @param <R> 结果
+ */
+public class MicroBatcher<T, R> {
+
+	/**
+	 * 批量执行的处理器
+	 */
+	public interface BatchHandler<T, R> {
+		/**
+		 * 执行一批请求，需要为每个call设置结果或异常；没有设置的call结果为null。
+		 * 如果抛出异常，所有尚未设置结果的call都会得到该异常。
+		 */
+		void handle(List<Call<T, R>> calls);
+	}
+
+	public static class Call<T, R> {
+		private final T request;
+		private final Thread thread;
+		private R result;
+		private RuntimeException exception;
+		private volatile boolean done;
+
+		private Call(T request) {
+			this.request = request;
+			this.thread = Thread.currentThread();
+		}
+
+		public T getRequest() {
+			return request;
+		}
+
+		public void setResult(R result) {
+			this.result = result;
+			this.exception = null;
+		}
+
+		public void setException(RuntimeException exception) {
+			this.exception = exception;
+		}
+
+		private boolean hasOutcome() {
+			return result != null || exception != null;
+		}
+	}
+
+	private final BatchHandler<T, R> handler;
+	private final long windowNanos;
+	private final int maxBatchSize;
+
+	private final ConcurrentLinkedQueue<Call<T, R>> queue = new ConcurrentLinkedQueue<Call<T, R>>();
+	private final AtomicInteger queueSize = new AtomicInteger();
+	private final AtomicBoolean leading = new AtomicBoolean(false);
+
+	/**
+	 * @param handler
+	 * @param windowMicros leader等待更多请求的最长微秒数
+	 * @param maxBatchSize 每批最多的请求数
+	 */
+	public MicroBatcher(BatchHandler<T, R> handler, long windowMicros, int maxBatchSize) {
+		this.handler = handler;
+		this.windowNanos = TimeUnit.MICROSECONDS.toNanos(windowMicros);
+		this.maxBatchSize = maxBatchSize < 1 ? 1 : maxBatchSize;
+	}
+
+	/**
+	 * 提交请求并等待批量执行完成
+	 * @return 该请求的结果
+	 */
+	public R submit(T request) {
+		Call<T, R> call = new Call<T, R>(request);
+		queue.add(call);
+		queueSize.incrementAndGet();
+
+		while(!call.done) {
+			if(leading.compareAndSet(false, true)) {
+				try {
+					if(!call.done) {
+						lead();
+					}
+				} finally {
+					leading.set(false);
+				}
+				// 队列中还有请求时唤醒一个，让它成为下一个leader
+				Call<T, R> next = queue.peek();
+				if(next != null) {
+					LockSupport.unpark(next.thread);
+				}
+			} else {
+				LockSupport.parkNanos(this, Math.max(windowNanos, 100000L));
+			}
+		}
+
+		if(call.exception != null) {
+			throw call.exception;
+		}
+		return call.result;
+	}
+
+	private void lead() {
+		long deadline = System.nanoTime() + windowNanos;
+		while(queueSize.get() < maxBatchSize) {
+			long remain = deadline - System.nanoTime();
+			if(remain <= 0) {
+				break;
+			}
+			LockSupport.parkNanos(this, Math.min(remain, 20000L));
+		}
+
+		List<Call<T, R>> calls = new ArrayList<Call<T, R>>();
+		Call<T, R> call;
+		while(calls.size() < maxBatchSize && (call = queue.poll()) != null) {
+			queueSize.decrementAndGet();
+			calls.add(call);
+		}
+		if(calls.isEmpty()) {
+			return;
+		}
+
+		try {
+			handler.handle(calls);
+		} catch (RuntimeException e) {
+			for(Call<T, R> c : calls) {
+				if(!c.hasOutcome()) {
+					c.exception = e;
+				}
+			}
+		} catch (Error e) {
+			for(Call<T, R> c : calls) {
+				if(!c.hasOutcome()) {
+					c.exception = new RuntimeException(e);
+				}
+			}
+			throw e;
+		} finally {
+			Thread current = Thread.currentThread();
+			for(Call<T, R> c : calls) {
+				c.done = true;
+				if(c.thread != current) {
+					LockSupport.unpark(c.thread);
+				}
+			}
+		}
+	}
+
+}
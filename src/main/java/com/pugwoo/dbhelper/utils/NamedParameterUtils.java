@@ -1,10 +1,17 @@
 package com.pugwoo.dbhelper.utils;
 
+import java.sql.ResultSet;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
+import org.springframework.jdbc.core.PreparedStatementCreator;
+import org.springframework.jdbc.core.PreparedStatementCreatorFactory;
+import org.springframework.jdbc.core.SqlParameter;
+import org.springframework.jdbc.core.namedparam.MapSqlParameterSource;
+import org.springframework.jdbc.core.namedparam.ParsedSql;
+
 /**
  * 2015年8月24日 18:37:48
  * 因为jdbcTemplate不支持 in (?)传入list的方式
@@ -106,4 +113,26 @@ public class NamedParameterUtils {
 		return sb.toString();
 	}
 	
+	/**
+	 * 生成只向前、只读的PreparedStatementCreator，参数处理和namedParameterJdbcTemplate相同，支持in (?)。
+	 * 用于需要自己控制ResultSet的场景，例如流式读取
+	 * @param sql 用?表示参数的sql
+	 */
+	public static PreparedStatementCreator getPreparedStatementCreator(String sql, Object... args) {
+		MapSqlParameterSource paramSource = new MapSqlParameterSource(transParam(args));
+		ParsedSql parsedSql = org.springframework.jdbc.core.namedparam.NamedParameterUtils
+				.parseSqlStatement(trans(sql));
+		String sqlToUse = org.springframework.jdbc.core.namedparam.NamedParameterUtils
+				.substituteNamedParameters(parsedSql, paramSource);
+		List<SqlParameter> declaredParameters = org.springframework.jdbc.core.namedparam.NamedParameterUtils
+				.buildSqlParameterList(parsedSql, paramSource);
+		Object[] params = org.springframework.jdbc.core.namedparam.NamedParameterUtils
+				.buildValueArray(parsedSql, paramSource, null);
+		
+		PreparedStatementCreatorFactory factory = new PreparedStatementCreatorFactory(sqlToUse, declaredParameters);
+		factory.setResultSetType(ResultSet.TYPE_FORWARD_ONLY);
+		factory.setUpdatableResults(false);
+		return factory.newPreparedStatementCreator(params);
+	}
+	
 }
@@ -0,0 +1,144 @@
+package com.pugwoo.dbhelper.utils;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import javax.sql.DataSource;
+
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.PreparedStatementCreator;
+import org.springframework.jdbc.core.RowMapper;
+import org.springframework.jdbc.datasource.DataSourceUtils;
+import org.springframework.jdbc.support.JdbcUtils;
+
+import com.pugwoo.dbhelper.model.CloseableIterator;
+
+/**
+ * 逐行读取ResultSet的迭代器，只向前、只读，不把结果全部放到内存中。<br>
+ * 每次读取一个窗口的记录交给handleWindow处理(例如批量查询@RelatedColumn)，再逐条返回；
+ * 读完最后一条或close时释放连接。连接通过DataSourceUtils获取，在事务中时使用事务的连接。
+ */
+public class ResultSetIterator<T> implements CloseableIterator<T> {
+
+	private final JdbcTemplate jdbcTemplate;
+	private final String sql;
+	private final RowMapper<T> rowMapper;
+	private final int windowSize;
+	
+	private Connection con;
+	private PreparedStatement ps;
+	private ResultSet rs;
+	private boolean isClosed = false;
+	
+	private List<T> window = new ArrayList<T>();
+	private int windowIndex = 0;
+	private int rowNum = 0;
+
+	/**
+	 * 执行查询，失败时释放连接并抛出转换后的DataAccessException
+	 * @param fetchSize 每次从数据库读取的行数，MySQL的Integer.MIN_VALUE表示逐行流式读取
+	 * @param windowSize 每次交给handleWindow处理的记录数
+	 */
+	public ResultSetIterator(JdbcTemplate jdbcTemplate, PreparedStatementCreator psc, String sql,
+			int fetchSize, RowMapper<T> rowMapper, int windowSize) {
+		this.jdbcTemplate = jdbcTemplate;
+		this.sql = sql;
+		this.rowMapper = rowMapper;
+		this.windowSize = windowSize < 1 ? 1 : windowSize;
+		
+		DataSource dataSource = jdbcTemplate.getDataSource();
+		con = DataSourceUtils.getConnection(dataSource);
+		try {
+			ps = psc.createPreparedStatement(con);
+			ps.setFetchSize(fetchSize);
+			rs = ps.executeQuery();
+		} catch (SQLException e) {
+			close();
+			throw jdbcTemplate.getExceptionTranslator().translate("ResultSetIterator", sql, e);
+		} catch (RuntimeException e) {
+			close();
+			throw e;
+		}
+	}
+	
+	/**
+	 * 一个窗口的记录读出之后、返回之前调用
+	 */
+	protected void handleWindow(List<T> window) {
+	}
+
+	@Override
+	public boolean hasNext() {
+		if(windowIndex < window.size()) {
+			return true;
+		}
+		if(isClosed) {
+			return false;
+		}
+		
+		window = new ArrayList<T>(windowSize);
+		windowIndex = 0;
+		try {
+			while(window.size() < windowSize && rs.next()) {
+				window.add(rowMapper.mapRow(rs, rowNum++));
+			}
+		} catch (SQLException e) {
+			close();
+			throw jdbcTemplate.getExceptionTranslator().translate("ResultSetIterator", sql, e);
+		} catch (RuntimeException e) {
+			close();
+			throw e;
+		}
+		if(window.size() < windowSize) {
+			close(); // 已经读完，尽早释放连接
+		}
+		if(window.isEmpty()) {
+			return false;
+		}
+		try {
+			handleWindow(window);
+		} catch (RuntimeException e) {
+			close();
+			throw e;
+		}
+		return true;
+	}
+
+	@Override
+	public T next() {
+		if(!hasNext()) {
+			throw new NoSuchElementException();
+		}
+		T t = window.get(windowIndex);
+		window.set(windowIndex++, null); // 返回后不再持有引用
+		return t;
+	}
+
+	@Override
+	public void remove() {
+		throw new UnsupportedOperationException();
+	}
+
+	/**
+	 * MySQL流式读取时，没有读完就关闭需要驱动读完剩余的数据
+	 */
+	@Override
+	public void close() {
+		if(isClosed) {
+			return;
+		}
+		isClosed = true;
+		JdbcUtils.closeResultSet(rs);
+		JdbcUtils.closeStatement(ps);
+		DataSourceUtils.releaseConnection(con, jdbcTemplate.getDataSource());
+		rs = null;
+		ps = null;
+		con = null;
+	}
+	
+}
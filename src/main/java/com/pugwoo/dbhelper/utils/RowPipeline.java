@@ -0,0 +1,230 @@
+package com.pugwoo.dbhelper.utils;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.PreparedStatementCallback;
+import org.springframework.jdbc.core.PreparedStatementCreator;
+import org.springframework.jdbc.support.JdbcUtils;
+
+/**
+ * 流水线方式读取大量数据：调用线程只读取ResultSet，把列值复制到可重复使用的行缓冲中；
+ * 多个映射线程把行缓冲创建成对象，再按块交给handleChunk处理(例如批量查询@RelatedColumn)。<br>
+ * 行缓冲按块从固定大小的池中取出，映射完归还，池空时读取线程等待映射线程，内存中最多有池大小个块。<br>
+ * 一次性使用，任意一个线程失败时其它线程在下一块时停止，run抛出最先的异常。
+ */
+public class RowPipeline<T> {
+
+	private static final long POLL_MS = 100;
+
+	private static class Chunk {
+		private final Object[][] rows;
+		private int size;
+
+		private Chunk(int chunkSize, int columnCount) {
+			rows = new Object[chunkSize][columnCount];
+		}
+	}
+
+	private final AnnotationSupportRowMapper<T> rowMapper;
+	private final int chunkSize;
+	private final int mapperThreads;
+
+	private final Chunk end = new Chunk(0, 0); // 读取结束的标记
+	/**空闲的行缓冲块*/
+	private final BlockingQueue<Chunk> freeChunks;
+	/**读取完等待映射的块*/
+	private final BlockingQueue<Chunk> fullChunks;
+
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicBoolean isStopped = new AtomicBoolean(false);
+	private final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+
+	/**
+	 * @param chunkSize 每块的行数，每块调用一次handleChunk
+	 * @param mapperThreads 映射线程数
+	 */
+	public RowPipeline(AnnotationSupportRowMapper<T> rowMapper, int chunkSize, int mapperThreads) {
+		this.rowMapper = rowMapper;
+		this.chunkSize = chunkSize < 1 ? 1 : chunkSize;
+		this.mapperThreads = mapperThreads < 1 ? 1 : mapperThreads;
+
+		// 每个映射线程一块，排队等待映射的每个线程一块，读取线程正在填充一块
+		int poolSize = this.mapperThreads * 2 + 1;
+		freeChunks = new ArrayBlockingQueue<Chunk>(poolSize);
+		fullChunks = new ArrayBlockingQueue<Chunk>(poolSize + this.mapperThreads);
+		for(int i = 0; i < poolSize; i++) {
+			freeChunks.add(new Chunk(this.chunkSize, rowMapper.getColumnCount()));
+		}
+	}
+
+	/**
+	 * 一块记录映射完之后在映射线程中调用，多个映射线程会同时调用
+	 */
+	protected void handleChunk(List<T> chunk) {
+	}
+
+	/**
+	 * 在调用线程中执行查询并读取，全部处理完或失败之后返回
+	 * @param fetchSize 每次从数据库读取的行数，MySQL的Integer.MIN_VALUE表示逐行流式读取
+	 * @return 处理的记录数
+	 */
+	public long run(JdbcTemplate jdbcTemplate, PreparedStatementCreator psc, final int fetchSize) {
+		ExecutorService executor = Executors.newFixedThreadPool(mapperThreads, new ThreadFactory() {
+			private final AtomicInteger index = new AtomicInteger();
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "nimble-orm-mapper-" + index.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		try {
+			for(int i = 0; i < mapperThreads; i++) {
+				executor.execute(new Runnable() {
+					@Override
+					public void run() {
+						map();
+					}
+				});
+			}
+			jdbcTemplate.execute(psc, new PreparedStatementCallback<Object>() {
+				@Override
+				public Object doInPreparedStatement(PreparedStatement ps) throws SQLException {
+					ps.setFetchSize(fetchSize);
+					ResultSet rs = ps.executeQuery();
+					try {
+						read(rs);
+					} finally {
+						JdbcUtils.closeResultSet(rs);
+					}
+					return null;
+				}
+			});
+			for(int i = 0; i < mapperThreads; i++) {
+				put(fullChunks, end);
+			}
+		} catch (RuntimeException e) {
+			failure.compareAndSet(null, e);
+		} catch (Error e) {
+			failure.compareAndSet(null, e);
+		} finally {
+			if(failure.get() != null) {
+				isStopped.set(true);
+			}
+			executor.shutdown();
+			awaitTermination(executor); // 返回时映射线程都已经结束
+		}
+
+		Throwable e = failure.get();
+		if(e instanceof RuntimeException) {
+			throw (RuntimeException) e;
+		}
+		if(e instanceof Error) {
+			throw (Error) e;
+		}
+		return count.get();
+	}
+
+	private void read(ResultSet rs) throws SQLException {
+		Chunk chunk = null;
+		while(!isStopped.get() && rs.next()) {
+			if(chunk == null) {
+				chunk = take(freeChunks);
+				if(chunk == null) {
+					return;
+				}
+			}
+			rowMapper.readRow(rs, chunk.rows[chunk.size++]);
+			if(chunk.size == chunkSize) {
+				put(fullChunks, chunk);
+				chunk = null;
+			}
+		}
+		if(chunk != null) {
+			put(fullChunks, chunk);
+		}
+	}
+
+	private void map() {
+		try {
+			while(true) {
+				Chunk chunk = take(fullChunks);
+				if(chunk == null || chunk == end) {
+					return;
+				}
+				List<T> list = new ArrayList<T>(chunk.size);
+				for(int i = 0; i < chunk.size; i++) {
+					list.add(rowMapper.mapRow(chunk.rows[i]));
+				}
+				chunk.size = 0;
+				freeChunks.add(chunk); // 池的容量就是块的总数，不会满
+				handleChunk(list);
+				count.addAndGet(list.size());
+			}
+		} catch (Throwable e) {
+			failure.compareAndSet(null, e);
+			isStopped.set(true);
+		}
+	}
+
+	/**
+	 * 不中断线程，定时检查是否已经停止
+	 * @return 已经停止时返回null
+	 */
+	private Chunk take(BlockingQueue<Chunk> queue) {
+		try {
+			while(!isStopped.get()) {
+				Chunk chunk = queue.poll(POLL_MS, TimeUnit.MILLISECONDS);
+				if(chunk != null) {
+					return chunk;
+				}
+			}
+			return null;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		}
+	}
+
+	private void put(BlockingQueue<Chunk> queue, Chunk chunk) {
+		try {
+			while(!isStopped.get() && !queue.offer(chunk, POLL_MS, TimeUnit.MILLISECONDS)) {
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		}
+	}
+
+	private void awaitTermination(ExecutorService executor) {
+		boolean interrupted = false;
+		while(true) {
+			try {
+				if(executor.awaitTermination(POLL_MS, TimeUnit.MILLISECONDS)) {
+					break;
+				}
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if(interrupted) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+}
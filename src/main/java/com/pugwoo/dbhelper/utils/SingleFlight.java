@@ -0,0 +1,96 @@
+package com.pugwoo.dbhelper.utils;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 相同key的并发请求只执行一次(single flight)：执行期间到达的相同请求等待并共享第一个请求的结果。<br>
+ * 执行完成后立即移除，不缓存结果。
+ */
+public class SingleFlight<K, V> {
+
+	public interface Loader<V> {
+		V load();
+	}
+
+	/**
+	 * 执行结果
+	 */
+	public static class Result<V> {
+		private final V value;
+		private final boolean shared;
+
+		private Result(V value, boolean shared) {
+			this.value = value;
+			this.shared = shared;
+		}
+
+		public V getValue() {
+			return value;
+		}
+
+		/**
+		 * @return true表示结果来自其它线程的执行，false表示由当前线程执行
+		 */
+		public boolean isShared() {
+			return shared;
+		}
+	}
+
+	private static class Flight<V> {
+		private final CountDownLatch latch = new CountDownLatch(1);
+		private V value;
+		private RuntimeException exception;
+	}
+
+	private final ConcurrentMap<K, Flight<V>> flights = new ConcurrentHashMap<K, Flight<V>>();
+	private final AtomicLong sharedCount = new AtomicLong();
+
+	public Result<V> execute(K key, Loader<V> loader) {
+		Flight<V> flight = new Flight<V>();
+		Flight<V> inFlight = flights.putIfAbsent(key, flight);
+		if(inFlight != null) {
+			boolean interrupted = false;
+			while(true) {
+				try {
+					inFlight.latch.await();
+					break;
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+			if(interrupted) {
+				Thread.currentThread().interrupt();
+			}
+			sharedCount.incrementAndGet();
+			if(inFlight.exception != null) {
+				throw inFlight.exception;
+			}
+			return new Result<V>(inFlight.value, true);
+		}
+
+		try {
+			flight.value = loader.load();
+			return new Result<V>(flight.value, false);
+		} catch (RuntimeException e) {
+			flight.exception = e;
+			throw e;
+		} catch (Error e) {
+			flight.exception = new RuntimeException(e);
+			throw e;
+		} finally {
+			flights.remove(key, flight);
+			flight.latch.countDown();
+		}
+	}
+
+	/**
+	 * @return 共享了其它线程执行结果的请求次数
+	 */
+	public long getSharedCount() {
+		return sharedCount.get();
+	}
+
+}
@@ -0,0 +1,118 @@
+package com.pugwoo.dbhelper.cache;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.pugwoo.dbhelper.test.model.StudentDO;
+
+/**
+ * OffHeapEntityStore是包内可见的，测试放在同一个包中，不需要数据库
+ */
+public class TestOffHeapEntityStore {
+
+	/**segment最小64K，128K时分配2个segment*/
+	private static final long MAX_BYTES = 128 * 1024;
+
+	private OffHeapEntityStore newStore() {
+		return new OffHeapEntityStore(EntityCodec.create(StudentDO.class), MAX_BYTES);
+	}
+
+	private StudentDO newStudent(long id, int introBytes) {
+		StudentDO studentDO = new StudentDO();
+		studentDO.setId(id);
+		studentDO.setName("nick" + id);
+		studentDO.setIntro(new byte[introBytes]);
+		return studentDO;
+	}
+
+	@Test
+	public void testPutGet() {
+		OffHeapEntityStore store = newStore();
+		Assert.assertTrue(store.get(1L) == null);
+
+		StudentDO studentDO = newStudent(1L, 10);
+		store.put(1L, studentDO, 0);
+		StudentDO cached = (StudentDO) store.get(1L);
+		Assert.assertTrue(cached != studentDO);
+		Assert.assertTrue("nick1".equals(cached.getName()));
+		Assert.assertTrue(cached.getIntro().length == 10);
+
+		cached.setName("changed"); // 取出的是副本
+		Assert.assertTrue("nick1".equals(((StudentDO) store.get(1L)).getName()));
+
+		store.put(1L, newStudent(1L, 20), 0); // 覆盖
+		Assert.assertTrue(((StudentDO) store.get(1L)).getIntro().length == 20);
+
+		store.invalidate(1L);
+		Assert.assertTrue(store.get(1L) == null);
+
+		CacheStats stats = store.getStats();
+		Assert.assertTrue(stats.getHitCount() == 3);
+		Assert.assertTrue(stats.getMissCount() == 2);
+		Assert.assertTrue(stats.getSize() == 0);
+		Assert.assertTrue(stats.getUsedBytes() == 0);
+	}
+
+	@Test
+	public void testExpire() throws Exception {
+		OffHeapEntityStore store = newStore();
+		store.put(1L, newStudent(1L, 10), 1);
+		Thread.sleep(10);
+		Assert.assertTrue(store.get(1L) == null);
+		Assert.assertTrue(store.getStats().getSize() == 0);
+	}
+
+	@Test
+	public void testRoll() {
+		OffHeapEntityStore store = newStore();
+		store.put(0L, newStudent(0L, 1000), 0);
+		Assert.assertTrue(store.get(0L) != null); // 访问过的会在回收时保留
+
+		// 写满两个segment之后回收第一个segment
+		for(long id = 1; id <= 200; id++) {
+			store.put(id, newStudent(id, 1000), 0);
+		}
+		CacheStats stats = store.getStats();
+		Assert.assertTrue(stats.getAllocatedBytes() == MAX_BYTES);
+		Assert.assertTrue(stats.getUsedBytes() <= MAX_BYTES);
+		Assert.assertTrue(stats.getEvictionCount() > 0);
+		Assert.assertTrue(store.get(0L) != null);
+		Assert.assertTrue(store.get(1L) == null); // 没有访问过的被淘汰
+		Assert.assertTrue(store.get(200L) != null);
+
+		store.invalidateAll();
+		Assert.assertTrue(store.get(200L) == null);
+		Assert.assertTrue(store.getStats().getUsedBytes() == 0);
+	}
+
+	@Test
+	public void testRollOverflow() {
+		OffHeapEntityStore store = newStore();
+		// 第一个segment写入40条并都访问过，回收时会尽量保留
+		for(long id = 1; id <= 40; id++) {
+			store.put(id, newStudent(id, 1000), 0);
+			Assert.assertTrue(store.get(id) != null);
+		}
+		store.put(100L, newStudent(100L, 40000), 0); // 写入第二个segment
+		store.put(101L, newStudent(101L, 40000), 0); // 回收第一个segment，保留的数据要给它留出空间
+
+		StudentDO cached = (StudentDO) store.get(101L);
+		Assert.assertTrue(cached != null);
+		Assert.assertTrue(cached.getIntro().length == 40000);
+		Assert.assertTrue(store.get(100L) != null);
+
+		int survivors = 0;
+		for(long id = 1; id <= 40; id++) {
+			if(store.get(id) != null) {
+				survivors++;
+			}
+		}
+		Assert.assertTrue(survivors > 0 && survivors < 40);
+		Assert.assertTrue(store.getStats().getUsedBytes() <= MAX_BYTES);
+
+		// 超过segment大小的不缓存
+		store.put(102L, newStudent(102L, 70000), 0);
+		Assert.assertTrue(store.get(102L) == null);
+	}
+
+}
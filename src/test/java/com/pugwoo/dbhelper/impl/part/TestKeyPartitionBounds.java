@@ -0,0 +1,39 @@
+package com.pugwoo.dbhelper.impl.part;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * scanInParallel的主键分区，不需要数据库
+ */
+public class TestKeyPartitionBounds {
+
+	@Test
+	public void testBounds() {
+		Long[] bounds = P1_QueryOp.getKeyPartitionBounds(1, 10, 3);
+		Assert.assertTrue(bounds.length == 4);
+		Assert.assertTrue(bounds[0] == 0);
+		Assert.assertTrue(bounds[3] == 10);
+
+		bounds = P1_QueryOp.getKeyPartitionBounds(5, 6, 4); // 区间数不超过主键个数
+		Assert.assertTrue(bounds.length == 3);
+		Assert.assertTrue(bounds[0] == 4 && bounds[1] == 5 && bounds[2] == 6);
+	}
+
+	@Test
+	public void testOverflow() {
+		Assert.assertTrue(P1_QueryOp.getKeyPartitionBounds(Long.MIN_VALUE, 10, 4) == null);
+		Assert.assertTrue(P1_QueryOp.getKeyPartitionBounds(-10, Long.MAX_VALUE, 4) == null);
+		Assert.assertTrue(P1_QueryOp.getKeyPartitionBounds(0, Long.MAX_VALUE, 4) == null);
+
+		Long[] bounds = P1_QueryOp.getKeyPartitionBounds(1, Long.MAX_VALUE, 4);
+		Assert.assertTrue(bounds.length == 5);
+		Assert.assertTrue(bounds[0] == 0);
+		Assert.assertTrue(bounds[4] == Long.MAX_VALUE);
+
+		bounds = P1_QueryOp.getKeyPartitionBounds(Long.MIN_VALUE + 1, -1, 4);
+		Assert.assertTrue(bounds[0] == Long.MIN_VALUE);
+		Assert.assertTrue(bounds[4] == -1);
+	}
+
+}
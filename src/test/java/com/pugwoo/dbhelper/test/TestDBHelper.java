@@ -1,28 +1,62 @@
 package com.pugwoo.dbhelper.test;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.junit.Assert;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jdbc.BadSqlGrammarException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
 import org.springframework.test.annotation.Rollback;
 import org.springframework.test.context.ContextConfiguration;
 import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+import org.springframework.transaction.annotation.Propagation;
 import org.springframework.transaction.annotation.Transactional;
 
 import com.pugwoo.dbhelper.DBHelper;
+import com.pugwoo.dbhelper.enums.CountModeEnum;
+import com.pugwoo.dbhelper.enums.SingleFlightModeEnum;
+import com.pugwoo.dbhelper.enums.UpsertResultEnum;
+import com.pugwoo.dbhelper.exception.InvalidParameterException;
+import com.pugwoo.dbhelper.exception.ResultTooLargeException;
+import com.pugwoo.dbhelper.impl.SpringJdbcDBHelper;
+import com.pugwoo.dbhelper.impl.WriteBehindDBHelper;
+import com.pugwoo.dbhelper.model.CloseableIterator;
+import com.pugwoo.dbhelper.model.CursorPageData;
+import com.pugwoo.dbhelper.model.DataHandler;
 import com.pugwoo.dbhelper.model.PageData;
 import com.pugwoo.dbhelper.test.model.CourseDO;
+import com.pugwoo.dbhelper.test.model.SchoolCacheAllDO;
 import com.pugwoo.dbhelper.test.model.SchoolDO;
+import com.pugwoo.dbhelper.test.model.StudentBatchGetDO;
+import com.pugwoo.dbhelper.test.model.StudentCacheAllDO;
+import com.pugwoo.dbhelper.test.model.StudentCacheDO;
+import com.pugwoo.dbhelper.test.model.StudentDeferredJoinDO;
+import com.pugwoo.dbhelper.test.model.StudentDirtyCheckDO;
+import com.pugwoo.dbhelper.test.model.StudentGroupCommitDO;
+import com.pugwoo.dbhelper.test.model.StudentNegativeCacheDO;
+import com.pugwoo.dbhelper.test.model.StudentQueryCacheDO;
 import com.pugwoo.dbhelper.test.model.StudentDO;
 import com.pugwoo.dbhelper.test.model.StudentTrueDeleteDO;
+import com.pugwoo.dbhelper.test.vo.SchoolWithStudentsVO;
 import com.pugwoo.dbhelper.test.vo.StudentSchoolJoinVO;
 import com.pugwoo.dbhelper.test.vo.StudentVO;
+import com.pugwoo.dbhelper.utils.SingleFlight;
 
 /**
  * 2015年1月13日 11:11:23
@@ -34,6 +68,10 @@ public class TestDBHelper {
 	
 	@Autowired
 	private DBHelper dbHelper;
+	@Autowired
+	private JdbcTemplate jdbcTemplate;
+	@Autowired
+	private NamedParameterJdbcTemplate namedParameterJdbcTemplate;
 	
 	private String getRandomName(String prefix) {
 		return prefix + UUID.randomUUID().toString().replace("-", "").substring(0, 16);
@@ -80,6 +118,53 @@ public class TestDBHelper {
 		Assert.assertTrue(st.getName() == null);
 	}
 	
+	@Test
+	@Transactional(propagation = Propagation.NOT_SUPPORTED) // group commit不在事务中生效
+	public void testInsertGroupCommit() throws Exception {
+		final List<StudentGroupCommitDO> list = new ArrayList<StudentGroupCommitDO>();
+		final List<Integer> rows = new ArrayList<Integer>();
+		List<Thread> threads = new ArrayList<Thread>();
+		for(int i = 0; i < 20; i++) {
+			final StudentGroupCommitDO studentDO = new StudentGroupCommitDO();
+			studentDO.setName(getRandomName("nick"));
+			list.add(studentDO);
+			Thread thread = new Thread() {
+				@Override
+				public void run() {
+					int row = dbHelper.insert(studentDO);
+					synchronized (rows) {
+						rows.add(row);
+					}
+				}
+			};
+			threads.add(thread);
+			thread.start();
+		}
+		for(Thread thread : threads) {
+			thread.join();
+		}
+		
+		try {
+			Assert.assertTrue(rows.size() == 20);
+			for(Integer row : rows) {
+				Assert.assertTrue(row == 1); // 每个调用者只插入了自己的一条
+			}
+			for(StudentGroupCommitDO studentDO : list) {
+				Assert.assertTrue(studentDO.getId() != null);
+				StudentDO db = dbHelper.getByKey(StudentDO.class, studentDO.getId());
+				Assert.assertTrue(studentDO.getName().equals(db.getName()));
+			}
+		} finally {
+			List<StudentGroupCommitDO> inserted = new ArrayList<StudentGroupCommitDO>();
+			for(StudentGroupCommitDO studentDO : list) {
+				if(studentDO.getId() != null) {
+					inserted.add(studentDO);
+				}
+			}
+			dbHelper.deleteByKey(inserted);
+		}
+	}
+	
 	
 	// ============ UPDATE TEST START ======================
 	@Test
@@ -153,6 +238,255 @@ public class TestDBHelper {
 		Assert.assertTrue("nick2".equals(db.getName()));
 	}
 	
+	@Test
+	public void testUpdateDirtyCheck() {
+		StudentDO studentDO = insertOne();
+		
+		StudentDirtyCheckDO db = dbHelper.getByKey(StudentDirtyCheckDO.class, studentDO.getId());
+		int rows = dbHelper.update(db); // 没有变化，不执行sql
+		Assert.assertTrue(rows == 0);
+		
+		db.setName("nick2");
+		rows = dbHelper.update(db);
+		Assert.assertTrue(rows == 1);
+		db = dbHelper.getByKey(StudentDirtyCheckDO.class, studentDO.getId());
+		Assert.assertTrue("nick2".equals(db.getName()));
+		
+		rows = dbHelper.update(db);
+		Assert.assertTrue(rows == 0);
+	}
+	
+	@Test
+	public void testInsertBatchMixedClass() {
+		List<Object> list = new ArrayList<Object>();
+		for(int i = 0; i < 3; i++) {
+			StudentDO studentDO = new StudentDO();
+			studentDO.setName(getRandomName("nick"));
+			list.add(studentDO);
+		}
+		list.add(null);
+		for(int i = 0; i < 2; i++) {
+			SchoolDO schoolDO = new SchoolDO();
+			schoolDO.setName(getRandomName("school"));
+			list.add(schoolDO);
+		}
+		
+		int rows = dbHelper.insert(list);
+		Assert.assertTrue(rows == 5);
+		for(int i = 0; i < 3; i++) {
+			StudentDO studentDO = (StudentDO) list.get(i);
+			StudentDO db = dbHelper.getByKey(StudentDO.class, studentDO.getId());
+			Assert.assertTrue(studentDO.getName().equals(db.getName()));
+		}
+		for(int i = 4; i < 6; i++) {
+			SchoolDO schoolDO = (SchoolDO) list.get(i);
+			SchoolDO db = dbHelper.getByKey(SchoolDO.class, schoolDO.getId());
+			Assert.assertTrue(schoolDO.getName().equals(db.getName()));
+		}
+	}
+	
+	@Test
+	public void testUpdateBatch() {
+		List<StudentDO> list = insertBatch(10);
+		for(int i = 0; i < list.size(); i++) {
+			list.get(i).setName(getRandomName("batch"));
+			if(i % 2 == 0) {
+				list.get(i).setAge(i); // 更新的列不同，分成两个batch
+			}
+		}
+		list.add(null);
+		
+		int rows = dbHelper.update(list);
+		Assert.assertTrue(rows == 10);
+		for(int i = 0; i < 10; i++) {
+			StudentDO db = dbHelper.getByKey(StudentDO.class, list.get(i).getId());
+			Assert.assertTrue(list.get(i).getName().equals(db.getName()));
+			if(i % 2 == 0) {
+				Assert.assertTrue(db.getAge() == i);
+			}
+		}
+	}
+	
+	@Test
+	public void testUpdateBatchDirtyCheck() {
+		List<StudentDO> students = insertBatch(10);
+		List<Long> ids = new ArrayList<Long>();
+		for(StudentDO studentDO : students) {
+			ids.add(studentDO.getId());
+		}
+		List<StudentDirtyCheckDO> list = dbHelper.getAll(StudentDirtyCheckDO.class,
+				"where id in (?)", ids);
+		Assert.assertTrue(list.size() == 10);
+		
+		Assert.assertTrue(dbHelper.update(list) == 0); // 都没有变化，不执行sql
+		
+		for(int i = 0; i < 5; i++) {
+			list.get(i).setName(getRandomName("dirty"));
+		}
+		Assert.assertTrue(dbHelper.update(list) == 5); // 只更新有变化的
+		for(int i = 0; i < 5; i++) {
+			StudentDirtyCheckDO db = dbHelper.getByKey(StudentDirtyCheckDO.class, list.get(i).getId());
+			Assert.assertTrue(list.get(i).getName().equals(db.getName()));
+		}
+		
+		Assert.assertTrue(dbHelper.update(list) == 0); // 更新成功后快照已刷新
+	}
+	
+	@Test
+	public void testIncrement() {
+		StudentDO studentDO = insertOne();
+		
+		dbHelper.increment(StudentDO.class, studentDO.getId(), "age", 2);
+		dbHelper.increment(StudentDO.class, studentDO.getId(), "age", 3);
+		dbHelper.flushIncrement();
+		
+		StudentDO db = dbHelper.getByKey(StudentDO.class, studentDO.getId());
+		Assert.assertTrue(db.getAge() == 5);
+	}
+	
+	@Test
+	@Transactional(propagation = Propagation.NOT_SUPPORTED) // 事务外的increment才会缓存
+	public void testIncrementBuffered() {
+		StudentDO studentDO = insertOne();
+		try {
+			dbHelper.increment(StudentDO.class, studentDO.getId(), "age", 2);
+			dbHelper.increment(StudentDO.class, studentDO.getId(), "age", 3);
+			StudentDO db = dbHelper.getByKey(StudentDO.class, studentDO.getId());
+			Assert.assertTrue(db.getAge() == 0); // 还在缓存中
+			
+			Assert.assertTrue(dbHelper.flushIncrement() == 1); // 同一主键的增量合并成一条update
+			db = dbHelper.getByKey(StudentDO.class, studentDO.getId());
+			Assert.assertTrue(db.getAge() == 5);
+			
+			Assert.assertTrue(dbHelper.flushIncrement() == 0);
+			db = dbHelper.getByKey(StudentDO.class, studentDO.getId());
+			Assert.assertTrue(db.getAge() == 5);
+		} finally {
+			dbHelper.deleteByKey(studentDO);
+		}
+	}
+	
+	@Test
+	@Transactional(propagation = Propagation.NOT_SUPPORTED)
+	public void testIncrementAfterDestroy() {
+		SpringJdbcDBHelper helper = new SpringJdbcDBHelper();
+		helper.setJdbcTemplate(jdbcTemplate);
+		helper.setNamedParameterJdbcTemplate(namedParameterJdbcTemplate);
+		helper.setIncrementMaxStalenessMs(3600000);
+		
+		StudentDO studentDO = insertOne();
+		try {
+			helper.increment(StudentDO.class, studentDO.getId(), "age", 2);
+			helper.destroy(); // 写入缓存中的增量
+			StudentDO db = dbHelper.getByKey(StudentDO.class, studentDO.getId());
+			Assert.assertTrue(db.getAge() == 2);
+			
+			helper.increment(StudentDO.class, studentDO.getId(), "age", 3); // destroy之后直接写入
+			db = dbHelper.getByKey(StudentDO.class, studentDO.getId());
+			Assert.assertTrue(db.getAge() == 5);
+		} finally {
+			dbHelper.deleteByKey(studentDO);
+		}
+	}
+	
+	@Test(expected = InvalidParameterException.class)
+	public void testIncrementNotNumeric() {
+		dbHelper.increment(StudentDO.class, 1L, "name", 1);
+	}
+	
+	@Test
+	public void testWriteBehind() {
+		StudentDO studentDO = insertOne();
+		
+		WriteBehindDBHelper writeBehind = new WriteBehindDBHelper(dbHelper);
+		writeBehind.setFlushIntervalMs(3600000);
+		writeBehind.setRegisterShutdownHook(false);
+		
+		StudentDO update = new StudentDO();
+		update.setId(studentDO.getId());
+		update.setName("nick2");
+		writeBehind.update(update);
+		update.setName(null);
+		update.setAge(18);
+		writeBehind.update(update);
+		Assert.assertTrue(writeBehind.getPendingCount() == 1);
+		Assert.assertTrue(writeBehind.getCoalescedCount() == 1);
+		
+		writeBehind.shutdown();
+		Assert.assertTrue(writeBehind.getPendingCount() == 0);
+		
+		StudentDO db = dbHelper.getByKey(StudentDO.class, studentDO.getId());
+		Assert.assertTrue("nick2".equals(db.getName()));
+		Assert.assertTrue(db.getAge() == 18);
+		
+		// shutdown之后的写入直接写入数据库
+		update.setAge(19);
+		writeBehind.update(update);
+		Assert.assertTrue(writeBehind.getPendingCount() == 0);
+		db = dbHelper.getByKey(StudentDO.class, studentDO.getId());
+		Assert.assertTrue(db.getAge() == 19);
+	}
+	
+	@Test
+	public void testWriteBehindRetryOneByOne() {
+		StudentDO studentDO = insertOne();
+		
+		WriteBehindDBHelper writeBehind = new WriteBehindDBHelper(dbHelper);
+		writeBehind.setFlushIntervalMs(3600000);
+		writeBehind.setRegisterShutdownHook(false);
+		writeBehind.setMaxRetries(0);
+		
+		StudentDO duplicate = new StudentDO();
+		duplicate.setId(studentDO.getId()); // 主键冲突，整批insert失败
+		duplicate.setName(getRandomName("nick"));
+		writeBehind.insert(duplicate);
+		StudentDO good = new StudentDO();
+		good.setName(getRandomName("nick"));
+		writeBehind.insert(good);
+		
+		writeBehind.flush();
+		Assert.assertTrue(writeBehind.getFlushedCount() == 1);
+		Assert.assertTrue(writeBehind.getFailedCount() == 1);
+		Assert.assertTrue(writeBehind.getDroppedCount() == 1);
+		Assert.assertTrue(writeBehind.getPendingCount() == 0);
+		Assert.assertTrue(dbHelper.getOne(StudentDO.class, "where name=?", good.getName()) != null);
+		writeBehind.shutdown();
+	}
+	
+	@Test
+	@Transactional(propagation = Propagation.NOT_SUPPORTED) // 每批写入在独立的事务中提交
+	public void testWriteBehindShutdownRetry() {
+		final AtomicInteger failures = new AtomicInteger(1);
+		SpringJdbcDBHelper failOnce = new SpringJdbcDBHelper() {
+			@Override
+			public int insert(List<?> list) {
+				if(failures.getAndDecrement() > 0) {
+					throw new RuntimeException("mock insert fail");
+				}
+				return super.insert(list);
+			}
+		};
+		failOnce.setJdbcTemplate(jdbcTemplate);
+		failOnce.setNamedParameterJdbcTemplate(namedParameterJdbcTemplate);
+		
+		WriteBehindDBHelper writeBehind = new WriteBehindDBHelper(failOnce);
+		writeBehind.setFlushIntervalMs(3600000);
+		writeBehind.setRegisterShutdownHook(false);
+		
+		StudentDO studentDO = new StudentDO();
+		studentDO.setName(getRandomName("nick"));
+		writeBehind.insert(studentDO);
+		writeBehind.shutdown(); // 第一次flush失败放回队列，shutdown继续flush直到队列为空
+		
+		Assert.assertTrue(writeBehind.getPendingCount() == 0);
+		Assert.assertTrue(writeBehind.getFailedCount() == 1);
+		Assert.assertTrue(writeBehind.getFlushedCount() == 1);
+		Assert.assertTrue(writeBehind.getDroppedCount() == 0);
+		StudentDO db = dbHelper.getOne(StudentDO.class, "where name=?", studentDO.getName());
+		Assert.assertTrue(db != null);
+		dbHelper.deleteByKey(db);
+	}
+	
 	// ============ UPDATE TEST END ======================
 	
 	// ============ INSERT_UPDATE TEST START =============
@@ -188,6 +522,79 @@ public class TestDBHelper {
 		dbHelper.insertOrUpdateFullWithNull(old, newlist);
 	}
 	
+	@Test
+	public void testInsertOrUpdateList() {
+		StudentDO existing = insertOne();
+		existing.setName(getRandomName("nick"));
+		StudentDO first = new StudentDO();
+		first.setName(getRandomName("nick"));
+		StudentDO second = new StudentDO();
+		second.setName(getRandomName("nick"));
+		
+		// 插入、更新、插入分三段按顺序执行
+		int rows = dbHelper.insertOrUpdate(Arrays.asList(first, existing, second));
+		Assert.assertTrue(rows == 3);
+		Assert.assertTrue(first.getId() != null && second.getId() != null);
+		Assert.assertTrue(first.getId() < second.getId());
+		StudentDO db = dbHelper.getByKey(StudentDO.class, existing.getId());
+		Assert.assertTrue(existing.getName().equals(db.getName()));
+	}
+	
+	@Test
+	@Rollback(false)
+	public void testUpsert() {
+		StudentDO studentDO = new StudentDO();
+		studentDO.setName(getRandomName("nick"));
+		int rows = dbHelper.upsert(studentDO);
+		Assert.assertTrue(rows == 1);
+		Assert.assertTrue(studentDO.getId() != null);
+		
+		studentDO.setName(getRandomName("nick"));
+		rows = dbHelper.upsert(studentDO);
+		Assert.assertTrue(rows == 2);
+		StudentDO db = dbHelper.getByKey(StudentDO.class, studentDO.getId());
+		Assert.assertTrue(db.getName().equals(studentDO.getName()));
+		
+		// 没有useAffectedRows=true时，值没有变化的记录也返回1，不能当作插入
+		Assert.assertTrue(UpsertResultEnum.getByAffectedRows(1, false) == UpsertResultEnum.INSERTED_OR_UNCHANGED);
+		Assert.assertTrue(UpsertResultEnum.getByAffectedRows(1, true) == UpsertResultEnum.INSERTED);
+		Assert.assertTrue(UpsertResultEnum.getByAffectedRows(0, true) == UpsertResultEnum.UNCHANGED);
+		Assert.assertTrue(UpsertResultEnum.getByAffectedRows(2, false) == UpsertResultEnum.UPDATED);
+		Assert.assertTrue(UpsertResultEnum.getByAffectedRows(-2, false) == UpsertResultEnum.UNKNOWN);
+		
+		// 已被软删除的记录会恢复
+		dbHelper.deleteByKey(studentDO);
+		StudentDO revive = new StudentDO();
+		revive.setId(studentDO.getId());
+		revive.setName(studentDO.getName());
+		rows = dbHelper.upsert(revive);
+		Assert.assertTrue(rows == 2);
+		Assert.assertTrue(dbHelper.getByKey(StudentDO.class, studentDO.getId()) != null);
+		
+		// 带key但是不存在的记录也会被插入
+		dbHelper.deleteByKey(StudentTrueDeleteDO.class, studentDO.getId());
+		rows = dbHelper.upsert(studentDO);
+		Assert.assertTrue(rows == 1);
+		Assert.assertTrue(dbHelper.getByKey(StudentDO.class, studentDO.getId()) != null);
+		
+		List<StudentDO> list = insertBatch(5);
+		for(StudentDO s : list) {
+			s.setName(getRandomName("upsert"));
+		}
+		StudentDO newOne = new StudentDO();
+		newOne.setName(getRandomName("upsert"));
+		list.add(newOne);
+		List<UpsertResultEnum> results = dbHelper.upsert(list);
+		Assert.assertTrue(results.size() == 6);
+		for(int i = 0; i < 5; i++) {
+			Assert.assertTrue(results.get(i) == UpsertResultEnum.UPDATED
+					|| results.get(i) == UpsertResultEnum.UNKNOWN);
+		}
+		Assert.assertTrue(results.get(5) == UpsertResultEnum.INSERTED_OR_UNCHANGED
+				|| results.get(5) == UpsertResultEnum.UNKNOWN);
+
+	}
+	
 	// ============ INSERT_UPDATE TEST END ===============
 	
 	// ============ DELETE TEST START ====================
@@ -205,6 +612,32 @@ public class TestDBHelper {
 		Assert.assertTrue(dbHelper.getByKey(StudentDO.class, studentDO.getId()) == null);
 	}
 	
+	@Test
+	public void testDeleteByKeyList() {
+		List<StudentDO> list = insertBatch(10);
+		int[] rows = dbHelper.deleteByKey(list);
+		int total = 0;
+		for(int row : rows) {
+			total += row;
+		}
+		Assert.assertTrue(total == 10);
+		for(StudentDO studentDO : list) {
+			Assert.assertTrue(dbHelper.getByKey(StudentDO.class, studentDO.getId()) == null);
+		}
+		
+		List<Long> ids = new ArrayList<Long>();
+		for(StudentDO studentDO : insertBatch(10)) {
+			ids.add(studentDO.getId());
+		}
+		rows = dbHelper.deleteByKeys(StudentTrueDeleteDO.class, ids);
+		total = 0;
+		for(int row : rows) {
+			total += row;
+		}
+		Assert.assertTrue(total == 10);
+		Assert.assertTrue(dbHelper.getByKeyList(StudentDO.class, ids).isEmpty());
+	}
+	
 	// 测试写where条件的自定义删除
 	@Test
 	public void testDeleteWhere() {
@@ -295,6 +728,288 @@ public class TestDBHelper {
 		System.out.println("===============================");
 	}
 	
+	@Test
+	@Transactional(propagation = Propagation.NOT_SUPPORTED) // 合并getByKey不在事务中生效
+	public void testBatchGetByKey() throws Exception {
+		final List<StudentDO> list = insertBatch(10);
+		final List<StudentBatchGetDO> result = new ArrayList<StudentBatchGetDO>();
+		List<Thread> threads = new ArrayList<Thread>();
+		for(int i = 0; i < 20; i++) {
+			final Long id = list.get(i % 10).getId();
+			Thread thread = new Thread() {
+				@Override
+				public void run() {
+					StudentBatchGetDO studentDO = dbHelper.getByKey(StudentBatchGetDO.class, id);
+					synchronized (result) {
+						result.add(studentDO);
+					}
+				}
+			};
+			threads.add(thread);
+			thread.start();
+		}
+		for(Thread thread : threads) {
+			thread.join();
+		}
+		
+		Assert.assertTrue(result.size() == 20);
+		for(StudentBatchGetDO studentDO : result) {
+			Assert.assertTrue(studentDO != null && studentDO.getName() != null);
+		}
+		Assert.assertTrue(dbHelper.getByKey(StudentBatchGetDO.class, -1L) == null);
+	}
+	
+	@Test
+	@Transactional(propagation = Propagation.NOT_SUPPORTED) // 事务中的查询不合并
+	public void testSingleFlight() throws Exception {
+		final StudentDO studentDO = insertOne();
+		final SpringJdbcDBHelper singleFlightDBHelper = new SpringJdbcDBHelper();
+		singleFlightDBHelper.setJdbcTemplate(jdbcTemplate);
+		singleFlightDBHelper.setNamedParameterJdbcTemplate(namedParameterJdbcTemplate);
+		singleFlightDBHelper.setSingleFlightMode(SingleFlightModeEnum.COPY);
+		
+		final List<StudentDO> result = new ArrayList<StudentDO>();
+		List<Thread> threads = new ArrayList<Thread>();
+		for(int i = 0; i < 20; i++) {
+			Thread thread = new Thread() {
+				@Override
+				public void run() {
+					List<StudentDO> list = singleFlightDBHelper.getAll(StudentDO.class,
+							"where name=?", studentDO.getName());
+					synchronized (result) {
+						result.addAll(list);
+					}
+				}
+			};
+			threads.add(thread);
+			thread.start();
+		}
+		for(Thread thread : threads) {
+			thread.join();
+		}
+		
+		Assert.assertTrue(result.size() == 20);
+		Set<StudentDO> distinct = Collections.newSetFromMap(new IdentityHashMap<StudentDO, Boolean>());
+		for(StudentDO s : result) {
+			Assert.assertTrue(s.getId().equals(studentDO.getId()));
+			distinct.add(s);
+		}
+		Assert.assertTrue(distinct.size() == 20); // COPY模式下执行查询的线程也拿到副本
+		
+		result.get(0).setName("changed_by_one_caller");
+		for(int i = 1; i < result.size(); i++) {
+			Assert.assertTrue(studentDO.getName().equals(result.get(i).getName()));
+		}
+	}
+	
+	@Test
+	public void testSingleFlightCoalesce() throws Exception {
+		final SingleFlight<String, List<String>> singleFlight = new SingleFlight<String, List<String>>();
+		final CountDownLatch release = new CountDownLatch(1);
+		final AtomicInteger loadCount = new AtomicInteger();
+		final SingleFlight.Loader<List<String>> loader = new SingleFlight.Loader<List<String>>() {
+			@Override
+			public List<String> load() {
+				loadCount.incrementAndGet();
+				try {
+					release.await();
+				} catch (InterruptedException e) {
+					throw new RuntimeException(e);
+				}
+				return new ArrayList<String>(Arrays.asList("a", "b"));
+			}
+		};
+		
+		final List<SingleFlight.Result<List<String>>> results = new ArrayList<SingleFlight.Result<List<String>>>();
+		List<Thread> threads = new ArrayList<Thread>();
+		for(int i = 0; i < 5; i++) {
+			Thread thread = new Thread() {
+				@Override
+				public void run() {
+					SingleFlight.Result<List<String>> result = singleFlight.execute("key", loader);
+					synchronized (results) {
+						results.add(result);
+					}
+				}
+			};
+			threads.add(thread);
+			thread.start();
+			while(thread.getState() != Thread.State.WAITING) { // 第一个线程等在load中，其它线程等待它的结果
+				Thread.sleep(1);
+			}
+		}
+		release.countDown();
+		for(Thread thread : threads) {
+			thread.join();
+		}
+		
+		Assert.assertTrue(loadCount.get() == 1);
+		Assert.assertTrue(singleFlight.getSharedCount() == 4);
+		int sharedNum = 0;
+		for(SingleFlight.Result<List<String>> result : results) {
+			if(result.isShared()) {
+				sharedNum++;
+			}
+			Assert.assertTrue(result.getValue() == results.get(0).getValue());
+		}
+		Assert.assertTrue(sharedNum == 4);
+		
+		// 执行完成后不再合并
+		Assert.assertFalse(singleFlight.execute("key", loader).isShared());
+		Assert.assertTrue(loadCount.get() == 2);
+	}
+	
+	@Test
+	@Transactional(propagation = Propagation.NOT_SUPPORTED) // 事务中的查询不使用缓存
+	public void testEntityCache() {
+		StudentDO studentDO = insertOne();
+		
+		StudentCacheDO cached = dbHelper.getByKey(StudentCacheDO.class, studentDO.getId());
+		cached.setName("changed_but_not_saved");
+		cached = dbHelper.getByKey(StudentCacheDO.class, studentDO.getId());
+		Assert.assertTrue(studentDO.getName().equals(cached.getName())); // 缓存的是副本
+		
+		cached.setName(getRandomName("nick"));
+		dbHelper.update(cached); // 修改会失效缓存
+		StudentCacheDO db = dbHelper.getByKey(StudentCacheDO.class, studentDO.getId());
+		Assert.assertTrue(cached.getName().equals(db.getName()));
+		
+		List<Long> keys = new ArrayList<Long>();
+		keys.add(studentDO.getId());
+		keys.add(insertOne().getId());
+		Map<Long, StudentCacheDO> map = dbHelper.getByKeyList(StudentCacheDO.class, keys);
+		Assert.assertTrue(map.size() == 2);
+		
+		dbHelper.deleteByKey(StudentDO.class, studentDO.getId());
+		Assert.assertTrue(dbHelper.getByKey(StudentCacheDO.class, studentDO.getId()) == null);
+	}
+	
+	@Test
+	@Transactional(propagation = Propagation.NOT_SUPPORTED) // 事务中的查询不使用缓存
+	public void testNegativeCache() {
+		Long maxId = jdbcTemplate.queryForObject("select max(id) from t_student", Long.class);
+		long absentId = (maxId == null ? 0 : maxId) + 1000;
+		
+		Assert.assertTrue(dbHelper.getByKey(StudentNegativeCacheDO.class, absentId) == null);
+		Assert.assertTrue(dbHelper.getByKey(StudentNegativeCacheDO.class, absentId) == null); // 不再查数据库
+		
+		StudentDO studentDO = new StudentDO();
+		studentDO.setId(absentId);
+		studentDO.setName(getRandomName("nick"));
+		dbHelper.insert(studentDO); // 插入会清空不存在主键缓存
+		
+		StudentNegativeCacheDO db = dbHelper.getByKey(StudentNegativeCacheDO.class, absentId);
+		Assert.assertTrue(db != null);
+		Assert.assertTrue(studentDO.getName().equals(db.getName()));
+	}
+	
+	@Test
+	@Transactional(propagation = Propagation.NOT_SUPPORTED) // 事务中的查询不使用缓存
+	public void testQueryCache() {
+		StudentDO studentDO = insertOne();
+		
+		List<StudentQueryCacheDO> list = dbHelper.getAll(StudentQueryCacheDO.class,
+				"where name=?", studentDO.getName());
+		Assert.assertTrue(list.size() == 1);
+		list.get(0).setName("changed_but_not_saved");
+		list = dbHelper.getAll(StudentQueryCacheDO.class, "where name=?", studentDO.getName());
+		Assert.assertTrue(studentDO.getName().equals(list.get(0).getName())); // 缓存的是副本
+		Assert.assertTrue(dbHelper.getCount(StudentQueryCacheDO.class,
+				"where name=?", studentDO.getName()) == 1);
+		
+		// 通过其它DO类写同一张表，同样使缓存失效
+		StudentDO another = new StudentDO();
+		another.setName(studentDO.getName());
+		dbHelper.insert(another);
+		list = dbHelper.getAll(StudentQueryCacheDO.class, "where name=?", studentDO.getName());
+		Assert.assertTrue(list.size() == 2);
+		Assert.assertTrue(dbHelper.getCount(StudentQueryCacheDO.class,
+				"where name=?", studentDO.getName()) == 2);
+		
+		dbHelper.deleteByKey(StudentDO.class, another.getId());
+		list = dbHelper.getAll(StudentQueryCacheDO.class, "where name=?", studentDO.getName());
+		Assert.assertTrue(list.size() == 1);
+		
+		// 分块扫描不使用查询缓存：绕过dbHelper修改的数据，缓存中是旧的，扫描能读到新的
+		list = dbHelper.getAll(StudentQueryCacheDO.class, "where id=?", studentDO.getId());
+		String newName = getRandomName("nick");
+		jdbcTemplate.update("update t_student set name=? where id=?", newName, studentDO.getId());
+		list = dbHelper.getAll(StudentQueryCacheDO.class, "where id=?", studentDO.getId());
+		Assert.assertTrue(studentDO.getName().equals(list.get(0).getName()));
+		final List<StudentQueryCacheDO> scanned = new ArrayList<StudentQueryCacheDO>();
+		dbHelper.scanInChunks(StudentQueryCacheDO.class, 10, new DataHandler<List<StudentQueryCacheDO>>() {
+			@Override
+			public void handle(List<StudentQueryCacheDO> data) {
+				scanned.addAll(data);
+			}
+		}, "where id=?", studentDO.getId());
+		Assert.assertTrue(scanned.size() == 1);
+		Assert.assertTrue(newName.equals(scanned.get(0).getName()));
+		dbHelper.deleteByKey(StudentDO.class, studentDO.getId());
+	}
+	
+	@Test
+	@Transactional(propagation = Propagation.NOT_SUPPORTED) // 事务中的查询不使用缓存
+	public void testCacheAll() {
+		SchoolDO schoolDO = new SchoolDO();
+		schoolDO.setName(getRandomName("school"));
+		dbHelper.insert(schoolDO);
+		
+		SchoolCacheAllDO cached = dbHelper.getByKey(SchoolCacheAllDO.class, schoolDO.getId());
+		Assert.assertTrue(schoolDO.getName().equals(cached.getName()));
+		List<SchoolCacheAllDO> list = dbHelper.getAll(SchoolCacheAllDO.class,
+				"where name=?", schoolDO.getName());
+		Assert.assertTrue(list.size() == 1);
+		Assert.assertTrue(dbHelper.getCount(SchoolCacheAllDO.class, "where name=?", schoolDO.getName()) == 1);
+		
+		schoolDO.setName(getRandomName("school"));
+		dbHelper.update(schoolDO); // 修改后下次查询前会刷新
+		cached = dbHelper.getByKey(SchoolCacheAllDO.class, schoolDO.getId());
+		Assert.assertTrue(schoolDO.getName().equals(cached.getName()));
+		
+		dbHelper.deleteByKey(schoolDO); // 软删除的记录从内存中移除
+		Assert.assertTrue(dbHelper.getByKey(SchoolCacheAllDO.class, schoolDO.getId()) == null);
+	}
+	
+	@Test
+	@Transactional(propagation = Propagation.NOT_SUPPORTED) // 事务中的查询不使用缓存
+	public void testMemoryIndex() {
+		SchoolDO schoolDO = new SchoolDO();
+		schoolDO.setName(getRandomName("school"));
+		dbHelper.insert(schoolDO);
+		
+		List<StudentDO> students = new ArrayList<StudentDO>();
+		for(int i = 0; i < 3; i++) {
+			StudentDO studentDO = new StudentDO();
+			studentDO.setName(getRandomName("nick"));
+			studentDO.setAge(1000 + i);
+			studentDO.setSchoolId(schoolDO.getId());
+			students.add(studentDO);
+		}
+		dbHelper.insert(students);
+		
+		List<StudentCacheAllDO> list = dbHelper.getAll(StudentCacheAllDO.class,
+				"where school_id=?", schoolDO.getId());
+		Assert.assertTrue(list.size() == 3);
+		Assert.assertTrue(dbHelper.getCount(StudentCacheAllDO.class,
+				"where school_id=? and age>=?", schoolDO.getId(), 1001) == 2);
+		
+		List<Long> schoolIds = new ArrayList<Long>();
+		schoolIds.add(schoolDO.getId());
+		list = dbHelper.getAll(StudentCacheAllDO.class,
+				"where school_id in (?) and age<?", schoolIds, 1001);
+		Assert.assertTrue(list.size() == 1);
+		Assert.assertTrue(list.get(0).getId().equals(students.get(0).getId()));
+		
+		// 关联的学生表整表缓存，关联查询在内存中完成
+		SchoolWithStudentsVO schoolVO = dbHelper.getByKey(SchoolWithStudentsVO.class, schoolDO.getId());
+		Assert.assertTrue(schoolVO.getStudents().size() == 3);
+		
+		dbHelper.deleteByKey(StudentDO.class, students.get(0).getId());
+		schoolVO = dbHelper.getByKey(SchoolWithStudentsVO.class, schoolDO.getId());
+		Assert.assertTrue(schoolVO.getStudents().size() == 2);
+	}
+	
 	@Test
 	public void testGetPage() {
 		insertBatch(100);
@@ -321,6 +1036,370 @@ public class TestDBHelper {
 		Assert.assertTrue(total >= 100);
 	}
 	
+	@Test
+	public void testCountOptimize() {
+		String prefix = getRandomName("count");
+		List<StudentDO> list = new ArrayList<StudentDO>();
+		for(int i = 0; i < 7; i++) {
+			StudentDO studentDO = new StudentDO();
+			studentDO.setName(prefix + (i % 3));
+			list.add(studentDO);
+		}
+		dbHelper.insert(list);
+		
+		// order by不参与count，group by按分组个数计算
+		Assert.assertTrue(dbHelper.getCount(StudentDO.class,
+				"where name like ? order by name", prefix + "%") == 7);
+		Assert.assertTrue(dbHelper.getCount(StudentDO.class,
+				"where name like ? group by name", prefix + "%") == 3);
+		
+		// 最后一页不足pageSize，总数直接算出来
+		PageData<StudentDO> page = dbHelper.getPage(StudentDO.class, 2, 5,
+				"where name like ? order by id", prefix + "%");
+		Assert.assertTrue(page.getData().size() == 2);
+		Assert.assertTrue(page.getTotal() == 7);
+		page = dbHelper.getPage(StudentDO.class, 3, 5, "where name like ? order by id", prefix + "%");
+		Assert.assertTrue(page.getData().isEmpty());
+		Assert.assertTrue(page.getTotal() == 7);
+	}
+	
+	@Test
+	@Transactional(propagation = Propagation.NOT_SUPPORTED) // 总数缓存不在事务中生效
+	public void testCountMode() {
+		String prefix = getRandomName("countMode");
+		List<StudentDO> list = new ArrayList<StudentDO>();
+		for(int i = 0; i < 5; i++) {
+			StudentDO studentDO = new StudentDO();
+			studentDO.setName(prefix + i);
+			list.add(studentDO);
+		}
+		dbHelper.insert(list.subList(0, 3));
+		
+		Assert.assertTrue(dbHelper.getCount(StudentDO.class, CountModeEnum.CACHED,
+				"where name like ?", prefix + "%") == 3);
+		dbHelper.insert(list.subList(3, 5)); // 通过DBHelper修改表，缓存的总数失效
+		Assert.assertTrue(dbHelper.getCount(StudentDO.class, CountModeEnum.CACHED,
+				"where name like ?", prefix + "%") == 5);
+		PageData<StudentDO> page = dbHelper.getPage(StudentDO.class, 1, 2, CountModeEnum.CACHED,
+				"where name like ?", prefix + "%");
+		Assert.assertTrue(page.getTotal() == 5);
+		Assert.assertFalse(page.isApproximate());
+		
+		page = dbHelper.getPage(StudentDO.class, 1, 2, CountModeEnum.ESTIMATED,
+				"where name like ?", prefix + "%");
+		Assert.assertTrue(page.getData().size() == 2);
+		Assert.assertTrue(page.isApproximate());
+		Assert.assertTrue(page.getTotal() >= 0);
+		
+		dbHelper.deleteByKey(list);
+	}
+	
+	@Test
+	@Transactional(propagation = Propagation.NOT_SUPPORTED) // 事务中不并行查询总数
+	public void testParallelPageCount() {
+		String prefix = getRandomName("parallel");
+		List<StudentDO> list = new ArrayList<StudentDO>();
+		for(int i = 0; i < 7; i++) {
+			StudentDO studentDO = new StudentDO();
+			studentDO.setName(prefix + i);
+			list.add(studentDO);
+		}
+		dbHelper.insert(list);
+		
+		SpringJdbcDBHelper parallelDBHelper = new SpringJdbcDBHelper();
+		parallelDBHelper.setJdbcTemplate(jdbcTemplate);
+		parallelDBHelper.setNamedParameterJdbcTemplate(namedParameterJdbcTemplate);
+		ExecutorService executor = Executors.newFixedThreadPool(2);
+		parallelDBHelper.setPageCountExecutor(executor);
+		try {
+			PageData<StudentDO> page = parallelDBHelper.getPage(StudentDO.class, 1, 3,
+					"where name like ? order by id", prefix + "%");
+			Assert.assertTrue(page.getData().size() == 3);
+			Assert.assertTrue(page.getTotal() == 7);
+			page = parallelDBHelper.getPage(StudentDO.class, 3, 3, "where name like ? order by id", prefix + "%");
+			Assert.assertTrue(page.getData().size() == 1);
+			Assert.assertTrue(page.getTotal() == 7);
+			
+			try { // 查询数据失败时取消总数查询，抛出原来的异常
+				parallelDBHelper.getPage(StudentDO.class, 1, 3, "where not_exist_column=?", 1);
+				Assert.fail();
+			} catch (BadSqlGrammarException e) {
+			}
+		} finally {
+			executor.shutdown();
+			dbHelper.deleteByKey(list);
+		}
+	}
+	
+	@Test
+	public void testStream() {
+		String prefix = getRandomName("stream");
+		List<StudentDO> list = new ArrayList<StudentDO>();
+		for(int i = 0; i < 5; i++) {
+			StudentDO studentDO = new StudentDO();
+			studentDO.setName(prefix + i);
+			list.add(studentDO);
+		}
+		dbHelper.insert(list);
+		
+		CloseableIterator<StudentDO> iterator = dbHelper.stream(StudentDO.class,
+				"where name like ? order by id", prefix + "%");
+		try {
+			for(StudentDO studentDO : list) {
+				Assert.assertTrue(iterator.hasNext());
+				Assert.assertTrue(iterator.next().getId().equals(studentDO.getId()));
+			}
+			Assert.assertFalse(iterator.hasNext());
+		} finally {
+			iterator.close();
+		}
+		
+		final List<String> names = new ArrayList<String>();
+		long count = dbHelper.forEach(StudentDO.class, new DataHandler<StudentDO>() {
+			@Override
+			public void handle(StudentDO data) {
+				names.add(data.getName());
+			}
+		}, "where name like ? order by id", prefix + "%");
+		Assert.assertTrue(count == 5);
+		Assert.assertTrue(names.get(4).equals(prefix + 4));
+	}
+	
+	@Test
+	public void testStreamRelatedColumnInTransaction() {
+		SchoolDO schoolDO = new SchoolDO();
+		schoolDO.setName("sysu");
+		dbHelper.insert(schoolDO);
+		
+		StudentDO studentDO = insertOne();
+		studentDO.setSchoolId(schoolDO.getId());
+		dbHelper.update(studentDO);
+		
+		// 事务中@RelatedColumn的查询和流式读取用同一个连接
+		final List<StudentVO> result = new ArrayList<StudentVO>();
+		long count = dbHelper.forEach(StudentVO.class, new DataHandler<StudentVO>() {
+			@Override
+			public void handle(StudentVO data) {
+				result.add(data);
+			}
+		}, "where id=?", studentDO.getId());
+		Assert.assertTrue(count == 1);
+		Assert.assertTrue(result.get(0).getSchoolDO() != null);
+		Assert.assertTrue(result.get(0).getSchoolDO().getId().equals(schoolDO.getId()));
+	}
+	
+	@Test
+	public void testForEachPipelined() {
+		String prefix = getRandomName("pipeline");
+		List<StudentDO> list = new ArrayList<StudentDO>();
+		for(int i = 0; i < 10; i++) {
+			StudentDO studentDO = new StudentDO();
+			studentDO.setName(prefix + i);
+			list.add(studentDO);
+		}
+		dbHelper.insert(list);
+		
+		final Set<String> names = Collections.synchronizedSet(new HashSet<String>());
+		long count = dbHelper.forEachPipelined(StudentDO.class, 3, new DataHandler<List<StudentDO>>() {
+			@Override
+			public void handle(List<StudentDO> data) {
+				for(StudentDO studentDO : data) {
+					names.add(studentDO.getName());
+				}
+			}
+		}, "where name like ?", prefix + "%");
+		Assert.assertTrue(count == 10);
+		for(StudentDO studentDO : list) {
+			Assert.assertTrue(names.contains(studentDO.getName()));
+		}
+		
+		// 事务中在调用线程中处理
+		final Thread caller = Thread.currentThread();
+		final AtomicInteger otherThreadChunks = new AtomicInteger();
+		count = dbHelper.forEachPipelined(StudentDO.class, 3, new DataHandler<List<StudentDO>>() {
+			@Override
+			public void handle(List<StudentDO> data) {
+				if(Thread.currentThread() != caller) {
+					otherThreadChunks.incrementAndGet();
+				}
+			}
+		}, "where name like ?", prefix + "%");
+		Assert.assertTrue(count == 10);
+		Assert.assertTrue(otherThreadChunks.get() == 0);
+	}
+	
+	@Test
+	public void testGetAllWithSpill() {
+		String prefix = getRandomName("spill");
+		List<StudentDO> list = new ArrayList<StudentDO>();
+		for(int i = 0; i < 10; i++) {
+			StudentDO studentDO = new StudentDO();
+			studentDO.setName(prefix + i);
+			list.add(studentDO);
+		}
+		dbHelper.insert(list);
+		
+		SpringJdbcDBHelper spillDBHelper = new SpringJdbcDBHelper();
+		spillDBHelper.setJdbcTemplate(jdbcTemplate);
+		spillDBHelper.setNamedParameterJdbcTemplate(namedParameterJdbcTemplate);
+		spillDBHelper.setSpillMemoryBytes(1); // 第一条之后都写入临时文件
+		List<StudentDO> result = spillDBHelper.getAllWithSpill(StudentDO.class,
+				"where name like ? order by id", prefix + "%");
+		Assert.assertTrue(result.size() == 10);
+		for(int i = 0; i < 10; i++) {
+			Assert.assertTrue(result.get(i).getId().equals(list.get(i).getId()));
+			Assert.assertTrue(result.get(i).getName().equals(list.get(i).getName()));
+		}
+		
+		spillDBHelper.setResultMaxRows(5);
+		try {
+			spillDBHelper.getAllWithSpill(StudentDO.class, "where name like ?", prefix + "%");
+			Assert.fail();
+		} catch (ResultTooLargeException e) {
+		}
+	}
+	
+	@Test
+	public void testScanInChunks() {
+		String prefix = getRandomName("chunk");
+		List<StudentDO> list = new ArrayList<StudentDO>();
+		for(int i = 0; i < 7; i++) {
+			StudentDO studentDO = new StudentDO();
+			studentDO.setName(prefix + i);
+			list.add(studentDO);
+		}
+		dbHelper.insert(list);
+		
+		final List<Integer> chunkSizes = new ArrayList<Integer>();
+		final List<Long> ids = new ArrayList<Long>();
+		DataHandler<List<StudentDO>> handler = new DataHandler<List<StudentDO>>() {
+			@Override
+			public void handle(List<StudentDO> data) {
+				chunkSizes.add(data.size());
+				for(StudentDO studentDO : data) {
+					ids.add(studentDO.getId());
+				}
+			}
+		};
+		Object lastKey = dbHelper.scanInChunks(StudentDO.class, 3, handler, "where name like ?", prefix + "%");
+		Assert.assertTrue(chunkSizes.size() == 3 && chunkSizes.get(2) == 1);
+		Assert.assertTrue(ids.size() == 7);
+		Assert.assertTrue(list.get(6).getId().equals(lastKey));
+		
+		// 从检查点继续
+		ids.clear();
+		lastKey = dbHelper.scanInChunks(StudentDO.class, list.get(2).getId(), 3, handler,
+				"where name like ?", prefix + "%");
+		Assert.assertTrue(ids.size() == 4);
+		Assert.assertTrue(ids.get(0).equals(list.get(3).getId()));
+		Assert.assertTrue(list.get(6).getId().equals(lastKey));
+	}
+	
+	@Test
+	@Transactional(propagation = Propagation.NOT_SUPPORTED) // 事务中顺序扫描
+	public void testScanInParallel() {
+		String prefix = getRandomName("parallelScan");
+		List<StudentDO> list = new ArrayList<StudentDO>();
+		for(int i = 0; i < 20; i++) {
+			StudentDO studentDO = new StudentDO();
+			studentDO.setName(prefix + i);
+			list.add(studentDO);
+		}
+		dbHelper.insert(list);
+		
+		try {
+			final List<Long> ids = new ArrayList<Long>();
+			long count = dbHelper.scanInParallel(StudentDO.class, 4, 3, true, new DataHandler<List<StudentDO>>() {
+				@Override
+				public void handle(List<StudentDO> data) {
+					for(StudentDO studentDO : data) {
+						ids.add(studentDO.getId());
+					}
+				}
+			}, "where name like ?", prefix + "%");
+			Assert.assertTrue(count == 20);
+			for(int i = 0; i < 20; i++) { // 按主键顺序
+				Assert.assertTrue(ids.get(i).equals(list.get(i).getId()));
+			}
+			
+			final Set<Long> idSet = Collections.synchronizedSet(new HashSet<Long>());
+			count = dbHelper.scanInParallel(StudentDO.class, 4, 3, false, new DataHandler<List<StudentDO>>() {
+				@Override
+				public void handle(List<StudentDO> data) {
+					for(StudentDO studentDO : data) {
+						idSet.add(studentDO.getId());
+					}
+				}
+			}, "where name like ?", prefix + "%");
+			Assert.assertTrue(count == 20);
+			Assert.assertTrue(idSet.size() == 20);
+		} finally {
+			dbHelper.deleteByKey(list);
+		}
+	}
+	
+	@Test
+	public void testDeferredJoinPage() {
+		String prefix = getRandomName("deferred");
+		List<StudentDO> list = new ArrayList<StudentDO>();
+		for(int i = 0; i < 10; i++) {
+			StudentDO studentDO = new StudentDO();
+			studentDO.setName(prefix + i);
+			list.add(studentDO);
+		}
+		dbHelper.insert(list);
+		
+		for(int page = 1; page <= 4; page++) {
+			PageData<StudentDO> expected = dbHelper.getPage(StudentDO.class, page, 3,
+					"where name like ? order by name desc", prefix + "%");
+			PageData<StudentDeferredJoinDO> actual = dbHelper.getPage(StudentDeferredJoinDO.class, page, 3,
+					"where name like ? order by name desc", prefix + "%");
+			Assert.assertTrue(actual.getTotal() == 10);
+			Assert.assertTrue(actual.getData().size() == expected.getData().size());
+			for(int i = 0; i < actual.getData().size(); i++) { // 按主键查询后保持原来的顺序
+				Assert.assertTrue(actual.getData().get(i).getId().equals(expected.getData().get(i).getId()));
+				Assert.assertTrue(actual.getData().get(i).getName().equals(expected.getData().get(i).getName()));
+			}
+		}
+	}
+	
+	@Test
+	public void testGetPageAfter() {
+		String prefix = getRandomName("keyset");
+		List<StudentDO> list = new ArrayList<StudentDO>();
+		for(int i = 0; i < 20; i++) {
+			StudentDO studentDO = new StudentDO();
+			studentDO.setName(prefix + (i % 5)); // 有重复的排序值，靠主键区分
+			list.add(studentDO);
+		}
+		dbHelper.insert(list);
+		
+		List<Long> ids = new ArrayList<Long>();
+		String lastName = null;
+		String cursor = null;
+		do {
+			CursorPageData<StudentDO> page = dbHelper.getPageAfter(StudentDO.class, cursor, 3,
+					"where name like ? order by name desc", prefix + "%");
+			Assert.assertTrue(page.getData().size() <= 3);
+			for(StudentDO studentDO : page.getData()) {
+				Assert.assertTrue(lastName == null || lastName.compareTo(studentDO.getName()) >= 0);
+				lastName = studentDO.getName();
+				ids.add(studentDO.getId());
+			}
+			cursor = page.getNextCursor();
+		} while(cursor != null);
+		Assert.assertTrue(ids.size() == 20);
+		Assert.assertTrue(new HashSet<Long>(ids).size() == 20);
+		
+		CursorPageData<StudentSchoolJoinVO> joinPage = dbHelper.getPageAfter(StudentSchoolJoinVO.class,
+				null, 10, "where t1.name like ? order by t1.name", prefix + "%");
+		Assert.assertTrue(joinPage.getData().size() == 10);
+		joinPage = dbHelper.getPageAfter(StudentSchoolJoinVO.class, joinPage.getNextCursor(), 10,
+				"where t1.name like ? order by t1.name", prefix + "%");
+		Assert.assertTrue(joinPage.getData().size() == 10);
+		Assert.assertTrue(!joinPage.isHasNext());
+	}
+	
 	@Test
 	public void testRelatedColumn() {
 		
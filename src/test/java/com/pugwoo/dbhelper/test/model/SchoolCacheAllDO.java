@@ -0,0 +1,23 @@
+package com.pugwoo.dbhelper.test.model;
+
+import com.pugwoo.dbhelper.annotation.Column;
+import com.pugwoo.dbhelper.annotation.Table;
+
+/**
+ * 整表缓存在内存中的DO
+ */
+@Table(value = "t_school", cacheAll = true)
+public class SchoolCacheAllDO extends IdableSoftDeleteBaseDO {
+
+	@Column("name")
+	private String name;
+
+	public String getName() {
+		return name;
+	}
+
+	public void setName(String name) {
+		this.name = name;
+	}
+	
+}
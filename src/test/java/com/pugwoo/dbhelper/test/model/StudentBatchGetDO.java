@@ -0,0 +1,23 @@
+package com.pugwoo.dbhelper.test.model;
+
+import com.pugwoo.dbhelper.annotation.Column;
+import com.pugwoo.dbhelper.annotation.Table;
+
+/**
+ * 开启了batchGetByKey的DO，并发的getByKey会合并成一条key in (?)查询
+ */
+@Table(value = "t_student", batchGetByKey = true)
+public class StudentBatchGetDO extends IdableSoftDeleteBaseDO {
+
+	@Column("name")
+	private String name;
+
+	public String getName() {
+		return name;
+	}
+
+	public void setName(String name) {
+		this.name = name;
+	}
+	
+}
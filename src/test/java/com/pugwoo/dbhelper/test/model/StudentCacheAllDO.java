@@ -0,0 +1,49 @@
+package com.pugwoo.dbhelper.test.model;
+
+import com.pugwoo.dbhelper.annotation.Column;
+import com.pugwoo.dbhelper.annotation.MemoryIndex;
+import com.pugwoo.dbhelper.annotation.Table;
+import com.pugwoo.dbhelper.enums.MemoryIndexTypeEnum;
+
+/**
+ * 整表缓存在内存中并建立了内存索引的DO
+ */
+@Table(value = "t_student", cacheAll = true)
+public class StudentCacheAllDO extends IdableSoftDeleteBaseDO {
+
+	@Column("name")
+	private String name;
+	
+	@MemoryIndex(MemoryIndexTypeEnum.SORTED)
+	@Column("age")
+	private Integer age;
+	
+	@MemoryIndex
+	@Column("school_id")
+	private Long schoolId;
+
+	public String getName() {
+		return name;
+	}
+
+	public void setName(String name) {
+		this.name = name;
+	}
+
+	public Integer getAge() {
+		return age;
+	}
+
+	public void setAge(Integer age) {
+		this.age = age;
+	}
+
+	public Long getSchoolId() {
+		return schoolId;
+	}
+
+	public void setSchoolId(Long schoolId) {
+		this.schoolId = schoolId;
+	}
+	
+}
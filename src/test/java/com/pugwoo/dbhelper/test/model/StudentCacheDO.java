@@ -0,0 +1,23 @@
+package com.pugwoo.dbhelper.test.model;
+
+import com.pugwoo.dbhelper.annotation.Column;
+import com.pugwoo.dbhelper.annotation.Table;
+
+/**
+ * 开启了实体缓存的DO
+ */
+@Table(value = "t_student", cacheMaxSize = 1000, cacheExpireSeconds = 60)
+public class StudentCacheDO extends IdableSoftDeleteBaseDO {
+
+	@Column("name")
+	private String name;
+
+	public String getName() {
+		return name;
+	}
+
+	public void setName(String name) {
+		this.name = name;
+	}
+	
+}
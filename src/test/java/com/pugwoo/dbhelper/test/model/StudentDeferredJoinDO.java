@@ -0,0 +1,23 @@
+package com.pugwoo.dbhelper.test.model;
+
+import com.pugwoo.dbhelper.annotation.Column;
+import com.pugwoo.dbhelper.annotation.Table;
+
+/**
+ * 开启了延迟关联分页的DO
+ */
+@Table(value = "t_student", deferredJoinPage = true)
+public class StudentDeferredJoinDO extends IdableSoftDeleteBaseDO {
+
+	@Column("name")
+	private String name;
+
+	public String getName() {
+		return name;
+	}
+
+	public void setName(String name) {
+		this.name = name;
+	}
+	
+}
@@ -0,0 +1,34 @@
+package com.pugwoo.dbhelper.test.model;
+
+import com.pugwoo.dbhelper.annotation.Column;
+import com.pugwoo.dbhelper.annotation.Table;
+
+/**
+ * 开启了dirtyCheck的DO，update时只更新有变化的列
+ */
+@Table(value = "t_student", dirtyCheck = true)
+public class StudentDirtyCheckDO extends IdableSoftDeleteBaseDO {
+
+	@Column("name")
+	private String name;
+	
+	@Column("age")
+	private Integer age;
+
+	public String getName() {
+		return name;
+	}
+
+	public void setName(String name) {
+		this.name = name;
+	}
+
+	public Integer getAge() {
+		return age;
+	}
+
+	public void setAge(Integer age) {
+		this.age = age;
+	}
+	
+}
@@ -0,0 +1,23 @@
+package com.pugwoo.dbhelper.test.model;
+
+import com.pugwoo.dbhelper.annotation.Column;
+import com.pugwoo.dbhelper.annotation.Table;
+
+/**
+ * 开启了groupCommit的DO，并发的单条insert会合并成一条多行insert
+ */
+@Table(value = "t_student", groupCommit = true)
+public class StudentGroupCommitDO extends IdableSoftDeleteBaseDO {
+
+	@Column("name")
+	private String name;
+
+	public String getName() {
+		return name;
+	}
+
+	public void setName(String name) {
+		this.name = name;
+	}
+	
+}
@@ -0,0 +1,25 @@
+package com.pugwoo.dbhelper.test.model;
+
+import com.pugwoo.dbhelper.annotation.Column;
+import com.pugwoo.dbhelper.annotation.QueryCache;
+import com.pugwoo.dbhelper.annotation.Table;
+
+/**
+ * 开启了查询结果缓存的DO
+ */
+@Table("t_student")
+@QueryCache(maxSize = 100, expireSeconds = 60)
+public class StudentQueryCacheDO extends IdableSoftDeleteBaseDO {
+
+	@Column("name")
+	private String name;
+
+	public String getName() {
+		return name;
+	}
+
+	public void setName(String name) {
+		this.name = name;
+	}
+	
+}
@@ -0,0 +1,25 @@
+package com.pugwoo.dbhelper.test.vo;
+
+import java.util.List;
+
+import com.pugwoo.dbhelper.annotation.RelatedColumn;
+import com.pugwoo.dbhelper.test.model.SchoolDO;
+import com.pugwoo.dbhelper.test.model.StudentCacheAllDO;
+
+/**
+ * 关联上学校的学生，学生表整表缓存，关联查询在内存中完成
+ */
+public class SchoolWithStudentsVO extends SchoolDO {
+
+	@RelatedColumn(value = "id", remoteColumn = "school_id")
+	private List<StudentCacheAllDO> students;
+
+	public List<StudentCacheAllDO> getStudents() {
+		return students;
+	}
+
+	public void setStudents(List<StudentCacheAllDO> students) {
+		this.students = students;
+	}
+	
+}